@@ -73,6 +73,7 @@ public class DownstreamerOptions {
 	private boolean saveOuputAsExcelFiles;
 	private final File variantGeneLinkingFile;
 	private final boolean saveUsedVariantsPerGene;
+	private final File eigenCacheFolder;
 	private final double mafFilter;
 	private final boolean quantileNormalizePermutations;
 	private final boolean regressGeneLengths;
@@ -324,6 +325,12 @@ public class DownstreamerOptions {
 		OptionBuilder.withLongOpt("saveUsedVariantsPerGene");
 		OPTIONS.addOption(OptionBuilder.create("uvg"));
 
+		OptionBuilder.withArgName("path");
+		OptionBuilder.hasArg();
+		OptionBuilder.withDescription("Folder to store eigenvalues of variant correlation matrices. Can be shared between runs that use the same reference genotypes");
+		OptionBuilder.withLongOpt("eigenCache");
+		OPTIONS.addOption(OptionBuilder.create("ec"));
+
 		OptionBuilder.withArgName("strings");
 		OptionBuilder.hasArgs();
 		OptionBuilder.withDescription("Column names to extract when running --mode CONVERT_BIN or CONVERT_EXP");
@@ -418,6 +425,7 @@ public class DownstreamerOptions {
 		normalizeEigenvectors = commandLine.hasOption("ne");
 		saveOuputAsExcelFiles = commandLine.hasOption("se");
 		saveUsedVariantsPerGene = commandLine.hasOption("uvg");
+		eigenCacheFolder = commandLine.hasOption("ec") ? new File(commandLine.getOptionValue("ec")) : null;
 		quantileNormalizePermutations = commandLine.hasOption("qn");
 		regressGeneLengths = commandLine.hasOption("rgl");
 		run1BasePath = commandLine.hasOption("soo") ? new File(commandLine.getOptionValue("soo")) : outputBasePath;
@@ -1160,6 +1168,9 @@ public class DownstreamerOptions {
 				LOGGER.info(" * Max correlation between variants: " + maxRBetweenVariants);
 				LOGGER.info(" * Correcting for lambda inflation: " + (correctForLambdaInflation ? "on" : "off"));
 				LOGGER.info(" * Save which variants that are used per gene to calculate the gene p-value: " + (saveUsedVariantsPerGene ? "on" : "off"));
+				if (eigenCacheFolder != null) {
+					LOGGER.info(" * Eigenvalue cache folder: " + eigenCacheFolder.getAbsolutePath());
+				}
 				if (variantFilterFile != null) {
 					LOGGER.info(" * Confining analysis to variants in this file: " + variantFilterFile.getAbsolutePath());
 				}
@@ -1355,6 +1366,13 @@ public class DownstreamerOptions {
 		return saveUsedVariantsPerGene;
 	}
 
+	/**
+	 * @return null if eigenvalues should only be cached in memory
+	 */
+	public File getEigenCacheFolder() {
+		return eigenCacheFolder;
+	}
+
 	public double getMafFilter() {
 		return mafFilter;
 	}
@@ -0,0 +1,307 @@
+package nl.systemsgenetics.downstreamer.gene;
+
+import cern.colt.matrix.tdouble.DoubleMatrix2D;
+import cern.colt.matrix.tdouble.algo.decomposition.DenseDoubleEigenvalueDecomposition;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import static nl.systemsgenetics.downstreamer.Downstreamer.formatMsForLog;
+import org.apache.log4j.Logger;
+
+/**
+ * Eigenvalues of variant correlation matrices, keyed on the ordered variants
+ * and the reference panel. Overlapping genes often end up with exactly the
+ * same pruned variants, and a rerun with another GWAS on the same reference
+ * needs the same eigenvalues again.
+ *
+ * Recently used eigenvalues are kept in memory. If a folder is specified the
+ * eigenvalues are also stored on disk, one small binary file per key, so they
+ * can be used by later runs.
+ *
+ * Thread safe.
+ */
+public class EigenvalueCache {
+
+	private static final Logger LOGGER = Logger.getLogger(EigenvalueCache.class);
+	private static final int FILE_VERSION = 1;
+
+	private final File folder;
+	private final String referencePanelId;
+	private final LinkedHashMap<String, CachedEigenvalues> memoryCache;
+
+	private final AtomicInteger countMemoryHits = new AtomicInteger(0);
+	private final AtomicInteger countDiskHits = new AtomicInteger(0);
+	private final AtomicInteger countMisses = new AtomicInteger(0);
+	private final AtomicLong timeInDecompositionNanos = new AtomicLong(0);
+	private final AtomicLong timeSavedNanos = new AtomicLong(0);
+
+	/**
+	 *
+	 * @param folder folder to store the eigenvalues, null to only use the
+	 * memory cache
+	 * @param referencePanelId identifies the reference genotypes used to
+	 * calculate the correlations, see createReferencePanelId
+	 * @param maxInMemory number of eigenvalue sets to keep in memory
+	 * @throws java.io.IOException
+	 */
+	public EigenvalueCache(File folder, String referencePanelId, final int maxInMemory) throws IOException {
+
+		this.folder = folder;
+		this.referencePanelId = referencePanelId;
+		this.memoryCache = new LinkedHashMap<String, CachedEigenvalues>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, CachedEigenvalues> eldest) {
+				return size() > maxInMemory;
+			}
+		};
+
+		if (folder != null && !folder.exists() && !folder.mkdirs()) {
+			throw new IOException("Unable to create eigenvalue cache folder: " + folder.getAbsolutePath());
+		}
+
+	}
+
+	/**
+	 * The correlations depend on the genotype files and the samples used. The
+	 * length and last modified time of the genotype files are part of the id,
+	 * so eigenvalues of a reference panel that is rewritten in place are not
+	 * reused.
+	 *
+	 * @param genotypeBasePaths
+	 * @param samples
+	 * @return
+	 */
+	public static String createReferencePanelId(String[] genotypeBasePaths, String[] samples) {
+
+		StringBuilder id = new StringBuilder();
+		for (String path : genotypeBasePaths) {
+			File basePath = new File(path).getAbsoluteFile();
+			id.append(basePath.getPath()).append('\n');
+			for (File genotypeFile : getGenotypeFiles(basePath)) {
+				id.append(genotypeFile.getName()).append('\t').append(genotypeFile.length()).append('\t').append(genotypeFile.lastModified()).append('\n');
+			}
+		}
+		for (String sample : samples) {
+			id.append(sample).append('\t');
+		}
+		return id.toString();
+
+	}
+
+	/**
+	 * @param basePath a genotype file, a folder with genotype files or the
+	 * path without extension of the files of one data set
+	 * @return the files belonging to the base path, sorted on name
+	 */
+	private static List<File> getGenotypeFiles(final File basePath) {
+
+		final ArrayList<File> genotypeFiles = new ArrayList<>();
+		File[] candidates;
+		if (basePath.isDirectory()) {
+			candidates = basePath.listFiles();
+		} else {
+			final String prefix = basePath.getName() + ".";
+			candidates = basePath.getParentFile() == null ? null : basePath.getParentFile().listFiles(file -> file.getName().startsWith(prefix));
+			if (basePath.isFile()) {
+				genotypeFiles.add(basePath);
+			}
+		}
+		if (candidates != null) {
+			for (File candidate : candidates) {
+				if (candidate.isFile()) {
+					genotypeFiles.add(candidate);
+				}
+			}
+		}
+		Collections.sort(genotypeFiles, (file1, file2) -> file1.getName().compareTo(file2.getName()));
+		return genotypeFiles;
+
+	}
+
+	/**
+	 *
+	 * @param variants variants of the correlation matrix, in order
+	 * @param correlations
+	 * @return real eigenvalues ordered from large to small
+	 * @throws java.io.IOException
+	 */
+	public double[] getEigenvalues(Collection<String> variants, DoubleMatrix2D correlations) throws IOException {
+
+		final String key = createKey(variants);
+
+		CachedEigenvalues cached;
+		synchronized (memoryCache) {
+			cached = memoryCache.get(key);
+		}
+		if (cached != null) {
+			countMemoryHits.incrementAndGet();
+			timeSavedNanos.addAndGet(cached.decompositionNanos);
+			return cached.eigenvalues;
+		}
+
+		File cacheFile = folder == null ? null : getCacheFile(key);
+		if (cacheFile != null && cacheFile.exists()) {
+			long loadStart = System.nanoTime();
+			cached = load(cacheFile, variants.size());
+			if (cached != null) {
+				countDiskHits.incrementAndGet();
+				timeSavedNanos.addAndGet(cached.decompositionNanos - (System.nanoTime() - loadStart));
+				putInMemory(key, cached);
+				return cached.eigenvalues;
+			}
+		}
+
+		countMisses.incrementAndGet();
+		long start = System.nanoTime();
+		final double[] eigenvalues = new DenseDoubleEigenvalueDecomposition(correlations).getRealEigenvalues().viewFlip().toArray();
+		long decompositionNanos = System.nanoTime() - start;
+		timeInDecompositionNanos.addAndGet(decompositionNanos);
+
+		cached = new CachedEigenvalues(eigenvalues, decompositionNanos);
+		putInMemory(key, cached);
+		if (cacheFile != null) {
+			save(cacheFile, cached);
+		}
+		return eigenvalues;
+
+	}
+
+	private void putInMemory(String key, CachedEigenvalues cached) {
+		synchronized (memoryCache) {
+			memoryCache.put(key, cached);
+		}
+	}
+
+	private String createKey(Collection<String> variants) {
+
+		final MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException ex) {
+			throw new RuntimeException(ex);
+		}
+
+		digest.update(referencePanelId.getBytes(StandardCharsets.UTF_8));
+		for (String variant : variants) {
+			digest.update((byte) '\n');
+			digest.update(variant.getBytes(StandardCharsets.UTF_8));
+		}
+
+		StringBuilder key = new StringBuilder(64);
+		for (byte b : digest.digest()) {
+			key.append(Character.forDigit((b >> 4) & 0xf, 16));
+			key.append(Character.forDigit(b & 0xf, 16));
+		}
+		return key.toString();
+
+	}
+
+	/**
+	 * Files are divided over 256 sub folders to keep folder sizes
+	 * manageable.
+	 */
+	private File getCacheFile(String key) {
+		return new File(new File(folder, key.substring(0, 2)), key + ".eig");
+	}
+
+	private static CachedEigenvalues load(File cacheFile, int expectedSize) {
+
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(cacheFile)))) {
+			if (in.readInt() != FILE_VERSION) {
+				return null;
+			}
+			long decompositionNanos = in.readLong();
+			int size = in.readInt();
+			if (size != expectedSize) {
+				return null;
+			}
+			double[] eigenvalues = new double[size];
+			for (int i = 0; i < size; ++i) {
+				eigenvalues[i] = in.readDouble();
+			}
+			return new CachedEigenvalues(eigenvalues, decompositionNanos);
+		} catch (IOException ex) {
+			LOGGER.warn("Ignoring unreadable eigenvalue cache file: " + cacheFile.getAbsolutePath());
+			return null;
+		}
+
+	}
+
+	private static void save(File cacheFile, CachedEigenvalues cached) throws IOException {
+
+		File parent = cacheFile.getParentFile();
+		if (!parent.exists() && !parent.mkdirs() && !parent.exists()) {
+			throw new IOException("Unable to create eigenvalue cache folder: " + parent.getAbsolutePath());
+		}
+
+		//Write to temp file first so other threads or runs never see half written files
+		File tmpFile = File.createTempFile(cacheFile.getName(), ".tmp", parent);
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)))) {
+			out.writeInt(FILE_VERSION);
+			out.writeLong(cached.decompositionNanos);
+			out.writeInt(cached.eigenvalues.length);
+			for (double eigenvalue : cached.eigenvalues) {
+				out.writeDouble(eigenvalue);
+			}
+		}
+		if (!tmpFile.renameTo(cacheFile)) {
+			tmpFile.delete();
+		}
+
+	}
+
+	public int getCountMemoryHits() {
+		return countMemoryHits.get();
+	}
+
+	public int getCountDiskHits() {
+		return countDiskHits.get();
+	}
+
+	public int getCountMisses() {
+		return countMisses.get();
+	}
+
+	public void logStatistics() {
+
+		int hits = countMemoryHits.get() + countDiskHits.get();
+		int total = hits + countMisses.get();
+
+		LOGGER.info("Eigenvalue cache memory hits: " + countMemoryHits.get());
+		LOGGER.info("Eigenvalue cache disk hits: " + countDiskHits.get());
+		LOGGER.info("Eigenvalue cache misses: " + countMisses.get());
+		LOGGER.info("Eigenvalue cache hit rate: " + (total == 0 ? "NA" : String.format("%.1f%%", hits * 100d / total)));
+		LOGGER.info("Eigenvalue cache time in decompositions: " + formatMsForLog(timeInDecompositionNanos.get() / 1000000));
+		LOGGER.info("Eigenvalue cache estimated time saved: " + formatMsForLog(timeSavedNanos.get() / 1000000));
+
+	}
+
+	private static class CachedEigenvalues {
+
+		private final double[] eigenvalues;
+		private final long decompositionNanos;
+
+		public CachedEigenvalues(double[] eigenvalues, long decompositionNanos) {
+			this.eigenvalues = eigenvalues;
+			this.decompositionNanos = decompositionNanos;
+		}
+
+	}
+
+}
@@ -0,0 +1,209 @@
+package nl.systemsgenetics.downstreamer.gene;
+
+import cern.colt.matrix.tdouble.impl.DenseDoubleMatrix2D;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import org.apache.log4j.Logger;
+import umcg.genetica.math.matrix2.DoubleMatrixDataset;
+
+/**
+ * Binary store of the pruned inverse gene correlation matrix per chromosome
+ * arm. Each arm is saved in its own file together with a key of the null GWAS
+ * gene p-values that were used, so a later run with the same null GWAS data
+ * loads the arm instead of recalculating it. Used by PathwayEnrichments.
+ *
+ * File layout: magic, version, key (SHA-256), number of genes, gene names,
+ * row major matrix of doubles. The matrix is read memory-mapped.
+ */
+public class GeneInvCorMatrixStore {
+
+	private static final Logger LOGGER = Logger.getLogger(GeneInvCorMatrixStore.class);
+	private static final int MAGIC = 0x47494343;
+	private static final int VERSION = 1;
+	private static final String EXTENSION = ".invcor";
+	private static final int MAX_MAPPED_BYTES = 1 << 30;
+
+	private final File folder;
+
+	public GeneInvCorMatrixStore(File folder) throws IOException {
+		this.folder = folder;
+		if (!folder.exists() && !folder.mkdirs()) {
+			throw new IOException("Unable to create folder: " + folder.getAbsolutePath());
+		}
+	}
+
+	/**
+	 * Key of the null GWAS data of a chromosome arm, gene names in order and
+	 * all values.
+	 *
+	 * @param genePvaluesNullGwasArm rows genes, cols null GWAS
+	 * @return
+	 */
+	public static byte[] createKey(DoubleMatrixDataset<String, String> genePvaluesNullGwasArm) {
+		return createKey(genePvaluesNullGwasArm, null);
+	}
+
+	/**
+	 * Key of the null GWAS data of a chromosome arm and the settings used to
+	 * calculate the inverse from it.
+	 *
+	 * @param genePvaluesNullGwasArm rows genes, cols null GWAS
+	 * @param settings other input of the inverse, null if there is none
+	 * @return
+	 */
+	public static byte[] createKey(DoubleMatrixDataset<String, String> genePvaluesNullGwasArm, String settings) {
+
+		final MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException ex) {
+			throw new RuntimeException(ex);
+		}
+
+		if (settings != null) {
+			digest.update(settings.getBytes(StandardCharsets.UTF_8));
+			digest.update((byte) 0);
+		}
+
+		final int rows = genePvaluesNullGwasArm.rows();
+		final int cols = genePvaluesNullGwasArm.columns();
+		final ByteBuffer rowBuffer = ByteBuffer.allocate(cols * 8);
+
+		int r = 0;
+		for (String gene : genePvaluesNullGwasArm.getHashRows().keySet()) {
+			digest.update(gene.getBytes(StandardCharsets.UTF_8));
+			digest.update((byte) '\n');
+			rowBuffer.clear();
+			for (int c = 0; c < cols; ++c) {
+				rowBuffer.putDouble(genePvaluesNullGwasArm.getElementQuick(r, c));
+			}
+			digest.update(rowBuffer.array());
+			++r;
+		}
+		if (r != rows) {
+			throw new IllegalStateException("Row count mismatch");
+		}
+
+		return digest.digest();
+
+	}
+
+	private File getArmFile(String chrArm) {
+		return new File(folder, chrArm + EXTENSION);
+	}
+
+	/**
+	 *
+	 * @param chrArm
+	 * @param key see createKey
+	 * @return null if there is no stored matrix for this arm or if it was
+	 * calculated on other data
+	 */
+	public DoubleMatrixDataset<String, String> load(String chrArm, byte[] key) {
+
+		File armFile = getArmFile(chrArm);
+		if (!armFile.exists()) {
+			return null;
+		}
+
+		try {
+			return load(armFile, key);
+		} catch (IOException ex) {
+			LOGGER.warn("Could not read stored inverse correlation matrix for " + chrArm + ", will recalculate: " + ex.getMessage());
+			return null;
+		}
+
+	}
+
+	private static DoubleMatrixDataset<String, String> load(File armFile, byte[] expectedKey) throws IOException {
+
+		try (RandomAccessFile file = new RandomAccessFile(armFile, "r"); FileChannel channel = file.getChannel()) {
+
+			if (file.readInt() != MAGIC || file.readInt() != VERSION) {
+				throw new IOException("Not an inverse correlation matrix file: " + armFile.getAbsolutePath());
+			}
+			byte[] key = new byte[32];
+			file.readFully(key);
+			if (expectedKey != null && !Arrays.equals(key, expectedKey)) {
+				return null;
+			}
+
+			final int n = file.readInt();
+			final LinkedHashMap<String, Integer> genes = new LinkedHashMap<>(n);
+			for (int i = 0; i < n; ++i) {
+				genes.put(file.readUTF(), i);
+			}
+
+			final long matrixStart = file.getFilePointer();
+			if (file.length() - matrixStart != (long) n * n * 8) {
+				throw new IOException("Incomplete inverse correlation matrix file: " + armFile.getAbsolutePath());
+			}
+
+			final DenseDoubleMatrix2D matrix = new DenseDoubleMatrix2D(n, n);
+			final double[] elements = (double[]) matrix.elements();
+
+			//Map at most 1GB at a time
+			final int rowsPerChunk = Math.max(1, MAX_MAPPED_BYTES / (n * 8));
+			for (int startRow = 0; startRow < n; startRow += rowsPerChunk) {
+				final int chunkRows = Math.min(rowsPerChunk, n - startRow);
+				final MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, matrixStart + (long) startRow * n * 8, (long) chunkRows * n * 8);
+				mapped.asDoubleBuffer().get(elements, startRow * n, chunkRows * n);
+			}
+
+			return new DoubleMatrixDataset<>(matrix, genes, new LinkedHashMap<>(genes));
+
+		}
+
+	}
+
+	/**
+	 * Stores the matrix of an arm, overwriting a previous version
+	 *
+	 * @param chrArm
+	 * @param key see createKey
+	 * @param invCorMatrix square matrix, rows and columns the same genes
+	 * @throws IOException
+	 */
+	public void save(String chrArm, byte[] key, DoubleMatrixDataset<String, String> invCorMatrix) throws IOException {
+
+		final File armFile = getArmFile(chrArm);
+		final File tmpFile = new File(folder, chrArm + EXTENSION + ".tmp");
+		final int n = invCorMatrix.rows();
+
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile), 1 << 20))) {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.write(key);
+			out.writeInt(n);
+			for (String gene : invCorMatrix.getHashRows().keySet()) {
+				out.writeUTF(gene);
+			}
+			for (int r = 0; r < n; ++r) {
+				for (int c = 0; c < n; ++c) {
+					out.writeDouble(invCorMatrix.getElementQuick(r, c));
+				}
+			}
+		}
+
+		if (armFile.exists() && !armFile.delete()) {
+			throw new IOException("Unable to replace: " + armFile.getAbsolutePath());
+		}
+		if (!tmpFile.renameTo(armFile)) {
+			throw new IOException("Unable to move " + tmpFile.getAbsolutePath() + " to " + armFile.getAbsolutePath());
+		}
+
+	}
+
+}
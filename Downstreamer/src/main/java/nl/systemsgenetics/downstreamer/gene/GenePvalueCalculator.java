@@ -7,7 +7,6 @@ package nl.systemsgenetics.downstreamer.gene;
 
 import cern.colt.matrix.tdouble.DoubleMatrix1D;
 import cern.colt.matrix.tdouble.DoubleMatrix2D;
-import cern.colt.matrix.tdouble.algo.decomposition.DenseDoubleEigenvalueDecomposition;
 import cern.jet.math.tdouble.DoubleFunctions;
 import ch.unil.genescore.vegas.Farebrother;
 import com.opencsv.CSVParser;
@@ -122,6 +121,7 @@ public class GenePvalueCalculator {
 	private final HashMap<String, HashSet<String>> variantGeneMapping;
 	private final CSVWriter variantPerGeneWriter;
 	private final String[] variantPerGeneOutputLine;
+	private final EigenvalueCache eigenvalueCache;
 
 	/**
 	 *
@@ -139,10 +139,11 @@ public class GenePvalueCalculator {
 	 * @param correctForLambdaInflation
 	 * @param nrSampleToUseForCorrelation
 	 * @param nrSamplesToUseForNullBetas
+	 * @param eigenvalueCache eigenvalues of variant correlation matrices
 	 * @throws java.io.IOException
 	 */
 	@SuppressWarnings("CallToThreadStartDuringObjectConstruction")
-	public GenePvalueCalculator(String variantPhenotypeZscoreMatrixPath, RandomAccessGenotypeData referenceGenotypes, List<Gene> genes, int windowExtend, double maxR, int nrPermutations, long nrRescuePermutation, String outputBasePath, double[] randomChi2, boolean correctForLambdaInflation, final int nrSampleToUseForCorrelation, final int nrSamplesToUseForNullBetas, final File debugFolder, final File variantGeneMappingFile, final File usedVariantsPerGeneFile) throws IOException, Exception {
+	public GenePvalueCalculator(String variantPhenotypeZscoreMatrixPath, RandomAccessGenotypeData referenceGenotypes, List<Gene> genes, int windowExtend, double maxR, int nrPermutations, long nrRescuePermutation, String outputBasePath, double[] randomChi2, boolean correctForLambdaInflation, final int nrSampleToUseForCorrelation, final int nrSamplesToUseForNullBetas, final File debugFolder, final File variantGeneMappingFile, final File usedVariantsPerGeneFile, final EigenvalueCache eigenvalueCache) throws IOException, Exception {
 
 		this.referenceGenotypes = referenceGenotypes;
 		this.genes = genes;
@@ -160,6 +161,7 @@ public class GenePvalueCalculator {
 		this.randomChi2 = randomChi2;
 		this.correctForLambdaInflation = correctForLambdaInflation;
 		this.numberRandomPhenotypes = nrSampleToUseForCorrelation + nrSamplesToUseForNullBetas;
+		this.eigenvalueCache = eigenvalueCache;
 
 		if (usedVariantsPerGeneFile != null) {
 			variantPerGeneWriter = new CSVWriter(new FileWriter(usedVariantsPerGeneFile), '\t', '\0', '\0', "\n");
@@ -328,6 +330,7 @@ public class GenePvalueCalculator {
 		LOGGER.info("timeInComparingRealChi2ToPermutationChi2: " + formatMsForLog(timeInComparingRealChi2ToPermutationChi2));
 		LOGGER.info("timeInCalculatingPvalue: " + formatMsForLog(timeInCalculatingPvalue));
 		LOGGER.info("totalTimeInThread: " + formatMsForLog(totalTimeInThread));
+		eigenvalueCache.logStatistics();
 
 		LOGGER.info("-----------------------");
 		LOGGER.info("Gene p-value histrogram chi2 dist");
@@ -514,15 +517,15 @@ public class GenePvalueCalculator {
 
 			timeStart = System.currentTimeMillis();
 
-			final DenseDoubleEigenvalueDecomposition eig = new DenseDoubleEigenvalueDecomposition(variantCorrelationsPruned.getMatrix());
+			//Shared with other genes that have the same pruned variants, do not modify
+			final double[] eigenValues = eigenvalueCache.getEigenvalues(variantCorrelationsPruned.getHashRows().keySet(), variantCorrelationsPruned.getMatrix());
 			//final Jama.EigenvalueDecomposition eig = eigenValueDecomposition(variantCorrelationsPruned.getMatrixAs2dDoubleArray());
-			final DoubleMatrix1D eigenValues = eig.getRealEigenvalues().viewFlip();
-			final long eigenValuesLenght = eigenValues.size();
+			final long eigenValuesLenght = eigenValues.length;
 
 			//Method below if from PASCAL to select relevant eigen values
 			double sumPosEigen = 0;
 			for (int i = 0; i < eigenValuesLenght; i++) {
-				double e = eigenValues.getQuick(i);
+				double e = eigenValues[i];
 				if (e > 0) {
 					sumPosEigen += e;
 				}
@@ -533,7 +536,7 @@ public class GenePvalueCalculator {
 			int eigenValuesToUse = 0;
 
 			for (int i = 0; i < eigenValuesLenght; i++) {
-				sumPosEigen -= eigenValues.getQuick(i);
+				sumPosEigen -= eigenValues[i];
 				eigenValuesToUse++;
 
 				if (sumPosEigen < cutoff) {
@@ -541,7 +544,7 @@ public class GenePvalueCalculator {
 				}
 			}
 
-			lambdas = eigenValues.viewPart(0, eigenValuesToUse).toArray();
+			lambdas = Arrays.copyOf(eigenValues, eigenValuesToUse);
 			lambdasLength = eigenValuesToUse;
 
 			if (LOGGER.isDebugEnabled()) {
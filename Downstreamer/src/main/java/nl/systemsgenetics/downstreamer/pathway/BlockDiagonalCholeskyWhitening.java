@@ -0,0 +1,143 @@
+package nl.systemsgenetics.downstreamer.pathway;
+
+import cern.colt.matrix.tdouble.DoubleMatrix2D;
+import cern.colt.matrix.tdouble.algo.decomposition.DenseDoubleCholeskyDecomposition;
+import umcg.genetica.math.matrix2.DoubleMatrixDataset;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * Multiplies data with the inverse of the Cholesky decomposition of a block
+ * diagonal correlation matrix, without creating the full matrix or its inverse.
+ *
+ * Each block (chromosome arm) keeps its own lower triangular Cholesky factor L
+ * and whitening solves L z = x by forward substitution, per block in parallel.
+ * Within a block the genes are kept in the order of the full matrix, in that
+ * case the Cholesky factor of the full matrix is exactly the combination of the
+ * per block factors, so the result is the same as
+ * inverse(cholesky(fullCorrelation).getL()).zMult(x, z).
+ */
+public class BlockDiagonalCholeskyWhitening {
+
+    private final int size;
+    private final ArrayList<Block> blocks;
+
+    /**
+     * @param correlationMatrices correlation matrix per block, together the
+     * rows must be the same as the keys of rowOrder
+     * @param rowOrder order of the rows in the data that will be whitened
+     */
+    public BlockDiagonalCholeskyWhitening(Collection<DoubleMatrixDataset<String, String>> correlationMatrices, final Map<String, Integer> rowOrder) {
+
+        this.size = rowOrder.size();
+        this.blocks = new ArrayList<>(correlationMatrices.size());
+
+        int totalRows = 0;
+        for (DoubleMatrixDataset<String, String> correlationMatrix : correlationMatrices) {
+            blocks.add(new Block(correlationMatrix));
+            totalRows += correlationMatrix.rows();
+        }
+        if (totalRows != size) {
+            throw new IllegalArgumentException("Correlation matrices contain " + totalRows + " rows, expected " + size);
+        }
+
+        blocks.parallelStream().forEach(block -> block.decompose(rowOrder));
+
+    }
+
+    /**
+     * Same as zMult(x, z) with the inverse of the lower Cholesky factor of the
+     * full correlation matrix.
+     *
+     * @param x input, rows in rowOrder
+     * @param z output, may not be x
+     */
+    public void whiten(final DoubleMatrix2D x, final DoubleMatrix2D z) {
+
+        if (x.rows() != size || z.rows() != size || x.columns() != z.columns()) {
+            throw new IllegalArgumentException("Matrix dimensions do not match");
+        }
+
+        blocks.parallelStream().forEach(block -> block.whiten(x, z));
+
+    }
+
+    private static class Block {
+
+        private final DoubleMatrixDataset<String, String> correlationMatrix;
+        private int[] fullIndices;
+        private double[][] l;
+
+        public Block(DoubleMatrixDataset<String, String> correlationMatrix) {
+            this.correlationMatrix = correlationMatrix;
+        }
+
+        private void decompose(Map<String, Integer> rowOrder) {
+
+            final ArrayList<String> blockRows = correlationMatrix.getRowObjects();
+            final int n = blockRows.size();
+
+            // sort the rows of this block on their position in the full data
+            final long[] fullIndexAndBlockIndex = new long[n];
+            for (int i = 0; i < n; ++i) {
+                Integer fullIndex = rowOrder.get(blockRows.get(i));
+                if (fullIndex == null) {
+                    throw new IllegalArgumentException("Row not found in data: " + blockRows.get(i));
+                }
+                fullIndexAndBlockIndex[i] = ((long) fullIndex << 32) | i;
+            }
+            Arrays.sort(fullIndexAndBlockIndex);
+
+            fullIndices = new int[n];
+            final int[] blockIndices = new int[n];
+            for (int i = 0; i < n; ++i) {
+                fullIndices[i] = (int) (fullIndexAndBlockIndex[i] >>> 32);
+                blockIndices[i] = (int) fullIndexAndBlockIndex[i];
+            }
+
+            final DoubleMatrix2D sortedCorrelation = correlationMatrix.getMatrix().viewSelection(blockIndices, blockIndices).copy();
+            l = new DenseDoubleCholeskyDecomposition(sortedCorrelation).getL().toArray();
+
+        }
+
+        /**
+         * Forward substitution, row wise so every step runs over the contiguous
+         * columns of a row.
+         */
+        private void whiten(DoubleMatrix2D x, DoubleMatrix2D z) {
+
+            final int n = fullIndices.length;
+            final int columns = x.columns();
+            final double[][] rows = new double[n][];
+
+            for (int i = 0; i < n; ++i) {
+                final double[] row = x.viewRow(fullIndices[i]).toArray();
+                final double[] li = l[i];
+                for (int k = 0; k < i; ++k) {
+                    final double lik = li[k];
+                    if (lik != 0) {
+                        final double[] rowK = rows[k];
+                        for (int c = 0; c < columns; ++c) {
+                            row[c] -= lik * rowK[c];
+                        }
+                    }
+                }
+                final double lii = li[i];
+                for (int c = 0; c < columns; ++c) {
+                    row[c] /= lii;
+                }
+                rows[i] = row;
+            }
+
+            for (int i = 0; i < n; ++i) {
+                z.viewRow(fullIndices[i]).assign(rows[i]);
+            }
+
+        }
+
+    }
+
+}
@@ -8,8 +8,6 @@ package nl.systemsgenetics.downstreamer.pathway;
 import cern.colt.matrix.tdouble.DoubleFactory2D;
 import cern.colt.matrix.tdouble.DoubleMatrix1D;
 import cern.colt.matrix.tdouble.DoubleMatrix2D;
-import cern.colt.matrix.tdouble.algo.DenseDoubleAlgebra;
-import cern.colt.matrix.tdouble.algo.decomposition.DenseDoubleCholeskyDecomposition;
 import cern.colt.matrix.tdouble.algo.decomposition.SparseDoubleCholeskyDecomposition;
 import cern.colt.matrix.tdouble.impl.SparseCCDoubleMatrix2D;
 import cern.colt.matrix.tdouble.impl.SparseDoubleMatrix2D;
@@ -253,23 +251,12 @@ public class CholeskyBasedPathwayEnrichments  { //extends PathwayEnrichments
             });
             // Closure of parallel computation
 
-            // Combine the inverse gene-gene correlation matrix into one matrix
-            LOGGER.debug("Merging correlation matrices per arm");
+            // Cholesky decomposition per chromosome arm, the full correlation matrix is block diagonal
+            LOGGER.debug("Calculating Cholesky decomp per arm");
+            final BlockDiagonalCholeskyWhitening whitening = new BlockDiagonalCholeskyWhitening(correlationMatrices.values(), geneZscoresPathwayMatched.getHashRows());
+            LOGGER.debug("Done calculating Cholesky decomp per arm");
 
-            // TODO: Can be optimized by returning sparse matrix direcl, but does not take that long to do
-            final DoubleMatrixDataset<String, String> tmpCorrelation = mergeCorrelationMatrices(correlationMatrices.values());
-            // Make sure the oder of metagenes is the same
-            tmpCorrelation.reorderRows(geneZscoresPathwayMatched.getHashRows());
-            tmpCorrelation.reorderCols(geneZscoresPathwayMatched.getHashRows());
-
-            //final SparseCCDoubleMatrix2D fullCorrelationMatrix = new SparseCCDoubleMatrix2D(tmpCorrelation.rows(), tmpCorrelation.columns());
-            //fullCorrelationMatrix.assign(tmpCorrelation.getMatrix());
-           // LOGGER.debug(fullCorrelationMatrix.getClass());
-
-            final DoubleMatrix2D inverseCholeskyDecomp = new DenseDoubleAlgebra().inverse(new DenseDoubleCholeskyDecomposition(tmpCorrelation.getMatrix()).getL());
-            LOGGER.debug("Done calculating inverse of Cholesky decomp of full correlation matrix");
-
-            LOGGER.debug("Pre-multiplying x and y using inverse of Cholesky decomp");
+            LOGGER.debug("Whitening x and y using Cholesky decomp");
             final DoubleMatrix2D x = new DoubleMatrixDataset<>(geneZscoresPathwayMatched.getHashRowsCopy(), geneZscoresPathwayMatched.getHashColsCopy()).getMatrix();
             final DoubleMatrix2D y = new DoubleMatrixDataset<>(genePathwayZscores.getHashRowsCopy(), genePathwayZscores.getHashColsCopy()).getMatrix();
             final DoubleMatrix2D xNull = new DoubleMatrixDataset<>(geneZscoresNullGwasNullBetasPathwayMatched.getHashRowsCopy(), geneZscoresNullGwasNullBetasPathwayMatched.getHashColsCopy()).getMatrix();
@@ -278,11 +265,11 @@ public class CholeskyBasedPathwayEnrichments  { //extends PathwayEnrichments
             LOGGER.debug("y: " + y.rows() + " y " + y.columns());
             LOGGER.debug("xNull: " + xNull.rows() + " xNull " + xNull.columns());
 
-            inverseCholeskyDecomp.zMult(geneZscoresPathwayMatched.getMatrix(), x);
+            whitening.whiten(geneZscoresPathwayMatched.getMatrix(), x);
             LOGGER.debug("X done");
-            inverseCholeskyDecomp.zMult(genePathwayZscores.getMatrix(), y);
+            whitening.whiten(genePathwayZscores.getMatrix(), y);
             LOGGER.debug("Y done");
-            inverseCholeskyDecomp.zMult(geneZscoresNullGwasNullBetasPathwayMatched.getMatrix(), xNull);
+            whitening.whiten(geneZscoresNullGwasNullBetasPathwayMatched.getMatrix(), xNull);
             LOGGER.debug("Xnull done");
 
             pb.step();
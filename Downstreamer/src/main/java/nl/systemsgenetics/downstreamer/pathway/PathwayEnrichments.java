@@ -24,6 +24,7 @@ import me.tongfei.progressbar.ProgressBar;
 import me.tongfei.progressbar.ProgressBarStyle;
 import nl.systemsgenetics.downstreamer.Downstreamer;
 import nl.systemsgenetics.downstreamer.gene.Gene;
+import nl.systemsgenetics.downstreamer.gene.GeneInvCorMatrixStore;
 import nl.systemsgenetics.downstreamer.gene.GenePathwayAssociationStatistic;
 import org.apache.commons.math3.distribution.NormalDistribution;
 import org.apache.commons.math3.distribution.TDistribution;
@@ -276,6 +277,9 @@ public class PathwayEnrichments {
 			// Store the inverse gene-gene correlation matrices
 			final Map<String, DoubleMatrixDataset<String, String>> inverseCorrelationMatrices = Collections.synchronizedMap(new HashMap<>(metaGenesPerArm.size()));
 
+			// Binary store of the inverses per arm, so later runs on the same null GWAS data can skip the pseudo inverse
+			final GeneInvCorMatrixStore inverseCorrelationStore = this.ignoreGeneCorrelations ? null : new GeneInvCorMatrixStore(new File(new File(intermediateFolder, "geneInvCor"), pathwayDatabase.getName() + "_Enrichment" + (this.hlaGenesToExclude == null ? "" : "_ExHla")));
+
 			// Advance progressbar
 			pb.step();
 
@@ -317,50 +321,68 @@ public class PathwayEnrichments {
 					final DoubleMatrixDataset<String, String> geneZscoresNullGwasCorrelationSubset = geneZscoresNullGwasCorrelationPathwayMatched.viewRowSelection(chrArmGenesInPathwayMatrix);
 					final DoubleMatrixDataset<String, String> geneZscoresNullGwasNullBetasSubset = geneZscoresNullGwasNullBetasPathwayMatched.viewRowSelection(chrArmGenesInPathwayMatrix);
 					final DoubleMatrixDataset<String, String> genePathwayZscoresSubset = genePathwayZscores.viewRowSelection(chrArmGenesInPathwayMatrix);
-					final DoubleMatrixDataset<String, String> geneZscoresNullGwasSubsetGeneCorrelations;
-
-					// Make gene-gene correlation matrix
-					if (geneCorrelationWindow < 0) {
-						LOGGER.debug("Creating full correlation matrix for chr arm");
-						geneZscoresNullGwasSubsetGeneCorrelations = geneZscoresNullGwasCorrelationSubset.viewDice().calculateCorrelationMatrix();
-					} else {
-						LOGGER.debug("Creating correlation matrix in window: " + geneCorrelationWindow);
-						geneZscoresNullGwasSubsetGeneCorrelations = createLocalGeneCorrelation(geneZscoresNullGwasCorrelationSubset, armGenes, geneCorrelationWindow);
-					}
-
-					DenseDoubleAlgebra alg = new cern.colt.matrix.tdouble.algo.DenseDoubleAlgebra();
-					LOGGER.debug("Determinant: " + alg.det(geneZscoresNullGwasSubsetGeneCorrelations.getMatrix()) + " " + chrArm);
-
-					// Set all values near 0 to zero
-					//geneZscoresNullGwasSubsetGeneCorrelations.getMatrix().assign(new setNearZeroToZero(0.01));
-					//LOGGER.debug("Determinant after fix : " + alg.det(geneZscoresNullGwasSubsetGeneCorrelations.getMatrix()) + " " + chrArm);
 					if (LOGGER.isDebugEnabled()) {
-						geneZscoresNullGwasSubsetGeneCorrelations.save(new File(debugFolder, pathwayDatabase.getName() + "_" + chrArm + "_Enrichment_geneCor.txt"));
 						geneZscoresSubset.save(new File(debugFolder, pathwayDatabase.getName() + "_" + chrArm + "_Enrichment_geneScores.txt"));
 						genePathwayZscoresSubset.save(new File(debugFolder, pathwayDatabase.getName() + "_" + chrArm + "_Enrichment_pathwayScores.txt"));
 					}
 
-					// Make the inverse of the gene-gene correlation matrix
-					final DoubleMatrix2D geneInvCorMatrixSubsetMatrix;
-					try {
-						if (this.ignoreGeneCorrelations) {//|| chrArm.equals("11_q") || chrArm.equals("11_p")
-							// Identity matrix, i.e. OLS
-							LOGGER.info("Ignoring gene correlations and performing OLS");
-							geneInvCorMatrixSubsetMatrix = DoubleFactory2D.dense.identity(geneZscoresNullGwasSubsetGeneCorrelations.rows());
+					// Inverses calculated before on the same null GWAS gene scores are loaded from the store
+					final byte[] storeKey = inverseCorrelationStore == null ? null : GeneInvCorMatrixStore.createKey(geneZscoresNullGwasCorrelationSubset, createInverseStoreSettings(armGenes, geneCorrelationWindow));
+					final DoubleMatrixDataset<String, String> storedInverse = storeKey == null ? null : inverseCorrelationStore.load(chrArm, storeKey);
+
+					final DoubleMatrixDataset<String, String> geneInvCorMatrixSubset;
+					if (storedInverse != null) {
+						LOGGER.debug("Loaded stored correlation inverse for: " + chrArm);
+						geneInvCorMatrixSubset = storedInverse;
+					} else {
+						final DoubleMatrixDataset<String, String> geneZscoresNullGwasSubsetGeneCorrelations;
+
+						// Make gene-gene correlation matrix
+						if (geneCorrelationWindow < 0) {
+							LOGGER.debug("Creating full correlation matrix for chr arm");
+							geneZscoresNullGwasSubsetGeneCorrelations = geneZscoresNullGwasCorrelationSubset.viewDice().calculateCorrelationMatrix();
 						} else {
-							LOGGER.debug("Calculating correlation inverse");
-							geneInvCorMatrixSubsetMatrix = getPseudoInverseOfSquareMatrix(geneZscoresNullGwasSubsetGeneCorrelations.getMatrix());
-							//geneInvCorMatrixSubsetMatrix = new DenseDoubleAlgebra().inverse(geneZscoresNullGwasSubsetGeneCorrelations.getMatrix());
+							LOGGER.debug("Creating correlation matrix in window: " + geneCorrelationWindow);
+							geneZscoresNullGwasSubsetGeneCorrelations = createLocalGeneCorrelation(geneZscoresNullGwasCorrelationSubset, armGenes, geneCorrelationWindow);
+						}
+
+						DenseDoubleAlgebra alg = new cern.colt.matrix.tdouble.algo.DenseDoubleAlgebra();
+						LOGGER.debug("Determinant: " + alg.det(geneZscoresNullGwasSubsetGeneCorrelations.getMatrix()) + " " + chrArm);
+
+						// Set all values near 0 to zero
+						//geneZscoresNullGwasSubsetGeneCorrelations.getMatrix().assign(new setNearZeroToZero(0.01));
+						//LOGGER.debug("Determinant after fix : " + alg.det(geneZscoresNullGwasSubsetGeneCorrelations.getMatrix()) + " " + chrArm);
+						if (LOGGER.isDebugEnabled()) {
+							geneZscoresNullGwasSubsetGeneCorrelations.save(new File(debugFolder, pathwayDatabase.getName() + "_" + chrArm + "_Enrichment_geneCor.txt"));
 						}
-					} catch (Exception ex) {
-						LOGGER.fatal(pathwayDatabase.getName() + " " + chrArm + " number of genes: " + geneZscoresNullGwasSubsetGeneCorrelations.rows());
-						throw ex;
-					}
 
-					// Convert to DoubleMatrixDataset
-					DoubleMatrixDataset<String, String> geneInvCorMatrixSubset = new DoubleMatrixDataset<>(geneInvCorMatrixSubsetMatrix,
-							geneZscoresNullGwasSubsetGeneCorrelations.getHashRows(),
-							geneZscoresNullGwasSubsetGeneCorrelations.getHashCols());
+						// Make the inverse of the gene-gene correlation matrix
+						final DoubleMatrix2D geneInvCorMatrixSubsetMatrix;
+						try {
+							if (this.ignoreGeneCorrelations) {//|| chrArm.equals("11_q") || chrArm.equals("11_p")
+								// Identity matrix, i.e. OLS
+								LOGGER.info("Ignoring gene correlations and performing OLS");
+								geneInvCorMatrixSubsetMatrix = DoubleFactory2D.dense.identity(geneZscoresNullGwasSubsetGeneCorrelations.rows());
+							} else {
+								LOGGER.debug("Calculating correlation inverse");
+								geneInvCorMatrixSubsetMatrix = getPseudoInverseOfSquareMatrix(geneZscoresNullGwasSubsetGeneCorrelations.getMatrix());
+								//geneInvCorMatrixSubsetMatrix = new DenseDoubleAlgebra().inverse(geneZscoresNullGwasSubsetGeneCorrelations.getMatrix());
+							}
+						} catch (Exception ex) {
+							LOGGER.fatal(pathwayDatabase.getName() + " " + chrArm + " number of genes: " + geneZscoresNullGwasSubsetGeneCorrelations.rows());
+							throw ex;
+						}
+
+						// Convert to DoubleMatrixDataset
+						geneInvCorMatrixSubset = new DoubleMatrixDataset<>(geneInvCorMatrixSubsetMatrix,
+								geneZscoresNullGwasSubsetGeneCorrelations.getHashRows(),
+								geneZscoresNullGwasSubsetGeneCorrelations.getHashCols());
+
+						if (storeKey != null) {
+							inverseCorrelationStore.save(chrArm, storeKey, geneInvCorMatrixSubset);
+						}
+					}
+					final DoubleMatrix2D geneInvCorMatrixSubsetMatrix = geneInvCorMatrixSubset.getMatrix();
 
 					// Store in list
 					inverseCorrelationMatrices.put(chrArm, geneInvCorMatrixSubset);
@@ -739,6 +761,23 @@ public class PathwayEnrichments {
 		return chrArmToGeneMapping;
 	}
 
+	/**
+	 * The stored inverse also depends on how the correlations were
+	 * calculated: the correlation window and, with a window, the positions of
+	 * the meta genes.
+	 */
+	private static String createInverseStoreSettings(final ArrayList<MetaGene> genes, final int correlationWindow) {
+
+		final StringBuilder settings = new StringBuilder("pseudoInverse\twindow=").append(correlationWindow);
+		if (correlationWindow >= 0) {
+			for (MetaGene gene : genes) {
+				settings.append('\t').append(gene.start).append('-').append(gene.stop);
+			}
+		}
+		return settings.toString();
+
+	}
+
 	private static DoubleMatrixDataset<String, String> createLocalGeneCorrelation(final DoubleMatrixDataset<String, String> geneZscoresNullGwasCorrelationSubset, final ArrayList<MetaGene> genes, final int correlationWindow) {
 
 		if (genes.size() != geneZscoresNullGwasCorrelationSubset.rows()) {
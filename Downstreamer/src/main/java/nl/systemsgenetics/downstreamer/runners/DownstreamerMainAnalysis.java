@@ -7,6 +7,7 @@ import nl.systemsgenetics.downstreamer.DownstreamerStep1Results;
 import nl.systemsgenetics.downstreamer.Downstreamer;
 import nl.systemsgenetics.downstreamer.DownstreamerOptions;
 import cern.colt.matrix.tdouble.DoubleMatrix2D;
+import nl.systemsgenetics.downstreamer.gene.EigenvalueCache;
 import nl.systemsgenetics.downstreamer.gene.Gene;
 import nl.systemsgenetics.downstreamer.gene.GenePvalueCalculator;
 import nl.systemsgenetics.downstreamer.io.IoUtils;
@@ -60,6 +61,10 @@ public class DownstreamerMainAnalysis {
 
         File usedVariantsPerGeneFile = options.isSaveUsedVariantsPerGene() ? new File(options.getOutputBasePath() + "_usedVariantsPerGene.txt") : null;
 
+        EigenvalueCache eigenvalueCache = new EigenvalueCache(options.getEigenCacheFolder(),
+                EigenvalueCache.createReferencePanelId(options.getGenotypeBasePath(), referenceGenotypeData.getSampleNames()),
+                10000);
+
         GenePvalueCalculator gpc = new GenePvalueCalculator(options.getGwasZscoreMatrixPath(),
                 referenceGenotypeData,
                 genes,
@@ -74,7 +79,8 @@ public class DownstreamerMainAnalysis {
                 options.getPermutationPathwayEnrichment() + options.getPermutationFDR(),
                 options.getDebugFolder(),
                 options.getVariantGeneLinkingFile(),
-                usedVariantsPerGeneFile);
+                usedVariantsPerGeneFile,
+                eigenvalueCache);
 
         DoubleMatrixDataset<String, String> genePvalues = gpc.getGenePvalues();
         DoubleMatrixDataset<String, String> genePvaluesNullGwas = gpc.getGenePvaluesNullGwas();
@@ -0,0 +1,143 @@
+package nl.systemsgenetics.downstreamer.gene;
+
+import cern.colt.matrix.tdouble.DoubleMatrix2D;
+import cern.colt.matrix.tdouble.algo.decomposition.DenseDoubleEigenvalueDecomposition;
+import cern.colt.matrix.tdouble.impl.DenseDoubleMatrix2D;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import static org.testng.Assert.*;
+import org.testng.annotations.Test;
+
+public class EigenvalueCacheTest {
+
+	private static final String[] SAMPLES = {"sample1", "sample2", "sample3"};
+
+	/**
+	 * Correlation matrix of random data of nrVariants variants
+	 */
+	private static DoubleMatrix2D createCorrelations(int nrVariants, long seed) {
+		Random random = new Random(seed);
+		int nrSamples = 50;
+		double[][] data = new double[nrVariants][nrSamples];
+		for (int v = 0; v < nrVariants; v++) {
+			double mean = 0;
+			for (int s = 0; s < nrSamples; s++) {
+				data[v][s] = random.nextGaussian() + (v > 0 ? 0.5 * data[v - 1][s] : 0);
+				mean += data[v][s];
+			}
+			mean /= nrSamples;
+			double ss = 0;
+			for (int s = 0; s < nrSamples; s++) {
+				data[v][s] -= mean;
+				ss += data[v][s] * data[v][s];
+			}
+			double sd = Math.sqrt(ss);
+			for (int s = 0; s < nrSamples; s++) {
+				data[v][s] /= sd;
+			}
+		}
+		DoubleMatrix2D correlations = new DenseDoubleMatrix2D(nrVariants, nrVariants);
+		for (int v1 = 0; v1 < nrVariants; v1++) {
+			for (int v2 = 0; v2 < nrVariants; v2++) {
+				double r = 0;
+				for (int s = 0; s < nrSamples; s++) {
+					r += data[v1][s] * data[v2][s];
+				}
+				correlations.setQuick(v1, v2, r);
+			}
+		}
+		return correlations;
+	}
+
+	private static List<String> createVariants(int nrVariants, String prefix) {
+		List<String> variants = new ArrayList<>(nrVariants);
+		for (int v = 0; v < nrVariants; v++) {
+			variants.add(prefix + v);
+		}
+		return variants;
+	}
+
+	private static double[] decompose(DoubleMatrix2D correlations) {
+		return new DenseDoubleEigenvalueDecomposition(correlations).getRealEigenvalues().viewFlip().toArray();
+	}
+
+	@Test
+	public void testCachedSameAsComputed() throws IOException {
+		File folder = Files.createTempDirectory("eigenvalueCacheTest").toFile();
+		DoubleMatrix2D correlations = createCorrelations(20, 1);
+		List<String> variants = createVariants(20, "rs");
+		double[] expected = decompose(correlations);
+
+		EigenvalueCache cache = new EigenvalueCache(folder, "panel", 10);
+		assertTrue(Arrays.equals(cache.getEigenvalues(variants, correlations), expected));
+		assertEquals(cache.getCountMisses(), 1);
+		for (int i = 1; i < expected.length; i++) {
+			assertTrue(expected[i - 1] >= expected[i]);
+		}
+
+		assertTrue(Arrays.equals(cache.getEigenvalues(variants, correlations), expected));
+		assertEquals(cache.getCountMemoryHits(), 1);
+		assertEquals(cache.getCountMisses(), 1);
+
+		// a new run with the same reference panel reads the eigenvalues from disk
+		EigenvalueCache reopened = new EigenvalueCache(folder, "panel", 10);
+		assertTrue(Arrays.equals(reopened.getEigenvalues(variants, correlations), expected));
+		assertEquals(reopened.getCountDiskHits(), 1);
+		assertEquals(reopened.getCountMisses(), 0);
+
+		// only in memory
+		EigenvalueCache memoryOnly = new EigenvalueCache(null, "panel", 10);
+		assertTrue(Arrays.equals(memoryOnly.getEigenvalues(variants, correlations), expected));
+		assertTrue(Arrays.equals(memoryOnly.getEigenvalues(variants, correlations), expected));
+		assertEquals(memoryOnly.getCountMemoryHits(), 1);
+	}
+
+	@Test
+	public void testInvalidatedOnOtherInput() throws IOException {
+		File folder = Files.createTempDirectory("eigenvalueCacheTest").toFile();
+		DoubleMatrix2D correlations = createCorrelations(15, 2);
+		List<String> variants = createVariants(15, "rs");
+		EigenvalueCache cache = new EigenvalueCache(folder, "panel", 10);
+		cache.getEigenvalues(variants, correlations);
+
+		// other variants
+		DoubleMatrix2D otherCorrelations = createCorrelations(15, 3);
+		List<String> otherVariants = createVariants(15, "snp");
+		assertTrue(Arrays.equals(cache.getEigenvalues(otherVariants, otherCorrelations), decompose(otherCorrelations)));
+		assertEquals(cache.getCountMisses(), 2);
+
+		// the same variants in another order
+		List<String> reversed = new ArrayList<>(variants);
+		Collections.reverse(reversed);
+		cache.getEigenvalues(reversed, otherCorrelations);
+		assertEquals(cache.getCountMisses(), 3);
+
+		// the same variants with another reference panel
+		EigenvalueCache otherPanel = new EigenvalueCache(folder, "otherPanel", 10);
+		assertTrue(Arrays.equals(otherPanel.getEigenvalues(variants, otherCorrelations), decompose(otherCorrelations)));
+		assertEquals(otherPanel.getCountMisses(), 1);
+		assertEquals(otherPanel.getCountDiskHits(), 0);
+	}
+
+	@Test
+	public void testReferencePanelIdChangesWithGenotypes() throws IOException {
+		File folder = Files.createTempDirectory("eigenvalueCacheTest").toFile();
+		File genotypes = new File(folder, "reference.pgen");
+		Files.write(genotypes.toPath(), new byte[]{1, 2, 3});
+		String basePath = new File(folder, "reference").getAbsolutePath();
+
+		String id = EigenvalueCache.createReferencePanelId(new String[]{basePath}, SAMPLES);
+		assertEquals(EigenvalueCache.createReferencePanelId(new String[]{basePath}, SAMPLES), id);
+		assertFalse(EigenvalueCache.createReferencePanelId(new String[]{basePath}, new String[]{"sample1", "sample2"}).equals(id));
+
+		// a reference panel rewritten in place
+		Files.write(genotypes.toPath(), new byte[]{1, 2, 3, 4});
+		assertFalse(EigenvalueCache.createReferencePanelId(new String[]{basePath}, SAMPLES).equals(id));
+	}
+}
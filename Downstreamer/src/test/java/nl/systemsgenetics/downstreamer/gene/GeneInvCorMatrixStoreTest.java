@@ -0,0 +1,110 @@
+package nl.systemsgenetics.downstreamer.gene;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import static org.testng.Assert.*;
+import org.testng.annotations.Test;
+import umcg.genetica.math.matrix2.DoubleMatrixDataset;
+
+public class GeneInvCorMatrixStoreTest {
+
+	private static DoubleMatrixDataset<String, String> createDataset(List<String> rows, List<String> cols, long seed) {
+		Random random = new Random(seed);
+		DoubleMatrixDataset<String, String> dataset = new DoubleMatrixDataset<>(rows, cols);
+		for (int r = 0; r < rows.size(); ++r) {
+			for (int c = 0; c < cols.size(); ++c) {
+				dataset.setElementQuick(r, c, random.nextGaussian());
+			}
+		}
+		return dataset;
+	}
+
+	private static List<String> names(String prefix, int count) {
+		List<String> names = new ArrayList<>(count);
+		for (int i = 0; i < count; ++i) {
+			names.add(prefix + i);
+		}
+		return names;
+	}
+
+	@Test
+	public void testSaveLoad() throws IOException {
+		File folder = Files.createTempDirectory("geneInvCorStoreTest").toFile();
+		GeneInvCorMatrixStore store = new GeneInvCorMatrixStore(folder);
+
+		List<String> genes = names("ENSG", 30);
+		DoubleMatrixDataset<String, String> nullGwas = createDataset(genes, names("gwas", 20), 1);
+		DoubleMatrixDataset<String, String> inverse = createDataset(genes, genes, 2);
+		byte[] key = GeneInvCorMatrixStore.createKey(nullGwas);
+
+		assertNull(store.load("1p", key));
+		store.save("1p", key, inverse);
+
+		DoubleMatrixDataset<String, String> loaded = store.load("1p", key);
+		assertNotNull(loaded);
+		assertEquals(loaded.getRowObjects(), genes);
+		assertEquals(loaded.getColObjects(), genes);
+		for (int r = 0; r < genes.size(); ++r) {
+			for (int c = 0; c < genes.size(); ++c) {
+				assertEquals(loaded.getElementQuick(r, c), inverse.getElementQuick(r, c));
+			}
+		}
+
+		// other arms are stored separately
+		assertNull(store.load("1q", key));
+
+		// a new store on the same folder, as in a later run
+		assertNotNull(new GeneInvCorMatrixStore(folder).load("1p", key));
+	}
+
+	@Test
+	public void testKeyMismatch() throws IOException {
+		File folder = Files.createTempDirectory("geneInvCorStoreTest").toFile();
+		GeneInvCorMatrixStore store = new GeneInvCorMatrixStore(folder);
+
+		List<String> genes = names("ENSG", 10);
+		List<String> gwas = names("gwas", 8);
+		DoubleMatrixDataset<String, String> nullGwas = createDataset(genes, gwas, 3);
+		byte[] key = GeneInvCorMatrixStore.createKey(nullGwas);
+		store.save("2p", key, createDataset(genes, genes, 4));
+
+		// other null GWAS values
+		DoubleMatrixDataset<String, String> otherNullGwas = createDataset(genes, gwas, 3);
+		otherNullGwas.setElementQuick(5, 5, otherNullGwas.getElementQuick(5, 5) + 1e-10);
+		byte[] otherKey = GeneInvCorMatrixStore.createKey(otherNullGwas);
+		assertFalse(Arrays.equals(otherKey, key));
+		assertNull(store.load("2p", otherKey));
+
+		// other settings
+		byte[] settingsKey = GeneInvCorMatrixStore.createKey(nullGwas, "window=250000");
+		assertFalse(Arrays.equals(settingsKey, key));
+		assertFalse(Arrays.equals(settingsKey, GeneInvCorMatrixStore.createKey(nullGwas, "window=500000")));
+		assertNull(store.load("2p", settingsKey));
+
+		assertTrue(Arrays.equals(GeneInvCorMatrixStore.createKey(createDataset(genes, gwas, 3)), key));
+		assertNotNull(store.load("2p", key));
+	}
+
+	@Test
+	public void testIncompleteFile() throws IOException {
+		File folder = Files.createTempDirectory("geneInvCorStoreTest").toFile();
+		GeneInvCorMatrixStore store = new GeneInvCorMatrixStore(folder);
+
+		List<String> genes = names("ENSG", 10);
+		byte[] key = GeneInvCorMatrixStore.createKey(createDataset(genes, names("gwas", 8), 5));
+		store.save("3p", key, createDataset(genes, genes, 6));
+
+		File armFile = new File(folder, "3p.invcor");
+		assertTrue(armFile.exists());
+		try (RandomAccessFile file = new RandomAccessFile(armFile, "rw")) {
+			file.setLength(file.length() - 8);
+		}
+		assertNull(store.load("3p", key));
+	}
+}
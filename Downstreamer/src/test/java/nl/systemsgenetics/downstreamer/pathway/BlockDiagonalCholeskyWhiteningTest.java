@@ -0,0 +1,73 @@
+package nl.systemsgenetics.downstreamer.pathway;
+
+import cern.colt.matrix.tdouble.DoubleMatrix2D;
+import cern.colt.matrix.tdouble.algo.DenseDoubleAlgebra;
+import cern.colt.matrix.tdouble.algo.decomposition.DenseDoubleCholeskyDecomposition;
+import cern.colt.matrix.tdouble.impl.DenseDoubleMatrix2D;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import static org.testng.Assert.*;
+import org.testng.annotations.Test;
+import umcg.genetica.math.matrix2.DoubleMatrixDataset;
+
+public class BlockDiagonalCholeskyWhiteningTest {
+
+	public BlockDiagonalCholeskyWhiteningTest() {
+	}
+
+	/**
+	 * Compare to the inverse of the Cholesky decomposition of the full
+	 * correlation matrix, with the genes of the two blocks interleaved.
+	 */
+	@Test
+	public void testWhiten() throws Exception {
+
+		Random random = new Random(1);
+
+		List<String> genesArm1 = Arrays.asList("g1", "g3", "g4", "g7");
+		List<String> genesArm2 = Arrays.asList("g6", "g2", "g5");
+		List<String> allGenes = Arrays.asList("g1", "g2", "g3", "g4", "g5", "g6", "g7");
+
+		List<String> samples = new ArrayList<>();
+		for (int i = 0; i < 20; ++i) {
+			samples.add("s" + i);
+		}
+
+		DoubleMatrixDataset<String, String> data = new DoubleMatrixDataset<>(allGenes, samples);
+		for (int r = 0; r < data.rows(); ++r) {
+			for (int c = 0; c < data.columns(); ++c) {
+				data.setElementQuick(r, c, random.nextGaussian() + (r % 2 == 0 ? data.getElementQuick(0, c) : 0));
+			}
+		}
+
+		DoubleMatrixDataset<String, String> cor1 = data.viewRowSelection(genesArm1).viewDice().calculateCorrelationMatrix();
+		DoubleMatrixDataset<String, String> cor2 = data.viewRowSelection(genesArm2).viewDice().calculateCorrelationMatrix();
+
+		DoubleMatrixDataset<String, String> fullCor = new DoubleMatrixDataset<>(allGenes, allGenes);
+		for (DoubleMatrixDataset<String, String> cor : Arrays.asList(cor1, cor2)) {
+			for (String gene1 : cor.getRowObjects()) {
+				for (String gene2 : cor.getRowObjects()) {
+					fullCor.setElement(gene1, gene2, cor.getElement(gene1, gene2));
+				}
+			}
+		}
+
+		DoubleMatrix2D inverseL = new DenseDoubleAlgebra().inverse(new DenseDoubleCholeskyDecomposition(fullCor.getMatrix()).getL());
+		DoubleMatrix2D expected = new DenseDoubleMatrix2D(data.rows(), data.columns());
+		inverseL.zMult(data.getMatrix(), expected);
+
+		BlockDiagonalCholeskyWhitening whitening = new BlockDiagonalCholeskyWhitening(Arrays.asList(cor1, cor2), data.getHashRows());
+		DoubleMatrix2D z = new DenseDoubleMatrix2D(data.rows(), data.columns());
+		whitening.whiten(data.getMatrix(), z);
+
+		for (int r = 0; r < z.rows(); ++r) {
+			for (int c = 0; c < z.columns(); ++c) {
+				assertEquals(z.getQuick(r, c), expected.getQuick(r, c), 1e-10);
+			}
+		}
+
+	}
+
+}
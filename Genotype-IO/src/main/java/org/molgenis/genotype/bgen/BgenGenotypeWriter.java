@@ -13,6 +13,7 @@ import java.nio.channels.WritableByteChannel;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.Callable;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 
@@ -21,6 +22,7 @@ import com.google.common.collect.Iterators;
 import org.apache.log4j.Logger;
 import org.molgenis.genotype.*;
 import org.molgenis.genotype.oxford.OxfordSampleFileWriter;
+import org.molgenis.genotype.util.OrderedParallelEncoder;
 import org.molgenis.genotype.util.Utils;
 import org.molgenis.genotype.variant.GeneticVariant;
 import org.molgenis.genotype.variant.NotASnpException;
@@ -39,6 +41,9 @@ public class BgenGenotypeWriter implements GenotypeWriter {
     private final double maxValue32Bits = Math.pow(2, 32) - 1;
 	private final double maxValue16Bits = Math.pow(2, 16) - 1;
 	private final CharSequence sampleIdDelimeter = "_";
+	//Variants read ahead per encoding thread, the memory use scales with the threads and the samples
+	private static final int VARIANTS_IN_FLIGHT_PER_THREAD = 4;
+	private int threads = Runtime.getRuntime().availableProcessors();
 
 	public BgenGenotypeWriter(GenotypeData genotypeData) {
 		this.genotypeData = genotypeData;
@@ -210,86 +215,151 @@ public class BgenGenotypeWriter implements GenotypeWriter {
 		long variantStartPositionInFile = offset + firstFourBytesBuffer.limit();
 
 		LOGGER.info(String.format("Writing %d variants to BGEN file...", variantCount));
-		// Loop through variants
-		for (GeneticVariant variant : genotypeData) {
-			// Write variant data block
-			// Initialize counter for the size of the variant data.
-			long variantDataSizeInBytes = 0;
-
-			// Start with the length of the variant identifier
-			List<String> allIds = variant.getAllIds();
-			String alternativeId = allIds.size() > 1 ? allIds.get(1) : "";
+		// Variants are read on a reader thread, encoded and compressed in parallel
+		// and written here in the original order.
+		try (OrderedParallelEncoder<GeneticVariant, EncodedVariant> encoder = new OrderedParallelEncoder<>(
+				genotypeData.iterator(), variant -> extractVariant(variant, sampleCount), threads, threads * VARIANTS_IN_FLIGHT_PER_THREAD)) {
+
+			EncodedVariant encodedVariant;
+			while ((encodedVariant = encoder.next()) != null) {
+
+				bgenOutputStream.write(encodedVariant.variantBlock);
+				long variantDataSizeInBytes = encodedVariant.variantBlock.length;
+
+				for (int i = 0; i < sampleCount; ++i) {
+					sampleMissingCount[i] += encodedVariant.sampleMissingCount[i];
+				}
+
+				GeneticVariant variant = encodedVariant.variant;
+				if (LOGGER.isDebugEnabled()) {
+					LOGGER.debug(String.format("Written %s, %s at %d, of size %d | seq:pos = %s:%d, %d alleles",
+							encodedVariant.primaryVariantId,
+							!variant.getAlternativeVariantIds().isEmpty() ? variant.getAlternativeVariantIds().get(0) : "-",
+							variantStartPositionInFile, variantDataSizeInBytes,
+							variant.getSequenceName(), variant.getStartPos(), variant.getAlleleCount()));
+				}
+				// Add the read variant to the BGENIX file so that it can quickly be retrieved.
+				bgenixWriter.addVariantToIndex(
+						variant,
+						variantStartPositionInFile,
+						variantDataSizeInBytes,
+						encodedVariant.primaryVariantId);
+
+				variantStartPositionInFile += variantDataSizeInBytes;
+			}
+		}
+
+		bgenOutputStream.close();
+
+		// Finalize bgenix file
+		addMetaData(bgenFile, bgenixWriter);
+		bgenixWriter.finalizeIndex();
+
+		// Return the missingness of the samples.
+		HashMap<Sample, Float> sampleMissingness = new HashMap<>();
+		for (int i = 0; i < sampleMissingCount.length; ++i) {
+			sampleMissingness.put(genotypeData.getSamples().get(i), sampleMissingCount[i] / (float) variantCount);
+		}
+		return sampleMissingness;
+	}
+
+	/**
+	 * Called on the reader thread of the pipeline. Gets the ids, alleles and
+	 * probabilities of the variant, encoding and compression of the variant
+	 * data block is done by the returned Callable.
+	 *
+	 * @param variant The variant to write.
+	 * @param sampleCount The number of samples in the genotype data.
+	 * @return The encoding of the variant.
+	 */
+	private Callable<EncodedVariant> extractVariant(final GeneticVariant variant, final int sampleCount) {
+
+		List<String> allIds = variant.getAllIds();
+		final String alternativeId = allIds.size() > 1 ? allIds.get(1) : "";
+		String primaryVariantIdTmp = variant.getPrimaryVariantId();
+		if (primaryVariantIdTmp == null) {
+			primaryVariantIdTmp = variant.getSequenceName() + ":" + variant.getStartPos();
+		}
+		final String primaryVariantId = primaryVariantIdTmp;
+		final String sequenceName = variant.getSequenceName();
+		final int startPos = variant.getStartPos();
+		final int alleleCount = variant.getAlleleCount();
+		final List<String> alleles = variant.getVariantAlleles().getAllelesAsString();
+
+		final boolean phased = variant.hasPhasedProbabilities();
+		final double[][] probabilities = phased ? null : variant.getSampleGenotypeProbabilitiesComplex();
+		final double[][][] phasedProbabilities = phased ? variant.getSampleGenotypeProbabilitiesPhased() : null;
+
+		return () -> {
+
+			ByteArrayOutputStream variantBlockStream = new ByteArrayOutputStream();
+			WritableByteChannel variantBlockChannel = Channels.newChannel(variantBlockStream);
+
 			// Write variant identifier
-			variantDataSizeInBytes += writeFieldWithFieldLength(
-					bgenOutputByteChannel, alternativeId, 2, "variant identifier");
+			writeFieldWithFieldLength(variantBlockChannel, alternativeId, 2, "variant identifier");
 			// Write the RSID
-			String primaryVariantId = variant.getPrimaryVariantId();
-			if (primaryVariantId == null) {
-				primaryVariantId = variant.getSequenceName() + ":" + variant.getStartPos();
-			}
-			variantDataSizeInBytes += writeFieldWithFieldLength(
-					bgenOutputByteChannel, primaryVariantId, 2, "rs identifier");
+			writeFieldWithFieldLength(variantBlockChannel, primaryVariantId, 2, "rs identifier");
 			// Write the chromosome
-			variantDataSizeInBytes += writeFieldWithFieldLength(
-					bgenOutputByteChannel, variant.getSequenceName(), 2, "chromosome");
+			writeFieldWithFieldLength(variantBlockChannel, sequenceName, 2, "chromosome");
 
 			// Write the variant position and the number of alleles
 			ByteBuffer variantBuffer = ByteBuffer.allocate(6).order(ByteOrder.LITTLE_ENDIAN);
-			variantBuffer.putInt(variant.getStartPos());
+			variantBuffer.putInt(startPos);
 
 			// Write the number of alleles in 16 bits.
-			int alleleCount = variant.getAlleleCount();
 			if (alleleCount > maxValue16Bits) {
 				throw new GenotypeDataException(String.format("Error, number of alleles for variant %s too large", variant));
 			}
 			// Can now safely cast to short.
 			variantBuffer.putShort((short) alleleCount);
 			variantBuffer.flip(); // reset pointer
-			variantDataSizeInBytes += bgenOutputByteChannel.write(variantBuffer);
+			variantBlockChannel.write(variantBuffer);
 			// Write alleles
-			for (Allele allele : variant.getVariantAlleles()) {
-				// Write the allele
-				variantDataSizeInBytes += writeFieldWithFieldLength(bgenOutputByteChannel,
-						allele.getAlleleAsString(), 4, "allele");
+			for (String allele : alleles) {
+				writeFieldWithFieldLength(variantBlockChannel, allele, 4, "allele");
 			}
 
-			// Get the genotype data
-            ByteBuffer genotypeDataBlockByteBuffer = getGenotypeDataBlock(sampleCount,
-                    sampleMissingCount, variant);
+			// Get the genotype data, missingness is counted for this variant only
+			// and added to the totals in the writer.
+			float[] sampleMissingCount = new float[sampleCount];
+			ByteBuffer genotypeDataBlockByteBuffer = getGenotypeDataBlock(sampleCount,
+					sampleMissingCount, alleleCount, probabilities, phasedProbabilities);
 
-            // Write the compressed genotype data to the output channel.
-			variantDataSizeInBytes += writeCompressedBgenGenotypeDataBlock(
-					bgenOutputByteChannel, genotypeDataBlockByteBuffer);
+			// Write the compressed genotype data to the output channel.
+			writeCompressedBgenGenotypeDataBlock(variantBlockChannel, genotypeDataBlockByteBuffer);
 
-			if(LOGGER.isDebugEnabled()){
-				LOGGER.debug(String.format("Written %s, %s at %d, of size %d | seq:pos = %s:%d, %d alleles",
-						primaryVariantId,
-						!variant.getAlternativeVariantIds().isEmpty() ? variant.getAlternativeVariantIds().get(0) : "-",
-						variantStartPositionInFile, variantDataSizeInBytes,
-						variant.getSequenceName(), variant.getStartPos(), alleleCount));
-			}
-			// Add the read variant to the BGENIX file so that it can quickly be retrieved.
-			bgenixWriter.addVariantToIndex(
-					variant,
-					variantStartPositionInFile,
-					variantDataSizeInBytes,
-					primaryVariantId);
-
-			variantStartPositionInFile += variantDataSizeInBytes;
+			return new EncodedVariant(variant, primaryVariantId, variantBlockStream.toByteArray(), sampleMissingCount);
+		};
+
+	}
+
+	/**
+	 * Sets the number of threads used to encode and compress variants,
+	 * default is the number of available processors.
+	 *
+	 * @param threads The number of threads.
+	 */
+	public void setThreads(int threads) {
+		if (threads < 1) {
+			throw new IllegalArgumentException("Need at least one thread");
 		}
+		this.threads = threads;
+	}
 
-		bgenOutputStream.close();
+	private static class EncodedVariant {
 
-		// Finalize bgenix file
-		addMetaData(bgenFile, bgenixWriter);
-		bgenixWriter.finalizeIndex();
+		private final GeneticVariant variant;
+		private final String primaryVariantId;
+		private final byte[] variantBlock;
+		private final float[] sampleMissingCount;
 
-		// Return the missingness of the samples.
-		HashMap<Sample, Float> sampleMissingness = new HashMap<>();
-		for (int i = 0; i < sampleMissingCount.length; ++i) {
-			sampleMissingness.put(genotypeData.getSamples().get(i), sampleMissingCount[i] / (float) variantCount);
+		public EncodedVariant(GeneticVariant variant, String primaryVariantId, byte[] variantBlock, float[] sampleMissingCount) {
+			this.variant = variant;
+			this.primaryVariantId = primaryVariantId;
+			this.variantBlock = variantBlock;
+			this.sampleMissingCount = sampleMissingCount;
 		}
-		return sampleMissingness;
+
 	}
 
 	private void addMetaData(File bgenFile, BgenixWriter bgenixWriter) throws IOException {
@@ -319,22 +389,25 @@ public class BgenGenotypeWriter implements GenotypeWriter {
 	 *
 	 * @param sampleCount The number of samples in the genotype data.
 	 * @param sampleMissingCount An array of floats representing the missingness for every sample.
-	 * @param variant The variant to get the probabilities from.
+	 * @param alleleCount The number of alleles of the variant.
+	 * @param probabilities The unphased probabilities of the variant, used if phasedProbabilities is null.
+	 * @param phasedProbabilities The phased probabilities of the variant or null.
 	 * @return A ByteBuffer containing the entire probability data storage for the given variant.
      */
-    private ByteBuffer getGenotypeDataBlock(int sampleCount, float[] sampleMissingCount, GeneticVariant variant) {
+    private ByteBuffer getGenotypeDataBlock(int sampleCount, float[] sampleMissingCount, int alleleCount,
+											double[][] probabilities, double[][][] phasedProbabilities) {
         // First declare an empty ByteBuffer.
         ByteBuffer genotypeDataBlockByteBuffer;
 
         // Check if phased data is available for all samples
-        if (variant.hasPhasedProbabilities()) {
+        if (phasedProbabilities != null) {
             // Get the phased genotype data block byte buffer if phased data is available.
             genotypeDataBlockByteBuffer = getPhasedGenotypeDataBlockByteBuffer(
-                    sampleCount, sampleMissingCount, variant);
+                    sampleCount, sampleMissingCount, alleleCount, phasedProbabilities);
         } else {
             // Get the unphased genotype data block byte buffer if phased data is available.
             genotypeDataBlockByteBuffer = getUnphasedGenotypeDataBlockByteBuffer(
-                    sampleCount, sampleMissingCount, variant);
+                    sampleCount, sampleMissingCount, alleleCount, probabilities);
         }
         genotypeDataBlockByteBuffer.flip(); // reset pointer
         return genotypeDataBlockByteBuffer;
@@ -346,18 +419,15 @@ public class BgenGenotypeWriter implements GenotypeWriter {
 	 *
 	 * @param sampleCount The number of samples in the genotype data.
 	 * @param sampleMissingCount An array of floats representing the missingness for every sample.
-	 * @param variant The variant to get the probabilities from.
+	 * @param alleleCount The number of alleles of the variant.
+	 * @param sampleGenotypeProbabilitiesBgen The unphased bgen probabilities (this can represent polyploidity
+	 *                                        and multiallelic variants)
 	 * @return A ByteBuffer containing the entire probability data storage for the given variant.
 	 */
     private ByteBuffer getUnphasedGenotypeDataBlockByteBuffer(int sampleCount,
 															  float[] sampleMissingCount,
-															  GeneticVariant variant) {
-
-    	// Get the unphased bgen probabilities (this can represent polyploidity and multiallelic variants)
-		double[][] sampleGenotypeProbabilitiesBgen = variant.getSampleGenotypeProbabilitiesComplex();
-
-		// Get the allele count for the variant.
-		int alleleCount = variant.getAlleleCount();
+															  int alleleCount,
+															  double[][] sampleGenotypeProbabilitiesBgen) {
 
 		// Init the minimum ploidy with the max possible value, can only get lower.
 		int minimumPloidy = 63;
@@ -469,16 +539,14 @@ public class BgenGenotypeWriter implements GenotypeWriter {
 	 *
 	 * @param sampleCount The number of samples in the genotype data.
 	 * @param sampleMissingCount An array of floats representing the missingness for every sample.
-	 * @param variant The variant to get the probabilities from.
+	 * @param alleleCount The number of alleles of the variant.
+	 * @param sampleGenotypeProbabilitiesBgenPhased The phased probabilities of the variant.
 	 * @return A ByteBuffer containing the entire probability data storage for the given variant.
 	 */
 	private ByteBuffer getPhasedGenotypeDataBlockByteBuffer(int sampleCount,
 															float[] sampleMissingCount,
-															GeneticVariant variant) {
-		double[][][] sampleGenotypeProbabilitiesBgenPhased = variant.getSampleGenotypeProbabilitiesPhased();
-
-		// Get the allele count
-		int alleleCount = variant.getAlleleCount();
+															int alleleCount,
+															double[][][] sampleGenotypeProbabilitiesBgenPhased) {
 
 		// Init the minimum ploidy with the max possible value, can only get lower.
 		int minimumPloidy = 63;
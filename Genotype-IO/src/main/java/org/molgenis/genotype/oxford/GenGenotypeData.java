@@ -4,12 +4,21 @@
  */
 package org.molgenis.genotype.oxford;
 
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
@@ -25,6 +34,7 @@ import org.molgenis.genotype.SimpleSequence;
 import org.molgenis.genotype.annotation.Annotation;
 import org.molgenis.genotype.annotation.SampleAnnotation;
 import org.molgenis.genotype.util.CalledDosageConvertor;
+import org.molgenis.genotype.util.DecimalParser;
 import org.molgenis.genotype.util.FixedSizeIterable;
 import org.molgenis.genotype.util.ProbabilitiesConvertor;
 import org.molgenis.genotype.util.RecordIteratorCreators;
@@ -54,11 +64,15 @@ public class GenGenotypeData extends AbstractRandomAccessGenotypeData implements
 	private final List<Sample> samples;
 	private final LinkedHashSet<String> sequenceNames;
 	private final int byteToReadForSampleAlleles;
+	private final boolean loadedFromIndex;
 	private static final Logger LOGGER = Logger.getLogger(GenGenotypeData.class);
 	private final double minimumPosteriorProbabilityToCall;
 	private final List<Boolean> phasing;
 	private static final double DEFAULT_MINIMUM_POSTERIOR_PROBABILITY_TO_CALL = 0.4f;
 	private GeneticVariantMeta geneticVariantMeta = GeneticVariantMetaMap.getGeneticVariantMetaGp();
+	private static final String INDEX_EXTENSION = ".gidx";
+	private static final int INDEX_MAGIC = 0x47494458;
+	private static final int INDEX_VERSION = 1;
 
 	public GenGenotypeData(String path) throws IOException {
 		this(new File(path + ".gen"), new File(path + ".sample"));
@@ -128,7 +142,16 @@ public class GenGenotypeData extends AbstractRandomAccessGenotypeData implements
 		sequenceNames = new LinkedHashSet<String>();
 		genFileReader = new RandomAccessFile(genFile, "r");
 
-		byteToReadForSampleAlleles = loadVariants(forceSeqName, variantRangeFactory);
+		final File indexFile = new File(genFile.getAbsolutePath() + INDEX_EXTENSION);
+		int longestChunk = loadVariantsFromIndex(indexFile, genFile, forceSeqName, variantRangeFactory);
+		loadedFromIndex = longestChunk >= 0;
+		if (loadedFromIndex) {
+			LOGGER.debug("Loaded variants from gen index: " + indexFile.getAbsolutePath());
+		} else {
+			longestChunk = loadVariants(forceSeqName, variantRangeFactory);
+			writeIndex(indexFile, genFile, forceSeqName, longestChunk);
+		}
+		byteToReadForSampleAlleles = longestChunk;
 
 		variants = variantRangeFactory.createRange();
 		
@@ -335,6 +358,158 @@ public class GenGenotypeData extends AbstractRandomAccessGenotypeData implements
 
 	}
 
+	/**
+	 * @return true if the variants were loaded from the gen index instead of
+	 * scanning the gen file
+	 */
+	boolean isLoadedFromIndex() {
+		return loadedFromIndex;
+	}
+
+	/**
+	 * Loads the variants from the binary index created by writeIndex, this is
+	 * much faster than scanning the gen file. The index is only used if the
+	 * gen file did not change after it was created.
+	 *
+	 * Index format: magic, version, gen file length and last modified, forced
+	 * sequence name, longest chunk, the sequence names, then per variant the
+	 * sequence index, position, offset of the sample probabilities, id and
+	 * both alleles. Strings are unsigned short length and UTF-8 bytes.
+	 *
+	 * @return the number of bytes of the longest chunk of sample alleles or -1
+	 * if the index can't be used
+	 */
+	private int loadVariantsFromIndex(File indexFile, File genFile, String forceSeqName, GeneticVariantRangeCreate variantRangeFactory) {
+
+		if (!indexFile.isFile() || indexFile.length() > Integer.MAX_VALUE) {
+			return -1;
+		}
+
+		try (RandomAccessFile indexReader = new RandomAccessFile(indexFile, "r")) {
+
+			final MappedByteBuffer index = indexReader.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, indexReader.length());
+			final byte[] stringBuffer = new byte[65535];
+
+			if (index.getInt() != INDEX_MAGIC || index.getInt() != INDEX_VERSION
+					|| index.getLong() != genFile.length() || index.getLong() != genFile.lastModified()) {
+				LOGGER.info("Gen index is outdated, will recreate: " + indexFile.getAbsolutePath());
+				return -1;
+			}
+			final String indexForceSeqName = index.get() == 1 ? readIndexString(index, stringBuffer) : null;
+			if (forceSeqName == null ? indexForceSeqName != null : !forceSeqName.equals(indexForceSeqName)) {
+				LOGGER.info("Gen index created with other sequence name, will recreate: " + indexFile.getAbsolutePath());
+				return -1;
+			}
+
+			final int longestChunk = index.getInt();
+
+			final String[] indexSeqNames = new String[index.getInt()];
+			for (int i = 0; i < indexSeqNames.length; ++i) {
+				indexSeqNames[i] = readIndexString(index, stringBuffer).intern();
+			}
+
+			//Only add the variants once the complete index is read
+			final int variantCount = index.getInt();
+			final ArrayList<GeneticVariant> indexVariants = new ArrayList<GeneticVariant>(variantCount);
+			final long[] indexOffsets = new long[variantCount];
+			for (int v = 0; v < variantCount; ++v) {
+				String seqName = indexSeqNames[index.getInt()];
+				int position = index.getInt();
+				indexOffsets[v] = index.getLong();
+				String variantId = readIndexString(index, stringBuffer);
+				String allele1 = readIndexString(index, stringBuffer);
+				String allele2 = readIndexString(index, stringBuffer);
+				indexVariants.add(ReadOnlyGeneticVariant.createVariant(geneticVariantMeta, variantId, position, seqName, sampleVariantProvider, allele1, allele2));
+			}
+
+			sequenceNames.addAll(Arrays.asList(indexSeqNames));
+			for (int v = 0; v < variantCount; ++v) {
+				GeneticVariant variant = indexVariants.get(v);
+				variantRangeFactory.addVariant(variant);
+				variantSampleAllelesIndex.put(variant, indexOffsets[v]);
+			}
+
+			return longestChunk;
+
+		} catch (IOException | RuntimeException ex) {
+			LOGGER.warn("Unable to use gen index, will recreate: " + indexFile.getAbsolutePath() + " " + ex.getMessage());
+			return -1;
+		}
+
+	}
+
+	private static String readIndexString(ByteBuffer index, byte[] stringBuffer) {
+		int length = index.getShort() & 0xffff;
+		index.get(stringBuffer, 0, length);
+		return new String(stringBuffer, 0, length, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Writes the binary index of the variants in this gen file. Failing to
+	 * write the index is not an error, the next time the gen file is simply
+	 * scanned again.
+	 */
+	private void writeIndex(File indexFile, File genFile, String forceSeqName, int longestChunk) {
+
+		final File tmpIndexFile = new File(indexFile.getAbsolutePath() + ".tmp");
+
+		try {
+
+			try (DataOutputStream indexWriter = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpIndexFile), 1 << 20))) {
+
+				indexWriter.writeInt(INDEX_MAGIC);
+				indexWriter.writeInt(INDEX_VERSION);
+				indexWriter.writeLong(genFile.length());
+				indexWriter.writeLong(genFile.lastModified());
+				indexWriter.writeByte(forceSeqName == null ? 0 : 1);
+				if (forceSeqName != null) {
+					writeIndexString(indexWriter, forceSeqName);
+				}
+				indexWriter.writeInt(longestChunk);
+
+				final HashMap<String, Integer> seqIndices = new HashMap<>();
+				indexWriter.writeInt(sequenceNames.size());
+				for (String seqName : sequenceNames) {
+					seqIndices.put(seqName, seqIndices.size());
+					writeIndexString(indexWriter, seqName);
+				}
+
+				indexWriter.writeInt(variantSampleAllelesIndex.size());
+				for (Map.Entry<GeneticVariant, Long> entry : variantSampleAllelesIndex.entrySet()) {
+					GeneticVariant variant = entry.getKey();
+					List<String> alleles = variant.getVariantAlleles().getAllelesAsString();
+					indexWriter.writeInt(seqIndices.get(variant.getSequenceName()));
+					indexWriter.writeInt(variant.getStartPos());
+					indexWriter.writeLong(entry.getValue());
+					writeIndexString(indexWriter, variant.getPrimaryVariantId() == null ? "." : variant.getPrimaryVariantId());
+					writeIndexString(indexWriter, alleles.get(0));
+					writeIndexString(indexWriter, alleles.get(1));
+				}
+
+			}
+
+			if ((indexFile.exists() && !indexFile.delete()) || !tmpIndexFile.renameTo(indexFile)) {
+				throw new IOException("Unable to move " + tmpIndexFile.getAbsolutePath() + " to " + indexFile.getAbsolutePath());
+			}
+
+			LOGGER.debug("Created gen index: " + indexFile.getAbsolutePath());
+
+		} catch (IOException | RuntimeException ex) {
+			LOGGER.warn("Unable to create gen index " + indexFile.getAbsolutePath() + ": " + ex.getMessage());
+			tmpIndexFile.delete();
+		}
+
+	}
+
+	private static void writeIndexString(DataOutputStream indexWriter, String value) throws IOException {
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		if (bytes.length > 65535) {
+			throw new IOException("Value too long for gen index: " + value.substring(0, 16) + "...");
+		}
+		indexWriter.writeShort(bytes.length);
+		indexWriter.write(bytes);
+	}
+
 	@Override
 	public boolean isOnlyContaingSaveProbabilityGenotypes() {
 		return true;
@@ -372,26 +547,26 @@ public class GenGenotypeData extends AbstractRandomAccessGenotypeData implements
 
 			float[] sampleProbs = new float[3];
 			int currentProbIndex = 0;
-			StringBuilder currentProb = new StringBuilder();
+			int currentProbStart = i;
 
 			while (currentProbIndex < 3) {
 
 				if (i == bytesRead) {
 
-					if (currentProb.length() == 0) {
+					if (i == currentProbStart) {
 						throw new GenotypeDataException("Error parsing gen file: " + variant.getPrimaryVariantId() + " probability " + (currentProbIndex + 1) + " of sample " + samples.get(s).getId() + " sample index: " + s + " empty probability");
 					}
 
 					try {
-						sampleProbs[currentProbIndex] = Float.parseFloat(currentProb.toString());
+						sampleProbs[currentProbIndex] = parseFloat(buffer, currentProbStart, i);
 					} catch (NumberFormatException e) {
 						throw new GenotypeDataException("Error parsing gen file: " + variant.getPrimaryVariantId() + " probability " + (currentProbIndex + 1) + " of sample " + samples.get(s).getId() + " sample index: " + s + " error: " + e.getMessage());
 					}
 					++currentProbIndex;
 					break;
 				}
-				
-				switch ((char) buffer[i]) {
+
+				switch (buffer[i]) {
 					case '\n':
 					case '\r':
 						//if not at last probability of line give error
@@ -401,16 +576,16 @@ public class GenGenotypeData extends AbstractRandomAccessGenotypeData implements
 						//if not at premature line ending just parse the last probability
 					case ' ':
 						try {
-							sampleProbs[currentProbIndex] = Float.parseFloat(currentProb.toString());
+							sampleProbs[currentProbIndex] = parseFloat(buffer, currentProbStart, i);
 						} catch (NumberFormatException e) {
-							throw new GenotypeDataException("Error parsing gen file: variant ID: " + variant.getPrimaryVariantId() + " genotype probability value " + (currentProbIndex + 1) + " of sample " + samples.get(s).getId() + " sample index: " + s + " problem parsing probability with value \"" + currentProb.toString() + "\": " + e.getMessage());
+							throw new GenotypeDataException("Error parsing gen file: variant ID: " + variant.getPrimaryVariantId() + " genotype probability value " + (currentProbIndex + 1) + " of sample " + samples.get(s).getId() + " sample index: " + s + " problem parsing probability with value \"" + new String(buffer, currentProbStart, i - currentProbStart, StandardCharsets.ISO_8859_1) + "\": " + e.getMessage());
 						}
-						currentProb = new StringBuilder();
+						currentProbStart = i + 1;
 						++currentProbIndex;
 						break;
-					
+
 					default:
-						currentProb.append((char) buffer[i]);
+						break;
 				}
 
 				++i;
@@ -428,6 +603,19 @@ public class GenGenotypeData extends AbstractRandomAccessGenotypeData implements
 
 	}
 
+	/**
+	 * Parses a probability directly from the bytes of the gen file
+	 *
+	 * @param buffer
+	 * @param start first byte of the value
+	 * @param end byte after the value
+	 * @return same as Float.parseFloat() on the text
+	 * @throws NumberFormatException
+	 */
+	protected static float parseFloat(byte[] buffer, int start, int end) {
+		return DecimalParser.parseFloat(buffer, start, end);
+	}
+
 	@Override
 	public double[][] getSampleProbabilitiesComplex(GeneticVariant variant) {
 		return ProbabilitiesConvertor.convertProbabilitiesToComplexProbabilities(getSampleProbilities(variant));
@@ -14,6 +14,8 @@ import java.io.IOException;
 import java.io.OutputStreamWriter;
 import java.nio.charset.Charset;
 import java.text.DecimalFormat;
+import java.util.List;
+import java.util.concurrent.Callable;
 import org.apache.log4j.Logger;
 import org.molgenis.genotype.Allele;
 import org.molgenis.genotype.Alleles;
@@ -21,6 +23,7 @@ import org.molgenis.genotype.GenotypeData;
 import org.molgenis.genotype.GenotypeDataException;
 import org.molgenis.genotype.GenotypeWriter;
 import org.molgenis.genotype.Sample;
+import org.molgenis.genotype.util.OrderedParallelEncoder;
 import org.molgenis.genotype.util.Utils;
 import org.molgenis.genotype.variant.GeneticVariant;
 import org.molgenis.genotype.variant.NotASnpException;
@@ -34,9 +37,13 @@ public class BedBimFamGenotypeWriter implements GenotypeWriter {
     private static final byte MAGIC_NUMBER_1 = 108;
     private static final byte MAGIC_NUMBER_2 = 27;
     private static final byte MODE = 1; //We only write snp major mode
-    private static final int HOMOZYGOTE_SECOND_BITMASK = 192;
-    private static final int HETEROZYGOTE_BITMASK = 128;
-    private static final int MISSING_BIT_MASK = 64;
+    //2 bit genotype codes, see plink bed format
+    private static final int HOMOZYGOTE_FIRST_CODE = 0;
+    private static final int MISSING_CODE = 1;
+    private static final int HETEROZYGOTE_CODE = 2;
+    private static final int HOMOZYGOTE_SECOND_CODE = 3;
+    //Variants read ahead per encoding thread, the memory use scales with the threads and the samples
+    private static final int VARIANTS_IN_FLIGHT_PER_THREAD = 4;
     private static final Charset FILE_ENCODING = Charset.forName("UTF-8");
     private static final char SEPARATOR = ' ';
     private static final DecimalFormat PHENO_FORMATTER = new DecimalFormat("0.#####");
@@ -44,6 +51,7 @@ public class BedBimFamGenotypeWriter implements GenotypeWriter {
     private int writtenSamplesCounter;
     private int writtenVariantsCounter;
     private int excludedVariantsCounter;
+    private int threads = Runtime.getRuntime().availableProcessors();
     private static final Logger LOGGER = Logger.getLogger(BedBimFamGenotypeWriter.class);
 
     public BedBimFamGenotypeWriter(GenotypeData genotypeData) {
@@ -127,76 +135,16 @@ public class BedBimFamGenotypeWriter implements GenotypeWriter {
         bedStreamWriter.write(MAGIC_NUMBER_2);
         bedStreamWriter.write(MODE);
 
-        for (GeneticVariant variant : genotypeData) {
+        try (OrderedParallelEncoder<GeneticVariant, EncodedVariant> encoder = new OrderedParallelEncoder<>(
+                genotypeData.iterator(), this::extractVariant, threads, threads * VARIANTS_IN_FLIGHT_PER_THREAD)) {
 
-			Alleles variantAlleles = variant.getVariantAlleles();
-			
-            if (variantAlleles.getAlleleCount() > 2 || !variantAlleles.isSnp()) {
-                LOGGER.warn("Skipping variant: " + variant.getPrimaryVariantId() + ", it is not a biallelic SNP.");
-                ++excludedVariantsCounter;
-                continue;
-            }
-            
-            if (variantAlleles.getAlleleCount() == 0) {
-                LOGGER.warn("Skipping variant: " + variant.getPrimaryVariantId() + ", this SNP has no alles.");
-                ++excludedVariantsCounter;
-                continue;
-            }
-
-			bimFileWriter.append(FormatPlinkChr.formatChr(variant.getSequenceName()));
-            bimFileWriter.append(SEPARATOR);
-            bimFileWriter.append(variant.getPrimaryVariantId() == null ? variant.getSequenceName() + ":" + variant.getStartPos() : variant.getPrimaryVariantId());
-            bimFileWriter.append(SEPARATOR);
-            bimFileWriter.append('0');
-            bimFileWriter.append(SEPARATOR);
-            bimFileWriter.append(String.valueOf(variant.getStartPos()));
-            bimFileWriter.append(SEPARATOR);
-            bimFileWriter.append(variantAlleles.getAlleleCount() == 0 ? Allele.ZERO.toString() : variantAlleles.get(0).toString());
-            bimFileWriter.append(SEPARATOR);
-            bimFileWriter.append(variantAlleles.getAlleleCount() <= 1 ? Allele.ZERO.toString() : variantAlleles.get(1).toString());
-            bimFileWriter.append('\n');			
-
-            Alleles homozygoteFirst = Alleles.createAlleles(variantAlleles.get(0), variantAlleles.get(0));
-            Alleles homozygoteSecond = null;
-            if (variantAlleles.getAlleleCount() == 2) {
-                homozygoteSecond = Alleles.createAlleles(variantAlleles.get(1), variantAlleles.get(1));
-            }
-
-            int currentByte = 0; //Bit operations are on int level, but we only write the last byte
-            byte counterCurrentByte = 0;
-
-            for (Alleles alleles : variant.getSampleVariants()) {
-                if (alleles == homozygoteFirst) {
-                    //Do nothing, already 00
-                } else if (variantAlleles.getAlleleCount() == 2 && alleles.sameAlleles(variantAlleles)) {
-                    currentByte = currentByte | HETEROZYGOTE_BITMASK;
-                } else if (variantAlleles.getAlleleCount() == 2 && alleles == homozygoteSecond) {
-                    currentByte = currentByte | HOMOZYGOTE_SECOND_BITMASK;
-                } else if (alleles.contains(Allele.ZERO)) {
-                    currentByte = currentByte | MISSING_BIT_MASK;
-                } else {
-                    throw new GenotypeDataException("Trying to write alleles " + alleles.getAllelesAsString() + " for " + variantAlleles + " SNP");
-                }
-                ++counterCurrentByte;
-                if (counterCurrentByte == 4) {
-                    bedStreamWriter.write(currentByte);
-                    currentByte = 0;
-                    counterCurrentByte = 0;
-                } else {
-                    currentByte = currentByte >>> 2;
-                }
+            EncodedVariant encodedVariant;
+            while ((encodedVariant = encoder.next()) != null) {
+                bimFileWriter.append(encodedVariant.bimLine);
+                bedStreamWriter.write(encodedVariant.bed);
+                ++writtenVariantsCounter;
             }
 
-            if (counterCurrentByte != 0) {
-                while (counterCurrentByte < 3) {
-                    ++counterCurrentByte;
-                    currentByte = currentByte >>> 2;
-                }
-                bedStreamWriter.write(currentByte);
-            }
-			
-			++writtenVariantsCounter;
-
         }
 
 		bimFileWriter.close();
@@ -205,6 +153,110 @@ public class BedBimFamGenotypeWriter implements GenotypeWriter {
 		
 	}
 
+    /**
+     * Called on the reader thread of the pipeline, only here the variant is
+     * accessed.
+     *
+     * @return encoding of the variant or null if it can't be written
+     */
+    private Callable<EncodedVariant> extractVariant(GeneticVariant variant) {
+
+        final Alleles variantAlleles = variant.getVariantAlleles();
+
+        if (variantAlleles.getAlleleCount() > 2 || !variantAlleles.isSnp()) {
+            LOGGER.warn("Skipping variant: " + variant.getPrimaryVariantId() + ", it is not a biallelic SNP.");
+            ++excludedVariantsCounter;
+            return null;
+        }
+
+        if (variantAlleles.getAlleleCount() == 0) {
+            LOGGER.warn("Skipping variant: " + variant.getPrimaryVariantId() + ", this SNP has no alles.");
+            ++excludedVariantsCounter;
+            return null;
+        }
+
+        StringBuilder bimLine = new StringBuilder();
+        bimLine.append(FormatPlinkChr.formatChr(variant.getSequenceName()));
+        bimLine.append(SEPARATOR);
+        bimLine.append(variant.getPrimaryVariantId() == null ? variant.getSequenceName() + ":" + variant.getStartPos() : variant.getPrimaryVariantId());
+        bimLine.append(SEPARATOR);
+        bimLine.append('0');
+        bimLine.append(SEPARATOR);
+        bimLine.append(String.valueOf(variant.getStartPos()));
+        bimLine.append(SEPARATOR);
+        bimLine.append(variantAlleles.getAlleleCount() == 0 ? Allele.ZERO.toString() : variantAlleles.get(0).toString());
+        bimLine.append(SEPARATOR);
+        bimLine.append(variantAlleles.getAlleleCount() <= 1 ? Allele.ZERO.toString() : variantAlleles.get(1).toString());
+        bimLine.append('\n');
+
+        final String bimLineString = bimLine.toString();
+        final List<Alleles> sampleVariants = variant.getSampleVariants();
+
+        return () -> new EncodedVariant(bimLineString, encodeBed(variantAlleles, sampleVariants));
+
+    }
+
+    /**
+     * Packs 4 samples per byte, the first sample in the least significant
+     * bits.
+     */
+    private static byte[] encodeBed(Alleles variantAlleles, List<Alleles> sampleVariants) {
+
+        Alleles homozygoteFirst = Alleles.createAlleles(variantAlleles.get(0), variantAlleles.get(0));
+        Alleles homozygoteSecond = null;
+        if (variantAlleles.getAlleleCount() == 2) {
+            homozygoteSecond = Alleles.createAlleles(variantAlleles.get(1), variantAlleles.get(1));
+        }
+
+        final byte[] bed = new byte[(sampleVariants.size() + 3) / 4];
+
+        int sample = 0;
+        for (Alleles alleles : sampleVariants) {
+            final int code;
+            if (alleles == homozygoteFirst) {
+                code = HOMOZYGOTE_FIRST_CODE;
+            } else if (variantAlleles.getAlleleCount() == 2 && alleles.sameAlleles(variantAlleles)) {
+                code = HETEROZYGOTE_CODE;
+            } else if (variantAlleles.getAlleleCount() == 2 && alleles == homozygoteSecond) {
+                code = HOMOZYGOTE_SECOND_CODE;
+            } else if (alleles.contains(Allele.ZERO)) {
+                code = MISSING_CODE;
+            } else {
+                throw new GenotypeDataException("Trying to write alleles " + alleles.getAllelesAsString() + " for " + variantAlleles + " SNP");
+            }
+            bed[sample >> 2] |= code << ((sample & 3) << 1);
+            ++sample;
+        }
+
+        return bed;
+
+    }
+
+    /**
+     * Sets the number of threads used to encode variants, default is the
+     * number of available processors.
+     *
+     * @param threads
+     */
+    public void setThreads(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("Need at least one thread");
+        }
+        this.threads = threads;
+    }
+
+    private static class EncodedVariant {
+
+        private final String bimLine;
+        private final byte[] bed;
+
+        public EncodedVariant(String bimLine, byte[] bed) {
+            this.bimLine = bimLine;
+            this.bed = bed;
+        }
+
+    }
+
     private double getPhenotype(Sample sample) {
 
         Object value = sample.getAnnotationValues().get(GenotypeData.DOUBLE_PHENOTYPE_SAMPLE_ANNOTATION_NAME);
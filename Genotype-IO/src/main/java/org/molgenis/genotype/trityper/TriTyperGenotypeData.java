@@ -7,10 +7,9 @@ package org.molgenis.genotype.trityper;
 import gnu.trove.map.hash.TObjectIntHashMap;
 
 import java.io.*;
-import java.nio.ByteBuffer;
-import java.nio.channels.FileChannel;
 import java.text.DecimalFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -66,10 +65,20 @@ public class TriTyperGenotypeData extends AbstractRandomAccessGenotypeData imple
 	private final File individualFile;
 	private final File phenotypeAnnotationFile;
 	private static final Logger LOG = Logger.getLogger(TriTyperGenotypeData.class);
+	/**
+	 * Allele bytes that are not converted to Allele.ZERO by
+	 * TriTyperAlleleAnnotation
+	 */
+	private static final boolean[] VALID_ALLELE_BYTES = new boolean[256];
+
+	static {
+		for (int b = 0; b < 256; ++b) {
+			VALID_ALLELE_BYTES[b] = TriTyperAlleleAnnotation.convertByteToAllele((byte) b) != Allele.ZERO;
+		}
+	}
 	private final int cacheSize;
-	private final RandomAccessFile dosageHandle;
-	private final RandomAccessFile genotypeHandle;
-	private final FileChannel dosageChannel;
+	private TriTyperMappedMatrix dosageMatrix;
+	private TriTyperMappedMatrix genotypeMatrix;
 	private final int sampleVariantProviderUniqueId;
 	private HashMap<String, SampleAnnotation> sampleAnnotationMap;
 	private HashMap<String, Sequence> sequences;
@@ -92,6 +101,10 @@ public class TriTyperGenotypeData extends AbstractRandomAccessGenotypeData imple
 	 * the it could be that there are fewer samples returned
 	 */
 	private ArrayList<Sample> samples;
+	/**
+	 * Result of the sample filter for each sample in samples
+	 */
+	private boolean[] sampleIncluded;
 
 	public TriTyperGenotypeData(String location) throws IOException {
 		this(new File(location), 1024, null, null);
@@ -185,25 +198,21 @@ public class TriTyperGenotypeData extends AbstractRandomAccessGenotypeData imple
 			this.allelRecodingInfo = null;
 		}
 
-		// create file handles //
 		if (imputedDosageDataFile != null) {
-			dosageHandle = new RandomAccessFile(imputedDosageDataFile, "r");
-			dosageChannel = dosageHandle.getChannel();
-
 			HashMap<String, GeneticVariantMeta.Type> variantMeta = new HashMap<String, GeneticVariantMeta.Type>(2);
 			variantMeta.put("GT", GeneticVariantMeta.Type.ALLELES);
 			variantMeta.put("DS", GeneticVariantMeta.Type.FLOAT);
 			geneticVariantMeta = GeneticVariantMetaMap.createGeneticVariantMeta(variantMeta);
 
 		} else {
-			dosageHandle = null;
-			dosageChannel = null;
 			geneticVariantMeta = GeneticVariantMetaMap.getGeneticVariantMetaGt();
 		}
 
-		genotypeHandle = new RandomAccessFile(genotypeDataFile, "r");
-
 		loadSamples();
+		sampleIncluded = new boolean[samples.size()];
+		for (int i = 0; i < sampleIncluded.length; ++i) {
+			sampleIncluded[i] = sampleFilter == null || sampleFilter.doesSamplePassFilter(samples.get(i));
+		}
 		samplePhasing = Collections.nCopies(includedSamples.size(), false);
 
 		GeneticVariantRange.GeneticVariantRangeCreate snpsFactory = GeneticVariantRange.createRangeFactory();
@@ -212,6 +221,14 @@ public class TriTyperGenotypeData extends AbstractRandomAccessGenotypeData imple
 
 		checkFileSize();
 
+		// map the matrices, the sizes are checked so every variant is complete
+		genotypeMatrix = new TriTyperMappedMatrix(genotypeDataFile, samples.size() * 2);
+		if (imputedDosageDataFile != null) {
+			dosageMatrix = new TriTyperMappedMatrix(imputedDosageDataFile, samples.size());
+		} else {
+			dosageMatrix = null;
+		}
+
 	}
 
 	@Override
@@ -493,65 +510,35 @@ public class TriTyperGenotypeData extends AbstractRandomAccessGenotypeData imple
 		throw new GenotypeDataException("Phased data not available");
 	}
 
-	byte[] readAheadBuffer = null;
-	byte[] snpbytebuffer = null;
-	long readAheadBufferStart = 0;
-	long readAheadBufferEnd = 0;
-
-	@Override
-	public List<Alleles> getSampleVariants(GeneticVariant variant) {
+	/**
+	 * @return the bytes of the first alleles of all samples followed by the
+	 * second alleles of all samples, also samples that are filtered
+	 */
+	private byte[] readGenotypeBytes(GeneticVariant variant) {
 
 		// This is safe to do because it would not make sense that a non trityper variant would call this function. Unless someone is hacking the api (which they should not do) :)
-		long index = ((ReadOnlyGeneticVariantTriTyper) variant).getIndexOfVariantInTriTyperData();
+		int index = ((ReadOnlyGeneticVariantTriTyper) variant).getIndexOfVariantInTriTyperData();
 
-		int numIndividuals = samples.size();
-		long indexLong = (index) * (numIndividuals * 2);
+		byte[] snpbytebuffer = new byte[genotypeMatrix.getBytesPerVariant()];
 
 		try {
+			genotypeMatrix.read(index, snpbytebuffer);
+		} catch (IndexOutOfBoundsException e) {
 
-//			if (readAheadBuffer == null ||
-//					indexLong > readAheadBufferEnd ||
-//					indexLong < readAheadBufferStart ||
-//					indexLong < readAheadBufferEnd) {
-//				// determine buffer len (~512kb)
-//				int bytesPerIndividual = (numIndividuals * 2);
-//				int nrbytes = 512 * 1024;
-//				if (indexLong + nrbytes > genotypeHandle.length()) { // prevent overflow
-//					nrbytes = (int) (genotypeHandle.length() - indexLong);
-//				} else if (bytesPerIndividual > nrbytes) {
-//					nrbytes = bytesPerIndividual;
-//				} else {
-//					nrbytes = nrbytes - (nrbytes % bytesPerIndividual); // pick a value as close to 512kb as possible, but still representing units of snps
-//				}
-//
-//				readAheadBufferStart = indexLong;
-//				readAheadBufferEnd = readAheadBufferStart + nrbytes;
-//				if (readAheadBuffer == null || nrbytes != readAheadBuffer.length) {
-//					readAheadBuffer = new byte[nrbytes];
-//				}
-//
-//				if (genotypeHandle.read(readAheadBuffer) != readAheadBuffer.length) {
-//					LOG.fatal("ERROR loading trityper SNP: " + variant.getPrimaryVariantId() + " at: " + variant.getSequenceName() + ":" + variant.getStartPos() + " variant index: " + index);
-//
-//					throw new GenotypeDataException("Could not read bytes from: " + indexLong + " in genotype file " + genotypeDataFile.getAbsolutePath() + " (size: " + genotypeDataFile.length() + ")");
-//				}
-//
-//			}
-
-			if (snpbytebuffer == null) {
-				snpbytebuffer = new byte[2 * numIndividuals];
-			}
+			LOG.fatal("ERROR loading trityper SNP: " + variant.getPrimaryVariantId() + " at: " + variant.getSequenceName() + ":" + variant.getStartPos() + " variant index: " + index);
 
-			genotypeHandle.seek(indexLong);
-			genotypeHandle.read(snpbytebuffer);
+			throw new GenotypeDataException("Could not read bytes from: " + ((long) index * genotypeMatrix.getBytesPerVariant()) + " in genotype file " + genotypeDataFile.getAbsolutePath() + " (size: " + genotypeDataFile.length() + ")", e);
+		}
 
+		return snpbytebuffer;
 
-		} catch (IOException e) {
+	}
 
-			LOG.fatal("ERROR loading trityper SNP: " + variant.getPrimaryVariantId() + " at: " + variant.getSequenceName() + ":" + variant.getStartPos() + " variant index: " + index);
+	@Override
+	public List<Alleles> getSampleVariants(GeneticVariant variant) {
 
-			throw new GenotypeDataException("Could not read bytes from: " + indexLong + " in genotype file " + genotypeDataFile.getAbsolutePath() + " (size: " + genotypeDataFile.length() + ")", e);
-		}
+		int numIndividuals = samples.size();
+		byte[] snpbytebuffer = readGenotypeBytes(variant);
 
 		List<Alleles> alleles = new ArrayList<Alleles>(includedSamples.size());
 
@@ -591,7 +578,10 @@ public class TriTyperGenotypeData extends AbstractRandomAccessGenotypeData imple
 		// if there is a dosage file, read from there.. if not, conver genotypes.
 		// now transcode into dosage..
 
-		if (variant.getVariantAlleles().getAlleles().isEmpty()) {
+		final boolean decodeDirectly = canDecodeDosageDirectly(variant);
+		final byte[] calledDosage = decodeDirectly ? decodeCalledDosage(readGenotypeBytes(variant)) : null;
+
+		if (decodeDirectly ? calledDosage == null : variant.getVariantAlleles().getAlleles().isEmpty()) {
 			float[] dosageValuesFloat = new float[includedSamples.size()];
 			for (int i = 0; i < dosageValuesFloat.length; i++) {
 				dosageValuesFloat[i] = -1;
@@ -599,26 +589,28 @@ public class TriTyperGenotypeData extends AbstractRandomAccessGenotypeData imple
 			return dosageValuesFloat;
 		}
 
+		final float[] genotypes;
+		if (decodeDirectly) {
+			genotypes = CalledDosageConvertor.convertCalledDosageToDosage(calledDosage);
+		} else {
+			genotypes = CalledDosageConvertor.convertCalledAllelesToDosage(variant.getSampleVariants(), variant.getVariantAlleles(), variant.getRefAllele());
+		}
 
-		// TODO: optimize this step: no need to get ALL alleles.
-		float[] genotypes = CalledDosageConvertor.convertCalledAllelesToDosage(variant.getSampleVariants(), variant.getVariantAlleles(), variant.getRefAllele());
 		if (imputedDosageDataFile != null) {
 
 			//This is save to do because it would not make sence that a non trityper variant would call this functioon. Unless someone is hacking the api (which they should not do) :)
 			int index = ((ReadOnlyGeneticVariantTriTyper) variant).getIndexOfVariantInTriTyperData();
 
 			int numIndividuals = samples.size();
-			long indexLong = (long) index * (long) numIndividuals;
-			ByteBuffer buffer = ByteBuffer.allocate(numIndividuals);
+			byte[] dosageValuesAll = new byte[numIndividuals];
 			try {
-				dosageChannel.read(buffer, indexLong);
-			} catch (IOException e) {
-				throw new GenotypeDataException("Could not read bytes from: " + indexLong
+				dosageMatrix.read(index, dosageValuesAll);
+			} catch (IndexOutOfBoundsException e) {
+				throw new GenotypeDataException("Could not read bytes from: " + ((long) index * (long) numIndividuals)
 						+ " in genotype file " + genotypeDataFile.getAbsolutePath()
 						+ " (size: " + genotypeDataFile.length() + ")");
 			}
 
-			byte[] dosageValuesAll = buffer.array();
 			byte[] dosageValues;
 
 			//Filter on included samples
@@ -679,12 +671,89 @@ public class TriTyperGenotypeData extends AbstractRandomAccessGenotypeData imple
 
 	@Override
 	public byte[] getSampleCalledDosage(GeneticVariant variant) {
+
+		if (canDecodeDosageDirectly(variant)) {
+			byte[] genotypes = decodeCalledDosage(readGenotypeBytes(variant));
+			if (genotypes == null) {
+				//No alleles for this variant
+				genotypes = new byte[includedSamples.size()];
+				Arrays.fill(genotypes, (byte) -1);
+			}
+			return genotypes;
+		}
+
 		byte[] genotypes = CalledDosageConvertor.convertCalledAllelesToCalledDosage(variantProvider.getSampleVariants(variant),
 				variant.getVariantAlleles(), variant.getRefAllele());
 
 		return genotypes;
 	}
 
+	/**
+	 * The alleles of a plain TriTyper variant are the alleles in order of
+	 * appearance in the sample data, so the reference allele can be found in
+	 * the genotype bytes and the dosage can be calculated without creating
+	 * the sample alleles. Not possible if the alleles of this variant are
+	 * recoded.
+	 */
+	private boolean canDecodeDosageDirectly(GeneticVariant variant) {
+		return variant.getClass() == ReadOnlyGeneticVariantTriTyper.class
+				&& (allelRecodingInfo == null || !allelRecodingInfo.containsKey(variant.getPrimaryVariantId()));
+	}
+
+	/**
+	 * Same result as CalledDosageConvertor.convertCalledAllelesToCalledDosage
+	 * on the sample alleles: the number of reference alleles per included
+	 * sample or -1 if an allele is missing.
+	 *
+	 * @param snpbytebuffer genotype bytes of the variant
+	 * @return called dosage of the included samples or null if none of the
+	 * included samples has an allele
+	 */
+	private byte[] decodeCalledDosage(byte[] snpbytebuffer) {
+
+		final int numIndividuals = samples.size();
+		final byte[] dosages = new byte[includedSamples.size()];
+
+		// reference is the first allele found in the included samples
+		byte ref = 0;
+		boolean refFound = false;
+		for (int i = 0; i < numIndividuals && !refFound; i++) {
+			if (isSampleIncluded(i)) {
+				if (VALID_ALLELE_BYTES[snpbytebuffer[i] & 0xff]) {
+					ref = snpbytebuffer[i];
+					refFound = true;
+				} else if (VALID_ALLELE_BYTES[snpbytebuffer[numIndividuals + i] & 0xff]) {
+					ref = snpbytebuffer[numIndividuals + i];
+					refFound = true;
+				}
+			}
+		}
+
+		if (!refFound) {
+			return null;
+		}
+
+		for (int i = 0, j = 0; i < numIndividuals; i++) {
+			if (isSampleIncluded(i)) {
+				final byte allele1 = snpbytebuffer[i];
+				final byte allele2 = snpbytebuffer[numIndividuals + i];
+				if (!VALID_ALLELE_BYTES[allele1 & 0xff] || !VALID_ALLELE_BYTES[allele2 & 0xff]) {
+					dosages[j] = -1;
+				} else {
+					dosages[j] = (byte) ((allele1 == ref ? 1 : 0) + (allele2 == ref ? 1 : 0));
+				}
+				++j;
+			}
+		}
+
+		return dosages;
+
+	}
+
+	private boolean isSampleIncluded(int sampleIndex) {
+		return sampleIncluded[sampleIndex];
+	}
+
 	@Override
 	public List<Sample> getSamples() {
 		return includedSamples;
@@ -708,11 +777,10 @@ public class TriTyperGenotypeData extends AbstractRandomAccessGenotypeData imple
 	@Override
 	public void close() throws IOException {
 		try {
-			if (imputedDosageDataFile != null) {
-				dosageChannel.close();
-				dosageHandle.close();
+			if (dosageMatrix != null) {
+				dosageMatrix.close();
 			}
-			genotypeHandle.close();
+			genotypeMatrix.close();
 		} catch (IOException e) {
 			throw new GenotypeDataException("Could not close file handle to TriTyper file: " + genotypeDataFile);
 		}
@@ -0,0 +1,83 @@
+package org.molgenis.genotype.trityper;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Read only memory mapped view on a TriTyper matrix file with a fixed number
+ * of bytes per variant (GenotypeMatrix.dat and ImputedDosageMatrix.dat). The
+ * file is mapped in chunks of at most 1GB that always contain complete
+ * variants.
+ *
+ * Thread safe, reads never change the position of the shared buffers.
+ */
+class TriTyperMappedMatrix {
+
+	private static final long MAX_CHUNK_SIZE = 1 << 30;
+	private final File file;
+	private final RandomAccessFile handle;
+	private final int bytesPerVariant;
+	private final int variantsPerChunk;
+	private final MappedByteBuffer[] chunks;
+
+	/**
+	 *
+	 * @param file
+	 * @param bytesPerVariant
+	 * @throws IOException
+	 */
+	public TriTyperMappedMatrix(File file, int bytesPerVariant) throws IOException {
+
+		this.file = file;
+		this.handle = new RandomAccessFile(file, "r");
+		this.bytesPerVariant = bytesPerVariant;
+
+		final long length = handle.length();
+		final long variantCount = bytesPerVariant == 0 ? 0 : length / bytesPerVariant;
+		this.variantsPerChunk = (int) Math.max(1, MAX_CHUNK_SIZE / Math.max(1, bytesPerVariant));
+		this.chunks = new MappedByteBuffer[(int) ((variantCount + variantsPerChunk - 1) / variantsPerChunk)];
+
+		final FileChannel channel = handle.getChannel();
+		for (int c = 0; c < chunks.length; ++c) {
+			long start = (long) c * variantsPerChunk * bytesPerVariant;
+			long size = Math.min((long) variantsPerChunk * bytesPerVariant, length - start);
+			chunks[c] = channel.map(FileChannel.MapMode.READ_ONLY, start, size);
+		}
+
+	}
+
+	/**
+	 * @param variantIndex index of the variant in the file
+	 * @param destination array of at least bytesPerVariant bytes
+	 */
+	public void read(int variantIndex, byte[] destination) {
+
+		final int chunk = variantIndex / variantsPerChunk;
+		if (variantIndex < 0 || chunk >= chunks.length) {
+			throw new IndexOutOfBoundsException("Variant index " + variantIndex + " not in " + file.getAbsolutePath());
+		}
+
+		final ByteBuffer view = chunks[chunk].duplicate();
+		view.position((variantIndex - chunk * variantsPerChunk) * bytesPerVariant);
+		view.get(destination, 0, bytesPerVariant);
+
+	}
+
+	public int getBytesPerVariant() {
+		return bytesPerVariant;
+	}
+
+	/**
+	 * The mapping itself is released by the garbage collector
+	 *
+	 * @throws IOException
+	 */
+	public void close() throws IOException {
+		handle.close();
+	}
+
+}
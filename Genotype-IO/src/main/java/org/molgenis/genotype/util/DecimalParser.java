@@ -0,0 +1,114 @@
+package org.molgenis.genotype.util;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Parses decimal floats directly from text in a buffer, without creating a
+ * String per value. Simple decimals are parsed here, everything else is
+ * handed to Float.parseFloat() so the result is always the same as
+ * Float.parseFloat() on the text.
+ */
+public class DecimalParser {
+
+	private static final int MAX_EXACT_FLOAT = 1 << 24;
+	private static final float[] POW10F = {1e0f, 1e1f, 1e2f, 1e3f, 1e4f, 1e5f, 1e6f, 1e7f, 1e8f, 1e9f, 1e10f};
+
+	private DecimalParser() {
+	}
+
+	/**
+	 *
+	 * @param buffer
+	 * @param start first byte of the value
+	 * @param end byte after the value
+	 * @return
+	 * @throws NumberFormatException
+	 */
+	public static float parseFloat(byte[] buffer, int start, int end) {
+
+		int i = start;
+		boolean negative = false;
+		if (i < end && (buffer[i] == '-' || buffer[i] == '+')) {
+			negative = buffer[i] == '-';
+			i++;
+		}
+
+		long mantissa = 0;
+		int exponent = 0;
+		boolean anyDigit = false;
+		while (i < end && buffer[i] >= '0' && buffer[i] <= '9' && mantissa < MAX_EXACT_FLOAT) {
+			mantissa = mantissa * 10 + (buffer[i] - '0');
+			anyDigit = true;
+			i++;
+		}
+		if (i < end && buffer[i] == '.') {
+			i++;
+			while (i < end && buffer[i] >= '0' && buffer[i] <= '9' && mantissa < MAX_EXACT_FLOAT) {
+				mantissa = mantissa * 10 + (buffer[i] - '0');
+				exponent--;
+				anyDigit = true;
+				i++;
+			}
+		}
+
+		if (!anyDigit || i != end || mantissa >= MAX_EXACT_FLOAT || exponent < -10) {
+			return Float.parseFloat(new String(buffer, start, end - start, StandardCharsets.ISO_8859_1));
+		}
+		return toFloat(negative, mantissa, exponent);
+
+	}
+
+	/**
+	 *
+	 * @param chars
+	 * @param start first char of the value
+	 * @param end char after the value
+	 * @return
+	 * @throws NumberFormatException
+	 */
+	public static float parseFloat(CharSequence chars, int start, int end) {
+
+		int i = start;
+		boolean negative = false;
+		if (i < end && (chars.charAt(i) == '-' || chars.charAt(i) == '+')) {
+			negative = chars.charAt(i) == '-';
+			i++;
+		}
+
+		long mantissa = 0;
+		int exponent = 0;
+		boolean anyDigit = false;
+		char c;
+		while (i < end && (c = chars.charAt(i)) >= '0' && c <= '9' && mantissa < MAX_EXACT_FLOAT) {
+			mantissa = mantissa * 10 + (c - '0');
+			anyDigit = true;
+			i++;
+		}
+		if (i < end && chars.charAt(i) == '.') {
+			i++;
+			while (i < end && (c = chars.charAt(i)) >= '0' && c <= '9' && mantissa < MAX_EXACT_FLOAT) {
+				mantissa = mantissa * 10 + (c - '0');
+				exponent--;
+				anyDigit = true;
+				i++;
+			}
+		}
+
+		if (!anyDigit || i != end || mantissa >= MAX_EXACT_FLOAT || exponent < -10) {
+			return Float.parseFloat(chars.subSequence(start, end).toString());
+		}
+		return toFloat(negative, mantissa, exponent);
+
+	}
+
+	private static float toFloat(boolean negative, long mantissa, int exponent) {
+		if (mantissa == 0) {
+			return negative ? -0f : 0f;
+		}
+
+		//Both the mantissa and the power of ten are exact floats, so a single correctly rounded division
+		float value = mantissa / POW10F[-exponent];
+		return negative ? -value : value;
+	}
+
+}
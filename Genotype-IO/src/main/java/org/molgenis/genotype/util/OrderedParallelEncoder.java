@@ -0,0 +1,163 @@
+package org.molgenis.genotype.util;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.function.Function;
+import org.molgenis.genotype.GenotypeDataException;
+
+/**
+ * Pipeline for genotype writers. A reader thread iterates over the input and
+ * calls the extractor for every element. The extractor takes what is needed
+ * from the element, typically the sample data of a variant, and returns the
+ * encoding work as a Callable. The Callables run on a pool of workers and
+ * next() returns their results in input order, so the output is identical to
+ * encoding on a single thread.
+ *
+ * The extractor is only called from the reader thread, so genotype data
+ * providers do not need to be thread safe. At most maxInFlight elements are
+ * read ahead of the consumer.
+ *
+ * @param <I> input element
+ * @param <R> encoded result
+ */
+public class OrderedParallelEncoder<I, R> implements Closeable {
+
+	private static final Future<?> END = new FutureTask<>(() -> null);
+
+	private final BlockingQueue<Future<R>> queue;
+	private final ExecutorService workers;
+	private final Thread readerThread;
+	private volatile boolean closed = false;
+	private boolean done = false;
+
+	/**
+	 *
+	 * @param input
+	 * @param extractor returns the encoding work for an element or null to
+	 * skip the element
+	 * @param threads number of encoding threads
+	 * @param maxInFlight maximum number of elements read but not yet returned
+	 * by next()
+	 */
+	public OrderedParallelEncoder(final Iterator<I> input, final Function<I, Callable<R>> extractor, int threads, int maxInFlight) {
+
+		if (threads < 1) {
+			throw new IllegalArgumentException("Need at least one encoding thread");
+		}
+		if (maxInFlight < 1) {
+			throw new IllegalArgumentException("Need to allow at least one element in flight");
+		}
+
+		this.queue = new ArrayBlockingQueue<>(maxInFlight);
+		this.workers = Executors.newFixedThreadPool(threads, r -> {
+			Thread thread = new Thread(r, "genotype-encoder");
+			thread.setDaemon(true);
+			return thread;
+		});
+
+		this.readerThread = new Thread(() -> {
+			try {
+				try {
+					while (!closed && input.hasNext()) {
+						Callable<R> encoding = extractor.apply(input.next());
+						if (encoding != null) {
+							queue.put(workers.submit(encoding));
+						}
+					}
+				} catch (InterruptedException ex) {
+					throw ex;
+				} catch (Throwable ex) {
+					//Pass to the consumer, after all elements read before the failure
+					CompletableFuture<R> failed = new CompletableFuture<>();
+					failed.completeExceptionally(ex);
+					queue.put(failed);
+				} finally {
+					//Without the end marker the consumer would wait forever
+					if (!closed) {
+						queue.put(end());
+					}
+				}
+			} catch (InterruptedException ex) {
+				//Closed before all input was read
+			}
+		}, "genotype-reader");
+		this.readerThread.setDaemon(true);
+		this.readerThread.start();
+
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <R> Future<R> end() {
+		return (Future<R>) END;
+	}
+
+	/**
+	 *
+	 * @return next result in input order or null if all input is encoded
+	 * @throws IOException if encoding failed with an IOException
+	 */
+	public R next() throws IOException {
+
+		if (done) {
+			return null;
+		}
+		if (closed) {
+			throw new GenotypeDataException("Encoder is closed");
+		}
+
+		final Future<R> future;
+		try {
+			future = queue.take();
+		} catch (InterruptedException ex) {
+			throw new GenotypeDataException("Interrupted while waiting for encoded data", ex);
+		}
+
+		if (closed) {
+			throw new GenotypeDataException("Encoder is closed");
+		}
+
+		if (future == END) {
+			done = true;
+			return null;
+		}
+
+		try {
+			return future.get();
+		} catch (InterruptedException ex) {
+			throw new GenotypeDataException("Interrupted while waiting for encoded data", ex);
+		} catch (ExecutionException ex) {
+			Throwable cause = ex.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			} else if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			} else if (cause instanceof Error) {
+				throw (Error) cause;
+			} else {
+				throw new GenotypeDataException(cause);
+			}
+		}
+
+	}
+
+	@Override
+	public void close() {
+		closed = true;
+		readerThread.interrupt();
+		workers.shutdownNow();
+		//Wakes a consumer waiting in next() on an other thread
+		queue.clear();
+		queue.offer(end());
+	}
+
+}
@@ -0,0 +1,231 @@
+package org.molgenis.genotype.util;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import org.molgenis.genotype.GenotypeDataException;
+
+/**
+ * Reads the lines of a BGZF compressed file (bgzip, used for tabix indexed
+ * files) from start to end. The compressed blocks are read sequentially and
+ * inflated on multiple threads using the OrderedParallelEncoder, so lines are
+ * returned in file order.
+ */
+public class ParallelBgzfLineReader implements Closeable {
+
+	private static final int BLOCK_HEADER_LENGTH = 12;
+	private static final int BLOCKS_IN_FLIGHT_PER_THREAD = 4;
+
+	private final DataInputStream compressed;
+	private final OrderedParallelEncoder<byte[], byte[]> inflater;
+	private byte[] block = new byte[0];
+	private int blockPos = 0;
+	private byte[] lineBuffer = new byte[1024];
+
+	/**
+	 *
+	 * @param bgzfFile
+	 * @param threads number of threads inflating blocks
+	 * @throws IOException
+	 */
+	public ParallelBgzfLineReader(File bgzfFile, int threads) throws IOException {
+
+		this.compressed = new DataInputStream(new BufferedInputStream(new FileInputStream(bgzfFile), 1 << 20));
+
+		final String path = bgzfFile.getAbsolutePath();
+		this.inflater = new OrderedParallelEncoder<>(new Iterator<byte[]>() {
+
+			private byte[] next = readRawBlock(path);
+
+			@Override
+			public boolean hasNext() {
+				return next != null;
+			}
+
+			@Override
+			public byte[] next() {
+				if (next == null) {
+					throw new NoSuchElementException();
+				}
+				byte[] current = next;
+				next = readRawBlock(path);
+				return current;
+			}
+
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+
+		}, rawBlock -> uncompressedSize(rawBlock) == 0 ? null : () -> inflateBlock(rawBlock, path), threads, threads * BLOCKS_IN_FLIGHT_PER_THREAD);
+
+	}
+
+	/**
+	 * @return next line without line terminator or null at end of file
+	 * @throws IOException
+	 */
+	public String readLine() throws IOException {
+
+		int lineLength = 0;
+
+		while (true) {
+
+			if (blockPos >= block.length) {
+				byte[] nextBlock = inflater.next();
+				if (nextBlock == null) {
+					//Last line not terminated by a line break
+					return lineLength == 0 ? null : toLine(lineLength);
+				}
+				block = nextBlock;
+				blockPos = 0;
+			}
+
+			int lineEnd = blockPos;
+			while (lineEnd < block.length && block[lineEnd] != '\n') {
+				++lineEnd;
+			}
+
+			int length = lineEnd - blockPos;
+			if (lineLength + length > lineBuffer.length) {
+				lineBuffer = Arrays.copyOf(lineBuffer, Math.max(lineBuffer.length * 2, lineLength + length));
+			}
+			System.arraycopy(block, blockPos, lineBuffer, lineLength, length);
+			lineLength += length;
+			blockPos = lineEnd;
+
+			if (lineEnd < block.length) {
+				//Skip the line break
+				++blockPos;
+				return toLine(lineLength);
+			}
+
+		}
+
+	}
+
+	private String toLine(int lineLength) {
+		if (lineLength > 0 && lineBuffer[lineLength - 1] == '\r') {
+			--lineLength;
+		}
+		return new String(lineBuffer, 0, lineLength, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Only called from the reader thread of the OrderedParallelEncoder
+	 *
+	 * @param path used in exception messages
+	 * @return complete block including header and footer or null at end of
+	 * file
+	 */
+	private byte[] readRawBlock(String path) {
+
+		try {
+
+			final byte[] header = new byte[BLOCK_HEADER_LENGTH];
+			final int first = compressed.read();
+			if (first == -1) {
+				return null;
+			}
+			header[0] = (byte) first;
+			compressed.readFully(header, 1, BLOCK_HEADER_LENGTH - 1);
+
+			if ((header[0] & 0xff) != 31 || (header[1] & 0xff) != 139 || header[2] != 8 || (header[3] & 4) == 0) {
+				throw new GenotypeDataException("Not a valid BGZF block in: " + path);
+			}
+
+			final int extraLength = (header[10] & 0xff) | (header[11] & 0xff) << 8;
+			final byte[] extra = new byte[extraLength];
+			compressed.readFully(extra);
+
+			int blockSize = -1;
+			for (int i = 0; i + 4 <= extraLength;) {
+				int subfieldLength = (extra[i + 2] & 0xff) | (extra[i + 3] & 0xff) << 8;
+				if (extra[i] == 66 && extra[i + 1] == 67 && subfieldLength == 2 && i + 6 <= extraLength) {
+					blockSize = ((extra[i + 4] & 0xff) | (extra[i + 5] & 0xff) << 8) + 1;
+					break;
+				}
+				i += 4 + subfieldLength;
+			}
+			if (blockSize < BLOCK_HEADER_LENGTH + extraLength + 8) {
+				throw new GenotypeDataException("BGZF block without valid block size in: " + path);
+			}
+
+			final byte[] rawBlock = new byte[blockSize];
+			System.arraycopy(header, 0, rawBlock, 0, BLOCK_HEADER_LENGTH);
+			System.arraycopy(extra, 0, rawBlock, BLOCK_HEADER_LENGTH, extraLength);
+			compressed.readFully(rawBlock, BLOCK_HEADER_LENGTH + extraLength, blockSize - BLOCK_HEADER_LENGTH - extraLength);
+			return rawBlock;
+
+		} catch (EOFException ex) {
+			throw new GenotypeDataException("Truncated BGZF file: " + path, ex);
+		} catch (IOException ex) {
+			throw new GenotypeDataException(ex);
+		}
+
+	}
+
+	private static int uncompressedSize(byte[] rawBlock) {
+		return readInt(rawBlock, rawBlock.length - 4);
+	}
+
+	private static int readInt(byte[] buffer, int offset) {
+		return (buffer[offset] & 0xff) | (buffer[offset + 1] & 0xff) << 8 | (buffer[offset + 2] & 0xff) << 16 | (buffer[offset + 3] & 0xff) << 24;
+	}
+
+	private static byte[] inflateBlock(byte[] rawBlock, String path) throws IOException {
+
+		final int extraLength = (rawBlock[10] & 0xff) | (rawBlock[11] & 0xff) << 8;
+		final int dataStart = BLOCK_HEADER_LENGTH + extraLength;
+		final int dataLength = rawBlock.length - dataStart - 8;
+		final byte[] uncompressed = new byte[uncompressedSize(rawBlock)];
+
+		final Inflater blockInflater = new Inflater(true);
+		try {
+			blockInflater.setInput(rawBlock, dataStart, dataLength);
+			int inflated = 0;
+			while (inflated < uncompressed.length) {
+				int count = blockInflater.inflate(uncompressed, inflated, uncompressed.length - inflated);
+				if (count == 0 && (blockInflater.finished() || blockInflater.needsInput() || blockInflater.needsDictionary())) {
+					break;
+				}
+				inflated += count;
+			}
+			if (inflated != uncompressed.length) {
+				throw new IOException("BGZF block inflated to " + inflated + " bytes instead of " + uncompressed.length + " in: " + path);
+			}
+		} catch (DataFormatException ex) {
+			throw new IOException("Corrupt BGZF block in: " + path, ex);
+		} finally {
+			blockInflater.end();
+		}
+
+		final CRC32 crc = new CRC32();
+		crc.update(uncompressed, 0, uncompressed.length);
+		if ((int) crc.getValue() != readInt(rawBlock, rawBlock.length - 8)) {
+			throw new IOException("CRC mismatch in BGZF block in: " + path);
+		}
+
+		return uncompressed;
+
+	}
+
+	@Override
+	public void close() throws IOException {
+		inflater.close();
+		compressed.close();
+	}
+
+}
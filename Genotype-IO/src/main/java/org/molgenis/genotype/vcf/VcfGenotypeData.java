@@ -1,8 +1,12 @@
 package org.molgenis.genotype.vcf;
 
+import java.io.Closeable;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
 import java.util.*;
 
 import net.sf.samtools.util.BlockCompressedInputStream;
@@ -22,7 +26,9 @@ import org.molgenis.genotype.tabix.TabixFileNotFoundException;
 import org.molgenis.genotype.tabix.TabixIndex;
 import org.molgenis.genotype.tabix.TabixIndex.TabixIterator;
 import org.molgenis.genotype.util.CalledDosageConvertor;
+import org.molgenis.genotype.util.DecimalParser;
 import org.molgenis.genotype.util.FixedSizeIterable;
+import org.molgenis.genotype.util.ParallelBgzfLineReader;
 import org.molgenis.genotype.util.ProbabilitiesConvertor;
 import org.molgenis.genotype.variant.GeneticVariant;
 import org.molgenis.genotype.variant.GeneticVariantMeta;
@@ -55,11 +61,16 @@ public class VcfGenotypeData extends AbstractRandomAccessGenotypeData implements
     private transient Map<String, Annotation> cachedSampleAnnotationsMap;
     private transient GeneticVariant cachedGeneticVariant;
     private transient VcfRecord cachedVcfRecord;
+    private transient String[] cachedVcfTokens;
     private static int totalRandomAccessRequest = 0;
     private static int currentlyOpenFileHandlers = 0;
     private static int closedFileHandlers = 0;
     private final double minimumPosteriorProbabilityToCall;
     private MappedGenotypeField preferredGenotypeField;
+    private int decompressionThreads = Math.min(4, Runtime.getRuntime().availableProcessors());
+    private final Map<Reference<?>, ParallelBgzfLineReader> openLineReaders = new HashMap<>();
+    private final ReferenceQueue<VcfLineIterator> abandonedIterators = new ReferenceQueue<>();
+    private boolean decodeSampleColumns = true;
 
     /**
      * VCF genotype reader
@@ -132,44 +143,115 @@ public class VcfGenotypeData extends AbstractRandomAccessGenotypeData implements
 
     @Override
     public Iterator<GeneticVariant> iterator() {
-        final BlockCompressedInputStream inputStream;
+        closeAbandonedLineReaders();
+
+        final ParallelBgzfLineReader lineReader;
         try {
-            inputStream = new BlockCompressedInputStream(bzipVcfFile);
+            lineReader = new ParallelBgzfLineReader(bzipVcfFile, decompressionThreads);
         } catch (IOException e) {
             throw new GenotypeDataException(e);
         }
 
-        final VcfReader vcfReader = new VcfReader(inputStream);
-        Iterator<GeneticVariant> iterator = new Iterator<GeneticVariant>() {
-            private final Iterator<VcfRecord> it = vcfReader.iterator();
+        final VcfLineIterator iterator = new VcfLineIterator(lineReader);
+        synchronized (openLineReaders) {
+            openLineReaders.put(iterator.reference, lineReader);
+        }
+        iterator.readFirstLine();
+        return iterator;
+    }
 
-            @Override
-            public boolean hasNext() {
-                boolean hasNext = it.hasNext();
-                if (!hasNext) {
-                    // close vcf reader
-                    try {
-                        vcfReader.close();
-                    } catch (IOException e) {
-                        throw new RuntimeException(e);
+    /**
+     * Closes the line readers of iterators that are no longer used without
+     * reading all variants, this stops their reader threads.
+     */
+    private void closeAbandonedLineReaders() {
+        Reference<?> abandoned;
+        while ((abandoned = abandonedIterators.poll()) != null) {
+            final ParallelBgzfLineReader lineReader;
+            synchronized (openLineReaders) {
+                lineReader = openLineReaders.remove(abandoned);
+            }
+            closeLineReader(lineReader);
+        }
+    }
+
+    private static void closeLineReader(ParallelBgzfLineReader lineReader) {
+        if (lineReader != null) {
+            try {
+                lineReader.close();
+            } catch (IOException e) {
+                LOG.warn("Unable to close VCF reader: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Iterates over all records of the VCF. The line reader is closed when all
+     * records are read, when the iterator is closed, when the genotype data is
+     * closed or, once the iterator is no longer referenced, when a new
+     * iterator is created.
+     */
+    private class VcfLineIterator implements Iterator<GeneticVariant>, Closeable {
+
+        private final ParallelBgzfLineReader lineReader;
+        private final Reference<VcfLineIterator> reference;
+        private String line;
+
+        private VcfLineIterator(ParallelBgzfLineReader lineReader) {
+            this.lineReader = lineReader;
+            this.reference = new PhantomReference<>(this, abandonedIterators);
+        }
+
+        private void readFirstLine() {
+            line = readRecordLine();
+        }
+
+        private String readRecordLine() {
+            try {
+                String nextLine;
+                while ((nextLine = lineReader.readLine()) != null) {
+                    if (!nextLine.isEmpty() && nextLine.charAt(0) != '#') {
+                        return nextLine;
                     }
                 }
-                return hasNext;
+            } catch (IOException e) {
+                close();
+                throw new GenotypeDataException(e);
             }
+            // close vcf reader
+            close();
+            return null;
+        }
 
-            @Override
-            public GeneticVariant next() {
-                VcfRecord vcfRecord = it.next();
-                return toGeneticVariant(vcfRecord);
+        @Override
+        public boolean hasNext() {
+            return line != null;
+        }
+
+        @Override
+        public GeneticVariant next() {
+            if (line == null) {
+                throw new NoSuchElementException();
             }
+            String[] tokens = StringUtils.split(line, '\t');
+            line = readRecordLine();
+            return toGeneticVariant(new VcfRecord(vcfMeta, tokens), tokens);
+        }
 
-            @Override
-            public void remove() {
-                it.remove();
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void close() {
+            line = null;
+            synchronized (openLineReaders) {
+                openLineReaders.remove(reference);
             }
-        };
-        iterator.hasNext();//needed to properly initiate
-        return iterator;
+            closeLineReader(lineReader);
+        }
+
     }
 
     @Override
@@ -213,6 +295,11 @@ public class VcfGenotypeData extends AbstractRandomAccessGenotypeData implements
     }
 
     private List<Alleles> getCalledAlleles(GeneticVariant variant, VcfRecord vcfRecord) {
+        List<Alleles> decodedAlleles = decodeCalledAlleles(vcfRecord);
+        if (decodedAlleles != null) {
+            return decodedAlleles;
+        }
+
         // convert vcf sample alleles to Alleles§
         List<Alleles> alleles = new ArrayList<>(vcfRecord.getNrSamples());
 
@@ -227,6 +314,71 @@ public class VcfGenotypeData extends AbstractRandomAccessGenotypeData implements
         return alleles;
     }
 
+    /**
+     * Reads the called alleles directly from the columns of the VCF line.
+     * The Alleles objects are shared by all samples with the same genotype.
+     *
+     * @param vcfRecord
+     * @return null if the line is not available, has no GT field or contains
+     * genotypes that are not fully called
+     */
+    private List<Alleles> decodeCalledAlleles(VcfRecord vcfRecord) {
+        final int gtIndex = vcfRecord.getFormatIndex("GT");
+        if (gtIndex == -1) {
+            return null;
+        }
+        final int nrSamples = vcfRecord.getNrSamples();
+        final String[] tokens = getVcfTokens(vcfRecord);
+        if (!VcfSampleFieldDecoder.hasSampleColumns(tokens, nrSamples)) {
+            return null;
+        }
+
+        final List<Allele> recordAlleles = new ArrayList<>();
+        recordAlleles.add(vcfRecord.getReferenceAllele());
+        List<Allele> altAlleles = vcfRecord.getAlternateAlleles();
+        if (altAlleles != null) {
+            recordAlleles.addAll(altAlleles);
+        }
+        final int alleleCount = recordAlleles.size();
+
+        final int[] allele1 = new int[nrSamples];
+        final int[] allele2 = new int[nrSamples];
+        if (!VcfSampleFieldDecoder.decodeCalledAlleles(tokens, gtIndex, alleleCount, allele1, allele2)) {
+            return null;
+        }
+
+        final Alleles[] haploid = new Alleles[alleleCount];
+        final Alleles[] diploid = new Alleles[alleleCount * alleleCount];
+        final Alleles[] sampleAlleles = new Alleles[nrSamples];
+        for (int s = 0; s < nrSamples; ++s) {
+            if (allele2[s] == -1) {
+                Alleles alleles = haploid[allele1[s]];
+                if (alleles == null) {
+                    alleles = Alleles.createAlleles(recordAlleles.get(allele1[s]));
+                    haploid[allele1[s]] = alleles;
+                }
+                sampleAlleles[s] = alleles;
+            } else {
+                int genotype = allele1[s] * alleleCount + allele2[s];
+                Alleles alleles = diploid[genotype];
+                if (alleles == null) {
+                    alleles = Alleles.createAlleles(recordAlleles.get(allele1[s]), recordAlleles.get(allele2[s]));
+                    diploid[genotype] = alleles;
+                }
+                sampleAlleles[s] = alleles;
+            }
+        }
+        return Arrays.asList(sampleAlleles);
+    }
+
+    /**
+     * @param vcfRecord
+     * @return columns of the line of this record or null if not available
+     */
+    private String[] getVcfTokens(VcfRecord vcfRecord) {
+        return decodeSampleColumns && vcfRecord == cachedVcfRecord ? cachedVcfTokens : null;
+    }
+
     @Override
     public Map<String, Annotation> getVariantAnnotationsMap() {
         if (cachedSampleAnnotationsMap == null) {
@@ -352,23 +504,27 @@ public class VcfGenotypeData extends AbstractRandomAccessGenotypeData implements
 
         int idx = vcfRecord.getFormatIndex("DS");
         if (idx != -1 && (!canReadFromRequestedVcfFormat || MappedGenotypeField.DS.equals(preferredGenotypeField))) {
-            // retrieve sample dosage from sample info
-            dosages = new float[nrSamples];
-            int i = 0;
-            for (VcfSample vcfSample : vcfRecord.getSamples()) {
-                String dosage = vcfSample.getData(idx);
-                if (dosage == null) {
-                    //throw new GenotypeDataException("Missing DS format value for sample [" + vcfMeta.getSampleName(i) + "] at variant [" + variant.getPrimaryVariantId() + "]");
-                    dosages[i++] = -1;
-                } else {
-                    try {
-                        //Math abs to prevent -0 due to rounding
-                        dosages[i++] = Math.abs((Float.parseFloat(dosage) - 2) * -1);
-                    } catch (NumberFormatException e) {
-                        throw new GenotypeDataException("Error in sample dosage (DS) value for sample [" + vcfMeta.getSampleName(i) + "], found value: " + dosage);
+            // read directly from the VCF line if possible
+            dosages = decodeDosages(vcfRecord, idx);
+            if (dosages == null) {
+                // retrieve sample dosage from sample info
+                dosages = new float[nrSamples];
+                int i = 0;
+                for (VcfSample vcfSample : vcfRecord.getSamples()) {
+                    String dosage = vcfSample.getData(idx);
+                    if (dosage == null) {
+                        //throw new GenotypeDataException("Missing DS format value for sample [" + vcfMeta.getSampleName(i) + "] at variant [" + variant.getPrimaryVariantId() + "]");
+                        dosages[i++] = -1;
+                    } else {
+                        try {
+                            //Math abs to prevent -0 due to rounding
+                            dosages[i++] = Math.abs((Float.parseFloat(dosage) - 2) * -1);
+                        } catch (NumberFormatException e) {
+                            throw new GenotypeDataException("Error in sample dosage (DS) value for sample [" + vcfMeta.getSampleName(i) + "], found value: " + dosage);
+                        }
                     }
-                }
 
+                }
             }
         } else if (vcfRecord.getFormatIndex("GP") != -1 &&
                 (!canReadFromRequestedVcfFormat || MappedGenotypeField.GP.equals(preferredGenotypeField))) {
@@ -390,9 +546,103 @@ public class VcfGenotypeData extends AbstractRandomAccessGenotypeData implements
         return dosages;
     }
 
+    /**
+     * Reads the DS field directly from the columns of the VCF line
+     *
+     * @param vcfRecord
+     * @param formatIndex index of DS in the format column
+     * @return null if the line is not available or a sample has no DS value
+     */
+    private float[] decodeDosages(VcfRecord vcfRecord, int formatIndex) {
+        final int nrSamples = vcfRecord.getNrSamples();
+        final String[] tokens = getVcfTokens(vcfRecord);
+        if (!VcfSampleFieldDecoder.hasSampleColumns(tokens, nrSamples)) {
+            return null;
+        }
+
+        float[] dosages = new float[nrSamples];
+        for (int i = 0; i < nrSamples; ++i) {
+            String sample = tokens[VcfSampleFieldDecoder.FIRST_SAMPLE_COLUMN + i];
+            int start = VcfSampleFieldDecoder.fieldStart(sample, formatIndex);
+            if (start == -1) {
+                return null;
+            }
+            int end = VcfSampleFieldDecoder.fieldEnd(sample, start);
+            if (start == end || (end - start == 1 && sample.charAt(start) == '.')) {
+                return null;
+            }
+            try {
+                //Math abs to prevent -0 due to rounding
+                dosages[i] = Math.abs((DecimalParser.parseFloat(sample, start, end) - 2) * -1);
+            } catch (NumberFormatException e) {
+                throw new GenotypeDataException("Error in sample dosage (DS) value for sample [" + vcfMeta.getSampleName(i) + "], found value: " + sample.substring(start, end));
+            }
+        }
+        return dosages;
+    }
+
+    /**
+     * Reads the GP field of bi-allelic variants directly from the columns of
+     * the VCF line
+     *
+     * @param vcfRecord
+     * @param formatIndex index of GP in the format column
+     * @param numberOfAlleles
+     * @return null if the line is not available or a sample has a GP value
+     * that is not three probabilities
+     */
+    private float[][] decodeProbabilities(VcfRecord vcfRecord, int formatIndex, int numberOfAlleles) {
+        final int nrSamples = vcfRecord.getNrSamples();
+        final String[] tokens = getVcfTokens(vcfRecord);
+        if (!VcfSampleFieldDecoder.hasSampleColumns(tokens, nrSamples)) {
+            return null;
+        }
+
+        float[][] probs = new float[nrSamples][3];
+        for (int i = 0; i < nrSamples; ++i) {
+            String sample = tokens[VcfSampleFieldDecoder.FIRST_SAMPLE_COLUMN + i];
+            int start = VcfSampleFieldDecoder.fieldStart(sample, formatIndex);
+            if (start == -1) {
+                return null;
+            }
+            int end = VcfSampleFieldDecoder.fieldEnd(sample, start);
+            if (numberOfAlleles != 2 || start == end || (end - start == 1 && sample.charAt(start) == '.')) {
+                // missing or not bi-allelic, probabilities stay 0
+                continue;
+            }
+
+            int valueStart = start;
+            for (int j = 0; j < 3; ++j) {
+                int comma = sample.indexOf(',', valueStart);
+                int valueEnd = j < 2 ? comma : end;
+                if (j < 2 ? (comma == -1 || comma > end) : (comma != -1 && comma < end)) {
+                    // not exactly three values
+                    return null;
+                }
+                if (valueEnd == valueStart || (valueEnd - valueStart == 1 && sample.charAt(valueStart) == '.')) {
+                    return null;
+                }
+                try {
+                    probs[i][j] = DecimalParser.parseFloat(sample, valueStart, valueEnd);
+                } catch (NumberFormatException e) {
+                    throw new GenotypeDataException("Error in sample prob (GP) value for sample [" + vcfMeta.getSampleName(i) + "], found value: " + sample.substring(start, end));
+                }
+                valueStart = valueEnd + 1;
+            }
+        }
+        return probs;
+    }
+
     @Override
     public void close() throws IOException {
-        // noop
+        final ArrayList<ParallelBgzfLineReader> lineReaders;
+        synchronized (openLineReaders) {
+            lineReaders = new ArrayList<>(openLineReaders.values());
+            openLineReaders.clear();
+        }
+        for (ParallelBgzfLineReader lineReader : lineReaders) {
+            closeLineReader(lineReader);
+        }
     }
 
     @Override
@@ -418,37 +668,41 @@ public class VcfGenotypeData extends AbstractRandomAccessGenotypeData implements
 
         int idx = vcfRecord.getFormatIndex("GP");
         if (idx != -1 && (!canReadFromRequestedVcfFormat || MappedGenotypeField.GP.equals(preferredGenotypeField))) {
-            // retrieve sample probabilities from sample info
-            probs = new float[nrSamples][3];
-            int i = 0;
-            for (VcfSample vcfSample : vcfRecord.getSamples()) {
-                String probabilitiesStr = vcfSample.getData(idx);
-                if (probabilitiesStr == null) {
-                    //throw new GenotypeDataException("Missing GP format value for sample [" + vcfMeta.getSampleName(i) + "]");
-                    probs[i] = new float[]{0, 0, 0};
-                } else {
-                    if (probabilitiesStr.matches(".*,+\\.,+.*")) {
+            // read directly from the VCF line if possible
+            probs = decodeProbabilities(vcfRecord, idx, numberOfAlleles);
+            if (probs == null) {
+                // retrieve sample probabilities from sample info
+                probs = new float[nrSamples][3];
+                int i = 0;
+                for (VcfSample vcfSample : vcfRecord.getSamples()) {
+                    String probabilitiesStr = vcfSample.getData(idx);
+                    if (probabilitiesStr == null) {
+                        //throw new GenotypeDataException("Missing GP format value for sample [" + vcfMeta.getSampleName(i) + "]");
+                        probs[i] = new float[]{0, 0, 0};
+                    } else {
+                        if (probabilitiesStr.matches(".*,+\\.,+.*")) {
 //                        System.out.println(probabilitiesStr);
-                        probabilitiesStr = probabilitiesStr.replaceAll("\\.", "0");
+                            probabilitiesStr = probabilitiesStr.replaceAll("\\.", "0");
 //                        System.out.println(probabilitiesStr);
-                    }
-                    String[] probabilities = StringUtils.split(probabilitiesStr, ',');
-                    if (probabilities.length != 3 || numberOfAlleles != 2) {
+                        }
+                        String[] probabilities = StringUtils.split(probabilitiesStr, ',');
+                        if (probabilities.length != 3 || numberOfAlleles != 2) {
 //                        throw new GenotypeDataException("Error in sample prob (GP) value for sample [" + vcfMeta.getSampleName(i) + "], found value: " + probabilitiesStr);
-                        probs[i] = new float[3];
-                    } else {
-                        for (int j = 0; j < 3; ++j) {
-                            try {
-                                probs[i][j] = Float.parseFloat(probabilities[j]);
-                            } catch (NumberFormatException e) {
-                                throw new GenotypeDataException("Error in sample prob (GP) value for sample [" + vcfMeta.getSampleName(i) + "], found value: " + probabilitiesStr);
+                            probs[i] = new float[3];
+                        } else {
+                            for (int j = 0; j < 3; ++j) {
+                                try {
+                                    probs[i][j] = Float.parseFloat(probabilities[j]);
+                                } catch (NumberFormatException e) {
+                                    throw new GenotypeDataException("Error in sample prob (GP) value for sample [" + vcfMeta.getSampleName(i) + "], found value: " + probabilitiesStr);
+                                }
                             }
                         }
                     }
+                    ++i;
                 }
-                ++i;
-            }
 
+            }
         } else if (vcfRecord.getFormatIndex("GT") != -1 &&
                 (!canReadFromRequestedVcfFormat || MappedGenotypeField.GT.equals(preferredGenotypeField))) {
 
@@ -847,7 +1101,8 @@ public class VcfGenotypeData extends AbstractRandomAccessGenotypeData implements
 
                         @Override
                         public GeneticVariant next() {
-                            VcfRecord vcfRecord = new VcfRecord(vcfMeta, StringUtils.split(line, '\t'));
+                            String[] tokens = StringUtils.split(line, '\t');
+                            VcfRecord vcfRecord = new VcfRecord(vcfMeta, tokens);
                             try {
                                 line = it.next();
                                 if (line == null) {
@@ -858,7 +1113,7 @@ public class VcfGenotypeData extends AbstractRandomAccessGenotypeData implements
                             } catch (IOException e) {
                                 throw new GenotypeDataException(e);
                             }
-                            return toGeneticVariant(vcfRecord);
+                            return toGeneticVariant(vcfRecord, tokens);
                         }
 
                         @Override
@@ -891,9 +1146,11 @@ public class VcfGenotypeData extends AbstractRandomAccessGenotypeData implements
                 stream = new BlockCompressedInputStream(bzipVcfFile);
                 it = tabixIndex.queryTabixIndex(variant.getSequenceName(), variant.getStartPos() - 1, variant.getStartPos(), stream);
                 while ((line = it.next()) != null) {
-                    VcfRecord vcfRecord = new VcfRecord(vcfMeta, StringUtils.split(line, '\t'));
-                    if (variant.equals(toGeneticVariant(vcfRecord))) {
+                    String[] tokens = StringUtils.split(line, '\t');
+                    VcfRecord vcfRecord = new VcfRecord(vcfMeta, tokens);
+                    if (variant.equals(toGeneticVariant(vcfRecord, tokens))) {
                         cachedVcfRecord = vcfRecord;
+                        cachedVcfTokens = tokens;
                         cachedGeneticVariant = variant;
                         break;
                     }
@@ -920,9 +1177,10 @@ public class VcfGenotypeData extends AbstractRandomAccessGenotypeData implements
      * Convert VcfRecord to GeneticVariant
      *
      * @param vcfRecord
+     * @param tokens columns of the line of the record
      * @return
      */
-    private GeneticVariant toGeneticVariant(VcfRecord vcfRecord) {
+    private GeneticVariant toGeneticVariant(VcfRecord vcfRecord, String[] tokens) {
         List<String> identifiers = vcfRecord.getIdentifiers();
         int pos = vcfRecord.getPosition();
         String sequenceName = vcfRecord.getChromosome();
@@ -950,6 +1208,7 @@ public class VcfGenotypeData extends AbstractRandomAccessGenotypeData implements
         GeneticVariant geneticVariant = ReadOnlyGeneticVariant.createVariant(geneticVariantMeta, identifiers, pos, sequenceName, annotationMap, variantProvider, alleles, refAllele);
 
         cachedVcfRecord = vcfRecord;
+        cachedVcfTokens = tokens;
         cachedGeneticVariant = geneticVariant;
         return geneticVariant;
     }
@@ -985,6 +1244,29 @@ public class VcfGenotypeData extends AbstractRandomAccessGenotypeData implements
                 MappedGenotypeField.valueOf(preferredGenotypeField) : null;
     }
 
+    /**
+     * Number of threads used to decompress the VCF when iterating over all
+     * variants
+     *
+     * @param decompressionThreads
+     */
+    public void setDecompressionThreads(int decompressionThreads) {
+        if (decompressionThreads < 1) {
+            throw new GenotypeDataException("Need at least one decompression thread");
+        }
+        this.decompressionThreads = decompressionThreads;
+    }
+
+    /**
+     * Only for testing, when false all sample fields are read through the
+     * VcfSample objects of the record instead of the columns of the line
+     *
+     * @param decodeSampleColumns
+     */
+    void setDecodeSampleColumns(boolean decodeSampleColumns) {
+        this.decodeSampleColumns = decodeSampleColumns;
+    }
+
     /**
      * Enum with genotype fields which data can be read from.
      */
@@ -0,0 +1,123 @@
+package org.molgenis.genotype.vcf;
+
+/**
+ * Reads format fields directly from the tab separated columns of a VCF line,
+ * without creating a VcfSample per sample. Only handles the common encodings,
+ * callers fall back to the VcfRecord when a method returns false.
+ */
+class VcfSampleFieldDecoder {
+
+	static final int FIRST_SAMPLE_COLUMN = 9;
+
+	private VcfSampleFieldDecoder() {
+	}
+
+	/**
+	 *
+	 * @param tokens columns of the VCF line
+	 * @param nrSamples
+	 * @return true if there is a column for every sample
+	 */
+	static boolean hasSampleColumns(String[] tokens, int nrSamples) {
+		return tokens != null && tokens.length == FIRST_SAMPLE_COLUMN + nrSamples;
+	}
+
+	/**
+	 *
+	 * @param sample column of a sample
+	 * @param fieldIndex index of the field in the format column
+	 * @return start of the field or -1 if the sample has less fields
+	 */
+	static int fieldStart(String sample, int fieldIndex) {
+		int start = 0;
+		for (int f = 0; f < fieldIndex; ++f) {
+			start = sample.indexOf(':', start);
+			if (start == -1) {
+				return -1;
+			}
+			++start;
+		}
+		return start;
+	}
+
+	/**
+	 *
+	 * @param sample column of a sample
+	 * @param fieldStart
+	 * @return position after the last char of the field
+	 */
+	static int fieldEnd(String sample, int fieldStart) {
+		int end = sample.indexOf(':', fieldStart);
+		return end == -1 ? sample.length() : end;
+	}
+
+	/**
+	 * Decodes the GT field of all samples into allele indices. Only fully
+	 * called haploid and diploid genotypes are decoded.
+	 *
+	 * @param tokens columns of the VCF line
+	 * @param gtIndex index of GT in the format column
+	 * @param alleleCount number of alleles of the variant
+	 * @param allele1 index of the first allele per sample
+	 * @param allele2 index of the second allele per sample or -1 for haploid
+	 * @return false if there is no GT field or one of the samples has a
+	 * missing or unusual genotype
+	 */
+	static boolean decodeCalledAlleles(String[] tokens, int gtIndex, int alleleCount, int[] allele1, int[] allele2) {
+
+		if (gtIndex < 0) {
+			return false;
+		}
+
+		for (int s = 0; s < allele1.length; ++s) {
+
+			final String sample = tokens[FIRST_SAMPLE_COLUMN + s];
+			final int start = fieldStart(sample, gtIndex);
+			if (start == -1) {
+				return false;
+			}
+			final int end = fieldEnd(sample, start);
+
+			int pos = start;
+			int first = 0;
+			while (pos < end && isDigit(sample.charAt(pos)) && first < alleleCount) {
+				first = first * 10 + (sample.charAt(pos++) - '0');
+			}
+			if (pos == start || first >= alleleCount) {
+				return false;
+			}
+
+			if (pos == end) {
+				allele1[s] = first;
+				allele2[s] = -1;
+				continue;
+			}
+
+			final char separator = sample.charAt(pos++);
+			if (separator != '/' && separator != '|') {
+				return false;
+			}
+
+			final int secondStart = pos;
+			int second = 0;
+			while (pos < end && isDigit(sample.charAt(pos)) && second < alleleCount) {
+				second = second * 10 + (sample.charAt(pos++) - '0');
+			}
+			if (pos == secondStart || pos != end || second >= alleleCount) {
+				return false;
+			}
+
+			allele1[s] = first;
+			allele2[s] = second;
+
+		}
+
+		return true;
+
+	}
+
+	private static boolean isDigit(char c) {
+		return c >= '0' && c <= '9';
+	}
+
+}
@@ -4,8 +4,10 @@
  */
 package org.molgenis.genotype.oxford;
 
+import java.io.File;
 import java.io.IOException;
 import java.net.URISyntaxException;
+import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
@@ -332,4 +334,54 @@ public class GenGenotypeDataTest extends ResourceTest {
 
 	}
 	
-}
\ No newline at end of file
+	@Test
+	public void testParseFloat() {
+		String[] values = {"0", "1", "0.5", "0.25", "0.1", "0.001", "0.989", "-0.3", "1e-3", "0.333333333333", "123456789", "0.0000000001", "1.", ".5"};
+		for (String value : values) {
+			byte[] bytes = (" " + value + " ").getBytes();
+			assertEquals(GenGenotypeData.parseFloat(bytes, 1, bytes.length - 1), Float.parseFloat(value), "Parsing " + value);
+		}
+	}
+
+	@Test
+	public void testReopenWithIndex() throws IOException, URISyntaxException {
+
+		//Copy to a new folder so the first open can't find an index of an earlier run
+		File folder = Files.createTempDirectory("GenGenotypeDataTest").toFile();
+		File genFile = new File(folder, "test2.gen");
+		File sampleFile = new File(folder, "test2.sample");
+		File indexFile = new File(folder, "test2.gen.gidx");
+		Files.copy(getTest2Gen().toPath(), genFile.toPath());
+		Files.copy(getTest2Sample().toPath(), sampleFile.toPath());
+
+		GenGenotypeData first = new GenGenotypeData(genFile, sampleFile);
+		assertFalse(first.isLoadedFromIndex());
+		first.close();
+		assertTrue(indexFile.isFile(), "Gen index not created");
+
+		GenGenotypeData reopened = new GenGenotypeData(genFile, sampleFile);
+		assertTrue(reopened.isLoadedFromIndex(), "Gen index not used");
+
+		List<GeneticVariant> expectedVariants = Utils.iteratorToList(genotypeData.iterator());
+		List<GeneticVariant> variants = Utils.iteratorToList(reopened.iterator());
+
+		assertEquals(variants.size(), expectedVariants.size());
+		for (int i = 0; i < variants.size(); ++i) {
+			assertEquals(variants.get(i).getPrimaryVariantId(), expectedVariants.get(i).getPrimaryVariantId());
+			assertEquals(variants.get(i).getSequenceName(), expectedVariants.get(i).getSequenceName());
+			assertEquals(variants.get(i).getStartPos(), expectedVariants.get(i).getStartPos());
+			assertEquals(variants.get(i).getVariantAlleles(), expectedVariants.get(i).getVariantAlleles());
+			assertEquals(variants.get(i).getSampleGenotypeProbilities(), expectedVariants.get(i).getSampleGenotypeProbilities(), 0f, "Probs not identical");
+		}
+		assertEquals(reopened.getSeqNames(), genotypeData.getSeqNames());
+
+		reopened.close();
+
+		indexFile.delete();
+		genFile.delete();
+		sampleFile.delete();
+		folder.delete();
+
+	}
+
+}
@@ -0,0 +1,129 @@
+package org.molgenis.genotype.trityper;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.molgenis.genotype.util.CalledDosageConvertor;
+import org.molgenis.genotype.variant.GeneticVariant;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Compares the dosage of all variants in a TriTyper dataset decoded directly
+ * from the genotype bytes against the conversion of the sample alleles. Not
+ * part of the unit tests, run the main method from the test classpath.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class TriTyperDosageBenchmark {
+
+	private static final byte[] ALLELES = {'A', 'C', 'G', 'T'};
+	@Param({"5000"})
+	public int samples;
+	@Param({"2000"})
+	public int variants;
+	private File folder;
+	private TriTyperGenotypeData genotypeData;
+	private List<GeneticVariant> variantList;
+
+	@Setup(Level.Trial)
+	public void writeDataset() throws IOException {
+
+		folder = Files.createTempDirectory("triTyperDosageBenchmark").toFile();
+		Random random = new Random(1);
+
+		try (PrintWriter individuals = new PrintWriter(new File(folder, "Individuals.txt"));
+				PrintWriter phenotypes = new PrintWriter(new File(folder, "PhenotypeInformation.txt"))) {
+			for (int s = 0; s < samples; ++s) {
+				individuals.println("sample" + s);
+				phenotypes.println("sample" + s + "\tcontrol\tinclude\tmale");
+			}
+		}
+
+		try (PrintWriter snps = new PrintWriter(new File(folder, "SNPs.txt"));
+				PrintWriter snpMappings = new PrintWriter(new File(folder, "SNPMappings.txt"));
+				OutputStream genotypeMatrix = new BufferedOutputStream(new FileOutputStream(new File(folder, "GenotypeMatrix.dat")))) {
+			byte[] variantBytes = new byte[samples * 2];
+			for (int v = 0; v < variants; ++v) {
+				snps.println("rs" + v);
+				snpMappings.println("1\t" + (v * 100 + 1) + "\trs" + v);
+				int allele1Index = random.nextInt(4);
+				byte allele1 = ALLELES[allele1Index];
+				byte allele2 = ALLELES[(allele1Index + 1 + random.nextInt(3)) % 4];
+				for (int s = 0; s < samples; ++s) {
+					boolean missing = random.nextInt(100) == 0;
+					variantBytes[s] = missing ? 0 : (random.nextBoolean() ? allele1 : allele2);
+					variantBytes[samples + s] = missing ? 0 : (random.nextBoolean() ? allele1 : allele2);
+				}
+				genotypeMatrix.write(variantBytes);
+			}
+		}
+
+		genotypeData = new TriTyperGenotypeData(folder, 0, null, null);
+		variantList = new ArrayList<>(variants);
+		for (GeneticVariant variant : genotypeData) {
+			variantList.add(variant);
+		}
+
+	}
+
+	@TearDown(Level.Trial)
+	public void deleteDataset() throws IOException {
+		genotypeData.close();
+		for (File file : folder.listFiles()) {
+			file.delete();
+		}
+		folder.delete();
+	}
+
+	@Benchmark
+	public double viaSampleAlleles() {
+		double sum = 0;
+		for (GeneticVariant variant : variantList) {
+			float[] dosages = CalledDosageConvertor.convertCalledAllelesToDosage(variant.getSampleVariants(), variant.getVariantAlleles(), variant.getRefAllele());
+			sum += dosages[0];
+		}
+		return sum;
+	}
+
+	@Benchmark
+	public double direct() {
+		double sum = 0;
+		for (GeneticVariant variant : variantList) {
+			float[] dosages = genotypeData.getSampleDosage(variant);
+			sum += dosages[0];
+		}
+		return sum;
+	}
+
+	public static void main(String[] args) throws RunnerException {
+		new Runner(new OptionsBuilder().include(TriTyperDosageBenchmark.class.getSimpleName()).build()).run();
+	}
+
+}
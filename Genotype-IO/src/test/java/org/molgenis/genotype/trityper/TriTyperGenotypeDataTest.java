@@ -15,6 +15,7 @@ import org.molgenis.genotype.Alleles;
 import org.molgenis.genotype.ResourceTest;
 import org.molgenis.genotype.Sample;
 import org.molgenis.genotype.Sequence;
+import org.molgenis.genotype.util.CalledDosageConvertor;
 import org.molgenis.genotype.util.FixedSizeIterable;
 import org.molgenis.genotype.util.Utils;
 import org.molgenis.genotype.variant.GeneticVariant;
@@ -248,6 +249,17 @@ public class TriTyperGenotypeDataTest extends ResourceTest {
 		
 	}
 	
+	@Test
+	public void testDirectDosageDecoding() {
+		for (GeneticVariant variant : genotypeData) {
+			if (variant.getVariantAlleles().getAlleleCount() == 0) {
+				continue;
+			}
+			assertEqualsByteArray(genotypeData.getSampleCalledDosage(variant), CalledDosageConvertor.convertCalledAllelesToCalledDosage(variant.getSampleVariants(), variant.getVariantAlleles(), variant.getRefAllele()));
+			assertEqualsFloatArray(genotypeData.getSampleDosage(variant), CalledDosageConvertor.convertCalledAllelesToDosage(variant.getSampleVariants(), variant.getVariantAlleles(), variant.getRefAllele()));
+		}
+	}
+
 	private void assertEqualsByteArray(byte[] d1, byte[] d2){
 		
 		assertEquals(d1.length, d2.length);
@@ -0,0 +1,99 @@
+package org.molgenis.genotype.util;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import org.testng.annotations.Test;
+
+public class OrderedParallelEncoderTest
+{
+
+	@Test
+	public void testOrder() throws IOException
+	{
+
+		List<Integer> input = IntStream.range(0, 10000).boxed().collect(Collectors.toList());
+		List<Integer> output = new ArrayList<>();
+
+		try (OrderedParallelEncoder<Integer, Integer> encoder = new OrderedParallelEncoder<>(input.iterator(),
+				i -> i % 3 == 0 ? null : () -> i * 2, 4, 10))
+		{
+			Integer encoded;
+			while ((encoded = encoder.next()) != null)
+			{
+				output.add(encoded);
+			}
+			assertNull(encoder.next());
+		}
+
+		List<Integer> expected = input.stream().filter(i -> i % 3 != 0).map(i -> i * 2).collect(Collectors.toList());
+		assertEquals(output, expected);
+
+	}
+
+	@Test(expectedExceptions = IOException.class)
+	public void testEncodingException() throws IOException
+	{
+
+		List<Integer> input = IntStream.range(0, 100).boxed().collect(Collectors.toList());
+
+		try (OrderedParallelEncoder<Integer, Integer> encoder = new OrderedParallelEncoder<>(input.iterator(),
+				i -> () -> {
+					if (i == 50)
+					{
+						throw new IOException("test");
+					}
+					return i;
+				}, 2, 5))
+		{
+			int expected = 0;
+			Integer encoded;
+			while ((encoded = encoder.next()) != null)
+			{
+				assertEquals(encoded.intValue(), expected++);
+			}
+		}
+
+	}
+
+	@Test
+	public void testReaderError() throws IOException
+	{
+
+		List<Integer> input = IntStream.range(0, 100).boxed().collect(Collectors.toList());
+		List<Integer> output = new ArrayList<>();
+		boolean thrown = false;
+
+		try (OrderedParallelEncoder<Integer, Integer> encoder = new OrderedParallelEncoder<>(input.iterator(),
+				i -> {
+					if (i == 50)
+					{
+						throw new AssertionError("test");
+					}
+					return () -> i;
+				}, 2, 5))
+		{
+			Integer encoded;
+			while ((encoded = encoder.next()) != null)
+			{
+				output.add(encoded);
+			}
+		}
+		catch (AssertionError ex)
+		{
+			thrown = true;
+		}
+
+		assertTrue(thrown);
+		assertEquals(output, input.subList(0, 50));
+
+	}
+
+}
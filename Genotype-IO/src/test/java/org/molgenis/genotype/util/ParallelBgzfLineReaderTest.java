@@ -0,0 +1,46 @@
+package org.molgenis.genotype.util;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+
+import net.sf.samtools.util.BlockCompressedInputStream;
+
+import org.molgenis.genotype.ResourceTest;
+import org.testng.annotations.Test;
+
+public class ParallelBgzfLineReaderTest extends ResourceTest
+{
+
+	@Test
+	public void testReadLine() throws IOException, URISyntaxException
+	{
+
+		File vcfFile = getTestResourceFile("/chr21.imputed.head.vcf.gz");
+
+		for (int threads = 1; threads <= 3; ++threads)
+		{
+			int lineCount = 0;
+			try (ParallelBgzfLineReader reader = new ParallelBgzfLineReader(vcfFile, threads);
+					BufferedReader expectedReader = new BufferedReader(new InputStreamReader(new BlockCompressedInputStream(vcfFile), StandardCharsets.UTF_8)))
+			{
+				String expected;
+				while ((expected = expectedReader.readLine()) != null)
+				{
+					assertEquals(reader.readLine(), expected);
+					++lineCount;
+				}
+				assertNull(reader.readLine());
+			}
+			assertEquals(lineCount > 0, true);
+		}
+
+	}
+
+}
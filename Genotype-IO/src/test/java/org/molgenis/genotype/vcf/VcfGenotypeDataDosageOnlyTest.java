@@ -0,0 +1,61 @@
+package org.molgenis.genotype.vcf;
+
+import static org.testng.Assert.assertEquals;
+
+import java.io.IOException;
+import java.net.URISyntaxException;
+import org.molgenis.genotype.Allele;
+import org.molgenis.genotype.Alleles;
+import org.molgenis.genotype.ResourceTest;
+import org.molgenis.genotype.variant.GeneticVariant;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+/**
+ * VCF with only a DS field per sample, the called alleles follow from the
+ * dosages.
+ */
+public class VcfGenotypeDataDosageOnlyTest extends ResourceTest
+{
+	private VcfGenotypeData genotypeData;
+
+	@BeforeClass
+	public void beforeClass() throws IOException, URISyntaxException
+	{
+		genotypeData = new VcfGenotypeData(getTestResourceFile("/dosageOnly.vcf.gz"), getTestResourceFile("/dosageOnly.vcf.gz.tbi"), 0.8);
+	}
+
+	@Test
+	public void getSampleVariants()
+	{
+		GeneticVariant var = genotypeData.getSnpVariantByPos("21", 9834467);
+		assertEquals(var.getVariantAlleles(), Alleles.createAlleles(Allele.A, Allele.G));
+		assertEquals(var.getSampleVariants().get(0), Alleles.createAlleles(Allele.A, Allele.A));
+		assertEquals(var.getSampleVariants().get(1), Alleles.createAlleles(Allele.A, Allele.A));
+
+		var = genotypeData.getSnpVariantByPos("21", 9840012);
+		assertEquals(var.getVariantAlleles(), Alleles.createAlleles(Allele.C, Allele.T));
+		assertEquals(var.getSampleVariants().get(0), Alleles.createAlleles(Allele.T, Allele.T));
+		assertEquals(var.getSampleVariants().get(2), Alleles.createAlleles(Allele.C, Allele.T));
+	}
+
+	@Test
+	public void getDosage()
+	{
+		GeneticVariant var = genotypeData.getSnpVariantByPos("21", 9834467);
+		assertEquals(var.getSampleDosages()[0], 1.878, 0.001);
+		assertEquals(var.getSampleDosages()[1], 1.538, 0.001);
+
+		var = genotypeData.getSnpVariantByPos("21", 9840012);
+		assertEquals(var.getSampleDosages()[2], 0.746, 0.001);
+	}
+
+	@Test
+	public void getProbabilitiesComplex()
+	{
+		GeneticVariant var = genotypeData.getSnpVariantByPos("21", 9839989);
+		double[][] probs = var.getSampleGenotypeProbabilitiesComplex();
+		assertEquals(probs.length, 5);
+	}
+
+}
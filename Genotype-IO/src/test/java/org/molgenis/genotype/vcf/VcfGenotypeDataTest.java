@@ -395,4 +395,87 @@ public class VcfGenotypeDataTest extends ResourceTest
 		}
 	}
 
+	@Test
+	public void testDecodedSampleColumnsSameAsVcfSample() throws IOException, URISyntaxException
+	{
+		// GT, DS and GP
+		assertDecodedSameAsVcfSample(getTestResourceFile("/chr21.imputed.head.vcf.gz"), getTestResourceFile("/chr21.imputed.head.vcf.gz.tbi"));
+		// Only DS
+		assertDecodedSameAsVcfSample(getTestResourceFile("/dosageOnly.vcf.gz"), getTestResourceFile("/dosageOnly.vcf.gz.tbi"));
+		// GT with other fields
+		assertDecodedSameAsVcfSample(getTestVcfGz(), getTestVcfGzTbi());
+	}
+
+	private void assertDecodedSameAsVcfSample(File vcfFile, File tabixFile) throws IOException
+	{
+		VcfGenotypeData decodedData = new VcfGenotypeData(vcfFile, tabixFile, 0, 0.4);
+		VcfGenotypeData vcfSampleData = new VcfGenotypeData(vcfFile, tabixFile, 0, 0.4);
+		vcfSampleData.setDecodeSampleColumns(false);
+
+		Iterator<GeneticVariant> decodedIterator = decodedData.iterator();
+		Iterator<GeneticVariant> vcfSampleIterator = vcfSampleData.iterator();
+
+		int variantCount = 0;
+		while (decodedIterator.hasNext())
+		{
+			assertTrue(vcfSampleIterator.hasNext());
+			GeneticVariant decoded = decodedIterator.next();
+			GeneticVariant vcfSample = vcfSampleIterator.next();
+			String message = vcfFile.getName() + " " + decoded.getPrimaryVariantId();
+
+			assertEquals(decoded.getPrimaryVariantId(), vcfSample.getPrimaryVariantId());
+			assertEquals(decoded.getSampleVariants(), vcfSample.getSampleVariants(), message);
+			assertTrue(Arrays.deepEquals(decoded.getSampleGenotypeProbilities(), vcfSample.getSampleGenotypeProbilities()), message);
+			assertTrue(Arrays.equals(decoded.getSampleDosages(), vcfSample.getSampleDosages()), message);
+			++variantCount;
+		}
+		assertFalse(vcfSampleIterator.hasNext());
+		assertTrue(variantCount > 0);
+
+		decodedData.close();
+		vcfSampleData.close();
+	}
+
+	@Test
+	public void testCloseStopsIterator() throws IOException, URISyntaxException, InterruptedException
+	{
+		VcfGenotypeData data = new VcfGenotypeData(getTestResourceFile("/chr21.imputed.head.vcf.gz"), getTestResourceFile("/chr21.imputed.head.vcf.gz.tbi"), 0.4);
+		data.setDecompressionThreads(1);
+
+		Set<Thread> threadsBefore = Thread.getAllStackTraces().keySet();
+		Iterator<GeneticVariant> iterator = data.iterator();
+		iterator.next();
+
+		List<Thread> readerThreads = new ArrayList<>();
+		for (Thread thread : Thread.getAllStackTraces().keySet())
+		{
+			if (thread.getName().equals("genotype-reader") && !threadsBefore.contains(thread))
+			{
+				readerThreads.add(thread);
+			}
+		}
+
+		// The iterator is abandoned after one variant
+		data.close();
+
+		for (Thread readerThread : readerThreads)
+		{
+			readerThread.join(10000);
+			assertFalse(readerThread.isAlive(), "Reader thread not stopped");
+		}
+
+		try
+		{
+			while (iterator.hasNext())
+			{
+				iterator.next();
+			}
+			fail("Iterating after close did not raise a GenotypeDataException");
+		}
+		catch (GenotypeDataException e)
+		{
+			assertEquals(e.getMessage(), "Encoder is closed");
+		}
+	}
+
 }
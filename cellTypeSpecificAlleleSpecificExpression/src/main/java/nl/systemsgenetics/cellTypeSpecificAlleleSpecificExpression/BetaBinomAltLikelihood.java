@@ -10,7 +10,7 @@ import org.ejml.simple.SimpleMatrix;
  *
  * @author adriaan
  */
-class BetaBinomAltLikelihood implements Function {
+class BetaBinomAltLikelihood implements DifferentiableFunction {
 
     private Integer[] asRef;
     private Integer[] asAlt;
@@ -67,6 +67,30 @@ class BetaBinomAltLikelihood implements Function {
         
     }
 
+    @Override
+    public double[] gradient(double[] t) {
+        
+        if(t.length != 2 ){
+            throw new RuntimeException("BetaBinomAlt function requires 2 inputs!");
+        }
+        
+        double[] gradient = new double[2];
+        
+        for(int i=0; i < asRef.length; i++ ){
+            double[] partial = LikelihoodFunctions.BetaBinomLogLikGradient(dispersion[i], t[0], t[1], asRef[i], asAlt[i]);
+            gradient[0] += partial[0];
+            gradient[1] += partial[1];
+        }
+        
+        return gradient;
+    }
+
+    @Override
+    public boolean isInDomain(double[] t) {
+        //alpha and beta have to be positive for a valid ratio.
+        return t.length == 2 && t[0] > 0 && t[1] > 0 && !Double.isInfinite(t[0]) && !Double.isInfinite(t[1]);
+    }
+
     @Override
     public double[] value(SimpleMatrix xx) {
         int n = xx.numRows();
@@ -11,7 +11,7 @@ import org.ejml.simple.SimpleMatrix;
  *
  * @author adriaan
  */
-class BetaBinomNullLikelihood implements Function {
+class BetaBinomNullLikelihood implements DifferentiableFunction {
 
     private Integer[] asRef;
     private Integer[] asAlt;
@@ -64,6 +64,29 @@ class BetaBinomNullLikelihood implements Function {
         
     }
 
+    @Override
+    public double[] gradient(double[] t) {
+        
+        if(t.length != 1 ){
+            throw new RuntimeException("BetaBinomNull function requires 1 input!");
+        }
+        
+        //alpha and beta are both t, so the derivative is the sum of both partials.
+        double gradient = 0.0;
+        
+        for(int i=0; i < asRef.length; i++ ){
+            double[] partial = LikelihoodFunctions.BetaBinomLogLikGradient(dispersion[i], t[0], t[0], asRef[i], asAlt[i]);
+            gradient += partial[0] + partial[1];
+        }
+        
+        return new double[] {gradient};
+    }
+
+    @Override
+    public boolean isInDomain(double[] t) {
+        return t.length == 1 && t[0] > 0 && !Double.isInfinite(t[0]);
+    }
+
     @Override
     public double[] value(SimpleMatrix xx) {
         int n = xx.numRows();
@@ -7,13 +7,8 @@ package nl.systemsgenetics.cellTypeSpecificAlleleSpecificExpression;
 
 import java.util.ArrayList;
 import org.apache.commons.math3.distribution.ChiSquaredDistribution;
-import org.apache.commons.math3.optim.InitialGuess;
-import org.apache.commons.math3.optim.MaxEval;
 import org.apache.commons.math3.optim.PointValuePair;
-import org.apache.commons.math3.optim.nonlinear.scalar.GoalType;
-import org.apache.commons.math3.optim.nonlinear.scalar.ObjectiveFunction;
 import org.apache.commons.math3.optim.nonlinear.scalar.noderiv.NelderMeadSimplex;
-import org.apache.commons.math3.optim.nonlinear.scalar.noderiv.SimplexOptimizer;
 import org.apache.commons.math3.optim.univariate.SearchInterval;
 
 /**
@@ -23,6 +18,9 @@ import org.apache.commons.math3.optim.univariate.SearchInterval;
 
 class BetaBinomialTest {
     
+    //alpha and beta of the null model, equal so the ratio is 0.5
+    private static final double NULL_PARAM = 0.5;
+    
     //SNP information
     private final String snpName;
     private final String chromosome;
@@ -69,6 +67,7 @@ class BetaBinomialTest {
     //Test statistics:
     
     //MLE statistics
+    private LikelihoodOptimizer optimizer;
     int iterations;
     double alphaParam;
     double betaParam;
@@ -161,7 +160,7 @@ class BetaBinomialTest {
                                                         );
             
             
-            nullLogLik = betaBinomNull.value(new double[] {0.5});
+            nullLogLik = betaBinomNull.value(new double[] {NULL_PARAM});
             
 
             if(GlobalVariables.verbosity >= 100){
@@ -175,14 +174,16 @@ class BetaBinomialTest {
                                                         );
             NelderMeadSimplex simplex;
             simplex = new NelderMeadSimplex(2);
-            SimplexOptimizer optimizer = new SimplexOptimizer(GlobalVariables.simplexThreshold, GlobalVariables.simplexThreshold); //numbers are to which precision you want it to be done.
-            PointValuePair solutionAlt = optimizer.optimize(
-                                            new ObjectiveFunction(betaBinomAlt),
-                                            new MaxEval(GlobalVariables.maximumIterations),
+            
+            // The alternative is warm started from the pooled allelic ratio,
+            // the binomial estimate of alpha / (alpha + beta), instead of the
+            // null ratio of 0.5. Only the ratio changes the likelihood.
+            optimizer = new LikelihoodOptimizer();
+            PointValuePair solutionAlt = optimizer.minimize(betaBinomAlt,
                                             simplex,
-                                            GoalType.MINIMIZE,
-                                            new InitialGuess(new double[] {0.5, 0.5}), 
-                                            new SearchInterval(-1000.0, 1000.0)
+                                            pooledRatioStart(asRefArray, asAltArray), 
+                                            new SearchInterval(-1000.0, 1000.0),
+                                            GlobalVariables.maximumIterations
                                             );
             
             double[] valueAlt = solutionAlt.getPoint();
@@ -412,6 +413,56 @@ class BetaBinomialTest {
     
     }
 
+    /**
+     * @return alpha and beta with a ratio of the pooled reference reads over
+     * all reads, pseudo counts keep both positive, and alpha + beta = 1
+     */
+    static double[] pooledRatioStart(Integer[] asRef, Integer[] asAlt){
+        double ref = 0.5;
+        double alt = 0.5;
+        for(int i = 0; i < asRef.length; i++){
+            ref += asRef[i];
+            alt += asAlt[i];
+        }
+        double ratio = ref / (ref + alt);
+        return new double[] {ratio, 1.0 - ratio};
+    }
+
+    /**
+     * @return the iterations used to fit the alternative model, 0 when not tested
+     */
+    public int getIterations() {
+        return optimizer == null ? 0 : optimizer.getIterations();
+    }
+
+    /**
+     * @return the likelihood evaluations used to fit the alternative model
+     */
+    public int getEvaluations() {
+        return optimizer == null ? 0 : optimizer.getEvaluations();
+    }
+
+    /**
+     * @return the time spent fitting the alternative model, in nanoseconds
+     */
+    public long getFitTimeNanos() {
+        return optimizer == null ? 0 : optimizer.getTimeNanos();
+    }
+
+    /**
+     * @return alpha and beta of the alternative model, null when not tested
+     */
+    public double[] getAltParameters() {
+        return testPerformed ? new double[] {alphaParam, betaParam} : null;
+    }
+
+    /**
+     * @return the alternative log likelihood
+     */
+    public double getAltLogLik() {
+        return altLogLik;
+    }
+
     /**
      * @return the genotype
      */
@@ -9,12 +9,8 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import org.apache.commons.math3.exception.TooManyEvaluationsException;
 import org.apache.commons.math3.optim.InitialGuess;
-import org.apache.commons.math3.optim.MaxEval;
 import org.apache.commons.math3.optim.PointValuePair;
-import org.apache.commons.math3.optim.nonlinear.scalar.GoalType;
-import org.apache.commons.math3.optim.nonlinear.scalar.ObjectiveFunction;
 import org.apache.commons.math3.optim.nonlinear.scalar.noderiv.NelderMeadSimplex;
-import org.apache.commons.math3.optim.nonlinear.scalar.noderiv.SimplexOptimizer;
 import org.apache.commons.math3.optim.univariate.SearchInterval;
 
 /**
@@ -75,7 +71,25 @@ class CTSBetaBinomialTest {
     double NullBetaParam;
     double NullbinomRatio;
     
+    //timing of the optimizations
+    private final LikelihoodOptimizer nullOptimizer = new LikelihoodOptimizer();
+    private final LikelihoodOptimizer altOptimizer  = new LikelihoodOptimizer();
+    
     public CTSBetaBinomialTest(ArrayList<IndividualSnpData> all_individuals, CTSlinearRegression CTSlinearRegressionResults) throws Exception {
+        this(all_individuals, CTSlinearRegressionResults, null);
+    }
+    
+    /**
+     * The null model of this test is the same likelihood as the alternative
+     * of the beta binomial test on the same individuals, if that test is 
+     * supplied its solution is reused instead of fitting the null again.
+     * 
+     * @param all_individuals
+     * @param CTSlinearRegressionResults
+     * @param betaBinomialResults beta binomial test on all_individuals, may be null
+     * @throws Exception 
+     */
+    public CTSBetaBinomialTest(ArrayList<IndividualSnpData> all_individuals, CTSlinearRegression CTSlinearRegressionResults, BetaBinomialTest betaBinomialResults) throws Exception {
     
         //basic information, get the zero instance.
         snpName = all_individuals.get(0).getSnpName();
@@ -163,20 +177,26 @@ class CTSBetaBinomialTest {
                                                             );
                 NelderMeadSimplex simplex;
                 simplex = new NelderMeadSimplex(2);
-                SimplexOptimizer optimizer = new SimplexOptimizer(GlobalVariables.simplexThreshold, GlobalVariables.simplexThreshold); //numbers are to which precision you want it to be done.
-                PointValuePair solutionNull = optimizer.optimize(
-                                                new ObjectiveFunction(betaBinomNull),
-                                                new MaxEval(GlobalVariables.maximumIterations),
-                                                simplex,
-                                                GoalType.MINIMIZE,
-                                                new InitialGuess(new double[] {0.5, 0.5}), 
-                                                new SearchInterval(0, 1.0)
-                                                );
-
-                double[] valueNull = solutionNull.getPoint();
+                
+                double[] valueNull;
+                
+                if(betaBinomialResults != null && betaBinomialResults.isTestPerformed()){
+                    // Same likelihood, so this is the same optimum.
+                    valueNull = betaBinomialResults.getAltParameters();
+                    nulliterations = 0;
+                } else {
+                    PointValuePair solutionNull = nullOptimizer.minimize(betaBinomNull,
+                                                    simplex,
+                                                    new double[] {0.5, 0.5}, 
+                                                    new SearchInterval(0, 1.0),
+                                                    GlobalVariables.maximumIterations
+                                                    );
+
+                    valueNull = solutionNull.getPoint();
+                    nulliterations = nullOptimizer.getIterations();
+                }
 
                 nullLogLik  = betaBinomNull.value(valueNull);
-                nulliterations = optimizer.getIterations();
                 NullAlphaParam = valueNull[0];
                 NullBetaParam = valueNull[1];
                 NullbinomRatio = valueNull[0] / (valueNull[0] + valueNull[1]);
@@ -225,13 +245,11 @@ class CTSBetaBinomialTest {
 
                 for(InitialGuess IGuess : GuessList){
 
-                    PointValuePair solutionAlt = optimizer.optimize(
-                                            new ObjectiveFunction(CTSbetaBinomAlt),
-                                            new MaxEval(500),
+                    PointValuePair solutionAlt = altOptimizer.minimize(CTSbetaBinomAlt,
                                             simplex,
-                                            GoalType.MINIMIZE,
-                                            IGuess,
-                                            new SearchInterval(0, 1)
+                                            IGuess.getInitialGuess(),
+                                            new SearchInterval(0, 1),
+                                            500
                                             );
 
 
@@ -267,6 +285,8 @@ class CTSBetaBinomialTest {
                 }
 
 
+                altiterations = altOptimizer.getIterations();
+
                 //Now select the lowest LogLik.
 
                 double[] bestParams = OptimizerResults.get(lowestIndices);
@@ -329,6 +349,27 @@ class CTSBetaBinomialTest {
         return testPerformed;
     }
 
+    /**
+     * @return the iterations used for the null and the alternative fits
+     */
+    public int getIterations() {
+        return nulliterations + altiterations;
+    }
+
+    /**
+     * @return the likelihood evaluations used for the null and alternative fits
+     */
+    public int getEvaluations() {
+        return nullOptimizer.getEvaluations() + altOptimizer.getEvaluations();
+    }
+
+    /**
+     * @return the time spent fitting the null and alternative, in nanoseconds
+     */
+    public long getFitTimeNanos() {
+        return nullOptimizer.getTimeNanos() + altOptimizer.getTimeNanos();
+    }
+
     public static String writeHeader(){
         String header = "chr\tpos\tsnpName\tnumHets\tpVal\tchiSq\tcellTypeRatio\tresidualRatio\tnullLogLik\taltLogLik";
         return header;
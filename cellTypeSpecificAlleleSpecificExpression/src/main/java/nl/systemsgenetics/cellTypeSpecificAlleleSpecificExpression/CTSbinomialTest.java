@@ -7,13 +7,8 @@ package nl.systemsgenetics.cellTypeSpecificAlleleSpecificExpression;
 
 import java.util.ArrayList;
 import org.apache.commons.math3.exception.TooManyEvaluationsException;
-import org.apache.commons.math3.optim.InitialGuess;
-import org.apache.commons.math3.optim.MaxEval;
 import org.apache.commons.math3.optim.PointValuePair;
-import org.apache.commons.math3.optim.nonlinear.scalar.GoalType;
-import org.apache.commons.math3.optim.nonlinear.scalar.ObjectiveFunction;
 import org.apache.commons.math3.optim.nonlinear.scalar.noderiv.NelderMeadSimplex;
-import org.apache.commons.math3.optim.nonlinear.scalar.noderiv.SimplexOptimizer;
 import org.apache.commons.math3.optim.univariate.SearchInterval;
 
 /**
@@ -57,6 +52,8 @@ class CTSbinomialTest {
     
     //standard test output:    
     int iterations;
+    int evaluations = 0;
+    long fitTimeNanos = 0;
     double nullLogLik;
     double altLogLik;
     double pVal;
@@ -156,15 +153,15 @@ class CTSbinomialTest {
                 
                 NelderMeadSimplex simplex;
                 simplex = new NelderMeadSimplex(2, 1.0, 1.0, 2.0, 0.25, 0.25);
-                SimplexOptimizer optimizer = new SimplexOptimizer(GlobalVariables.simplexThreshold, GlobalVariables.simplexThreshold); 
-                PointValuePair solutionAlt = optimizer.optimize(
-                                                new ObjectiveFunction(CTSbinom),
-                                                new MaxEval(GlobalVariables.maximumIterations),
+                LikelihoodOptimizer optimizer = new LikelihoodOptimizer();
+                PointValuePair solutionAlt = optimizer.minimize(CTSbinom,
                                                 simplex,
-                                                GoalType.MINIMIZE,
-                                                new InitialGuess(new double[] {0, nullInput[0]}), 
-                                                new SearchInterval(0.0, 1.0)
+                                                new double[] {0, nullInput[0]}, 
+                                                new SearchInterval(0.0, 1.0),
+                                                GlobalVariables.maximumIterations
                                                 );
+                fitTimeNanos += optimizer.getTimeNanos();
+                evaluations  += optimizer.getEvaluations();
 
                 double[] valueAlt = solutionAlt.getPoint();
                 
@@ -198,15 +195,15 @@ class CTSbinomialTest {
                     
                     
                     for(double[] startingValue :StartingValueList ){
-                        SimplexOptimizer newOptimizer = new SimplexOptimizer(GlobalVariables.simplexThreshold, GlobalVariables.simplexThreshold); 
-                        PointValuePair newSolutionAlt = newOptimizer.optimize(
-                                                        new ObjectiveFunction(CTSbinom),
-                                                        new MaxEval(GlobalVariables.maximumIterations),
+                        LikelihoodOptimizer newOptimizer = new LikelihoodOptimizer();
+                        PointValuePair newSolutionAlt = newOptimizer.minimize(CTSbinom,
                                                         simplex,
-                                                        GoalType.MINIMIZE,
-                                                        new InitialGuess(startingValue), 
-                                                        new SearchInterval(0.0, 1.0)
+                                                        startingValue, 
+                                                        new SearchInterval(0.0, 1.0),
+                                                        GlobalVariables.maximumIterations
                                                         );
+                        fitTimeNanos += newOptimizer.getTimeNanos();
+                        evaluations  += newOptimizer.getEvaluations();
 
                         double[] newValueAlt = newSolutionAlt.getPoint();
 
@@ -330,4 +327,25 @@ class CTSbinomialTest {
         return testPerformed;
     }
 
+    /**
+     * @return the iterations of the selected alternative fit
+     */
+    public int getIterations() {
+        return iterations;
+    }
+
+    /**
+     * @return the likelihood evaluations over all starting values
+     */
+    public int getEvaluations() {
+        return evaluations;
+    }
+
+    /**
+     * @return the time spent fitting the alternative, in nanoseconds
+     */
+    public long getFitTimeNanos() {
+        return fitTimeNanos;
+    }
+
 }
@@ -0,0 +1,21 @@
+package nl.systemsgenetics.cellTypeSpecificAlleleSpecificExpression;
+
+public interface DifferentiableFunction extends Function
+{
+
+	/**
+	 * Analytic gradient of the function evaluated at x
+	 * @param x
+	 * @return vector of partial derivatives, same length as x
+	 */
+	public double[] gradient(double [] x);
+
+	/**
+	 * The gradient optimizer is unbounded, its solution is only used when
+	 * it lies in the domain of the function.
+	 * @param x
+	 * @return whether the function is defined at x
+	 */
+	public boolean isInDomain(double [] x);
+	
+}
@@ -31,6 +31,15 @@ public class GlobalVariables {
     
     public static int numberOfTestPerformed = 0;
     
+    //Number of threads over which SNP tests are distributed.
+    public static int numberOfThreads = 1;
+    
+    //Use the analytic gradients of the beta binomial likelihoods when optimizing.
+    public static boolean useGradientOptimizer = false;
+    
+    //Write per SNP iterations and timings of the likelihood optimizations.
+    public static boolean writeFitStatistics = false;
+    
     
     
     //BETA BINOMIAL SPECIFIC PARAMETERS
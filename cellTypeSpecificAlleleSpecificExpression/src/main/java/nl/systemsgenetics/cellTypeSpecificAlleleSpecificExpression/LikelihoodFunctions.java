@@ -8,6 +8,7 @@ package nl.systemsgenetics.cellTypeSpecificAlleleSpecificExpression;
 import org.apache.commons.math3.distribution.BinomialDistribution;
 import org.apache.commons.math3.distribution.ChiSquaredDistribution;
 import org.apache.commons.math3.special.Beta;
+import org.apache.commons.math3.special.Gamma;
 import org.jdom.IllegalDataException;
 
 /**
@@ -73,6 +74,53 @@ public class LikelihoodFunctions {
 
      }
     
+     /**
+      * Analytic gradient of BetaBinomLogLik with respect to alpha and beta.
+      * 
+      * a and b always sum to (1 / sigma^2 - 1), so only the ratio of alpha and
+      * beta moves the likelihood, hence the two partial derivatives are tied.
+      * 
+      * @return double[] {d/dalpha, d/dbeta} of the negative log likelihood.
+      */
+     static double[] BetaBinomLogLikGradient(double sigma, double alpha, double beta, int asRef, int asAlt){
+        int AS1      = asRef;
+        int AS2      = asAlt;
+        double hetp  = GlobalVariables.hetProb;
+        double error = GlobalVariables.seqError;
+        
+        double[] gradient = new double[2];
+        
+        if(hetp == 0.0){
+            //likelihood does not depend on alpha and beta.
+            return gradient;
+        }
+        
+        double k = 1.0 / Math.pow(sigma, 2) - 1.0;
+        double s = alpha + beta;
+        double a = alpha / s * k;
+        double b = beta  / s * k;
+        
+        //derivative of part1 with respect to a, minus that with respect to b
+        //the digamma(AS1 + AS2 + a + b) and digamma(a + b) terms cancel.
+        double d = Gamma.digamma(AS1 + a) - Gamma.digamma(a) 
+                 - Gamma.digamma(AS2 + b) + Gamma.digamma(b);
+        
+        //weight of the heterozygous component in the mixture.
+        double weight = 1.0;
+        if(hetp != 1.0){
+            double part1 = Beta.logBeta(AS1 + a, AS2 + b) - Beta.logBeta(a, b);
+            double e1 = Math.log(error) * AS1 + Math.log(1.0 - error) * AS2;
+            double e2 = Math.log(error) * AS2 + Math.log(1.0 - error) * AS1;
+            double logHet = Math.log(hetp) + part1;
+            weight = Math.exp(logHet - addlogs(logHet, Math.log(1 - hetp) + addlogs(e1, e2)));
+        }
+        
+        gradient[0] = -1.0 * weight * d * k * beta  / (s * s);
+        gradient[1] =        weight * d * k * alpha / (s * s);
+        
+        return gradient;
+     }
+    
     static double BetaBinomLogLik(double sigma, double alpha, double beta, int[] asRef, int[] asAlt){
         
         double logLik = 0; 
@@ -0,0 +1,159 @@
+package nl.systemsgenetics.cellTypeSpecificAlleleSpecificExpression;
+
+import org.apache.commons.math3.analysis.MultivariateVectorFunction;
+import org.apache.commons.math3.exception.MathIllegalStateException;
+import org.apache.commons.math3.optim.InitialGuess;
+import org.apache.commons.math3.optim.MaxEval;
+import org.apache.commons.math3.optim.MaxIter;
+import org.apache.commons.math3.optim.PointValuePair;
+import org.apache.commons.math3.optim.SimpleValueChecker;
+import org.apache.commons.math3.optim.nonlinear.scalar.GoalType;
+import org.apache.commons.math3.optim.nonlinear.scalar.ObjectiveFunction;
+import org.apache.commons.math3.optim.nonlinear.scalar.ObjectiveFunctionGradient;
+import org.apache.commons.math3.optim.nonlinear.scalar.gradient.NonLinearConjugateGradientOptimizer;
+import org.apache.commons.math3.optim.nonlinear.scalar.noderiv.NelderMeadSimplex;
+import org.apache.commons.math3.optim.nonlinear.scalar.noderiv.SimplexOptimizer;
+import org.apache.commons.math3.optim.univariate.SearchInterval;
+
+/**
+ * Minimizes a likelihood function, and keeps track of the iterations,
+ * evaluations and time that were needed to get there.
+ *
+ * When GlobalVariables.useGradientOptimizer is set and the function provides
+ * an analytic gradient, a conjugate gradient optimizer is used.
+ * If that fails to converge, or ends outside the domain of the function,
+ * the Nelder-Mead simplex is used as before.
+ *
+ * Not thread safe, use one instance per SNP.
+ */
+class LikelihoodOptimizer {
+
+    private int iterations = 0;
+    private int evaluations = 0;
+    private long timeNanos = 0;
+    private boolean usedGradient = false;
+
+
+    public PointValuePair minimize(Function function, NelderMeadSimplex simplex, double[] start, SearchInterval interval, int maxEval){
+
+        long startTime = System.nanoTime();
+
+        try{
+            if(GlobalVariables.useGradientOptimizer && function instanceof DifferentiableFunction){
+                try{
+                    PointValuePair solution = minimizeWithGradient((DifferentiableFunction) function, start, maxEval);
+                    if(isValidSolution((DifferentiableFunction) function, solution)){
+                        usedGradient = true;
+                        return solution;
+                    }
+                    if(GlobalVariables.verbosity >= 100){
+                        System.out.println("Gradient optimizer left the domain of the function, continuing with simplex.");
+                    }
+                } catch(MathIllegalStateException e){
+                    //includes TooManyEvaluationsException, fall back to the simplex.
+                    if(GlobalVariables.verbosity >= 100){
+                        System.out.println("Gradient optimizer did not converge, continuing with simplex.");
+                    }
+                }
+            }
+
+            SimplexOptimizer optimizer = new SimplexOptimizer(GlobalVariables.simplexThreshold, GlobalVariables.simplexThreshold); //numbers are to which precision you want it to be done.
+            PointValuePair solution;
+            try{
+                solution = optimizer.optimize(
+                                            new ObjectiveFunction(function),
+                                            new MaxEval(maxEval),
+                                            simplex,
+                                            GoalType.MINIMIZE,
+                                            new InitialGuess(start),
+                                            interval
+                                            );
+            } finally {
+                iterations  += optimizer.getIterations();
+                evaluations += optimizer.getEvaluations();
+            }
+
+            usedGradient = false;
+            return solution;
+
+        } finally {
+            timeNanos += System.nanoTime() - startTime;
+        }
+    }
+
+
+    /**
+     * The conjugate gradient search is unbounded, so it can end on NaN or on
+     * parameters outside of the domain, for instance negative alpha and beta.
+     */
+    static boolean isValidSolution(DifferentiableFunction function, PointValuePair solution){
+        if(solution == null || solution.getValue() == null || Double.isNaN(solution.getValue()) || Double.isInfinite(solution.getValue())){
+            return false;
+        }
+        for(double parameter : solution.getPoint()){
+            if(Double.isNaN(parameter) || Double.isInfinite(parameter)){
+                return false;
+            }
+        }
+        return function.isInDomain(solution.getPoint());
+    }
+
+
+    private PointValuePair minimizeWithGradient(final DifferentiableFunction function, double[] start, int maxEval){
+
+        NonLinearConjugateGradientOptimizer optimizer = new NonLinearConjugateGradientOptimizer(
+                                                            NonLinearConjugateGradientOptimizer.Formula.POLAK_RIBIERE,
+                                                            new SimpleValueChecker(GlobalVariables.simplexThreshold, GlobalVariables.simplexThreshold)
+                                                            );
+
+        MultivariateVectorFunction gradient = new MultivariateVectorFunction() {
+            @Override
+            public double[] value(double[] point) {
+                return function.gradient(point);
+            }
+        };
+
+        try{
+            return optimizer.optimize(
+                                    new ObjectiveFunction(function),
+                                    new ObjectiveFunctionGradient(gradient),
+                                    new MaxEval(maxEval),
+                                    new MaxIter(maxEval),
+                                    GoalType.MINIMIZE,
+                                    new InitialGuess(start)
+                                    );
+        } finally {
+            iterations  += optimizer.getIterations();
+            evaluations += optimizer.getEvaluations();
+        }
+    }
+
+    /**
+     * @return the iterations over all calls to minimize
+     */
+    public int getIterations() {
+        return iterations;
+    }
+
+    /**
+     * @return the function evaluations over all calls to minimize
+     */
+    public int getEvaluations() {
+        return evaluations;
+    }
+
+    /**
+     * @return the wall time spent in minimize, in nanoseconds.
+     */
+    public long getTimeNanos() {
+        return timeNanos;
+    }
+
+    /**
+     * @return whether the last solution came from the gradient optimizer
+     */
+    public boolean isUsedGradient() {
+        return usedGradient;
+    }
+
+}
@@ -215,6 +215,30 @@ public class MainEntryPoint {
 				.create("plot_directory");
 		OPTIONS.addOption(option);
                 
+                option = OptionBuilder.withArgName("String")
+				.hasArgs()
+				.withDescription("Number of threads over which the SNP tests are distributed. "
+                                        + "Default setting is 1. "
+                                        + "Used when action is: ASEperSNP")                                           
+				.withLongOpt("threads")
+				.create('T');
+		OPTIONS.addOption(option);
+                
+                option = OptionBuilder
+				.withDescription("Use the analytic gradient of the beta binomial likelihood to fit the alternative model. "
+                                        + "Falls back to the simplex when it does not converge. "
+                                        + "Used when action is: ASEperSNP and ASEperRegion")                                           
+				.withLongOpt("gradient_optimizer")
+				.create("gradient_optimizer");
+		OPTIONS.addOption(option);
+                
+                option = OptionBuilder
+				.withDescription("Write the iterations and time spent per SNP on the likelihood optimization to: <output>_FitStatistics.txt "
+                                        + "Used when action is: ASEperSNP")                                           
+				.withLongOpt("fit_statistics")
+				.create("fit_statistics");
+		OPTIONS.addOption(option);
+                
                 
                 
 
@@ -313,6 +337,17 @@ public class MainEntryPoint {
                     }
                 }
                 
+                if(commandLine.hasOption('T')){
+                    GlobalVariables.numberOfThreads = Integer.parseInt(commandLine.getOptionValue('T'));
+                    if(GlobalVariables.numberOfThreads <= 0){
+                        throw new IllegalDataException("Number of threads cannot be smaller than one\n"
+                                         + "Exitting");
+                    }
+                }
+                
+                GlobalVariables.useGradientOptimizer = commandLine.hasOption("gradient_optimizer");
+                GlobalVariables.writeFitStatistics = commandLine.hasOption("fit_statistics");
+                
                 if(commandLine.hasOption('A')){
                     String programAction = commandLine.getOptionValue('A').toUpperCase();
                     
@@ -8,6 +8,7 @@ package nl.systemsgenetics.cellTypeSpecificAlleleSpecificExpression;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.util.ArrayList;
+import java.util.List;
 import org.apache.commons.io.FilenameUtils;
 import org.jdom.IllegalDataException;
 
@@ -184,6 +185,19 @@ public class NonPhasedEntry {
         }
         
         
+        PrintWriter fitStatisticsWriter = null;
+        if(GlobalVariables.writeFitStatistics){
+            String fitStatisticsOutput = FilenameUtils.getFullPath(outputLocation) + 
+                                         FilenameUtils.getBaseName(outputLocation) +
+                                         "_FitStatistics.txt";
+            fitStatisticsWriter = new PrintWriter(fitStatisticsOutput, "UTF-8");
+            fitStatisticsWriter.println(SnpTestRunner.writeFitStatisticsHeader());
+        }
+        
+        //The tests of a batch of SNPs are spread over the threads, output is written in input order.
+        SnpTestRunner testRunner = new SnpTestRunner(GlobalVariables.numberOfThreads, phenoTypeLocation != null);
+        ArrayList<ArrayList<IndividualSnpData>> snpBatch = new ArrayList<ArrayList<IndividualSnpData>>();
+        
         //open all the files we want to open.
         ReadAsLinesIntoIndividualSNPdata asReader = new ReadAsLinesIntoIndividualSNPdata(asLocations);
 
@@ -284,46 +298,23 @@ public class NonPhasedEntry {
                     }
                 }
                 
+                snpBatch.add(allSnpData);
                 
-                BinomialTest binomialResults = new BinomialTest(allSnpData);
-                BetaBinomialTest betaBinomialResults = new BetaBinomialTest(allSnpData);
-
-                if(binomialResults.isTestPerformed()){
-
-                    binomWriter.println(binomialResults.writeTestStatistics(false));
-                    betaBinomWriter.println(betaBinomialResults.writeTestStatistics(false));
-
-                    GlobalVariables.numberOfTestPerformed++;
-
-                }
-                
-                
-                // do the CTS tests if data is available.
-
-                if(phenoTypeLocation != null){
-                    //do the CTS beta binomial test:
-                    
-                    CTSlinearRegression CTSlinearRegressionResults = new CTSlinearRegression(allSnpData);
-                    
-                    //the binomial test was removed because it was really slow, took about 70% of processing time, and was very false positive prone
-//                    CTSbinomialTest CTSbinomialResults = new CTSbinomialTest(allSnpData, CTSlinearRegressionResults);
-                    CTSBetaBinomialTest CTSbetaBinomResults = new CTSBetaBinomialTest(allSnpData, CTSlinearRegressionResults);
-                    
-
-                    // Write the results to the out_file, assuming both of them were done.
-                    if (CTSbetaBinomResults.isTestPerformed()) {
-                        
-                       CTSlinearRegressionWriter.println(CTSlinearRegressionResults.writeTestStatistics(true));
-//                       CTSBinomWriter.println(CTSbinomialResults.writeTestStatistics(true));
-                       CTSBetaBinomWriter.println(CTSbetaBinomResults.writeTestStatistics(true));
-                         
-                    }
+                if(snpBatch.size() >= testRunner.getBatchSize()){
+                    writeBatch(testRunner.runBatch(snpBatch), binomWriter, betaBinomWriter, CTSlinearRegressionWriter, CTSBetaBinomWriter, fitStatisticsWriter);
+                    snpBatch.clear();
                 }
-                
-                
-                System.out.println("\n---- Finished SNP " + allSnpData.get(0).snpName);
             }
         }
+        
+        if(!snpBatch.isEmpty()){
+            writeBatch(testRunner.runBatch(snpBatch), binomWriter, betaBinomWriter, CTSlinearRegressionWriter, CTSBetaBinomWriter, fitStatisticsWriter);
+        }
+        testRunner.close();
+        
+        if(fitStatisticsWriter != null){
+            fitStatisticsWriter.close();
+        }
      
         binomWriter.close();
         betaBinomWriter.close();
@@ -337,6 +328,40 @@ public class NonPhasedEntry {
         UtilityMethods.printFinalTestStats();
         
     }
+    
+    
+    private static void writeBatch(List<SnpTestRunner.SnpTestResults> batchResults,
+                                   PrintWriter binomWriter, 
+                                   PrintWriter betaBinomWriter,
+                                   PrintWriter CTSlinearRegressionWriter,
+                                   PrintWriter CTSBetaBinomWriter,
+                                   PrintWriter fitStatisticsWriter){
+        
+        for(SnpTestRunner.SnpTestResults results : batchResults){
+            
+            if(results.binomial.isTestPerformed()){
+
+                binomWriter.println(results.binomial.writeTestStatistics(false));
+                betaBinomWriter.println(results.betaBinomial.writeTestStatistics(false));
+
+                GlobalVariables.numberOfTestPerformed++;
+
+            }
+            
+            // Write the CTS results to the out_file, assuming both of them were done.
+            //the CTS binomial test was removed because it was really slow, took about 70% of processing time, and was very false positive prone
+            if(results.ctsBetaBinomial != null && results.ctsBetaBinomial.isTestPerformed()){
+                CTSlinearRegressionWriter.println(results.ctsLinearRegression.writeTestStatistics(true));
+                CTSBetaBinomWriter.println(results.ctsBetaBinomial.writeTestStatistics(true));
+            }
+            
+            if(fitStatisticsWriter != null){
+                fitStatisticsWriter.println(results.writeFitStatistics());
+            }
+            
+            System.out.println("\n---- Finished SNP " + results.allSnpData.get(0).snpName);
+        }
+    }
 
 
 }
@@ -0,0 +1,152 @@
+package nl.systemsgenetics.cellTypeSpecificAlleleSpecificExpression;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Runs the per SNP AS tests of a batch of SNPs on a pool of worker threads.
+ * Results are returned in the order of the input, so the output files are
+ * the same as when running single threaded.
+ *
+ * With one thread the tests are done on the calling thread.
+ */
+class SnpTestRunner {
+
+    private final int numberOfThreads;
+    private final boolean doCellTypeSpecific;
+    private final ExecutorService pool;
+
+
+    public SnpTestRunner(int numberOfThreads, boolean doCellTypeSpecific){
+
+        this.numberOfThreads = numberOfThreads;
+        this.doCellTypeSpecific = doCellTypeSpecific;
+
+        if(numberOfThreads > 1){
+            pool = Executors.newFixedThreadPool(numberOfThreads);
+        } else {
+            pool = null;
+        }
+    }
+
+    /**
+     * @return number of SNPs to read before calling runBatch
+     */
+    public int getBatchSize(){
+        return numberOfThreads * 64;
+    }
+
+
+    public List<SnpTestResults> runBatch(List<ArrayList<IndividualSnpData>> snps) throws Exception{
+
+        List<SnpTestResults> results = new ArrayList<SnpTestResults>(snps.size());
+
+        if(pool == null){
+            for(ArrayList<IndividualSnpData> snpData : snps){
+                results.add(testSnp(snpData));
+            }
+            return results;
+        }
+
+        List<Future<SnpTestResults>> futures = new ArrayList<Future<SnpTestResults>>(snps.size());
+
+        for(final ArrayList<IndividualSnpData> snpData : snps){
+            futures.add(pool.submit(new Callable<SnpTestResults>() {
+                @Override
+                public SnpTestResults call() throws Exception {
+                    return testSnp(snpData);
+                }
+            }));
+        }
+
+        for(Future<SnpTestResults> future : futures){
+            try{
+                results.add(future.get());
+            } catch(ExecutionException e){
+                if(e.getCause() instanceof Exception){
+                    throw (Exception) e.getCause();
+                }
+                throw e;
+            }
+        }
+
+        return results;
+    }
+
+
+    private SnpTestResults testSnp(ArrayList<IndividualSnpData> allSnpData) throws Exception{
+
+        SnpTestResults results = new SnpTestResults(allSnpData);
+
+        results.binomial = new BinomialTest(allSnpData);
+        results.betaBinomial = new BetaBinomialTest(allSnpData);
+
+        if(doCellTypeSpecific){
+            results.ctsLinearRegression = new CTSlinearRegression(allSnpData);
+            //The null of the CTS beta binomial is the alternative of the beta binomial.
+            results.ctsBetaBinomial = new CTSBetaBinomialTest(allSnpData, results.ctsLinearRegression, results.betaBinomial);
+        }
+
+        return results;
+    }
+
+
+    public void close(){
+        if(pool != null){
+            pool.shutdown();
+        }
+    }
+
+
+    public static String writeFitStatisticsHeader(){
+        return "chr\tpos\tsnpName\tbetaBinomIterations\tbetaBinomEvaluations\tbetaBinomTimeMs\tCTSbetaBinomIterations\tCTSbetaBinomEvaluations\tCTSbetaBinomTimeMs";
+    }
+
+
+    /**
+     * Holds the tests that were done for a single SNP.
+     */
+    static class SnpTestResults {
+
+        final ArrayList<IndividualSnpData> allSnpData;
+
+        BinomialTest binomial;
+        BetaBinomialTest betaBinomial;
+        CTSlinearRegression ctsLinearRegression = null;
+        CTSBetaBinomialTest ctsBetaBinomial = null;
+
+        SnpTestResults(ArrayList<IndividualSnpData> allSnpData) {
+            this.allSnpData = allSnpData;
+        }
+
+        String writeFitStatistics(){
+
+            IndividualSnpData first = allSnpData.get(0);
+
+            StringBuilder out = new StringBuilder();
+            out.append(first.getChromosome()).append('\t');
+            out.append(first.getPosition()).append('\t');
+            out.append(first.getSnpName()).append('\t');
+
+            out.append(betaBinomial.getIterations()).append('\t');
+            out.append(betaBinomial.getEvaluations()).append('\t');
+            out.append(betaBinomial.getFitTimeNanos() / 1e6d).append('\t');
+
+            if(ctsBetaBinomial != null){
+                out.append(ctsBetaBinomial.getIterations()).append('\t');
+                out.append(ctsBetaBinomial.getEvaluations()).append('\t');
+                out.append(ctsBetaBinomial.getFitTimeNanos() / 1e6d);
+            } else {
+                out.append("NA\tNA\tNA");
+            }
+
+            return out.toString();
+        }
+    }
+
+}
@@ -7,6 +7,7 @@ package nl.systemsgenetics.cellTypeSpecificAlleleSpecificExpression;
 
 import static java.lang.Math.abs;
 import junit.framework.Assert;
+import org.apache.commons.math3.optim.PointValuePair;
 import org.testng.annotations.Test;
 
 /**
@@ -160,4 +161,72 @@ public class LikelihoodFunctionsNGTest {
         Assert.assertEquals( 4100.131682188601, altBinomLogLik );
         
     }
+    
+    @Test
+    public void BetaBinomGradientTest(){
+        
+        //Compare the analytic gradient to central finite differences.
+        double[][] params = { {0.132202148437500, 1.50728797912598, 1.47147178649902},
+                              {0.149169921875000, 3.21029663085938, 2.11465454101563},
+                              {0.170288085937500, 0.5, 4.53212775289600} };
+        int[][] counts = { {3, 1}, {23, 15}, {0, 8} };
+        double h = 1e-6;
+        
+        double[][] hetProbAndError = { {1.0, 0.0}, {0.980198, 0.005} };
+        
+        for(double[] setting : hetProbAndError){
+            GlobalVariables.hetProb  = setting[0];
+            GlobalVariables.seqError = setting[1];
+            
+            for(int i = 0; i < params.length; i++){
+                double sigma = params[i][0];
+                double alpha = params[i][1];
+                double beta  = params[i][2];
+
+                double[] gradient = LikelihoodFunctions.BetaBinomLogLikGradient(sigma, alpha, beta, counts[i][0], counts[i][1]);
+
+                double dAlpha = (LikelihoodFunctions.BetaBinomLogLik(sigma, alpha + h, beta, counts[i][0], counts[i][1]) 
+                               - LikelihoodFunctions.BetaBinomLogLik(sigma, alpha - h, beta, counts[i][0], counts[i][1])) / (2 * h);
+                double dBeta  = (LikelihoodFunctions.BetaBinomLogLik(sigma, alpha, beta + h, counts[i][0], counts[i][1]) 
+                               - LikelihoodFunctions.BetaBinomLogLik(sigma, alpha, beta - h, counts[i][0], counts[i][1])) / (2 * h);
+
+                Assert.assertEquals(abs(gradient[0] - dAlpha) < 1e-5, true);
+                Assert.assertEquals(abs(gradient[1] - dBeta) < 1e-5, true);
+            }
+        }
+        
+        GlobalVariables.hetProb  = 1.0;
+        GlobalVariables.seqError = 0.0;
+        
+    }
+    
+    @Test
+    public void GradientSolutionDomainTest(){
+        
+        Integer[] asRef = {3, 23, 0};
+        Integer[] asAlt = {1, 15, 8};
+        Double[] dispersion = {0.132202148437500, 0.149169921875000, 0.170288085937500};
+        BetaBinomAltLikelihood betaBinomAlt = new BetaBinomAltLikelihood(asRef, asAlt, dispersion);
+        
+        Assert.assertEquals(LikelihoodOptimizer.isValidSolution(betaBinomAlt, new PointValuePair(new double[] {0.6, 0.4}, betaBinomAlt.value(new double[] {0.6, 0.4}))), true);
+        Assert.assertEquals(LikelihoodOptimizer.isValidSolution(betaBinomAlt, new PointValuePair(new double[] {-0.6, -0.4}, betaBinomAlt.value(new double[] {-0.6, -0.4}))), false);
+        Assert.assertEquals(LikelihoodOptimizer.isValidSolution(betaBinomAlt, new PointValuePair(new double[] {Double.NaN, 0.4}, Double.NaN)), false);
+        Assert.assertEquals(LikelihoodOptimizer.isValidSolution(betaBinomAlt, new PointValuePair(new double[] {0.6, 0.4}, Double.NaN)), false);
+        
+    }
+    
+    @Test
+    public void PooledRatioStartTest(){
+        
+        //26 reference and 24 alternative reads, plus the pseudo counts.
+        double[] start = BetaBinomialTest.pooledRatioStart(new Integer[] {3, 23, 0}, new Integer[] {1, 15, 8});
+        Assert.assertEquals(start[0], 26.5 / 51.0, 1e-12);
+        Assert.assertEquals(start[0] + start[1], 1.0, 1e-12);
+        
+        //without reads the start is the null ratio.
+        start = BetaBinomialTest.pooledRatioStart(new Integer[0], new Integer[0]);
+        Assert.assertEquals(start[0], 0.5, 1e-12);
+        
+    }
+    
 }
\ No newline at end of file
@@ -5,6 +5,7 @@
  */
 package nl.systemsgenetics.eqtlannotation;
 
+import gnu.trove.list.array.TIntArrayList;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
@@ -15,6 +16,7 @@ import java.util.LinkedHashMap;
 import java.util.Map.Entry;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import nl.systemsgenetics.eqtlpermutationtranscriptionfactoranalysis.IntervalIndex;
 import org.apache.commons.lang3.StringUtils;
 import umcg.genetica.io.text.TextFile;
 import umcg.genetica.io.trityper.EQTL;
@@ -88,10 +90,11 @@ public class EncodeMultipleTfbsOverlap {
             }
             
             outWriter.writeln(QTLTextFile.header+extraHeaderInfo.toString());
+            LinkedHashMap<String,HashMap<String, IntervalIndex>> peakIndices = indexPeaks(peakData);
             for (EQTL e : qtls) {
 //                System.out.println(e);
                 if(e.getRsName().equals(snpToCheck) || snpToCheck.equals("")){
-                    outWriter.writeln(e.toString() + determineContacts(e, peakData, window));
+                    outWriter.writeln(e.toString() + determineContacts(e, peakData, peakIndices, window));
                 }
             }
             outWriter.close();
@@ -162,8 +165,28 @@ public class EncodeMultipleTfbsOverlap {
         return data;
     }
 
-    private static String determineContacts(EQTL e, HashMap<String,HashMap<String, ArrayList<EncodeNarrowPeak>>> peakData, int window) {
+    private static LinkedHashMap<String,HashMap<String, IntervalIndex>> indexPeaks(LinkedHashMap<String,HashMap<String, ArrayList<EncodeNarrowPeak>>> peakData) {
+        LinkedHashMap<String,HashMap<String, IntervalIndex>> peakIndices = new LinkedHashMap<>();
+        for(Entry<String,HashMap<String, ArrayList<EncodeNarrowPeak>>> tfData : peakData.entrySet()){
+            HashMap<String, IntervalIndex> chrIndices = new HashMap<>();
+            for(Entry<String, ArrayList<EncodeNarrowPeak>> chrData : tfData.getValue().entrySet()){
+                ArrayList<EncodeNarrowPeak> peaks = chrData.getValue();
+                int[] starts = new int[peaks.size()];
+                int[] ends = new int[peaks.size()];
+                for(int i=0; i<peaks.size(); i++){
+                    starts[i] = peaks.get(i).getChromStart();
+                    ends[i] = peaks.get(i).getChromEnd();
+                }
+                chrIndices.put(chrData.getKey(), new IntervalIndex(starts, ends));
+            }
+            peakIndices.put(tfData.getKey(), chrIndices);
+        }
+        return peakIndices;
+    }
+
+    private static String determineContacts(EQTL e, HashMap<String,HashMap<String, ArrayList<EncodeNarrowPeak>>> peakData, HashMap<String,HashMap<String, IntervalIndex>> peakIndices, int window) {
         StringBuilder returnableContacts = new StringBuilder();
+        TIntArrayList overlapping = new TIntArrayList();
         
         for(Entry<String,HashMap<String, ArrayList<EncodeNarrowPeak>>> tfData : peakData.entrySet()){
             returnableContacts.append('\t');
@@ -171,16 +194,13 @@ public class EncodeMultipleTfbsOverlap {
             ArrayList<String> location = new ArrayList<>();
             if(tfData.getValue().containsKey("chr"+e.getProbeChr())){
                 ArrayList<EncodeNarrowPeak> relevantData = tfData.getValue().get("chr"+e.getProbeChr());
-                if(!relevantData.isEmpty()){
-                    for(EncodeNarrowPeak peak : relevantData){
-            //            System.out.println(peak.getChromStart()+" "+peak.getChromEnd()+" "+e.getProbeChrPos());
-                        if((peak.getChromEnd()+window)>= e.getProbeChrPos() && (peak.getChromStart()-window)<= (e.getProbeChrPos())){
-                            name.add(peak.getName());
-                            location.add(peak.getChrom()+"-"+peak.getChromStart()+"-"+peak.getChromEnd());
-                        } else if((peak.getChromEnd()+window)> e.getProbeChrPos() && (peak.getChromStart()-window)> e.getProbeChrPos()){
-                            break;
-                        }
-                    }
+                //Peaks are sorted, so the overlaps come in the same order as a scan over the peaks.
+                overlapping.resetQuick();
+                peakIndices.get(tfData.getKey()).get("chr"+e.getProbeChr()).getOverlapping(e.getProbeChrPos() - window, e.getProbeChrPos() + window, overlapping);
+                for(int i=0; i<overlapping.size(); i++){
+                    EncodeNarrowPeak peak = relevantData.get(overlapping.getQuick(i));
+                    name.add(peak.getName());
+                    location.add(peak.getChrom()+"-"+peak.getChromStart()+"-"+peak.getChromEnd());
                 }
                 if(!name.isEmpty()){
                     StringBuilder allNames = new StringBuilder(name.get(0));
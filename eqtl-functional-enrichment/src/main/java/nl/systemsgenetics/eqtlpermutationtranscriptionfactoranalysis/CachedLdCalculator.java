@@ -0,0 +1,142 @@
+package nl.systemsgenetics.eqtlpermutationtranscriptionfactoranalysis;
+
+import gnu.trove.map.hash.TIntObjectHashMap;
+import gnu.trove.map.hash.TLongDoubleHashMap;
+import java.util.HashMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import org.molgenis.genotype.RandomAccessGenotypeData;
+import org.molgenis.genotype.util.LdCalculatorException;
+import org.molgenis.genotype.variant.GeneticVariant;
+
+/**
+ * Looks up variants by position and calculates the r2 between two variants
+ * of the same chromosome only once. The r2 is stored in a primitive map per
+ * chromosome with the two positions packed in a long, the same eQTL pairs
+ * come back in every permutation round.
+ *
+ * The pair is stored in the order it is requested, r2 is calculated as
+ * first.calculateLd(second) like before.
+ *
+ * Can be used from multiple threads. The genotype data is only accessed by
+ * one thread at a time, but the lock of the cached variants and r2 values is
+ * not held while a variant is loaded or an r2 is calculated, so lookups of
+ * known variants and pairs never wait for the genotype data. Two
+ * threads can calculate the same new pair, the first stored value is kept.
+ */
+public class CachedLdCalculator {
+	private static final double NO_ENTRY = -1;
+
+	private final RandomAccessGenotypeData genotypeData;
+	private final HashMap<String, TIntObjectHashMap<GeneticVariant>> variants = new HashMap<String, TIntObjectHashMap<GeneticVariant>>();
+	private final HashMap<String, TLongDoubleHashMap> r2Values = new HashMap<String, TLongDoubleHashMap>();
+	private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+	private final Object genotypeLock = new Object();
+
+
+	public CachedLdCalculator(RandomAccessGenotypeData genotypeData){
+		this.genotypeData = genotypeData;
+	}
+
+
+	/**
+	 * @return true if there is a SNP at this position in the genotype data
+	 */
+	public boolean containsVariant(String chr, int pos){
+		lock.readLock().lock();
+		try{
+			TIntObjectHashMap<GeneticVariant> chrVariants = variants.get(chr);
+			if(chrVariants != null && chrVariants.containsKey(pos)){
+				return chrVariants.get(pos) != null;
+			}
+		}
+		finally{
+			lock.readLock().unlock();
+		}
+
+		synchronized(genotypeLock){
+			return getVariant(chr, pos) != null;
+		}
+	}
+
+
+	/**
+	 * @return r2 between the SNPs at both positions or NaN if one of them is
+	 * missing or not biallelic
+	 * @throws LdCalculatorException
+	 */
+	public double getR2(String chr, int pos1, int pos2) throws LdCalculatorException{
+		long key = ((long) pos1 << 32) | (pos2 & 0xffffffffL);
+
+		lock.readLock().lock();
+		try{
+			TLongDoubleHashMap chrR2Values = r2Values.get(chr);
+			if(chrR2Values != null){
+				double r2 = chrR2Values.get(key);
+				if(r2 != NO_ENTRY){
+					return r2;
+				}
+			}
+		}
+		finally{
+			lock.readLock().unlock();
+		}
+
+		double r2;
+		synchronized(genotypeLock){
+			r2 = calculateR2(getVariant(chr, pos1), getVariant(chr, pos2));
+		}
+
+		lock.writeLock().lock();
+		try{
+			TLongDoubleHashMap chrR2Values = r2Values.get(chr);
+			if(chrR2Values == null){
+				chrR2Values = new TLongDoubleHashMap(1000, 0.5f, Long.MIN_VALUE, NO_ENTRY);
+				r2Values.put(chr, chrR2Values);
+			}
+			double storedR2 = chrR2Values.get(key);
+			if(storedR2 != NO_ENTRY){
+				return storedR2;
+			}
+			chrR2Values.put(key, r2);
+			return r2;
+		}
+		finally{
+			lock.writeLock().unlock();
+		}
+	}
+
+
+	/**
+	 * Must hold the genotype lock. Only threads holding the genotype lock
+	 * change the variants, the write lock is only taken for the readers in
+	 * containsVariant.
+	 */
+	private GeneticVariant getVariant(String chr, int pos){
+		TIntObjectHashMap<GeneticVariant> chrVariants = variants.get(chr);
+		if(chrVariants != null && chrVariants.containsKey(pos)){
+			return chrVariants.get(pos);
+		}
+		GeneticVariant variant = genotypeData.getSnpVariantByPos(chr, pos);
+
+		lock.writeLock().lock();
+		try{
+			if(chrVariants == null){
+				chrVariants = new TIntObjectHashMap<GeneticVariant>();
+				variants.put(chr, chrVariants);
+			}
+			chrVariants.put(pos, variant);
+		}
+		finally{
+			lock.writeLock().unlock();
+		}
+		return variant;
+	}
+
+
+	private static double calculateR2(GeneticVariant variant1, GeneticVariant variant2) throws LdCalculatorException{
+		if(variant1 == null || variant2 == null || !variant1.isBiallelic() || !variant2.isBiallelic()){
+			return Double.NaN;
+		}
+		return variant1.calculateLd(variant2).getR2();
+	}
+}
@@ -15,12 +15,10 @@ import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.Set;
-import java.util.TreeMap;
 import java.util.regex.Pattern;
 import org.molgenis.genotype.RandomAccessGenotypeData;
 import org.molgenis.genotype.sampleFilter.SampleIncludedFilter;
 import org.molgenis.genotype.trityper.TriTyperGenotypeData;
-import org.molgenis.genotype.util.Ld;
 import org.molgenis.genotype.util.LdCalculatorException;
 import org.molgenis.genotype.variant.GeneticVariant;
 import org.molgenis.genotype.variantFilter.VariantIdIncludeFilter;
@@ -38,7 +36,7 @@ import umcg.genetica.math.stats.ZScores;
 public class EQtlPermutationTranscriptionFactorAnalysis {
 	private static final Pattern TAB_PATTERN = Pattern.compile("\t");
 	
-	public static void main(String[] args)throws IOException{
+	public static void main(String[] args)throws IOException, LdCalculatorException{
 		/*
 		 * args[0]: Type of analysis
 		 *			- tf: Transcription Factor Enrichment
@@ -173,7 +171,8 @@ public class EQtlPermutationTranscriptionFactorAnalysis {
 				regulomeDbFiles.add(new RegulomeDbFile(new File(RegulomeDbLocation + "RegulomeDB.dbSNP132.b36.Category3.txt")));
 				regulomeDbFiles.add(new RegulomeDbFile(new File(RegulomeDbLocation + "RegulomeDB.dbSNP132.b36.Category4.txt")));
 				regulomeDbFiles.add(new RegulomeDbFile(new File(RegulomeDbLocation + "RegulomeDB.dbSNP132.b36.Category5.txt")));
-				HashMap<String, TreeMap<Integer, String[]>> regulomeDbData = edr.readRegulomeDbData(regulomeDbFiles);
+				TranscriptionFactorPositionIndex regulomeDbData = TranscriptionFactorPositionIndex.readRegulomeDb(regulomeDbFiles);
+				TranscriptionFactorCountEngine countEngine = new TranscriptionFactorCountEngine(new CachedLdCalculator(genotypeMatrixData), regulomeDbData, r2Cutoff);
 				
 				//Filter on Shared Probes
 				EQtlPermutationTranscriptionFactorAnalysis eqptfa = new EQtlPermutationTranscriptionFactorAnalysis();
@@ -186,22 +185,16 @@ public class EQtlPermutationTranscriptionFactorAnalysis {
 				HashMap<String, HashSet<Integer>> nonTopEqtlEffects = eqdp.getNonTopEffects(eqtls, topEqtlEffects);
 				
 				
-				HashMap<String, Integer> eQtlCounts = new HashMap<String, Integer>();
-				eqptfa.getTranscriptionFactorCounts(topEqtlEffects, nonTopEqtlEffects, eQtlCounts, genotypeMatrixData, regulomeDbData, r2Cutoff);
+				int[] eQtlCounts = countEngine.createCounts();
+				countEngine.countTranscriptionFactors(topEqtlEffects, nonTopEqtlEffects, eQtlCounts);
 
 
 				//STEP 6.: PERFORM ANALYSIS FOR PERMUTATION DATA.
-				HashMap<String, Integer> permutationCounts = new HashMap<String, Integer>();
+				ArrayList<String> permutationFiles = new ArrayList<String>();
 				for(int n=1;n<=100;n++){
-					EQTL[] permutationData;
-					HashMap<String, EQTL> topPermutationEffects;
-					HashMap<String, HashSet<Integer>> nonTopPermutationEffects;
-
-					permutationData = eqdp.readEQtlData(permutationLocation + "PermutedEQTLsPermutationRound" + n + ".txt.gz");
-					topPermutationEffects = eqdp.getTopEffects(permutationData, sharedProbes);
-					nonTopPermutationEffects = eqdp.getNonTopEffects(permutationData, topPermutationEffects);
-					eqptfa.getTranscriptionFactorCounts(topPermutationEffects, nonTopPermutationEffects, permutationCounts, genotypeMatrixData, regulomeDbData, r2Cutoff);
+					permutationFiles.add(permutationLocation + "PermutedEQTLsPermutationRound" + n + ".txt.gz");
 				}
+				int[] permutationCounts = countEngine.countPermutations(permutationFiles, sharedProbes, Runtime.getRuntime().availableProcessors());
 				
 				
 				
@@ -224,7 +217,7 @@ public class EQtlPermutationTranscriptionFactorAnalysis {
 					nonTopIterationEffects = eqdp.getNonTopEffects(iterationEQTLs, topIterationEffects);
 					
 					//3. Perform analysis for real iteration eQTLs.
-					eqptfa.getTranscriptionFactorCounts(topIterationEffects, nonTopIterationEffects, eQtlCounts, genotypeMatrixData, regulomeDbData, r2Cutoff);
+					countEngine.countTranscriptionFactors(topIterationEffects, nonTopIterationEffects, eQtlCounts);
 					
 					//4.Perform the analysis for the permutation data.
 					for(int o=1;o<=100;o++){
@@ -235,11 +228,11 @@ public class EQtlPermutationTranscriptionFactorAnalysis {
 						permutationData = eqptfa.readPermutationData("/target/gpfs2/gcc/groups/gcc/projects/eQTLMapping_Matthieu/RegressOut_Old/Iteration" + n + "/PermutedEQTLsPermutationRound" + o + ".txt.gz", genotypeVariantIdMap);
 						topIterationPermutationEffects = eqdp.getTopEffects(permutationData, sharedProbes);
 						nonTopIterationPermutationEffects = eqdp.getNonTopEffects(permutationData, topIterationPermutationEffects);
-						eqptfa.getTranscriptionFactorCounts(topIterationPermutationEffects, nonTopIterationPermutationEffects, permutationCounts, genotypeMatrixData, regulomeDbData, r2Cutoff);
+						countEngine.countTranscriptionFactors(topIterationPermutationEffects, nonTopIterationPermutationEffects, permutationCounts);
 					}	
 				}
 				
-				eqptfa.getFisherPvalues(eQtlCounts, permutationCounts, outputFileLocation);
+				eqptfa.getFisherPvalues(countEngine.toCountsMap(eQtlCounts), countEngine.toCountsMap(permutationCounts), outputFileLocation);
 			}
 			
 			else{
@@ -333,84 +326,6 @@ public class EQtlPermutationTranscriptionFactorAnalysis {
 	
 	
 	
-	public void getTranscriptionFactorCounts(HashMap<String, EQTL> topEffectData, HashMap<String, HashSet<Integer>> nonTopEffectData, HashMap<String, Integer> countsMap,
-			RandomAccessGenotypeData genotypeData, HashMap<String, TreeMap<Integer, String[]>> regulomeDbData, double r2CutOff){
-		Ld ld = null;
-		Iterator<Map.Entry<String, EQTL>> topEffectIterator = topEffectData.entrySet().iterator();
-		while(topEffectIterator.hasNext()){
-			Map.Entry<String, EQTL> topEffectDataEntry = (Map.Entry) topEffectIterator.next();
-			EQTL eqtl = topEffectDataEntry.getValue();
-			
-			//FETCH THE EQTL FROM GENOTYPE DATA.
-			String rsChr = eqtl.getRsChr().toString();
-			int rsChrPos = eqtl.getRsChrPos();
-			String rsProbe = eqtl.getProbe();
-			GeneticVariant eQtlVariant = genotypeData.getSnpVariantByPos(rsChr.toString(), rsChrPos);
-			
-			
-			if(eQtlVariant != null){
-				HashSet<Integer> nonTopEffectsPos = nonTopEffectData.get(rsProbe);
-				
-				if(nonTopEffectsPos != null){
-					for(int eqtlPos : nonTopEffectsPos){
-						GeneticVariant snpVariantByPos = genotypeData.getSnpVariantByPos(rsChr, eqtlPos);
-
-						if(snpVariantByPos != null){
-							if(eQtlVariant.isBiallelic() && snpVariantByPos.isBiallelic()){
-								try {
-									ld = eQtlVariant.calculateLd(snpVariantByPos);
-								} catch (LdCalculatorException ex) {
-									System.out.println("Error in LD calculation: " + ex.getMessage());
-									System.exit(1);
-								}
-
-								if(ld.getR2() >= r2CutOff){
-									//SEARCH THROUGH REGULOMEDB
-									if(regulomeDbData.containsKey(rsChr)){
-										TreeMap<Integer, String[]> regulomeChromosomeEntries = regulomeDbData.get(rsChr);
-										
-										if(regulomeChromosomeEntries.containsKey(eqtlPos)){
-											String[] transcriptionFactors = regulomeChromosomeEntries.get(eqtlPos);
-											for(String tf : transcriptionFactors){
-												if(countsMap.containsKey(tf)){
-													countsMap.put(tf, countsMap.get(tf)+1);
-												}
-												else{
-													countsMap.put(tf, 1);
-												}
-											}
-										}
-									}
-
-								}
-							}
-						}
-					}
-				}
-				
-				//CODE TO SEARCH FOR THE TOP EFFECT.
-				if(regulomeDbData.containsKey(rsChr)){
-					TreeMap<Integer, String[]> regulomeChromosomeEntries = regulomeDbData.get(rsChr);
-
-					if(regulomeChromosomeEntries.containsKey(rsChrPos)){
-						String[] transcriptionFactors = regulomeChromosomeEntries.get(rsChrPos);
-						for(String tf : transcriptionFactors){
-							if(countsMap.containsKey(tf)){
-								countsMap.put(tf, countsMap.get(tf)+1);
-							}
-							else{
-								countsMap.put(tf, 1);
-							}
-						}
-					}
-				}
-				
-			}
-		}
-	}
-	
-	
-	
 	/*
 	 * =========================================================================
 	 * = START: FISHER EXACT TEST CODE.
@@ -14,23 +14,16 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
-import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
-import java.util.TreeMap;
 import java.util.regex.Pattern;
 import org.molgenis.genotype.RandomAccessGenotypeData;
 import org.molgenis.genotype.sampleFilter.SampleIncludedFilter;
 import org.molgenis.genotype.trityper.TriTyperGenotypeData;
-import org.molgenis.genotype.util.Ld;
 import org.molgenis.genotype.util.LdCalculatorException;
-import org.molgenis.genotype.variant.GeneticVariant;
 import org.molgenis.genotype.variantFilter.VariantIdIncludeFilter;
-import umcg.genetica.io.regulomedb.RegulomeDbEntry;
 import umcg.genetica.io.regulomedb.RegulomeDbFile;
-import umcg.genetica.io.regulomedb.RegulomeDbFiles;
-import umcg.genetica.io.regulomedb.RegulomeDbSupportingData;
 import umcg.genetica.io.text.TextFile;
 import umcg.genetica.io.trityper.EQTL;
 import umcg.genetica.io.trityper.QTLTextFile;
@@ -68,7 +61,7 @@ public class EQtlPermutationTranscriptionFactorAnalysisV3 {
 		regulomeDbFiles.add(new RegulomeDbFile(new File(regulomeDbLocation + "RegulomeDB.dbSNP132.b36.Category3.txt")));
 		regulomeDbFiles.add(new RegulomeDbFile(new File(regulomeDbLocation + "RegulomeDB.dbSNP132.b36.Category4.txt")));
 		regulomeDbFiles.add(new RegulomeDbFile(new File(regulomeDbLocation + "RegulomeDB.dbSNP132.b36.Category5.txt")));
-		HashMap<String, TreeMap<Integer, String[]>> regulomeDbData = readRegulomeDbData(regulomeDbFiles);
+		TranscriptionFactorPositionIndex regulomeDbData = TranscriptionFactorPositionIndex.readRegulomeDb(regulomeDbFiles);
 		
 		
 		//STEP 2.: GET A LIST OF PROBES SHARED BY ALL DATASETS.
@@ -87,22 +80,26 @@ public class EQtlPermutationTranscriptionFactorAnalysisV3 {
 		
 		
 		//STEP 5.: PERFORM ANALYSIS FOR EQTL DATA.
-		HashMap<String, Integer> eQtlCounts = new HashMap<String, Integer>();
-		getTranscriptionFactorCounts(topEqtlEffects, nonTopEqtlEffects, eQtlCounts, genotypeMatrixData, regulomeDbData, r2Cutoff);
-		
-		
-		//STEP 6.: PERFORM ANALYSIS FOR PERMUTATION DATA.
-		HashMap<String, Integer> permutationCounts = new HashMap<String, Integer>();
-		for(int n=1;n<=100;n++){
-			EQTL[] permutationData;
-			HashMap<String, EQTL> topPermutationEffects;
-			HashMap<String, HashSet<Integer>> nonTopPermutationEffects;
+		TranscriptionFactorCountEngine countEngine = new TranscriptionFactorCountEngine(new CachedLdCalculator(genotypeMatrixData), regulomeDbData, r2Cutoff);
+		int[] eQtlTfCounts = countEngine.createCounts();
+		int[] permutationTfCounts;
+		try {
+			countEngine.countTranscriptionFactors(topEqtlEffects, nonTopEqtlEffects, eQtlTfCounts);
 			
-			permutationData = readEQtlData(permutationFile + "PermutedEQTLsPermutationRound" + n + ".txt.gz");
-			topPermutationEffects = getTopEffects(permutationData, sharedProbes);
-			nonTopPermutationEffects = getNonTopEffects(permutationData, topPermutationEffects);
-			getTranscriptionFactorCounts(topPermutationEffects, nonTopPermutationEffects, permutationCounts, genotypeMatrixData, regulomeDbData, r2Cutoff);
+			
+			//STEP 6.: PERFORM ANALYSIS FOR PERMUTATION DATA.
+			ArrayList<String> permutationFiles = new ArrayList<String>();
+			for(int n=1;n<=100;n++){
+				permutationFiles.add(permutationFile + "PermutedEQTLsPermutationRound" + n + ".txt.gz");
+			}
+			permutationTfCounts = countEngine.countPermutations(permutationFiles, sharedProbes, Runtime.getRuntime().availableProcessors());
+		} catch (LdCalculatorException ex) {
+			System.out.println("Error in LD calculation: " + ex.getMessage());
+			System.exit(1);
+			return;
 		}
+		HashMap<String, Integer> eQtlCounts = countEngine.toCountsMap(eQtlTfCounts);
+		HashMap<String, Integer> permutationCounts = countEngine.toCountsMap(permutationTfCounts);
 		
 		
 		//STEP 7.: PERFORM THE FISHER EXACT TEST.
@@ -110,70 +107,6 @@ public class EQtlPermutationTranscriptionFactorAnalysisV3 {
 	}
 	
 	
-	/*
-	 * =========================================================================
-	 * = START: REGULOMEDB READING CODE.
-	 * =========================================================================
-	 */
-	public HashMap<String, TreeMap<Integer, String[]>> readRegulomeDbData(ArrayList<RegulomeDbFile> regulomeDbFiles){
-		HashMap<String, TreeMap<Integer, String[]>> regulomeDbData = new HashMap<String, TreeMap<Integer, String[]>>();
-		TreeMap<Integer, String[]> tmp;
-		
-		RegulomeDbFiles regulomeDbFilesData = new RegulomeDbFiles(regulomeDbFiles);
-		Iterator<RegulomeDbEntry> regulomeDbDataIterator = regulomeDbFilesData.iterator();
-		int n = 0;
-		
-		while(regulomeDbDataIterator.hasNext()){
-			RegulomeDbEntry rdbe = regulomeDbDataIterator.next();
-			String rdbeChr = rdbe.getChr();
-			int rdbePos = rdbe.getChrPos();
-			String[] transcriptionFactors = getTranscriptionFactors(rdbe);
-			
-			if(transcriptionFactors.length > 0){
-				if(regulomeDbData.containsKey(rdbeChr)){
-					tmp = regulomeDbData.get(rdbeChr);
-					tmp.put(rdbePos, transcriptionFactors);
-				}
-				else{
-					tmp = new TreeMap<Integer, String[]>();
-					tmp.put(rdbePos, transcriptionFactors);
-					regulomeDbData.put(rdbeChr, tmp);
-				}
-				n++;
-			}
-		}
-		return regulomeDbData;
-	}
-	
-	
-	public String[] getTranscriptionFactors(RegulomeDbEntry rdbe){
-		Map<String, List<RegulomeDbSupportingData>> supportData = rdbe.getSupportData();
-		ArrayList<String> tfs = new ArrayList<String>();
-		
-		Iterator it = supportData.entrySet().iterator();
-		while(it.hasNext()){
-			Map.Entry pairs = (Map.Entry) it.next();
-
-			List<RegulomeDbSupportingData> aap = (List<RegulomeDbSupportingData>) pairs.getValue();
-			for(RegulomeDbSupportingData rdbsd : aap){
-
-				//Check if the annotation is protein_binding.
-				if(rdbsd.getSupportClass().equalsIgnoreCase("Protein_Binding")){
-					tfs.add(rdbsd.getSupportValue());
-				}
-			}
-		}
-		return tfs.toArray( new String[tfs.size()] );
-	}
-	/*
-	 * =========================================================================
-	 * = END: REGULOMEDB READING CODE.
-	 * =========================================================================
-	 */
-	
-	
-	
-	
 	/*
 	 * =========================================================================
 	 * = START: EQTL PROCESSING METHODS.
@@ -268,96 +201,6 @@ public class EQtlPermutationTranscriptionFactorAnalysisV3 {
 	}
 	
 	
-	/*
-	 * =========================================================================
-	 * = START: TRANSCRIPTION FACTOR COUNTS CODE.
-	 * =========================================================================
-	 */
-	public void getTranscriptionFactorCounts(HashMap<String, EQTL> topEffectData, HashMap<String, HashSet<Integer>> nonTopEffectData, HashMap<String, Integer> countsMap,
-			RandomAccessGenotypeData genotypeData, HashMap<String, TreeMap<Integer, String[]>> regulomeDbData, double r2CutOff){
-		Ld ld = null;
-		Iterator<Map.Entry<String, EQTL>> topEffectIterator = topEffectData.entrySet().iterator();
-		while(topEffectIterator.hasNext()){
-			Map.Entry<String, EQTL> topEffectDataEntry = (Map.Entry) topEffectIterator.next();
-			EQTL eqtl = topEffectDataEntry.getValue();
-			
-			//FETCH THE EQTL FROM GENOTYPE DATA.
-			String rsChr = eqtl.getRsChr().toString();
-			int rsChrPos = eqtl.getRsChrPos();
-			String rsProbe = eqtl.getProbe();
-			GeneticVariant eQtlVariant = genotypeData.getSnpVariantByPos(rsChr.toString(), rsChrPos);
-			
-			
-			if(eQtlVariant != null){
-				HashSet<Integer> nonTopEffectsPos = nonTopEffectData.get(rsProbe);
-				
-				if(nonTopEffectsPos != null){
-					for(int eqtlPos : nonTopEffectsPos){
-						GeneticVariant snpVariantByPos = genotypeData.getSnpVariantByPos(rsChr, eqtlPos);
-
-						if(snpVariantByPos != null){
-							if(eQtlVariant.isBiallelic() && snpVariantByPos.isBiallelic()){
-								try {
-									ld = eQtlVariant.calculateLd(snpVariantByPos);
-								} catch (LdCalculatorException ex) {
-									System.out.println("Error in LD calculation: " + ex.getMessage());
-									System.exit(1);
-								}
-
-								if(ld.getR2() >= r2CutOff){
-									//SEARCH THROUGH REGULOMEDB
-									if(regulomeDbData.containsKey(rsChr)){
-										TreeMap<Integer, String[]> regulomeChromosomeEntries = regulomeDbData.get(rsChr);
-										
-										if(regulomeChromosomeEntries.containsKey(eqtlPos)){
-											String[] transcriptionFactors = regulomeChromosomeEntries.get(eqtlPos);
-											for(String tf : transcriptionFactors){
-												if(countsMap.containsKey(tf)){
-													countsMap.put(tf, countsMap.get(tf)+1);
-												}
-												else{
-													countsMap.put(tf, 1);
-												}
-											}
-										}
-									}
-
-								}
-							}
-						}
-					}
-				}
-				
-				//CODE TO SEARCH FOR THE TOP EFFECT.
-				if(regulomeDbData.containsKey(rsChr)){
-					TreeMap<Integer, String[]> regulomeChromosomeEntries = regulomeDbData.get(rsChr);
-
-					if(regulomeChromosomeEntries.containsKey(rsChrPos)){
-						String[] transcriptionFactors = regulomeChromosomeEntries.get(rsChrPos);
-						for(String tf : transcriptionFactors){
-							if(countsMap.containsKey(tf)){
-								countsMap.put(tf, countsMap.get(tf)+1);
-							}
-							else{
-								countsMap.put(tf, 1);
-							}
-						}
-					}
-				}
-				
-			}
-		}
-	}
-	/*
-	 * =========================================================================
-	 * = END: TRANSCRIPTION FACTOR COUNTS CODE.
-	 * =========================================================================
-	 */
-	
-	
-	
-	
-	
 	/*
 	 * =========================================================================
 	 * = START: FISHER EXACT TEST CODE.
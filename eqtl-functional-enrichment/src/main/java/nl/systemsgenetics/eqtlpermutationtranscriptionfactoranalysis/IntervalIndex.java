@@ -0,0 +1,142 @@
+package nl.systemsgenetics.eqtlpermutationtranscriptionfactoranalysis;
+
+import gnu.trove.list.array.TIntArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Intervals of one chromosome in primitive arrays sorted on start position.
+ * For every interval the largest end position up to that interval is stored,
+ * so an overlap query is a binary search on the start positions for the last
+ * interval that can overlap and a binary search on the non decreasing maximum
+ * ends for the first interval that can reach the query.
+ *
+ * Queries return the indices of the intervals in the arrays used to create
+ * the index, ordered on start position. Intervals with the same start keep
+ * their original order.
+ */
+public class IntervalIndex {
+	private final int[] starts;
+	private final int[] ends;
+	private final int[] maxEnds;
+	private final int[] originalIndices;
+
+	/**
+	 * @param intervalStarts start position of the intervals (inclusive)
+	 * @param intervalEnds end position of the intervals (inclusive)
+	 */
+	public IntervalIndex(final int[] intervalStarts, int[] intervalEnds){
+		if(intervalStarts.length != intervalEnds.length){
+			throw new IllegalArgumentException("Number of start and end positions differs");
+		}
+		int n = intervalStarts.length;
+
+		Integer[] order = new Integer[n];
+		for(int i=0;i<n;i++){
+			order[i] = i;
+		}
+		//Object sort is stable, equal starts stay in input order.
+		Arrays.sort(order, new Comparator<Integer>(){
+			@Override
+			public int compare(Integer o1, Integer o2){
+				int s1 = intervalStarts[o1];
+				int s2 = intervalStarts[o2];
+				return s1 < s2 ? -1 : (s1 == s2 ? 0 : 1);
+			}
+		});
+
+		this.starts = new int[n];
+		this.ends = new int[n];
+		this.maxEnds = new int[n];
+		this.originalIndices = new int[n];
+		int maxEnd = Integer.MIN_VALUE;
+		for(int i=0;i<n;i++){
+			int original = order[i];
+			starts[i] = intervalStarts[original];
+			ends[i] = intervalEnds[original];
+			originalIndices[i] = original;
+			maxEnd = Math.max(maxEnd, ends[i]);
+			maxEnds[i] = maxEnd;
+		}
+	}
+
+
+	public int size(){
+		return starts.length;
+	}
+
+
+	/**
+	 * Adds the indices of all intervals with start <= to and end >= from.
+	 *
+	 * @param from first position of the query (inclusive)
+	 * @param to last position of the query (inclusive)
+	 * @param overlapping list the original interval indices are added to
+	 * @return number of overlapping intervals
+	 */
+	public int getOverlapping(int from, int to, TIntArrayList overlapping){
+		int last = lastStartAtOrBefore(to);
+		int first = firstMaxEndAtOrAfter(from);
+
+		int found = 0;
+		for(int i=first;i<=last;i++){
+			if(ends[i] >= from){
+				overlapping.add(originalIndices[i]);
+				found++;
+			}
+		}
+		return found;
+	}
+
+
+	/**
+	 * @param from first position of the query (inclusive)
+	 * @param to last position of the query (inclusive)
+	 * @return true if at least one interval overlaps the query
+	 */
+	public boolean overlaps(int from, int to){
+		int first = firstMaxEndAtOrAfter(from);
+		for(int i=lastStartAtOrBefore(to);i>=first;i--){
+			if(ends[i] >= from){
+				return true;
+			}
+		}
+		return false;
+	}
+
+
+	private int lastStartAtOrBefore(int position){
+		int low = 0;
+		int high = starts.length;
+		while(low < high){
+			int mid = (low + high) >>> 1;
+			if(starts[mid] <= position){
+				low = mid + 1;
+			}
+			else{
+				high = mid;
+			}
+		}
+		return low - 1;
+	}
+
+
+	/**
+	 * @return index of the first interval with a maximum end &gt;= position or
+	 * the number of intervals if there is none
+	 */
+	private int firstMaxEndAtOrAfter(int position){
+		int low = 0;
+		int high = maxEnds.length;
+		while(low < high){
+			int mid = (low + high) >>> 1;
+			if(maxEnds[mid] < position){
+				low = mid + 1;
+			}
+			else{
+				high = mid;
+			}
+		}
+		return low;
+	}
+}
@@ -0,0 +1,149 @@
+package nl.systemsgenetics.eqtlpermutationtranscriptionfactoranalysis;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.molgenis.genotype.util.LdCalculatorException;
+import umcg.genetica.io.trityper.EQTL;
+
+/**
+ * Counts the transcription factors bound at the top eQTL SNPs and at the
+ * other eQTL SNPs of the same probe that are in LD with the top SNP. The LD
+ * calculations are cached over the real and all permutation rounds, the
+ * counts are kept in int arrays indexed by transcription factor id.
+ */
+public class TranscriptionFactorCountEngine {
+	private final CachedLdCalculator ldCalculator;
+	private final TranscriptionFactorPositionIndex transcriptionFactorIndex;
+	private final double r2Cutoff;
+
+
+	public TranscriptionFactorCountEngine(CachedLdCalculator ldCalculator, TranscriptionFactorPositionIndex transcriptionFactorIndex, double r2Cutoff){
+		this.ldCalculator = ldCalculator;
+		this.transcriptionFactorIndex = transcriptionFactorIndex;
+		this.r2Cutoff = r2Cutoff;
+	}
+
+
+	public int[] createCounts(){
+		return new int[transcriptionFactorIndex.getTranscriptionFactorCount()];
+	}
+
+
+	/**
+	 * Adds the transcription factor hits of these eQTLs to counts. Only the
+	 * probes with a top effect SNP in the genotype data are used.
+	 */
+	public void countTranscriptionFactors(HashMap<String, EQTL> topEffectData, HashMap<String, HashSet<Integer>> nonTopEffectData, int[] counts) throws LdCalculatorException{
+		for(EQTL eqtl : topEffectData.values()){
+			String rsChr = eqtl.getRsChr().toString();
+			int rsChrPos = eqtl.getRsChrPos();
+
+			if(ldCalculator.containsVariant(rsChr, rsChrPos)){
+				HashSet<Integer> nonTopEffectsPos = nonTopEffectData.get(eqtl.getProbe());
+
+				if(nonTopEffectsPos != null){
+					for(int eqtlPos : nonTopEffectsPos){
+						//NaN if a SNP is missing or not biallelic, never above the cutoff.
+						if(ldCalculator.getR2(rsChr, rsChrPos, eqtlPos) >= r2Cutoff){
+							transcriptionFactorIndex.count(rsChr, eqtlPos, counts);
+						}
+					}
+				}
+
+				transcriptionFactorIndex.count(rsChr, rsChrPos, counts);
+			}
+		}
+	}
+
+
+	/**
+	 * Reads and counts the permutation files on multiple threads. Every thread
+	 * counts in its own array, these are summed at the end.
+	 *
+	 * @param permutationFiles eQTL files of the permutation rounds
+	 * @param sharedProbes only top effects of these probes are used
+	 * @param nrThreads
+	 * @return summed counts of all permutation files
+	 */
+	public int[] countPermutations(List<String> permutationFiles, final HashSet<String> sharedProbes, int nrThreads) throws IOException, LdCalculatorException{
+		final List<int[]> threadCounts = Collections.synchronizedList(new ArrayList<int[]>());
+		final ThreadLocal<int[]> counts = new ThreadLocal<int[]>(){
+			@Override
+			protected int[] initialValue(){
+				int[] newCounts = createCounts();
+				threadCounts.add(newCounts);
+				return newCounts;
+			}
+		};
+
+		ExecutorService threadPool = Executors.newFixedThreadPool(nrThreads);
+		try{
+			List<Future<Void>> rounds = new ArrayList<Future<Void>>();
+			for(final String permutationFile : permutationFiles){
+				rounds.add(threadPool.submit(new Callable<Void>(){
+					@Override
+					public Void call() throws IOException, LdCalculatorException{
+						eQtlDataParser eqdp = new eQtlDataParser();
+						EQTL[] permutationData = eqdp.readEQtlData(permutationFile);
+						HashMap<String, EQTL> topPermutationEffects = eqdp.getTopEffects(permutationData, sharedProbes);
+						HashMap<String, HashSet<Integer>> nonTopPermutationEffects = eqdp.getNonTopEffects(permutationData, topPermutationEffects);
+						countTranscriptionFactors(topPermutationEffects, nonTopPermutationEffects, counts.get());
+						return null;
+					}
+				}));
+			}
+			for(Future<Void> round : rounds){
+				round.get();
+			}
+		}
+		catch(InterruptedException ex){
+			throw new RuntimeException(ex);
+		}
+		catch(ExecutionException ex){
+			if(ex.getCause() instanceof IOException){
+				throw (IOException) ex.getCause();
+			}
+			if(ex.getCause() instanceof LdCalculatorException){
+				throw (LdCalculatorException) ex.getCause();
+			}
+			throw new RuntimeException(ex.getCause());
+		}
+		finally{
+			threadPool.shutdown();
+		}
+
+		int[] permutationCounts = createCounts();
+		synchronized(threadCounts){
+			for(int[] threadCount : threadCounts){
+				for(int i=0;i<permutationCounts.length;i++){
+					permutationCounts[i] += threadCount[i];
+				}
+			}
+		}
+		return permutationCounts;
+	}
+
+
+	/**
+	 * @return counts per transcription factor name, only transcription factors
+	 * with at least one hit
+	 */
+	public HashMap<String, Integer> toCountsMap(int[] counts){
+		HashMap<String, Integer> countsMap = new HashMap<String, Integer>();
+		for(int i=0;i<counts.length;i++){
+			if(counts[i] > 0){
+				countsMap.put(transcriptionFactorIndex.getTranscriptionFactor(i), counts[i]);
+			}
+		}
+		return countsMap;
+	}
+}
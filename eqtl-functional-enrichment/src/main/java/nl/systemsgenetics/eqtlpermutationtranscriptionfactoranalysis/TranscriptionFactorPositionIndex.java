@@ -0,0 +1,184 @@
+package nl.systemsgenetics.eqtlpermutationtranscriptionfactoranalysis;
+
+import gnu.trove.impl.Constants;
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.map.hash.TObjectIntHashMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import umcg.genetica.io.regulomedb.RegulomeDbEntry;
+import umcg.genetica.io.regulomedb.RegulomeDbFile;
+import umcg.genetica.io.regulomedb.RegulomeDbFiles;
+import umcg.genetica.io.regulomedb.RegulomeDbSupportingData;
+
+/**
+ * Transcription factors bound at single positions, for instance the
+ * Protein_Binding annotations of RegulomeDB. Per chromosome the positions are
+ * stored in a sorted int array, the transcription factors are numbered so
+ * counts can be kept in an int array indexed by these numbers.
+ */
+public class TranscriptionFactorPositionIndex {
+	private final String[] transcriptionFactors;
+	private final HashMap<String, int[]> chromosomePositions;
+	private final HashMap<String, int[][]> chromosomeTranscriptionFactors;
+
+
+	/**
+	 * When a position is added more than once the last added transcription
+	 * factors are used, like putting them in a map.
+	 */
+	public static class Builder {
+		private final TObjectIntHashMap<String> transcriptionFactorIds = new TObjectIntHashMap<String>(Constants.DEFAULT_CAPACITY, Constants.DEFAULT_LOAD_FACTOR, -1);
+		private final ArrayList<String> transcriptionFactors = new ArrayList<String>();
+		private final HashMap<String, TIntArrayList> positions = new HashMap<String, TIntArrayList>();
+		private final HashMap<String, ArrayList<int[]>> positionTranscriptionFactors = new HashMap<String, ArrayList<int[]>>();
+
+		public Builder add(String chr, int pos, String[] positionTranscriptionFactorNames){
+			int[] ids = new int[positionTranscriptionFactorNames.length];
+			for(int i=0;i<ids.length;i++){
+				int id = transcriptionFactorIds.get(positionTranscriptionFactorNames[i]);
+				if(id == -1){
+					id = transcriptionFactors.size();
+					transcriptionFactorIds.put(positionTranscriptionFactorNames[i], id);
+					transcriptionFactors.add(positionTranscriptionFactorNames[i]);
+				}
+				ids[i] = id;
+			}
+
+			TIntArrayList chrPositions = positions.get(chr);
+			if(chrPositions == null){
+				chrPositions = new TIntArrayList();
+				positions.put(chr, chrPositions);
+				positionTranscriptionFactors.put(chr, new ArrayList<int[]>());
+			}
+			chrPositions.add(pos);
+			positionTranscriptionFactors.get(chr).add(ids);
+			return this;
+		}
+
+		public TranscriptionFactorPositionIndex build(){
+			return new TranscriptionFactorPositionIndex(this);
+		}
+	}
+
+
+	private TranscriptionFactorPositionIndex(Builder builder){
+		this.transcriptionFactors = builder.transcriptionFactors.toArray(new String[builder.transcriptionFactors.size()]);
+		this.chromosomePositions = new HashMap<String, int[]>();
+		this.chromosomeTranscriptionFactors = new HashMap<String, int[][]>();
+
+		for(Map.Entry<String, TIntArrayList> chrEntry : builder.positions.entrySet()){
+			final int[] addedPositions = chrEntry.getValue().toArray();
+			ArrayList<int[]> addedTranscriptionFactors = builder.positionTranscriptionFactors.get(chrEntry.getKey());
+
+			Integer[] order = new Integer[addedPositions.length];
+			for(int i=0;i<order.length;i++){
+				order[i] = i;
+			}
+			//Object sort is stable, so for duplicate positions the last added is last.
+			Arrays.sort(order, new Comparator<Integer>(){
+				@Override
+				public int compare(Integer o1, Integer o2){
+					int p1 = addedPositions[o1];
+					int p2 = addedPositions[o2];
+					return p1 < p2 ? -1 : (p1 == p2 ? 0 : 1);
+				}
+			});
+
+			TIntArrayList sortedPositions = new TIntArrayList(order.length);
+			ArrayList<int[]> sortedTranscriptionFactors = new ArrayList<int[]>(order.length);
+			for(int i=0;i<order.length;i++){
+				int pos = addedPositions[order[i]];
+				if(i + 1 < order.length && addedPositions[order[i + 1]] == pos){
+					continue;
+				}
+				sortedPositions.add(pos);
+				sortedTranscriptionFactors.add(addedTranscriptionFactors.get(order[i]));
+			}
+
+			chromosomePositions.put(chrEntry.getKey(), sortedPositions.toArray());
+			chromosomeTranscriptionFactors.put(chrEntry.getKey(), sortedTranscriptionFactors.toArray(new int[sortedTranscriptionFactors.size()][]));
+		}
+	}
+
+
+	/**
+	 * Reads the Protein_Binding annotations of RegulomeDB. Entries without
+	 * transcription factors are not stored.
+	 */
+	public static TranscriptionFactorPositionIndex readRegulomeDb(ArrayList<RegulomeDbFile> regulomeDbFiles){
+		Builder builder = new Builder();
+
+		RegulomeDbFiles regulomeDbFilesData = new RegulomeDbFiles(regulomeDbFiles);
+		Iterator<RegulomeDbEntry> regulomeDbDataIterator = regulomeDbFilesData.iterator();
+		while(regulomeDbDataIterator.hasNext()){
+			RegulomeDbEntry rdbe = regulomeDbDataIterator.next();
+			String[] transcriptionFactors = getRegulomeDbTranscriptionFactors(rdbe);
+
+			if(transcriptionFactors.length > 0){
+				builder.add(rdbe.getChr(), rdbe.getChrPos(), transcriptionFactors);
+			}
+		}
+		return builder.build();
+	}
+
+
+	public static String[] getRegulomeDbTranscriptionFactors(RegulomeDbEntry rdbe){
+		ArrayList<String> tfs = new ArrayList<String>();
+
+		for(List<RegulomeDbSupportingData> supportData : rdbe.getSupportData().values()){
+			for(RegulomeDbSupportingData rdbsd : supportData){
+
+				//Check if the annotation is protein_binding.
+				if(rdbsd.getSupportClass().equalsIgnoreCase("Protein_Binding")){
+					tfs.add(rdbsd.getSupportValue());
+				}
+			}
+		}
+		return tfs.toArray(new String[tfs.size()]);
+	}
+
+
+	public int getTranscriptionFactorCount(){
+		return transcriptionFactors.length;
+	}
+
+
+	public String getTranscriptionFactor(int id){
+		return transcriptionFactors[id];
+	}
+
+
+	/**
+	 * @return ids of the transcription factors at this position or null
+	 */
+	public int[] getTranscriptionFactorIds(String chr, int pos){
+		int[] positions = chromosomePositions.get(chr);
+		if(positions == null){
+			return null;
+		}
+		int index = Arrays.binarySearch(positions, pos);
+		return index < 0 ? null : chromosomeTranscriptionFactors.get(chr)[index];
+	}
+
+
+	/**
+	 * Adds one to the counts of all transcription factors at this position.
+	 *
+	 * @return false if there are no transcription factors at this position
+	 */
+	public boolean count(String chr, int pos, int[] counts){
+		int[] ids = getTranscriptionFactorIds(chr, pos);
+		if(ids == null){
+			return false;
+		}
+		for(int id : ids){
+			counts[id]++;
+		}
+		return true;
+	}
+}
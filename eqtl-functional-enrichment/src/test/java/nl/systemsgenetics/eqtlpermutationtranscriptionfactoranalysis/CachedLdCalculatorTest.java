@@ -0,0 +1,172 @@
+package nl.systemsgenetics.eqtlpermutationtranscriptionfactoranalysis;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.molgenis.genotype.plink.PedMapGenotypeData;
+import org.molgenis.genotype.variant.GeneticVariant;
+import static org.testng.Assert.*;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+public class CachedLdCalculatorTest {
+	private static final int[] POSITIONS = {100, 200, 300};
+
+	private File folder;
+	private File pedFile;
+	private File mapFile;
+
+
+	/**
+	 * Counts the variant lookups
+	 */
+	private static class CountingGenotypeData extends PedMapGenotypeData {
+		private int lookups = 0;
+
+		public CountingGenotypeData(File pedFile, File mapFile) throws FileNotFoundException, IOException{
+			super(pedFile, mapFile);
+		}
+
+		@Override
+		public synchronized GeneticVariant getSnpVariantByPos(String seqName, int startPos){
+			lookups++;
+			return super.getSnpVariantByPos(seqName, startPos);
+		}
+
+		public synchronized int getLookups(){
+			return lookups;
+		}
+	}
+
+
+	@BeforeClass
+	public void writeGenotypes() throws IOException{
+		folder = Files.createTempDirectory("CachedLdCalculatorTest").toFile();
+		pedFile = new File(folder, "test.ped");
+		mapFile = new File(folder, "test.map");
+
+		PrintWriter ped = new PrintWriter(pedFile, "UTF-8");
+		ped.println("F1\tS1\t0\t0\t1\t1\tA A\tC C\tG G");
+		ped.println("F2\tS2\t0\t0\t1\t1\tA G\tC T\tG G");
+		ped.println("F3\tS3\t0\t0\t2\t1\tG G\tT T\tG T");
+		ped.println("F4\tS4\t0\t0\t2\t1\tA A\tC C\tT T");
+		ped.println("F5\tS5\t0\t0\t1\t1\tA G\tC C\tG T");
+		ped.println("F6\tS6\t0\t0\t2\t1\tG G\tT T\tG G");
+		ped.close();
+
+		PrintWriter map = new PrintWriter(mapFile, "UTF-8");
+		for(int i=0;i<POSITIONS.length;i++){
+			map.println("1\trs" + (i + 1) + "\t0\t" + POSITIONS[i]);
+		}
+		map.close();
+	}
+
+
+	@AfterClass
+	public void removeGenotypes(){
+		pedFile.delete();
+		mapFile.delete();
+		folder.delete();
+	}
+
+
+	@Test
+	public void testR2() throws Exception{
+		CountingGenotypeData genotypeData = new CountingGenotypeData(pedFile, mapFile);
+		CachedLdCalculator ldCalculator = new CachedLdCalculator(genotypeData);
+
+		for(int round=0;round<3;round++){
+			for(int pos1 : POSITIONS){
+				for(int pos2 : POSITIONS){
+					double expected = genotypeData.getSnpVariantByPos("1", pos1).calculateLd(genotypeData.getSnpVariantByPos("1", pos2)).getR2();
+					int lookups = genotypeData.getLookups();
+					assertEquals(ldCalculator.getR2("1", pos1, pos2), expected, 0d);
+					if(round > 0){
+						assertEquals(genotypeData.getLookups(), lookups, "Cached r2 not used");
+					}
+				}
+			}
+		}
+
+		assertTrue(Double.isNaN(ldCalculator.getR2("1", 100, 150)));
+		assertTrue(Double.isNaN(ldCalculator.getR2("2", 100, 200)));
+	}
+
+
+	@Test
+	public void testContainsVariant() throws Exception{
+		CountingGenotypeData genotypeData = new CountingGenotypeData(pedFile, mapFile);
+		CachedLdCalculator ldCalculator = new CachedLdCalculator(genotypeData);
+
+		assertTrue(ldCalculator.containsVariant("1", 100));
+		assertFalse(ldCalculator.containsVariant("1", 150));
+		assertFalse(ldCalculator.containsVariant("2", 100));
+		assertEquals(genotypeData.getLookups(), 3);
+
+		//Known and missing variants are both cached
+		assertTrue(ldCalculator.containsVariant("1", 100));
+		assertFalse(ldCalculator.containsVariant("1", 150));
+		assertFalse(ldCalculator.containsVariant("2", 100));
+		assertEquals(genotypeData.getLookups(), 3);
+
+		//Variants loaded for an r2 are cached as well
+		ldCalculator.getR2("1", 200, 300);
+		assertEquals(genotypeData.getLookups(), 5);
+		assertTrue(ldCalculator.containsVariant("1", 200));
+		assertTrue(ldCalculator.containsVariant("1", 300));
+		assertEquals(genotypeData.getLookups(), 5);
+	}
+
+
+	@Test
+	public void testThreads() throws Exception{
+		CountingGenotypeData genotypeData = new CountingGenotypeData(pedFile, mapFile);
+		final CachedLdCalculator ldCalculator = new CachedLdCalculator(genotypeData);
+		final CachedLdCalculator expectedLdCalculator = new CachedLdCalculator(genotypeData);
+
+		ExecutorService threadPool = Executors.newFixedThreadPool(4);
+		try{
+			List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+			for(int t=0;t<8;t++){
+				results.add(threadPool.submit(new Callable<Boolean>(){
+					@Override
+					public Boolean call() throws Exception{
+						for(int round=0;round<100;round++){
+							for(int pos1 : POSITIONS){
+								if(!ldCalculator.containsVariant("1", pos1)){
+									return false;
+								}
+								for(int pos2 : POSITIONS){
+									double r2 = ldCalculator.getR2("1", pos1, pos2);
+									double expected;
+									synchronized(expectedLdCalculator){
+										expected = expectedLdCalculator.getR2("1", pos1, pos2);
+									}
+									if(Double.compare(r2, expected) != 0){
+										return false;
+									}
+								}
+							}
+						}
+						return true;
+					}
+				}));
+			}
+			for(Future<Boolean> result : results){
+				assertTrue(result.get());
+			}
+		}
+		finally{
+			threadPool.shutdown();
+		}
+	}
+}
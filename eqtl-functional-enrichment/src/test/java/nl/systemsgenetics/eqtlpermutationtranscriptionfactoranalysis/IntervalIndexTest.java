@@ -0,0 +1,97 @@
+package nl.systemsgenetics.eqtlpermutationtranscriptionfactoranalysis;
+
+import gnu.trove.list.array.TIntArrayList;
+import java.util.Arrays;
+import java.util.Random;
+import static org.testng.Assert.*;
+import org.testng.annotations.Test;
+
+public class IntervalIndexTest {
+
+	@Test
+	public void testGetOverlapping(){
+		int[] starts = {50, 10, 10, 30, 5, 70};
+		int[] ends = {60, 100, 20, 35, 8, 80};
+		IntervalIndex index = new IntervalIndex(starts, ends);
+		assertEquals(index.size(), 6);
+
+		TIntArrayList overlapping = new TIntArrayList();
+		assertEquals(index.getOverlapping(33, 55, overlapping), 3);
+		//Ordered on start, equal starts in input order
+		assertTrue(Arrays.equals(overlapping.toArray(), new int[]{1, 3, 0}));
+
+		overlapping.clear();
+		assertEquals(index.getOverlapping(15, 15, overlapping), 2);
+		assertTrue(Arrays.equals(overlapping.toArray(), new int[]{1, 2}));
+
+		overlapping.clear();
+		assertEquals(index.getOverlapping(9, 9, overlapping), 0);
+
+		overlapping.clear();
+		assertEquals(index.getOverlapping(101, 200, overlapping), 0);
+		assertEquals(index.getOverlapping(1, 4, overlapping), 0);
+		assertEquals(overlapping.size(), 0);
+
+		//Inclusive ends
+		assertEquals(index.getOverlapping(8, 8, overlapping), 1);
+		assertTrue(Arrays.equals(overlapping.toArray(), new int[]{4}));
+
+		assertTrue(index.overlaps(36, 40));
+		assertTrue(index.overlaps(80, 90));
+		assertFalse(index.overlaps(1, 4));
+		assertFalse(index.overlaps(101, 101));
+	}
+
+	@Test
+	public void testEmpty(){
+		IntervalIndex index = new IntervalIndex(new int[0], new int[0]);
+		TIntArrayList overlapping = new TIntArrayList();
+		assertEquals(index.getOverlapping(0, 100, overlapping), 0);
+		assertFalse(index.overlaps(0, 100));
+	}
+
+	@Test(expectedExceptions = IllegalArgumentException.class)
+	public void testLengthMismatch(){
+		new IntervalIndex(new int[2], new int[3]);
+	}
+
+	@Test
+	public void testSameAsScan(){
+		Random random = new Random(1);
+		int n = 500;
+		int[] starts = new int[n];
+		int[] ends = new int[n];
+		for(int i=0;i<n;i++){
+			starts[i] = random.nextInt(10000);
+			//Mostly short intervals with some long ones
+			ends[i] = starts[i] + (random.nextInt(20) == 0 ? random.nextInt(2000) : random.nextInt(50));
+		}
+		IntervalIndex index = new IntervalIndex(starts, ends);
+
+		TIntArrayList overlapping = new TIntArrayList();
+		for(int q=0;q<2000;q++){
+			int from = random.nextInt(12000) - 1000;
+			int to = from + random.nextInt(100);
+
+			overlapping.clear();
+			int found = index.getOverlapping(from, to, overlapping);
+
+			TIntArrayList expected = new TIntArrayList();
+			for(int i=0;i<n;i++){
+				if(starts[i] <= to && ends[i] >= from){
+					expected.add(i);
+				}
+			}
+
+			assertEquals(found, expected.size());
+			assertEquals(overlapping.size(), expected.size());
+			for(int i=0;i<overlapping.size();i++){
+				assertTrue(expected.contains(overlapping.get(i)));
+				if(i > 0){
+					assertTrue(starts[overlapping.get(i - 1)] <= starts[overlapping.get(i)]);
+				}
+			}
+			assertEquals(index.overlaps(from, to), !expected.isEmpty());
+		}
+	}
+}
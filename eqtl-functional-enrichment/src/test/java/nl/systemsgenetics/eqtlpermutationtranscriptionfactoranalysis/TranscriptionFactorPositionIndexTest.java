@@ -0,0 +1,52 @@
+package nl.systemsgenetics.eqtlpermutationtranscriptionfactoranalysis;
+
+import java.util.Arrays;
+import static org.testng.Assert.*;
+import org.testng.annotations.Test;
+
+public class TranscriptionFactorPositionIndexTest {
+
+	private TranscriptionFactorPositionIndex createIndex(){
+		return new TranscriptionFactorPositionIndex.Builder()
+				.add("1", 300, new String[]{"CTCF", "POLR2A"})
+				.add("1", 100, new String[]{"POLR2A"})
+				.add("2", 100, new String[]{"MYC"})
+				.add("1", 200, new String[]{"CTCF"})
+				.add("1", 300, new String[]{"MYC"})
+				.build();
+	}
+
+	@Test
+	public void testTranscriptionFactors(){
+		TranscriptionFactorPositionIndex index = createIndex();
+		assertEquals(index.getTranscriptionFactorCount(), 3);
+		assertEquals(index.getTranscriptionFactor(0), "CTCF");
+		assertEquals(index.getTranscriptionFactor(1), "POLR2A");
+		assertEquals(index.getTranscriptionFactor(2), "MYC");
+	}
+
+	@Test
+	public void testGetTranscriptionFactorIds(){
+		TranscriptionFactorPositionIndex index = createIndex();
+		assertTrue(Arrays.equals(index.getTranscriptionFactorIds("1", 100), new int[]{1}));
+		assertTrue(Arrays.equals(index.getTranscriptionFactorIds("1", 200), new int[]{0}));
+		//Last added is used for a duplicate position
+		assertTrue(Arrays.equals(index.getTranscriptionFactorIds("1", 300), new int[]{2}));
+		assertTrue(Arrays.equals(index.getTranscriptionFactorIds("2", 100), new int[]{2}));
+		assertNull(index.getTranscriptionFactorIds("1", 150));
+		assertNull(index.getTranscriptionFactorIds("1", 400));
+		assertNull(index.getTranscriptionFactorIds("3", 100));
+	}
+
+	@Test
+	public void testCount(){
+		TranscriptionFactorPositionIndex index = createIndex();
+		int[] counts = new int[index.getTranscriptionFactorCount()];
+		assertTrue(index.count("1", 100, counts));
+		assertTrue(index.count("1", 200, counts));
+		assertTrue(index.count("2", 100, counts));
+		assertFalse(index.count("2", 200, counts));
+		assertFalse(index.count("X", 100, counts));
+		assertTrue(Arrays.equals(counts, new int[]{1, 1, 1}));
+	}
+}
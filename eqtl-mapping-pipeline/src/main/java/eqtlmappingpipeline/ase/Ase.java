@@ -26,6 +26,8 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Pattern;
 import org.apache.commons.cli.ParseException;
@@ -178,6 +180,7 @@ public class Ase {
 			}
 
 			final List<File> inputFiles = configuration.getInputFiles();
+			final List<Future<?>> perChrCalculators = new ArrayList<Future<?>>();
 
 			System.out.println("Loading sample allele counts");
 			if (referenceGenotypes == null) {
@@ -196,6 +199,10 @@ public class Ase {
 				//Chucking the analysis will be used so that we can efficiently cache the reference genotypes.
 
 				final int chunkSize = configuration.getChunkSize();
+				
+				//Without mappability filter the variants of a chr are final once merged so we can already start the calculations
+				final boolean calculatePerChr = !configuration.isMappabilityTrackSet();
+				final ExecutorService calculatorPool = calculatePerChr ? AseCalculator.createBackgroundPool(configuration.getThreads()) : null;
 
 				for (String chr : referenceGenotypes.getSeqNames()) {
 
@@ -222,8 +229,21 @@ public class Ase {
 						}
 					}
 					//System.out.println("Current number of ASE targets after checking sample count: " + aseResults.getCount());
+					
+					if (calculatePerChr && aseResults.chrIterator(chr) != null) {
+						ArrayList<AseVariant> chrAseVariants = new ArrayList<AseVariant>();
+						for (Iterator<AseVariantAppendable> aseChrIterator = aseResults.chrIterator(chr); aseChrIterator.hasNext();) {
+							chrAseVariants.add(aseChrIterator.next());
+						}
+						perChrCalculators.addAll(AseCalculator.startAseCalculatorsInBackground(calculatorPool, chrAseVariants.toArray(new AseVariant[chrAseVariants.size()]), configuration.getThreads()));
+					}
 
 				}
+				
+				AseCalculator.waitForAseCalculators(perChrCalculators);
+				if (calculatorPool != null) {
+					calculatorPool.shutdown();
+				}
 
 
 			}
@@ -295,15 +315,19 @@ public class Ase {
 
 
 			AseVariantAppendable[] aseVariants = new AseVariantAppendable[aseResults.getCount()];
+			ArrayList<AseVariant> aseVariantsToCalculate = new ArrayList<AseVariant>();
 			{
 				int i = 0;
 				for (AseVariantAppendable aseVariant : aseResults) {
 					aseVariants[i] = aseVariant;
+					if (!aseVariant.isStatisticsCalculated()) {
+						aseVariantsToCalculate.add(aseVariant);
+					}
 					++i;
 				}
 			}
 			
-			AseCalculator.startAseCalculators(aseVariants, configuration.getThreads());
+			AseCalculator.startAseCalculators(aseVariantsToCalculate.toArray(new AseVariant[aseVariantsToCalculate.size()]), configuration.getThreads());
 
 			System.out.println("Completed ASE calculations");
 			
@@ -682,10 +706,13 @@ public class Ase {
 		final ThreadErrorHandler threadErrorHandler = new ThreadErrorHandler();
 
 		Iterator<File> inputFileIterator = inputFiles.iterator();
+		
+		//Index the reference once for all loader threads instead of synchronized lookups per variant per file
+		final ReferenceGenotypeCache referenceCache = referenceGenotypes != null && chr != null ? new ReferenceGenotypeCache(referenceGenotypes, chr, start, stop) : null;
 
 		for (int i = 0; i < threadCount; ++i) {
 
-			Thread worker = new Thread(new ReadCountsLoader(inputFileIterator, aseResults, detectedSampleSet, fileCounter, configuration, referenceGenotypes, refToStudySampleId, chr, start, stop));
+			Thread worker = new Thread(new ReadCountsLoader(inputFileIterator, aseResults, detectedSampleSet, fileCounter, configuration, referenceGenotypes, referenceCache, refToStudySampleId, chr, start, stop));
 			worker.setUncaughtExceptionHandler(threadErrorHandler);
 			worker.start();
 			threads.add(worker);
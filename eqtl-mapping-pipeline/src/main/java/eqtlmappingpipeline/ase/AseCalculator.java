@@ -2,6 +2,10 @@ package eqtlmappingpipeline.ase;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicInteger;
 
 /**
@@ -27,12 +31,58 @@ public class AseCalculator implements Runnable {
 		}
 	}
 
-	public static void startAseCalculators(AseVariant[] aseVariants, int threadCount) {
+	/**
+	 * Create the pool that is shared by all calculations started with
+	 * {@link #startAseCalculatorsInBackground(java.util.concurrent.ExecutorService, eqtlmappingpipeline.ase.AseVariant[], int)},
+	 * so there are never more than threadCount calculator threads.
+	 * 
+	 * @param threadCount
+	 * @return the pool, shut it down when all calculations are done
+	 */
+	public static ExecutorService createBackgroundPool(int threadCount) {
+		return Executors.newFixedThreadPool(threadCount);
+	}
 
+	/**
+	 * Start the calculations on the pool without waiting for them to
+	 * complete. Use {@link #waitForAseCalculators(java.util.List)} before
+	 * using the results.
+	 * 
+	 * @param pool
+	 * @param aseVariants
+	 * @param threadCount
+	 * @return the submitted calculations
+	 */
+	public static List<Future<?>> startAseCalculatorsInBackground(ExecutorService pool, AseVariant[] aseVariants, int threadCount) {
+		
+		AtomicInteger count = new AtomicInteger(0);
+		int taskCount = Math.min(threadCount, aseVariants.length);
+		List<Future<?>> calculations = new ArrayList<Future<?>>(taskCount);
+		
+		for (int i = 0; i < taskCount; ++i) {
+			calculations.add(pool.submit(new AseCalculator(aseVariants, count)));
+		}
+		
+		return calculations;
+		
+	}
+	
+	public static void waitForAseCalculators(List<Future<?>> calculations) {
+		final Ase.ThreadErrorHandler threadErrorHandler = new Ase.ThreadErrorHandler();
+		for (Future<?> calculation : calculations) {
+			try {
+				calculation.get();
+			} catch (InterruptedException ex) {
+			} catch (ExecutionException ex) {
+				threadErrorHandler.uncaughtException(Thread.currentThread(), ex.getCause());
+			}
+		}
+	}
+	
+	private static List<Thread> startThreads(AseVariant[] aseVariants, int threadCount, AtomicInteger count) {
+		
 		List<Thread> threads = new ArrayList<Thread>(threadCount);
 		final Ase.ThreadErrorHandler threadErrorHandler = new Ase.ThreadErrorHandler();
-
-		final AtomicInteger count = new AtomicInteger(0);
 		
 		for (int i = 0; i < threadCount; ++i) {
 
@@ -43,6 +93,16 @@ public class AseCalculator implements Runnable {
 			threads.add(worker);
 
 		}
+		
+		return threads;
+		
+	}
+
+	public static void startAseCalculators(AseVariant[] aseVariants, int threadCount) {
+
+		final AtomicInteger count = new AtomicInteger(0);
+		
+		List<Thread> threads = startThreads(aseVariants, threadCount, count);
 
 		int nextReport = 1000;
 		boolean running;
@@ -0,0 +1,67 @@
+package eqtlmappingpipeline.ase;
+
+import gnu.trove.map.hash.TIntObjectHashMap;
+import java.util.HashMap;
+import java.util.Map;
+import org.molgenis.genotype.Allele;
+import org.molgenis.genotype.variant.id.GeneticVariantId;
+
+/**
+ * Collects the read counts of a single loader thread. Not thread safe, each
+ * {@link ReadCountsLoader} has its own accumulator that is merged in to the
+ * shared {@link AseResults} once the thread is done.
+ */
+class AseCountsAccumulator {
+
+	private final HashMap<String, TIntObjectHashMap<AseVariantAppendable>> counts;
+	private boolean encounteredBaseQuality = false;
+	private String lastChr = null;
+	private TIntObjectHashMap<AseVariantAppendable> lastChrCounts = null;
+
+	public AseCountsAccumulator() {
+		counts = new HashMap<String, TIntObjectHashMap<AseVariantAppendable>>();
+	}
+
+	public void addCounts(String chr, int pos, GeneticVariantId id, Allele a1, Allele a2, int a1Count, int a2Count, String sampleId, double a1MeanBaseQuality, double a2MeanBaseQuality) {
+		addToCounts(chr, pos, id, a1, a2, a1Count, a2Count, sampleId, a1MeanBaseQuality, a2MeanBaseQuality);
+		encounteredBaseQuality = true;
+	}
+
+	public void addCounts(String chr, int pos, GeneticVariantId id, Allele a1, Allele a2, int a1Count, int a2Count, String sampleId) {
+		addToCounts(chr, pos, id, a1, a2, a1Count, a2Count, sampleId, Double.NaN, Double.NaN);
+	}
+
+	private void addToCounts(String chr, int pos, GeneticVariantId id, Allele a1, Allele a2, int a1Count, int a2Count, String sampleId, double a1MeanBaseQuality, double a2MeanBaseQuality) {
+
+		//Variants come sorted per chr so the chr lookup can mostly be skipped
+		if (lastChrCounts == null || !lastChr.equals(chr)) {
+			lastChrCounts = counts.get(chr);
+			if (lastChrCounts == null) {
+				lastChrCounts = new TIntObjectHashMap<AseVariantAppendable>();
+				counts.put(chr, lastChrCounts);
+			}
+			lastChr = chr;
+		}
+
+		AseVariantAppendable aseVariant = lastChrCounts.get(pos);
+		if (aseVariant == null) {
+			aseVariant = new AseVariantAppendable(chr, pos, id, a1, a2);
+			lastChrCounts.put(pos, aseVariant);
+		}
+		aseVariant.addCounts(a1Count, a2Count, sampleId, a1MeanBaseQuality, a2MeanBaseQuality);
+
+	}
+
+	Map<String, TIntObjectHashMap<AseVariantAppendable>> getCounts() {
+		return counts;
+	}
+
+	public boolean isEncounteredBaseQuality() {
+		return encounteredBaseQuality;
+	}
+
+	public boolean isEmpty() {
+		return counts.isEmpty();
+	}
+
+}
@@ -4,9 +4,11 @@
  */
 package eqtlmappingpipeline.ase;
 
+import gnu.trove.iterator.TIntObjectIterator;
 import gnu.trove.map.hash.TIntObjectHashMap;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.Map;
 import org.molgenis.genotype.Allele;
 import org.molgenis.genotype.variant.id.GeneticVariantId;
 import umcg.genetica.collections.ChrPosMap;
@@ -47,6 +49,39 @@ public class AseResults implements Iterable<AseVariantAppendable> {
 		
 	}
 	
+	/**
+	 * Merge the counts of a loader thread. The variants of the accumulator
+	 * are taken over when not yet present, so the accumulator should not
+	 * be used afterwards.
+	 *
+	 * @param accumulator
+	 */
+	public synchronized void merge(AseCountsAccumulator accumulator) {
+
+		for (Map.Entry<String, TIntObjectHashMap<AseVariantAppendable>> chrCounts : accumulator.getCounts().entrySet()) {
+
+			String chr = chrCounts.getKey();
+
+			TIntObjectIterator<AseVariantAppendable> chrIterator = chrCounts.getValue().iterator();
+			while (chrIterator.hasNext()) {
+				chrIterator.advance();
+
+				AseVariantAppendable aseVariant = results.get(chr, chrIterator.key());
+				if (aseVariant == null) {
+					results.put(chr, chrIterator.key(), chrIterator.value());
+				} else {
+					aseVariant.addCounts(chrIterator.value());
+				}
+
+			}
+		}
+
+		if (accumulator.isEncounteredBaseQuality()) {
+			encounteredBaseQuality = true;
+		}
+
+	}
+	
 	public Iterator<AseVariantAppendable> chrIterator(String chr){
 		return results.chrIterator(chr);
 	}
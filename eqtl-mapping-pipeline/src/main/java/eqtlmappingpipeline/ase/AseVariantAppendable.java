@@ -147,11 +147,15 @@ public class AseVariantAppendable implements AseVariant{
 		return metaPvalue;
 	}
 
-	public synchronized void addCounts(int a1Count, int a2Count, String sampleId) {
+	/**
+	 * Not thread safe. Each loader thread adds counts to its own
+	 * {@link AseCountsAccumulator}
+	 */
+	public void addCounts(int a1Count, int a2Count, String sampleId) {
 		addCounts(a1Count, a2Count, sampleId, Double.NaN, Double.NaN);
 	}
 	
-	public synchronized void addCounts(int a1Count, int a2Count, String sampleId, double a1MeanBaseQuality, double a2MeanBaseQuality) {
+	public void addCounts(int a1Count, int a2Count, String sampleId, double a1MeanBaseQuality, double a2MeanBaseQuality) {
 
 		this.metaZscore = Double.NaN;//Reset meta Z-score when adding new data
 		this.metaPvalue = Double.NaN;
@@ -170,6 +174,32 @@ public class AseVariantAppendable implements AseVariant{
 
 	}
 
+	/**
+	 * Append all counts of an other instance of the same variant
+	 * 
+	 * @param other 
+	 */
+	public void addCounts(AseVariantAppendable other) {
+
+		this.metaZscore = Double.NaN;//Reset meta Z-score when adding new data
+		this.metaPvalue = Double.NaN;
+		this.countPearsonR = Double.NaN;
+		this.mle = null;
+
+		a1Counts.addAllOf(other.a1Counts);
+		a2Counts.addAllOf(other.a2Counts);
+		pValues.addAllOf(other.pValues);
+		sampleIds.addAll(other.sampleIds);
+
+	}
+
+	/**
+	 * @return true if the statistics are calculated and no counts are added since
+	 */
+	public boolean isStatisticsCalculated() {
+		return mle != null;
+	}
+
 	@Override
 	public int compareTo(AseVariant o) {
 
@@ -37,6 +37,7 @@ public class ReadCountsLoader implements Runnable {
 	private final AtomicInteger fileCounter;
 	private final AseConfiguration configuration;
 	private final RandomAccessGenotypeData genotypeReference;
+	private final ReferenceGenotypeCache referenceCache;
 	Map<String, String> refToStudySampleId;
 	private final String chr;
 	private final int start;
@@ -52,7 +53,16 @@ public class ReadCountsLoader implements Runnable {
 	}
 
 	public ReadCountsLoader(Iterator<File> inputFileIterator, AseResults aseResults, Set<String> detectedSampleSet, AtomicInteger fileCounter, AseConfiguration configuration, RandomAccessGenotypeData genotypeReference, Map<String, String> refToStudySampleId, String chr, int start, int stop) {
+		this(inputFileIterator, aseResults, detectedSampleSet, fileCounter, configuration, genotypeReference, null, refToStudySampleId, chr, start, stop);
+	}
+
+	/**
+	 * 
+	 * @param referenceCache pre-indexed reference SNPs of this region. If null and genotypeReference is not null the reference is queried directly.
+	 */
+	public ReadCountsLoader(Iterator<File> inputFileIterator, AseResults aseResults, Set<String> detectedSampleSet, AtomicInteger fileCounter, AseConfiguration configuration, RandomAccessGenotypeData genotypeReference, ReferenceGenotypeCache referenceCache, Map<String, String> refToStudySampleId, String chr, int start, int stop) {
 		this.inputFileIterator = inputFileIterator;
+		this.referenceCache = referenceCache;
 		this.aseResults = aseResults;
 		this.detectedSampleSet = detectedSampleSet;
 		this.fileCounter = fileCounter;
@@ -94,6 +104,9 @@ public class ReadCountsLoader implements Runnable {
 		}
 
 		File inputFile = null;
+		
+		//Counts of this thread are only merged with the other threads when done
+		final AseCountsAccumulator aseCounts = new AseCountsAccumulator();
 
 		try {
 
@@ -164,23 +177,44 @@ public class ReadCountsLoader implements Runnable {
 									//Use reference VCF to check if sample is hetrozygous for this variant
 									if (referenceVariantAlleles == null) {
 
-										synchronized (genotypeReference) {
+										if (referenceCache != null) {
 
-											GeneticVariant referenceVariant = genotypeReference.getSnpVariantByPos(variant.getSequenceName(), variant.getStartPos());
+											GeneticVariant referenceVariant = referenceCache.getSnpVariantByPos(variant.getSequenceName(), variant.getStartPos());
 											if (referenceVariant == null) {
-												//LOGGER.debug("Variant not found in reference " + variant.getSequenceName() + ":" + variant.getStartPos());
 												continue variants;
 											}
 
 											if (!referenceVariant.getVariantAlleles().sameAlleles(variant.getVariantAlleles())) {
 												continue variants;
 											}
-											
+
 											if(variantId == null || variantId == GeneticVariantId.BLANK_GENETIC_VARIANT_ID){
 												variantId = referenceVariant.getVariantId();
 											}
 
-											referenceVariantAlleles = referenceVariant.getSampleVariants();
+											referenceVariantAlleles = referenceCache.getSampleVariants(referenceVariant);
+
+										} else {
+
+											synchronized (genotypeReference) {
+
+												GeneticVariant referenceVariant = genotypeReference.getSnpVariantByPos(variant.getSequenceName(), variant.getStartPos());
+												if (referenceVariant == null) {
+													//LOGGER.debug("Variant not found in reference " + variant.getSequenceName() + ":" + variant.getStartPos());
+													continue variants;
+												}
+
+												if (!referenceVariant.getVariantAlleles().sameAlleles(variant.getVariantAlleles())) {
+													continue variants;
+												}
+
+												if(variantId == null || variantId == GeneticVariantId.BLANK_GENETIC_VARIANT_ID){
+													variantId = referenceVariant.getVariantId();
+												}
+
+												referenceVariantAlleles = referenceVariant.getSampleVariants();
+
+											}
 
 										}
 
@@ -213,9 +247,9 @@ public class ReadCountsLoader implements Runnable {
 
 									if (variant.getVariantMeta().getRecordType("RQ") == GeneticVariantMeta.Type.FLOAT_LIST) {
 										List<Double> meanAlleleBaseQualties = (List<Double>) record.getGenotypeRecordData("RQ");
-										aseResults.addResult(variant.getSequenceName(), variant.getStartPos(), variantId, variant.getVariantAlleles().get(0), variant.getVariantAlleles().get(1), a1Count, a2Count, sampleId, meanAlleleBaseQualties.get(0), meanAlleleBaseQualties.get(1));
+										aseCounts.addCounts(variant.getSequenceName(), variant.getStartPos(), variantId, variant.getVariantAlleles().get(0), variant.getVariantAlleles().get(1), a1Count, a2Count, sampleId, meanAlleleBaseQualties.get(0), meanAlleleBaseQualties.get(1));
 									} else {
-										aseResults.addResult(variant.getSequenceName(), variant.getStartPos(), variantId, variant.getVariantAlleles().get(0), variant.getVariantAlleles().get(1), a1Count, a2Count, sampleId);
+										aseCounts.addCounts(variant.getSequenceName(), variant.getStartPos(), variantId, variant.getVariantAlleles().get(0), variant.getVariantAlleles().get(1), a1Count, a2Count, sampleId);
 									}
 										
 								}
@@ -248,6 +282,8 @@ public class ReadCountsLoader implements Runnable {
 				}
 
 			}
+			
+			aseResults.merge(aseCounts);
 
 		} catch (IOException ex) {
 			String inputFilePath = inputFile != null ? inputFile.getAbsolutePath() : "?";
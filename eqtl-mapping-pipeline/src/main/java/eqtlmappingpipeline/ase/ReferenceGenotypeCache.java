@@ -0,0 +1,100 @@
+package eqtlmappingpipeline.ase;
+
+import gnu.trove.map.hash.TIntObjectHashMap;
+import java.util.List;
+import org.molgenis.genotype.Alleles;
+import org.molgenis.genotype.RandomAccessGenotypeData;
+import org.molgenis.genotype.util.Cache;
+import org.molgenis.genotype.variant.GeneticVariant;
+
+/**
+ * Thread safe lookup of the reference SNPs in a single region. The positions
+ * are indexed once up front, the sample genotypes of a SNP are read from the
+ * reference only the first time a loader thread asks for them.
+ *
+ * The index is not modified after construction so concurrent reads do not
+ * need a lock. Only a cache miss on the sample genotypes needs to lock the
+ * reference genotype data. The sample genotypes of only the most recently used
+ * SNPs are kept, the loader threads read their files in position order so
+ * they share the SNPs around their current positions.
+ */
+class ReferenceGenotypeCache {
+
+	public static final int DEFAULT_SAMPLE_ALLELES_CACHE_SIZE = 10000;
+
+	private final RandomAccessGenotypeData genotypeReference;
+	private final String chr;
+	private final TIntObjectHashMap<GeneticVariant> snps;
+	private final Cache<Integer, List<Alleles>> sampleAlleles;
+
+	public ReferenceGenotypeCache(RandomAccessGenotypeData genotypeReference, String chr, int start, int stop) {
+		this(genotypeReference, chr, start, stop, DEFAULT_SAMPLE_ALLELES_CACHE_SIZE);
+	}
+
+	/**
+	 * @param sampleAllelesCacheSize maximum number of SNPs of which the
+	 * sample genotypes are kept in memory
+	 */
+	public ReferenceGenotypeCache(RandomAccessGenotypeData genotypeReference, String chr, int start, int stop, int sampleAllelesCacheSize) {
+
+		this.genotypeReference = genotypeReference;
+		this.chr = chr;
+		this.snps = new TIntObjectHashMap<GeneticVariant>();
+		this.sampleAlleles = new Cache<Integer, List<Alleles>>(sampleAllelesCacheSize);
+
+		for (GeneticVariant variant : genotypeReference.getVariantsByRange(chr, start, stop)) {
+			//Same as getSnpVariantByPos, first SNP at a position is used
+			if (variant.isSnp() && !snps.containsKey(variant.getStartPos())) {
+				snps.put(variant.getStartPos(), variant);
+			}
+		}
+
+	}
+
+	public String getChr() {
+		return chr;
+	}
+
+	/**
+	 *
+	 * @param chr
+	 * @param pos
+	 * @return null if no SNP at this position
+	 */
+	public GeneticVariant getSnpVariantByPos(String chr, int pos) {
+		if (!this.chr.equals(chr)) {
+			return null;
+		}
+		return snps.get(pos);
+	}
+
+	/**
+	 * Sample genotypes of a SNP returned by getSnpVariantByPos
+	 *
+	 * @param snp
+	 * @return
+	 */
+	public List<Alleles> getSampleVariants(GeneticVariant snp) {
+
+		Integer pos = snp.getStartPos();
+
+		List<Alleles> alleles = sampleAlleles.get(pos);
+		if (alleles == null) {
+			//Genotype data readers are not thread safe
+			synchronized (genotypeReference) {
+				alleles = sampleAlleles.get(pos);
+				if (alleles == null) {
+					alleles = snp.getSampleVariants();
+					sampleAlleles.put(pos, alleles);
+				}
+			}
+		}
+		return alleles;
+
+	}
+
+	public int getSnpCount() {
+		return snps.size();
+	}
+
+}
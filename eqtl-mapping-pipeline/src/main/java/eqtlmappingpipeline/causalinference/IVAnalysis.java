@@ -6,9 +6,16 @@ package eqtlmappingpipeline.causalinference;
 
 import eqtlmappingpipeline.metaqtl3.containers.Settings;
 import java.io.IOException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashSet;
-import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import umcg.genetica.console.ConsoleGUIElems;
 import umcg.genetica.console.ProgressBar;
 import umcg.genetica.containers.Triple;
@@ -28,6 +35,9 @@ import umcg.genetica.math.stats.TwoStepLeastSquares;
  */
 public class IVAnalysis {
 
+    // SNP-cis-trans combinations per task
+    private static final int BATCH_SIZE = 100;
+
     protected HashSet<Triple<String, String, String>> snpProbeCombos = new HashSet<Triple<String, String, String>>();
     protected Settings m_settings;
     // snpProbeCombinationList (SNP cis trans)
@@ -140,7 +150,7 @@ public class IVAnalysis {
 
             m_settings.regressOutEQTLEffectFileName = null;
             m_settings.datasetSettings.add(s);
-            m_settings.nrThreads = 1;
+            m_settings.nrThreads = Runtime.getRuntime().availableProcessors();
             m_settings.cisAnalysis = true;
             m_settings.transAnalysis = true;
             m_settings.nrPermutationsFDR = perm;
@@ -196,207 +206,299 @@ public class IVAnalysis {
 
     }
 
+    public void setNrThreads(int nrThreads) {
+        m_settings.nrThreads = nrThreads;
+    }
+
+    /**
+     * Tests all SNP-cis-trans combinations in the real data and all
+     * permutation rounds. The combinations are split in batches that are
+     * tested on m_settings.nrThreads threads; every batch loads each SNP once
+     * and tests it in all rounds. The sample label permutations are drawn
+     * before testing, in the same order as when testing one round at a time,
+     * and the results are written in the order of the combinations, so the
+     * output does not depend on the number of threads.
+     */
     public void run() throws IOException {
-        for (int d = 0; d < m_gg.length; d++) {
-            // now test all triples
-            SNPLoader snpLoader = m_gg[d].getGenotypeData().createSNPLoader();
-            int[] indWGA = m_gg[d].getExpressionToGenotypeIdArray();
-
-            for (int perm = 0; perm < m_settings.nrPermutationsFDR + 1; perm++) {
-                String outfile;
-                if (perm == 0) {
-                    outfile = outDir + m_gg[d].getSettings().name + "_IVAnalysis-RealData.txt";
-                } else {
-                    outfile = outDir + m_gg[d].getSettings().name + "_IVAnalysis-PermutationRound-" + perm + ".txt";
-                    m_gg[d].permuteSampleLables(m_settings.randomNumberGenerator);
-                }
-                TextFile out = new TextFile(outfile, TextFile.W);
-                Iterator<Triple<String, String, String>> it = snpProbeCombos.iterator();
-                Triple<String, String, String> next = it.next();
-                ProgressBar pb = new ProgressBar(snpProbeCombos.size(), "Running IV Analysis - Permutation " + perm);
-//                out.writeln("SNP\tSNPId\tCisProbe\tCisProbeId\tCisGeneName\tTransProbe\tTransProbeId\tTransGeneName\tSNPTrans-Beta\tSNPTrans-Alpha\tSNPTrans-SE\tCisTrans-Beta\tCisTrans-Alpha\tCisTrans-SE\tIV-Beta\tIV-Alpha\tIV-SE\tcorcistrans\tr2cistrans\tcorResCisResTrans\tr2rescisrestrans\tcorCisResTrans\tcorSNPTrans\tcorSNPResTrans\tcorrSNPResCisResTrans");
-                out.writeln("SNP\t"
-                        + "CisArrayAddress\t"
-                        + "CisGeneName"
-                        + "TransArrayAddress\t"
-                        + "TransGeneName"
-                        + "cisEQTL\t"
-                        + "r2cisEQTL\t"
-                        + "transEQTL\t"
-                        + "r2TransEQTL\t"
-                        + "corCisTrans\t"
-                        + "r2CisTrans\t"
-                        + "corResCisResTrans\t"
-                        + "r2ResCisResTrans\t"
-                        + "IV-Beta\t"
-                        + "IV-SE");
-                while (next != null) {
-                    String snp = next.getLeft();
-                    String cisprobe = next.getMiddle();
-                    String transprobe = next.getRight();
-
-                    Integer snpId = m_gg[d].getGenotypeData().getSnpToSNPId().get(snp);
-                    Integer cisProbeId = m_gg[d].getExpressionData().getProbeToId().get(cisprobe);
-                    Integer transProbeId = m_gg[d].getExpressionData().getProbeToId().get(transprobe);
-
-                    if (snpId == -9 || cisProbeId == -9 || transProbeId == -9) {
-//                        out.writeln(snp + "\t" + snpId + "\t" + cisprobe + "\t" + cisProbeId + "\t" + null + "\t" + transprobe + "\t" + transProbeId + "\t" + null + "\t" + null + "\t" + null + "\t" + null + "\t" + null + "\tNA\tNA\tNA\tNA\tNA\tNA\tNA\tNA\tNA\tNA");
+        int nrThreads = (m_settings.nrThreads == null || m_settings.nrThreads < 1) ? Runtime.getRuntime().availableProcessors() : m_settings.nrThreads;
+        ExecutorService threadPool = Executors.newFixedThreadPool(nrThreads);
+        ArrayList<Triple<String, String, String>> combos = new ArrayList<Triple<String, String, String>>(snpProbeCombos);
+        try {
+            for (int d = 0; d < m_gg.length; d++) {
+                final TriTyperGeneticalGenomicsDataset ds = m_gg[d];
+                int nrRounds = m_settings.nrPermutationsFDR + 1;
+                final int[][] indWGAPerRound = new int[nrRounds][];
+                TextFile[] outs = new TextFile[nrRounds];
+                for (int perm = 0; perm < nrRounds; perm++) {
+                    String outfile;
+                    if (perm == 0) {
+                        outfile = outDir + ds.getSettings().name + "_IVAnalysis-RealData.txt";
                     } else {
+                        outfile = outDir + ds.getSettings().name + "_IVAnalysis-PermutationRound-" + perm + ".txt";
+                        ds.permuteSampleLables(m_settings.randomNumberGenerator);
+                    }
+                    indWGAPerRound[perm] = ds.getExpressionToGenotypeIdArray();
+                    outs[perm] = new TextFile(outfile, TextFile.W);
+                    outs[perm].writeln(getHeader());
+                }
 
-                        SNP snpObj = m_gg[d].getGenotypeData().getSNPObject(snpId);
-                        snpLoader.loadGenotypes(snpObj);
-                        snpLoader.loadDosage(snpObj);
-
-
-
-                        double[] origCisVals = m_gg[d].getExpressionData().getMatrix()[cisProbeId];
-                        double[] origTransVals = m_gg[d].getExpressionData().getMatrix()[transProbeId];
-
-                        int nrequal = 0;
-                        int calledGenotypes = 0;
-                        for (int i = 0; i < m_gg[d].getExpressionData().getIndividuals().length; i++) {
-                            int genotypeId = indWGA[i];
-                            short gt = snpObj.getGenotypes()[genotypeId];
-//                            if(m_gg[d].getExpressionData().getIndividuals()[i].equals(m_gg[d].getGenotypeData().getIndividuals()[genotypeId])){
-//                                nrequal++;
-//                            }
-//                            System.out.println(m_gg[d].getExpressionData().getIndividuals()[i] + "\t" + m_gg[d].getGenotypeData().getIndividuals()[genotypeId]);
-                            if (genotypeId > -1 && gt > -1) {
-                                calledGenotypes++;
-
-                            }
+                // every thread reads the genotypes with its own loader
+                final List<SNPLoader> snpLoaders = Collections.synchronizedList(new ArrayList<SNPLoader>());
+                final ThreadLocal<SNPLoader> snpLoader = new ThreadLocal<SNPLoader>() {
+                    @Override
+                    protected SNPLoader initialValue() {
+                        try {
+                            SNPLoader loader = ds.getGenotypeData().createSNPLoader();
+                            snpLoaders.add(loader);
+                            return loader;
+                        } catch (IOException e) {
+                            throw new RuntimeException(e);
                         }
-//                        System.out.println(nrequal+" inds equal..");
-
-
-                        double[] genotypes = new double[calledGenotypes];
-                        double[] cisvals = new double[calledGenotypes];
-                        double[] transvals = new double[calledGenotypes];
-
-                        calledGenotypes = 0;
-                        for (int i = 0; i < m_gg[d].getExpressionData().getIndividuals().length; i++) {
-                            int genotypeId = indWGA[i];
-                            short gt = snpObj.getGenotypes()[genotypeId];
-                            if (genotypeId > -1 && gt > -1) {
-                                genotypes[calledGenotypes] = snpObj.getDosageValues()[genotypeId];
-                                cisvals[calledGenotypes] = origCisVals[i];
-                                transvals[calledGenotypes] = origTransVals[i];
-                                calledGenotypes++;
+                    }
+                };
+
+                ProgressBar pb = new ProgressBar(combos.size(), "Running " + getAnalysisName() + " - " + (nrRounds - 1) + " permutations");
+                ArrayDeque<Future<String[][]>> submitted = new ArrayDeque<Future<String[][]>>();
+                int tested = 0;
+                try {
+                    for (int start = 0; start < combos.size() || !submitted.isEmpty(); start += BATCH_SIZE) {
+                        if (start < combos.size()) {
+                            final List<Triple<String, String, String>> batch = combos.subList(start, Math.min(start + BATCH_SIZE, combos.size()));
+                            submitted.add(threadPool.submit(new Callable<String[][]>() {
+                                @Override
+                                public String[][] call() throws IOException {
+                                    return test(ds, snpLoader.get(), indWGAPerRound, batch);
+                                }
+                            }));
+                        }
+                        // write finished batches in order, keeping a bounded number of batches in memory
+                        while (!submitted.isEmpty() && (submitted.size() >= 4 * nrThreads || start + BATCH_SIZE >= combos.size())) {
+                            String[][] lines = submitted.poll().get();
+                            for (int perm = 0; perm < nrRounds; perm++) {
+                                for (String line : lines[perm]) {
+                                    if (line != null) {
+                                        outs[perm].writeln(line);
+                                    }
+                                }
                             }
+                            tested += lines[0].length;
+                            pb.set(tested);
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof IOException) {
+                        throw (IOException) e.getCause();
+                    }
+                    throw new RuntimeException(e.getCause());
+                } finally {
+                    pb.close();
+                    for (TextFile out : outs) {
+                        out.close();
+                    }
+                    // the loaders are only closed after all batches of this dataset are done
+                    synchronized (snpLoaders) {
+                        for (SNPLoader loader : snpLoaders) {
+                            loader.close();
                         }
+                    }
+                }
+            }
+        } finally {
+            threadPool.shutdown();
+        }
+    }
+
+    /**
+     * Tests a batch of SNP-cis-trans combinations in all rounds.
+     *
+     * @return the output lines per round and combination, null for
+     * combinations not in the dataset
+     */
+    private String[][] test(TriTyperGeneticalGenomicsDataset ds, SNPLoader snpLoader, int[][] indWGAPerRound, List<Triple<String, String, String>> batch) throws IOException {
+        String[][] lines = new String[indWGAPerRound.length][batch.size()];
+        double[][] expression = ds.getExpressionData().getMatrix();
+        for (int t = 0; t < batch.size(); t++) {
+            Triple<String, String, String> next = batch.get(t);
+            String snp = next.getLeft();
+            String cisprobe = next.getMiddle();
+            String transprobe = next.getRight();
+
+            Integer snpId = ds.getGenotypeData().getSnpToSNPId().get(snp);
+            Integer cisProbeId = ds.getExpressionData().getProbeToId().get(cisprobe);
+            Integer transProbeId = ds.getExpressionData().getProbeToId().get(transprobe);
+
+            if (snpId == -9 || cisProbeId == -9 || transProbeId == -9) {
+                continue;
+            }
 
+            SNP snpObj = ds.getGenotypeData().getSNPObject(snpId);
+            snpLoader.loadGenotypes(snpObj);
+            if (snpLoader.hasDosageInformation()) {
+                snpLoader.loadDosage(snpObj);
+            }
+            byte[] snpGenotypes = snpObj.getGenotypes();
+            double[] dosages = snpObj.getDosageValues();
+
+            double[] origCisVals = expression[cisProbeId];
+            double[] origTransVals = expression[transProbeId];
+
+            for (int perm = 0; perm < indWGAPerRound.length; perm++) {
+                int[] indWGA = indWGAPerRound[perm];
+                int calledGenotypes = 0;
+                for (int i = 0; i < indWGA.length; i++) {
+                    int genotypeId = indWGA[i];
+                    if (genotypeId > -1 && snpGenotypes[genotypeId] > -1) {
+                        calledGenotypes++;
+                    }
+                }
 
+                double[] genotypes = new double[calledGenotypes];
+                double[] cisvals = new double[calledGenotypes];
+                double[] transvals = new double[calledGenotypes];
+
+                calledGenotypes = 0;
+                for (int i = 0; i < indWGA.length; i++) {
+                    int genotypeId = indWGA[i];
+                    if (genotypeId > -1 && snpGenotypes[genotypeId] > -1) {
+                        genotypes[calledGenotypes] = dosages[genotypeId];
+                        cisvals[calledGenotypes] = origCisVals[i];
+                        transvals[calledGenotypes] = origTransVals[i];
+                        calledGenotypes++;
+                    }
+                }
 
+                lines[perm][t] = test(ds, snpObj, snp, cisprobe, cisProbeId, transprobe, transProbeId, genotypes, cisvals, transvals);
+            }
+            snpObj.clearGenotypes();
+        }
+        return lines;
+    }
 
-                        double corrCisTrans = JSci.maths.ArrayMath.correlation(cisvals, transvals);
+    protected String getAnalysisName() {
+        return "IV Analysis";
+    }
 
-                        double[] snpCisRCs = Regression.getLinearRegressionCoefficients(genotypes, cisvals);
-                        double[] snpTransRCs = Regression.getLinearRegressionCoefficients(genotypes, transvals);
+    protected String getHeader() {
+//        return "SNP\tSNPId\tCisProbe\tCisProbeId\tCisGeneName\tTransProbe\tTransProbeId\tTransGeneName\tSNPTrans-Beta\tSNPTrans-Alpha\tSNPTrans-SE\tCisTrans-Beta\tCisTrans-Alpha\tCisTrans-SE\tIV-Beta\tIV-Alpha\tIV-SE\tcorcistrans\tr2cistrans\tcorResCisResTrans\tr2rescisrestrans\tcorCisResTrans\tcorSNPTrans\tcorSNPResTrans\tcorrSNPResCisResTrans";
+        return "SNP\t"
+                + "CisArrayAddress\t"
+                + "CisGeneName"
+                + "TransArrayAddress\t"
+                + "TransGeneName"
+                + "cisEQTL\t"
+                + "r2cisEQTL\t"
+                + "transEQTL\t"
+                + "r2TransEQTL\t"
+                + "corCisTrans\t"
+                + "r2CisTrans\t"
+                + "corResCisResTrans\t"
+                + "r2ResCisResTrans\t"
+                + "IV-Beta\t"
+                + "IV-SE";
+    }
 
-                        double[] resCis = new double[cisvals.length];
-                        double[] resTrans = new double[cisvals.length];
-                        for (int i = 0; i < resCis.length; i++) {
-                            resCis[i] = cisvals[i] - snpCisRCs[0] * genotypes[i];
-                            resTrans[i] = transvals[i] - snpTransRCs[0] * genotypes[i];
-                        }
+    /**
+     * Tests one SNP-cis-trans combination in one round, called from multiple
+     * threads.
+     *
+     * @param genotypes dosages of the samples with a called genotype
+     * @param cisvals cis probe expression of the same samples
+     * @param transvals trans probe expression of the same samples
+     * @return the output line
+     */
+    protected String test(TriTyperGeneticalGenomicsDataset ds, SNP snpObj, String snp, String cisprobe, int cisProbeId, String transprobe, int transProbeId, double[] genotypes, double[] cisvals, double[] transvals) {
+        double corrCisTrans = JSci.maths.ArrayMath.correlation(cisvals, transvals);
+
+        double[] snpCisRCs = Regression.getLinearRegressionCoefficients(genotypes, cisvals);
+        double[] snpTransRCs = Regression.getLinearRegressionCoefficients(genotypes, transvals);
+
+        double[] resCis = new double[cisvals.length];
+        double[] resTrans = new double[cisvals.length];
+        for (int i = 0; i < resCis.length; i++) {
+            resCis[i] = cisvals[i] - snpCisRCs[0] * genotypes[i];
+            resTrans[i] = transvals[i] - snpTransRCs[0] * genotypes[i];
+        }
 
-                        double corrResCisResTrans = JSci.maths.ArrayMath.correlation(resCis, resTrans);
+        double corrResCisResTrans = JSci.maths.ArrayMath.correlation(resCis, resTrans);
 
 
 
-                        double[] cisTransRCs = Regression.getLinearRegressionCoefficients(cisvals, transvals);
-                        double[] resCisTransRCs = Regression.getLinearRegressionCoefficients(resCis, transvals);
-                        double[] resCisTrans = new double[cisvals.length];
-                        double[] resResCisTrans = new double[cisvals.length];
-                        for (int i = 0; i < resCisTrans.length; i++) {
-                            resCisTrans[i] = transvals[i] - (cisTransRCs[0] * cisvals[i]);
-                            resResCisTrans[i] = transvals[i] - (resCisTransRCs[0] * cisvals[i]);
-                        }
+        double[] cisTransRCs = Regression.getLinearRegressionCoefficients(cisvals, transvals);
+        double[] resCisTransRCs = Regression.getLinearRegressionCoefficients(resCis, transvals);
+        double[] resCisTrans = new double[cisvals.length];
+        double[] resResCisTrans = new double[cisvals.length];
+        for (int i = 0; i < resCisTrans.length; i++) {
+            resCisTrans[i] = transvals[i] - (cisTransRCs[0] * cisvals[i]);
+            resResCisTrans[i] = transvals[i] - (resCisTransRCs[0] * cisvals[i]);
+        }
 
-                        double corrCisResTrans = Correlation.correlate(cisvals, resCisTrans);
+        double corrCisResTrans = Correlation.correlate(cisvals, resCisTrans);
 
-                        double transEQTL = Correlation.correlate(genotypes, transvals);
-                        double corrSNPResTrans = Correlation.correlate(genotypes, resCisTrans);
-                        double corrSNPResCisResTrans = Correlation.correlate(genotypes, resResCisTrans);
+        double transEQTL = Correlation.correlate(genotypes, transvals);
+        double corrSNPResTrans = Correlation.correlate(genotypes, resCisTrans);
+        double corrSNPResCisResTrans = Correlation.correlate(genotypes, resResCisTrans);
 
 
-//                        if (snp.equals("rs12718597") && transprobe.equals("4900309")) {
-////                            for (int i = 0; i < genotypes.length; i++) {
-////                                System.out.println(genotypes[i] + "\t" + cisvals[i] + "\t" + transvals[i]);
-////                            }
-//                            double[] result = TwoStepLeastSquares.tsls(transvals, cisvals, genotypes, true);
-//                            System.exit(0);
-//                        }
+//        if (snp.equals("rs12718597") && transprobe.equals("4900309")) {
+////            for (int i = 0; i < genotypes.length; i++) {
+////                System.out.println(genotypes[i] + "\t" + cisvals[i] + "\t" + transvals[i]);
+////            }
+//            double[] result = TwoStepLeastSquares.tsls(transvals, cisvals, genotypes, true);
+//            System.exit(0);
+//        }
 
-//                        double m1 = JSci.maths.ArrayMath.mean(genotypes);
-//                        double m2 = JSci.maths.ArrayMath.mean(transvals);
-//                        double m3 = JSci.maths.ArrayMath.mean(cisvals);
+//        double m1 = JSci.maths.ArrayMath.mean(genotypes);
+//        double m2 = JSci.maths.ArrayMath.mean(transvals);
+//        double m3 = JSci.maths.ArrayMath.mean(cisvals);
 //
-//                        double s1 = JSci.maths.ArrayMath.standardDeviation(genotypes);
-//                        double s2 = JSci.maths.ArrayMath.standardDeviation(transvals);
-//                        double s3 = JSci.maths.ArrayMath.standardDeviation(cisvals);
+//        double s1 = JSci.maths.ArrayMath.standardDeviation(genotypes);
+//        double s2 = JSci.maths.ArrayMath.standardDeviation(transvals);
+//        double s3 = JSci.maths.ArrayMath.standardDeviation(cisvals);
 //
-//                        for (int i = 0; i < genotypes.length; i++) {
-//                            genotypes[i] -= m1;
-//                            genotypes[i] /= s1;
+//        for (int i = 0; i < genotypes.length; i++) {
+//            genotypes[i] -= m1;
+//            genotypes[i] /= s1;
 //
-//                            transvals[i] -= m2;
-//                            transvals[i] /= s2;
+//            transvals[i] -= m2;
+//            transvals[i] /= s2;
 //
-//                            cisvals[i] -= m3;
-//                            cisvals[i] /= s3;
-//                        }
+//            cisvals[i] -= m3;
+//            cisvals[i] /= s3;
+//        }
 //
-//                        RankDoubleArray rda = new RankDoubleArray();
-//                        genotypes = rda.rank(genotypes);
-//                        cisvals = rda.rank(cisvals);
-//                        transvals = rda.rank(transvals);
-
-                        // we now have all the values we need.. perform two-step OLS
-
-                        // perform regression of snp against trans probe
-//                        double[] stats = Regression.getLinearRegressionCoefficients(genotypes, transvals);
-//                        double[] stats2 = Regression.getLinearRegressionCoefficients(cisvals, transvals);
-
-                        double[] result = TwoStepLeastSquares.tsls(transvals, cisvals, genotypes);
-
-                        double cisEQTL = Correlation.correlate(genotypes, cisvals);
-
-//                        out.writeln(snp + "\t" + snpId + "\t" + cisprobe + "\t" + cisProbeId + "\t" + m_gg[d].getExpressionData().getAnnotation()[cisProbeId] + "\t" + transprobe + "\t" + transProbeId + "\t" + m_gg[d].getExpressionData().getAnnotation()[transProbeId] + "\t" + stats[0] + "\t" + stats[1] + "\t" + stats[2] + "\t" + stats2[0] + "\t" + stats2[1] + "\t" + stats2[2] + "\t" + result[0] + "\t" + result[1] + "\t" + result[2] + "\t" + corrCisTrans + "\t" + r2CisTrans + "\t" + corrResCisResTrans + "\t" + r2ResCisResTrans + "\t" + corrCisResTrans + "\t" + corSNPTrans + "\t" + corrSNPResTrans+"\t"+corrSNPResCisResTrans);
-
-                        out.write(snp
-                                + "\t" + cisprobe
-                                + "\t" + m_gg[d].getExpressionData().getAnnotation()[cisProbeId]
-                                + "\t" + transprobe
-                                + "\t" + m_gg[d].getExpressionData().getAnnotation()[transProbeId]
-                                + "\t" + cisEQTL
-                                + "\t" + (cisEQTL * cisEQTL)
-                                + "\t" + transEQTL
-                                + "\t" + (transEQTL * transEQTL)
-                                + "\t" + corrCisTrans
-                                + "\t" + (corrCisTrans * corrCisTrans)
-                                + "\t" + corrResCisResTrans
-                                + "\t" + (corrResCisResTrans * corrResCisResTrans)
-                                + "\t" + result[0]
-                                + "\t" + result[2]);
-                        snpObj.clearGenotypes();
-                    }
-
-                    if (it.hasNext()) {
-                        next = it.next();
-                    } else {
-                        next = null;
-                    }
-                    pb.iterate();
-                }
-                pb.close();
-                out.close();
-            }
-
-            snpLoader.close();
-
-
-        }
-
+//        RankDoubleArray rda = new RankDoubleArray();
+//        genotypes = rda.rank(genotypes);
+//        cisvals = rda.rank(cisvals);
+//        transvals = rda.rank(transvals);
+
+        // we now have all the values we need.. perform two-step OLS
+
+        // perform regression of snp against trans probe
+//        double[] stats = Regression.getLinearRegressionCoefficients(genotypes, transvals);
+//        double[] stats2 = Regression.getLinearRegressionCoefficients(cisvals, transvals);
+
+        double[] result = TwoStepLeastSquares.tsls(transvals, cisvals, genotypes);
+
+        double cisEQTL = Correlation.correlate(genotypes, cisvals);
+
+//        out.writeln(snp + "\t" + snpId + "\t" + cisprobe + "\t" + cisProbeId + "\t" + m_gg[d].getExpressionData().getAnnotation()[cisProbeId] + "\t" + transprobe + "\t" + transProbeId + "\t" + m_gg[d].getExpressionData().getAnnotation()[transProbeId] + "\t" + stats[0] + "\t" + stats[1] + "\t" + stats[2] + "\t" + stats2[0] + "\t" + stats2[1] + "\t" + stats2[2] + "\t" + result[0] + "\t" + result[1] + "\t" + result[2] + "\t" + corrCisTrans + "\t" + r2CisTrans + "\t" + corrResCisResTrans + "\t" + r2ResCisResTrans + "\t" + corrCisResTrans + "\t" + corSNPTrans + "\t" + corrSNPResTrans+"\t"+corrSNPResCisResTrans);
+
+        return snp
+                + "\t" + cisprobe
+                + "\t" + ds.getExpressionData().getAnnotation()[cisProbeId]
+                + "\t" + transprobe
+                + "\t" + ds.getExpressionData().getAnnotation()[transProbeId]
+                + "\t" + cisEQTL
+                + "\t" + (cisEQTL * cisEQTL)
+                + "\t" + transEQTL
+                + "\t" + (transEQTL * transEQTL)
+                + "\t" + corrCisTrans
+                + "\t" + (corrCisTrans * corrCisTrans)
+                + "\t" + corrResCisResTrans
+                + "\t" + (corrResCisResTrans * corrResCisResTrans)
+                + "\t" + result[0]
+                + "\t" + result[2];
     }
 }
@@ -20,6 +20,7 @@ public class IVConsoleGUI {
         boolean cis = false;
         boolean trans = false;
         int perm = 1;
+        Integer threads = null;
 
         String inexp = null;
         String inexpplatform = null;
@@ -64,6 +65,12 @@ public class IVConsoleGUI {
                 } catch (NumberFormatException e) {
                     System.out.println("Please supply an integer for --perm");
                 }
+            } else if (arg.equals("--threads")) {
+                try {
+                    threads = Integer.parseInt(val);
+                } catch (NumberFormatException e) {
+                    System.out.println("Please supply an integer for --threads");
+                }
             }
         }
 
@@ -74,9 +81,15 @@ public class IVConsoleGUI {
             } else {
                 if (mediation) {
                     Mediation iv = new Mediation(settingsfile, in, inexp, inexpplatform, inexpannot, gte, out, perm, snpProbeCombinationList, parametric);
+                    if (threads != null) {
+                        iv.setNrThreads(threads);
+                    }
                     iv.run();
                 } else {
                     IVAnalysis iv = new IVAnalysis(settingsfile, in, inexp, inexpplatform, inexpannot, gte, out, perm, snpProbeCombinationList, parametric);
+                    if (threads != null) {
+                        iv.setNrThreads(threads);
+                    }
                     iv.run();
                 }
             }
@@ -97,6 +110,7 @@ public class IVConsoleGUI {
         System.out.println("--in\t\t\tdir\t\tLocation of the genotype data\n"
                 + "--out\t\t\tdir\t\tLocation where the output should be stored\n"
                 + "--perm\t\t\tint\t\tNumber of permutations to perform\n"
+                + "--threads\t\tint\t\tNumber of threads (default: number of processors)\n"
                 + "--inexp\t\t\tstring\t\tLocation of expression data\n"
                 + "--inexpplatform\t\tstring\t\tGene expression platform\n"
                 + "--inexpannot\t\tstring\t\tLocation of annotation file for gene expression data\n"
@@ -37,6 +37,7 @@ public class ConditionalAnalysisConsoleGUI {
         boolean skipalleqtlmap = false;
         boolean runSNPCentric = false;
         boolean limitConseqcutiveIterationsOnSignificantGenes = true;
+        boolean keepResidualsInMemory = false;
         Integer startiter = 1;
         Integer stopiter = 2;
 
@@ -100,6 +101,8 @@ public class ConditionalAnalysisConsoleGUI {
                 iterativeConditionalLeaveOneOut = true;
             } else if (arg.equals("--dontlimitgenes")) {
                 limitConseqcutiveIterationsOnSignificantGenes = false;
+            } else if (arg.equals("--inmemory")) {
+                keepResidualsInMemory = true;
             } else if (arg.equals("--startiter")) {
                 try {
                     startiter = Integer.parseInt(val);
@@ -145,6 +148,7 @@ public class ConditionalAnalysisConsoleGUI {
                     IterativeConditionalAnalysis m = new IterativeConditionalAnalysis();
                     m.setStartIter(startiter);
                     m.setLimitConsecutiveIterationsToSignificantGenes(limitConseqcutiveIterationsOnSignificantGenes);
+                    m.setKeepResidualsInMemory(keepResidualsInMemory);
                     m.run(settingsfile, settingstexttoreplace, settingstexttoreplacewith, in, inexp, inexpplatform, inexpannot, gte, out, cis, trans, perm, textout, binout, snpfile, threads);
                 } else {
                     ConditionalAnalysis m = new ConditionalAnalysis();
@@ -180,6 +184,7 @@ public class ConditionalAnalysisConsoleGUI {
                 + "--replacetext\t\ttext\t\tText to replace in settings file\n"
                 + "--replacetextwith\ttext\t\tReplace the text in the settings file, defined by --replacetext with the following text (can be empty)\n"
                 + "--iterative\t\tPerform conditional analysis in iterations.\n"
+                + "--inmemory\t\tFor use with --iterative: keep the residual expression data in memory between iterations\n"
                 + "--iterativeleaveoneout\t\tDump all associations for significant genes, conditional on --startiter and --stopiter.\n"
                 + "--startiter\t\tint\t\tStart iterative analysis at this iteration\n"
                 + "--stoptiter\t\tint\t\tStop iterative analysis at this iteration\n"
@@ -7,6 +7,8 @@ package eqtlmappingpipeline.conditionalanalysis;
 import eqtlmappingpipeline.metaqtl3.EQTLRegression;
 import eqtlmappingpipeline.metaqtl3.FDR;
 import eqtlmappingpipeline.metaqtl3.MetaQTL3;
+import gnu.trove.map.hash.THashMap;
+import gnu.trove.map.hash.TObjectIntHashMap;
 import gnu.trove.set.hash.THashSet;
 import umcg.genetica.console.ConsoleGUIElems;
 import umcg.genetica.containers.Pair;
@@ -20,7 +22,9 @@ import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Map;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.IntStream;
 
@@ -31,6 +35,12 @@ public class IterativeConditionalAnalysis extends MetaQTL3 {
 
 
     private boolean limitConsecutiveIterationsOnSignificantGenes = true;
+    private boolean keepResidualsInMemory = false;
+
+    // in memory mode: per dataset the expression of each probe before any eQTL was regressed out
+    private ArrayList<THashMap<String, double[]>> unregressedExpression = null;
+    // in memory mode: the eQTLs that are currently regressed out of each probe
+    private HashMap<String, HashSet<Pair<String, String>>> regressedEQTLsPerProbe = null;
 
     public static void main(String[] args) {
 
@@ -97,6 +107,25 @@ public class IterativeConditionalAnalysis extends MetaQTL3 {
             tf.close();
         }
 
+        if (keepResidualsInMemory && m_settings.permuteCovariates) {
+            for (TriTyperGeneticalGenomicsDataset ds : m_gg) {
+                if (ds.getCovariateData() != null) {
+                    System.out.println("Permuted covariates can not be restored in memory, will reload the datasets for each iteration.");
+                    keepResidualsInMemory = false;
+                    break;
+                }
+            }
+        }
+
+        if (keepResidualsInMemory) {
+            System.out.println("Keeping residual expression data in memory between iterations.");
+            unregressedExpression = new ArrayList<THashMap<String, double[]>>(m_gg.length);
+            for (int d = 0; d < m_gg.length; d++) {
+                unregressedExpression.add(new THashMap<String, double[]>());
+            }
+            regressedEQTLsPerProbe = new HashMap<String, HashSet<Pair<String, String>>>();
+        }
+
         EQTLRegression eqr = new EQTLRegression();
         while (prevIterHasSignResults) {
             m_settings.outputReportsDir = origOutputDir + "/Iteration" + iteration + "/";
@@ -157,20 +186,34 @@ public class IterativeConditionalAnalysis extends MetaQTL3 {
                         m_settings.tsProbesConfine = originalProbeConfine;
                     }
 
-                    // reset the datasets
-                    reinit();
-
-                    // regress significant eQTLs
-                    try {
-                        eqr.setLog(m_settings.outputReportsDir, iteration);
-                        eqr.regressOutEQTLEffects(toRegress, m_gg, useOLS);
-                    } catch (Exception e) {
-                        e.printStackTrace();
-                        System.exit(-1);
+                    if (keepResidualsInMemory) {
+                        // undo the permutations of the previous iteration and only update the residuals of probes with new eQTLs
+                        resetSampleCouplings();
+                        try {
+                            eqr.setLog(m_settings.outputReportsDir, iteration);
+                            updateResiduals(toRegress, eqr);
+                        } catch (Exception e) {
+                            e.printStackTrace();
+                            System.exit(-1);
+                        }
+                        createWorkPackages();
+                    } else {
+                        // reset the datasets
+                        reinit();
+
+                        // regress significant eQTLs
+                        try {
+                            eqr.setLog(m_settings.outputReportsDir, iteration);
+                            eqr.regressOutEQTLEffects(toRegress, m_gg, useOLS);
+                        } catch (Exception e) {
+                            e.printStackTrace();
+                            System.exit(-1);
+                        }
                     }
 
                     if (saveIntermediateResiduals) {
-                        exportResidualsToDisk(origOutputDir, iteration);
+                        // in memory all probes are loaded, export the same probes as when reloading
+                        exportResidualsToDisk(origOutputDir, iteration, keepResidualsInMemory ? m_settings.tsProbesConfine : null);
                     }
 
                     numAvailableInds = 0;
@@ -206,6 +249,12 @@ public class IterativeConditionalAnalysis extends MetaQTL3 {
 
         if (toRegress.isEmpty()) {
             System.out.println("No significant eQTLs found, and thus no need to save residual gene expression matrix.");
+        } else if (keepResidualsInMemory && originalProbeConfine == null) {
+            // all probes are already in memory
+            m_settings.tsProbesConfine = null;
+            resetSampleCouplings();
+            updateResiduals(toRegress, eqr);
+            exportResidualsToDisk(origOutputDir, 0, null);
         } else {
             // get the significant probes from the previous run
             m_settings.tsProbesConfine = null;
@@ -228,17 +277,29 @@ public class IterativeConditionalAnalysis extends MetaQTL3 {
             eqr.regressOutEQTLEffects(toRegress, m_gg, useOLS);
 
             // save the output
-            exportResidualsToDisk(origOutputDir, 0);
+            exportResidualsToDisk(origOutputDir, 0, null);
         }
     }
 
-    private void exportResidualsToDisk(String origOutputDir, int iter) throws Exception {
+    private void exportResidualsToDisk(String origOutputDir, int iter, THashSet<String> probeConfine) throws Exception {
         for (int d = 0; d < m_gg.length; d++) {
             TriTyperGeneticalGenomicsDataset ds = m_gg[d];
             TriTyperExpressionData dsexp = ds.getExpressionData();
             double[][] matrix = dsexp.getMatrix();
             String[] probes = dsexp.getProbes();
             String[] individuals = dsexp.getIndividuals();
+            if (probeConfine != null) {
+                ArrayList<String> confinedProbes = new ArrayList<String>();
+                ArrayList<double[]> confinedRows = new ArrayList<double[]>();
+                for (int p = 0; p < probes.length; p++) {
+                    if (probeConfine.contains(probes[p])) {
+                        confinedProbes.add(probes[p]);
+                        confinedRows.add(matrix[p]);
+                    }
+                }
+                probes = confinedProbes.toArray(new String[0]);
+                matrix = confinedRows.toArray(new double[0][]);
+            }
             String filename = ds.getSettings().expressionLocation;
             File f = new File(filename);
             String fname = f.getName();
@@ -306,6 +367,10 @@ public class IterativeConditionalAnalysis extends MetaQTL3 {
             numAvailableInds = avinds.get();
         }
 
+        createWorkPackages();
+    }
+
+    private void createWorkPackages() throws IOException {
         System.out.println(ConsoleGUIElems.LINE);
         System.out.println("");
 
@@ -339,6 +404,81 @@ public class IterativeConditionalAnalysis extends MetaQTL3 {
         printSummary();
     }
 
+    /**
+     * Undoes the permutation of the sample labels done by the previous
+     * iteration.
+     */
+    private void resetSampleCouplings() throws IOException {
+        numAvailableInds = 0;
+        for (TriTyperGeneticalGenomicsDataset ds : m_gg) {
+            ds.resetGenotypeToExpressionCouplings();
+            ds.pruneGenotypeToExpressionCouplings();
+            numAvailableInds += ds.getExpressionToGenotypeIdArray().length;
+        }
+    }
+
+    /**
+     * Brings the in memory residuals up to date with the eQTLs to regress.
+     * The residuals of a probe only depend on its own expression and its own
+     * set of eQTLs, so only probes that gained an eQTL since the previous
+     * iteration are restored to their original expression and regressed
+     * again, with all their eQTLs. This gives the same residuals as reloading
+     * the data and regressing all eQTLs.
+     */
+    private void updateResiduals(ArrayList<Pair<String, String>> toRegress, EQTLRegression eqr) throws IOException {
+
+        HashMap<String, HashSet<Pair<String, String>>> eqtlsPerProbe = new HashMap<String, HashSet<Pair<String, String>>>();
+        for (Pair<String, String> eqtl : toRegress) {
+            HashSet<Pair<String, String>> probeEQTLs = eqtlsPerProbe.get(eqtl.getRight());
+            if (probeEQTLs == null) {
+                probeEQTLs = new HashSet<Pair<String, String>>();
+                eqtlsPerProbe.put(eqtl.getRight(), probeEQTLs);
+            }
+            probeEQTLs.add(eqtl);
+        }
+
+        HashSet<String> changedProbes = new HashSet<String>();
+        for (Map.Entry<String, HashSet<Pair<String, String>>> entry : eqtlsPerProbe.entrySet()) {
+            if (!entry.getValue().equals(regressedEQTLsPerProbe.get(entry.getKey()))) {
+                changedProbes.add(entry.getKey());
+            }
+        }
+
+        // keep the order of the full list, so each probe gets the same model as when regressing everything
+        ArrayList<Pair<String, String>> changedEQTLs = new ArrayList<Pair<String, String>>();
+        for (Pair<String, String> eqtl : toRegress) {
+            if (changedProbes.contains(eqtl.getRight())) {
+                changedEQTLs.add(eqtl);
+            }
+        }
+
+        for (int d = 0; d < m_gg.length; d++) {
+            TriTyperExpressionData dsexp = m_gg[d].getExpressionData();
+            double[][] matrix = dsexp.getMatrix();
+            TObjectIntHashMap<String> probeToId = dsexp.getProbeToId();
+            for (String probe : changedProbes) {
+                if (probeToId.containsKey(probe)) {
+                    double[] row = matrix[probeToId.get(probe)];
+                    double[] unregressed = unregressedExpression.get(d).get(probe);
+                    if (unregressed == null) {
+                        unregressedExpression.get(d).put(probe, row.clone());
+                    } else {
+                        System.arraycopy(unregressed, 0, row, 0, row.length);
+                    }
+                }
+            }
+        }
+
+        System.out.println(changedProbes.size() + " of " + eqtlsPerProbe.size() + " probes have new eQTLs to regress.");
+        if (!changedEQTLs.isEmpty()) {
+            eqr.regressOutEQTLEffects(changedEQTLs, m_gg, useOLS);
+        }
+        for (String probe : changedProbes) {
+            regressedEQTLsPerProbe.put(probe, eqtlsPerProbe.get(probe));
+        }
+
+    }
+
     private ArrayList<Pair<String, String>> collectEQTLs(String origOutputDir, ArrayList<Pair<String, String>> originalToRegress, int currentIteration, double fdr) throws IOException {
 
         HashSet<Pair<String, String>> eqtls = new HashSet<Pair<String, String>>();
@@ -413,6 +553,14 @@ public class IterativeConditionalAnalysis extends MetaQTL3 {
         this.startIter = startiter;
     }
 
+    /**
+     * Keep the residual expression data in memory between iterations instead
+     * of reloading the datasets and regressing all eQTLs again.
+     */
+    public void setKeepResidualsInMemory(boolean keepResidualsInMemory) {
+        this.keepResidualsInMemory = keepResidualsInMemory;
+    }
+
     public void setLimitConsecutiveIterationsToSignificantGenes(boolean limitConseqcutiveIterationsOnSignificantGenes) {
         this.limitConsecutiveIterationsOnSignificantGenes = limitConseqcutiveIterationsOnSignificantGenes;
 
@@ -60,6 +60,7 @@ class CalculationThread extends Thread {
 	private boolean metaAnalyseInteractionTerms = false;
 	private boolean metaAnalyseModelCorrelationYHat = false;
 	private static DRand randomEngine = new cern.jet.random.tdouble.engine.DRand();
+	private boolean clearGenotypesAfterAnalysis = true;
 
 	CalculationThread(int i, LinkedBlockingQueue<WorkPackage> packageQueue, LinkedBlockingQueue<WorkPackage> resultQueue, TriTyperExpressionData[] expressiondata,
 					  DoubleMatrixDataset<String, String>[] covariates,
@@ -137,7 +138,15 @@ class CalculationThread extends Thread {
 		done = true;
 	}
 
-	private void analyze(WorkPackage wp) {
+	/**
+	 * When the same SNPs are analyzed by more than one CalculationThread, the
+	 * genotypes should only be cleared after the last one is done with them.
+	 */
+	void setClearGenotypesAfterAnalysis(boolean clearGenotypesAfterAnalysis) {
+		this.clearGenotypesAfterAnalysis = clearGenotypesAfterAnalysis;
+	}
+
+	void analyze(WorkPackage wp) {
 		testsPerformed = 0;
 		currentWP = wp;
 		wp.setNumTested(0);
@@ -319,7 +328,7 @@ class CalculationThread extends Thread {
 		}
 
 		snps = wp.getSnps();
-		if (snps != null) {
+		if (snps != null && clearGenotypesAfterAnalysis) {
 			for (SNP snp : snps) {
 				if (snp != null) {
 					snp.clearGenotypes();
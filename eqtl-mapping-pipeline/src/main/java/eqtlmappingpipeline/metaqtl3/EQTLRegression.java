@@ -5,6 +5,7 @@
 package eqtlmappingpipeline.metaqtl3;
 
 import cern.colt.matrix.tdouble.DoubleMatrix1D;
+import gnu.trove.map.hash.TObjectIntHashMap;
 import org.apache.commons.math3.linear.SingularMatrixException;
 import org.apache.commons.math3.stat.correlation.SpearmansCorrelation;
 import org.apache.commons.math3.stat.regression.OLSMultipleLinearRegression;
@@ -22,6 +23,9 @@ import umcg.genetica.util.RankDoubleArray;
 
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
 import java.util.stream.IntStream;
 
 /**
@@ -764,6 +768,11 @@ public class EQTLRegression {
     private int logiter = 1;
     private String logdir = null;
 
+    // genes regressed in parallel per batch; genotypes are loaded per batch and dropped when no later gene needs them
+    private static final int GENES_PER_BATCH = 1000;
+    private static final ThreadLocal<OLSMultipleLinearRegression> OLS_WORKSPACE = ThreadLocal.withInitial(OLSMultipleLinearRegression::new);
+    private static final ThreadLocal<double[]> Y_WORKSPACE = new ThreadLocal<>();
+
     public void setLog(String logdir, int iteration) {
         logiter = iteration;
         this.logdir = logdir;
@@ -808,415 +817,468 @@ public class EQTLRegression {
         //Remove multiple SNPs acting on one single probe:
         MultiThreadProgressBar pb = new MultiThreadProgressBar(gg.length);
 
-
-        // parallelize when multiple datasets present
-        IntStream.range(0, gg.length).parallel().forEach(d -> {
-//			HashSet<EQTL> hashEQTLsMultipleRegressionRegressedOut = new HashSet<EQTL>();
-            HashMap<Integer, Boolean> snpPassesQC = new HashMap<Integer, Boolean>();
-
+        // datasets one after the other, the genes of a dataset in parallel
+        for (int d = 0; d < gg.length; d++) {
             SNPLoader currentloader = ggSNPLoaders[d];
             TriTyperGeneticalGenomicsDataset currentDataset = gg[d];
-            String[] probes = currentDataset.getExpressionData().getProbes();
+            TObjectIntHashMap<String> snpToId = currentDataset.getGenotypeData().getSnpToSNPId();
             System.out.print("Dataset:\t" + currentDataset.getSettings().name);
-            pb.setSubtasks(d, hashProbesCovariates.size());
 
-            TextFile logout = null;
-            if (logdir != null) {
-                try {
-                    logout = new TextFile(logdir + currentDataset.getSettings().name + "-RegressionLog-Iteration" + logiter + ".txt.gz", TextFile.W);
-                    System.out.println("Logging dataset " + currentDataset.getSettings().name + " to " + logout.getFileName());
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            }
+            final RegressionLogWriter logout = createLogWriter(currentDataset);
 
-//			for (int p = 0; p < probes.length; p++) {
-            int qtlctr = 0;
+            // genes present in this dataset and the number of these genes that need each SNP
+            ArrayList<Map.Entry<String, ArrayList<EQTL>>> genes = new ArrayList<>();
+            HashMap<Integer, Integer> remainingSNPUses = new HashMap<>();
             for (Map.Entry<String, ArrayList<EQTL>> eqtl : hashProbesCovariates.entrySet()) {
                 String gene = eqtl.getKey();
-
-                // check whether gene is in dataset
-                Integer geneId = currentDataset.getExpressionData().getProbeToId().get(gene);
-                if (geneId == -9) {
+                if (currentDataset.getExpressionData().getProbeToId().get(gene) == -9) {
                     if (logout != null) {
-                        try {
-                            ArrayList<EQTL> covariatesForThisProbe = eqtl.getValue();
-                            for (EQTL e : covariatesForThisProbe) {
-                                logout.writeln(gene + "\t" + e.getRsName() + "\tGene not present");
-                            }
-                        } catch (IOException e) {
-                            e.printStackTrace();
+                        for (EQTL e : eqtl.getValue()) {
+                            logout.log(gene + "\t" + e.getRsName() + "\tGene not present");
                         }
                     }
                 } else {
-                    ArrayList<EQTL> covariatesForThisProbe = eqtl.getValue();
-                    ArrayList<EQTL> eventualListOfEQTLs = new ArrayList<EQTL>();
-                    ArrayList<SNP> snpsForProbe = new ArrayList<SNP>();
-                    ArrayList<double[]> xs = new ArrayList<double[]>();
+                    genes.add(eqtl);
+                    for (EQTL e : eqtl.getValue()) {
+                        int snpId = snpToId.get(e.getRsName());
+                        if (snpId >= 0) {
+                            remainingSNPUses.merge(snpId, 1, Integer::sum);
+                        }
+                    }
+                }
+            }
 
-                    // preload SNPs
-                    for (EQTL e : covariatesForThisProbe) {
-                        Integer snpId = currentDataset.getGenotypeData().getSnpToSNPId().get(e.getRsName());
+            pb.setSubtasks(d, genes.size());
+
+            final AtomicInteger genesRegressedOut = new AtomicInteger();
+            final AtomicInteger eqtlsRegressedOut = new AtomicInteger();
+            final AtomicIntegerArray explainedVariance = new AtomicIntegerArray(101);
+
+            // genotypes of the SNPs that pass QC, shared by all genes and loaded only once
+            final HashMap<Integer, double[]> genotypeCache = new HashMap<>();
+            HashSet<Integer> snpsFailingQC = new HashSet<>();
+
+            for (int start = 0; start < genes.size(); start += GENES_PER_BATCH) {
+                List<Map.Entry<String, ArrayList<EQTL>>> batch = genes.subList(start, Math.min(start + GENES_PER_BATCH, genes.size()));
+
+                // the SNP loader is not thread safe, load the new SNPs of this batch first
+                for (Map.Entry<String, ArrayList<EQTL>> eqtl : batch) {
+                    for (EQTL e : eqtl.getValue()) {
+                        int snpId = snpToId.get(e.getRsName());
                         if (snpId <= -1) {
                             if (logout != null) {
-                                try {
-                                    logout.writeln(gene + "\t" + e.getRsName() + "\tSNP not present");
-                                } catch (IOException ex) {
-                                    ex.printStackTrace();
-                                }
+                                logout.log(eqtl.getKey() + "\t" + e.getRsName() + "\tSNP not present");
                             }
-                        } else if (snpId >= 0 && (snpPassesQC.get(snpId) == null || snpPassesQC.get(snpId))) {
-                            // load SNP, if we have not seen it before
-                            SNP currentSNP = currentDataset.getGenotypeData().getSNPObject(snpId);
-                            try {
-                                currentloader.loadGenotypes(currentSNP);
-                            } catch (IOException ex) {
-                                ex.printStackTrace();
-                                System.exit(-1);
+                        } else if (!genotypeCache.containsKey(snpId) && !snpsFailingQC.contains(snpId)) {
+                            double[] x = loadGenotypesForRegression(currentDataset, currentloader, snpId, eqtl.getKey(), e.getRsName(), logout);
+                            if (x == null) {
+                                snpsFailingQC.add(snpId);
+                            } else {
+                                genotypeCache.put(snpId, x);
                             }
+                        }
+                    }
+                }
 
-                            if (currentloader.hasDosageInformation()) {
-                                try {
-                                    currentloader.loadDosage(currentSNP);
-                                } catch (IOException ex) {
-                                    ex.printStackTrace();
-                                    System.exit(-1);
-                                }
-                            }
+                batch.parallelStream().forEach(eqtl -> regressGene(currentDataset, eqtl.getKey(), eqtl.getValue(), genotypeCache, logout,
+                        genesRegressedOut, eqtlsRegressedOut, explainedVariance));
 
-                            if (!currentSNP.passesQC()) {
-                                if (logout != null) {
-                                    try {
-                                        logout.writeln(gene + "\t" + e.getRsName() + "\tSNP failed QC.\tMAF: " + currentSNP.getMAF() + "\tHWEP: " + currentSNP.getHWEP() + "\tCR: " + currentSNP.getCR());
-                                    } catch (IOException ex) {
-                                        ex.printStackTrace();
-                                    }
-                                }
-                                snpPassesQC.put(snpId, false);
-                                currentSNP.clearGenotypes();
+                // release the genotypes that are not needed by the remaining genes
+                for (Map.Entry<String, ArrayList<EQTL>> eqtl : batch) {
+                    for (EQTL e : eqtl.getValue()) {
+                        int snpId = snpToId.get(e.getRsName());
+                        if (snpId >= 0 && remainingSNPUses.merge(snpId, -1, Integer::sum) == 0) {
+                            genotypeCache.remove(snpId);
+                        }
+                    }
+                }
 
-                            } else {
-                                int[] indWGA = currentDataset.getExpressionToGenotypeIdArray();
+                pb.set(d, start + batch.size());
+                pb.display();
+            }
 
-                                double[] x = currentSNP.selectGenotypes(indWGA, true, true);
-                                double meanX = 0;
-                                int ctr = 0;
+            nrEQTLGenesRegressedOut[d] = genesRegressedOut.get();
+            nrEQTLsRegressedOut[d] = eqtlsRegressedOut.get();
+            for (int e = 0; e <= 100; e++) {
+                explainedVariancePerEQTLProbe[d][e] = explainedVariance.get(e);
+            }
 
-                                // calculate mean and variance for genotype, taking into account missing values, if any
+            pb.complete(d);
+            System.out.println("");
+            if (logout != null) {
+                try {
+                    logout.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+        pb.allCompleted();
 
-//								double[] xorig = new double[x.length];
-                                for (int i = 0; i < x.length; i++) {
-//									xorig[i] = x[i];
-                                    if (x[i] != -1) {
-                                        meanX += x[i];
-                                        ctr++;
-                                    }
-                                }
 
-                                meanX /= ctr;
+        for (int ds = 0; ds < gg.length; ds++) {
+//            gg[ds].getExpressionData().calcMeanAndVariance();
+            ggSNPLoaders[ds].close();
+            ggSNPLoaders[ds] = null;
+        }
 
-                                double varianceX = 0.0;
-                                for (int i = 0; i < x.length; i++) {
-                                    if (x[i] != -1) {
-                                        double xmeanx = x[i] - meanX;
-                                        varianceX += (xmeanx) * (xmeanx);
-                                    }
-                                }
-                                varianceX /= (ctr - 1);
+        System.out.println("\n");
+        System.out.println("eQTLs regressed per dataset:");
+        for (int d = 0; d < gg.length; d++) {
+            System.out.println(gg[d].getSettings().name + "\tGenes: " + nrEQTLGenesRegressedOut[d] + "\tTotal eQTLs: " + nrEQTLsRegressedOut[d]);
+        }
 
+        String output;
+        System.out.println("\n");
+        System.out.println("Proportion explained variance of genotypic variation on eQTLs per dataset:");
 
-                                if (varianceX == 0 || currentDataset.getTotalGGSamples() != x.length) {
-                                    if (logout != null) {
-                                        try {
-                                            logout.writeln(gene + "\t" + e.getRsName() + "\tSNP has zero variance or wrong nr of inds.\tVariance: " + varianceX + "\tinds: " + x.length + ", expected: " + currentDataset.getTotalGGSamples() + "\tMAF: " + currentSNP.getMAF() + "\tHWEP: " + currentSNP.getHWEP() + "\tCR: " + currentSNP.getCR());
-                                        } catch (IOException ex) {
-                                            ex.printStackTrace();
-                                        }
-                                    }
-                                    snpPassesQC.put(snpId, false);
-                                    currentSNP.clearGenotypes();
-                                } else {
-                                    // replace missing values with mean
-//									System.out.println("Meanx: " + meanX + "\tVarX: " + varianceX);
-//									System.out.println("Genotypes:");
-                                    for (int i = 0; i < x.length; i++) {
-                                        if (x[i] == -1) {
-                                            x[i] = meanX;
-                                        }
-//										System.out.println(i + "\t" + xorig[i] + "\t" + x[i]);
-//											if (x[i] != -1) {
-//												x[i] -= meanX;
-//											}
-//											else {
-//												x[i] = 0; // replace missing values with mean (which is now 0)
-//											}
-                                    }
-//									System.out.println();
-                                    eventualListOfEQTLs.add(e);
-                                    snpsForProbe.add(currentSNP);
-                                    xs.add(x);
-                                    snpPassesQC.put(snpId, true);
-                                }
-                            }
-                        }
 
-                    }
+        output = "r2";
+        for (TriTyperGeneticalGenomicsDataset gg1 : gg) {
+            output += "\t" + gg1.getSettings().name;
+        }
 
-                    // use OLS for both single variants as well as multiple variants.
-                    if (xs.isEmpty()) {
-                        if (logout != null) {
-                            try {
-                                logout.writeln(gene + "\thas 0 SNPs");
-                            } catch (IOException ex) {
-                                ex.printStackTrace();
-                            }
-                        }
-                    } else {
-                        // setup design matrix
-                        int nrIndividuals = xs.get(0).length;
-                        DoubleMatrixDataset<String, String> xcovars = new DoubleMatrixDataset<>(xs.size(), xs.get(0).length);
-                        for (int i = 0; i < nrIndividuals; i++) {
-                            xcovars.getHashCols().put("Ind" + i, i);
-                        }
+        System.out.println(output);
+        for (int e = 0; e <= 100; e++) {
+            double r2 = (double) e / 100;
+            output = String.valueOf(r2);
+            for (int d = 0; d < gg.length; d++) {
+                output += "\t" + explainedVariancePerEQTLProbe[d][e];
+            }
+            System.out.println(output);
+        }
+    }
 
-                        for (int i = 0; i < xs.size(); i++) {
-                            double[] vals = xs.get(i);
-                            xcovars.getRow(i).assign(vals);
-                            String snpid = snpsForProbe.get(i).getName();
-                            xcovars.getHashRows().put(snpid, i);
-                        }
+    private RegressionLogWriter createLogWriter(TriTyperGeneticalGenomicsDataset currentDataset) {
+        if (logdir == null) {
+            return null;
+        }
+        try {
+            TextFile logfile = new TextFile(logdir + currentDataset.getSettings().name + "-RegressionLog-Iteration" + logiter + ".txt.gz", TextFile.W);
+            System.out.println("Logging dataset " + currentDataset.getSettings().name + " to " + logfile.getFileName());
+            RegressionLogWriter logout = new RegressionLogWriter(logfile);
+            logout.start();
+            return logout;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
 
-                        // transpose (samples should be on rows)
-                        xcovars = xcovars.viewDice();
+    /**
+     * Loads the genotypes of a SNP for all expression samples and replaces
+     * missing genotypes with the mean.
+     *
+     * @return null if the SNP fails QC or has no variance
+     */
+    private double[] loadGenotypesForRegression(TriTyperGeneticalGenomicsDataset currentDataset, SNPLoader currentloader, int snpId, String gene, String rsName, RegressionLogWriter logout) {
 
-                        // check whether there are more predictors than data rows
-                        if (xcovars.rows() < xcovars.columns()) {
-                            // remove the rows with lowest variance
-                            int toRemove = (xcovars.columns() - xcovars.rows()) + 1;
-                            System.out.println("\nWarning: " + gg[d].getSettings().name + " has more predictors than datapoints for gene " + gene + ": " + xcovars.rows() + "x" + xcovars.columns() + " removing " + toRemove + " lowest variance covars");
-                            xcovars = removeCovarWithLowestVariance(xcovars, toRemove);
-                            System.out.println("\nWarning: " + gg[d].getSettings().name + " gene had few covars for " + gene + ". Remaining covars: " + xcovars.rows() + "x" + xcovars.columns());
-                        }
+        SNP currentSNP = currentDataset.getGenotypeData().getSNPObject(snpId);
+        try {
+            currentloader.loadGenotypes(currentSNP);
+            if (currentloader.hasDosageInformation()) {
+                currentloader.loadDosage(currentSNP);
+            }
+        } catch (IOException ex) {
+            ex.printStackTrace();
+            System.exit(-1);
+        }
 
-                        try {
-                            // prevent aliasing; correct for variance inflation.
-                            if (xcovars.columns() > 1) {
-                                VIF vif = new VIF();
-                                int prevCovars = xcovars.columns();
-                                xcovars = vif.vifCorrect(xcovars, (1 - 1E-4));
-                                int currentCovars = xcovars.columns();
-                                if (logout != null) {
-                                    logout.writeln(gene + "\t had " + prevCovars + " before VIF, and " + currentCovars + " after.");
-                                }
-                            }
+        if (!currentSNP.passesQC()) {
+            if (logout != null) {
+                logout.log(gene + "\t" + rsName + "\tSNP failed QC.\tMAF: " + currentSNP.getMAF() + "\tHWEP: " + currentSNP.getHWEP() + "\tCR: " + currentSNP.getCR());
+            }
+            currentSNP.clearGenotypes();
+            return null;
+        }
 
+        int[] indWGA = currentDataset.getExpressionToGenotypeIdArray();
+        double[] x = currentSNP.selectGenotypes(indWGA, true, true);
 
-                            // prepare expression
-                            int[] expressionToGenotypeId = currentDataset.getExpressionToGenotypeIdArray();
-                            double[][] rawData = currentDataset.getExpressionData().getMatrix();
-                            double meanY;
-                            double varianceY;
-                            int nrSamplesWGenotypeData = nrIndividuals;
+        // calculate mean and variance for genotype, taking into account missing values, if any
+        double meanX = 0;
+        int ctr = 0;
+        for (int i = 0; i < x.length; i++) {
+            if (x[i] != -1) {
+                meanX += x[i];
+                ctr++;
+            }
+        }
+        meanX /= ctr;
 
-                            double[] y = new double[nrSamplesWGenotypeData];
-                            int totalGGSamples = currentDataset.getTotalGGSamples();
+        double varianceX = 0.0;
+        for (int i = 0; i < x.length; i++) {
+            if (x[i] != -1) {
+                double xmeanx = x[i] - meanX;
+                varianceX += (xmeanx) * (xmeanx);
+            }
+        }
+        varianceX /= (ctr - 1);
 
-                            // Copy expression data.
-                            int itr = 0;
-                            for (int s = 0; s < rawData[geneId].length; s++) {
-                                int genotypeId = expressionToGenotypeId[s];
+        if (varianceX == 0 || currentDataset.getTotalGGSamples() != x.length) {
+            if (logout != null) {
+                logout.log(gene + "\t" + rsName + "\tSNP has zero variance or wrong nr of inds.\tVariance: " + varianceX + "\tinds: " + x.length + ", expected: " + currentDataset.getTotalGGSamples() + "\tMAF: " + currentSNP.getMAF() + "\tHWEP: " + currentSNP.getHWEP() + "\tCR: " + currentSNP.getCR());
+            }
+            currentSNP.clearGenotypes();
+            return null;
+        }
 
-                                // there should not be any missing values at this point..
-                                if (currentDataset.getGenotypeData().getIsIncluded()[genotypeId]) {
-                                    double dVal = rawData[geneId][s];
-                                    y[itr] = dVal;
-                                    itr++;
-                                }
-                            }
+        // replace missing values with mean
+        for (int i = 0; i < x.length; i++) {
+            if (x[i] == -1) {
+                x[i] = meanX;
+            }
+        }
+        currentSNP.clearGenotypes();
+        return x;
+    }
 
-                            //Normalize/center subset of data:
-                            meanY = JSci.maths.ArrayMath.mean(y);
-                            varianceY = JSci.maths.ArrayMath.variance(y);
-                            if (Double.isNaN(meanY) || Double.isNaN(varianceY)) {
+    /**
+     * Regresses the eQTLs of one gene out of its expression, in place. Called
+     * in parallel for different genes of the same dataset, the genotype cache
+     * is only read.
+     */
+    private void regressGene(TriTyperGeneticalGenomicsDataset currentDataset, String gene, ArrayList<EQTL> covariatesForThisProbe,
+                             HashMap<Integer, double[]> genotypeCache, RegressionLogWriter logout,
+                             AtomicInteger nrEQTLGenesRegressedOut, AtomicInteger nrEQTLsRegressedOut, AtomicIntegerArray explainedVariancePerEQTLProbe) {
+
+        // written in one go, so the lines of a gene stay together in the log
+        ArrayList<String> log = new ArrayList<>();
+
+        int geneId = currentDataset.getExpressionData().getProbeToId().get(gene);
+        TObjectIntHashMap<String> snpToId = currentDataset.getGenotypeData().getSnpToSNPId();
+        ArrayList<String> snpsForProbe = new ArrayList<String>();
+        ArrayList<double[]> xs = new ArrayList<double[]>();
+        for (EQTL e : covariatesForThisProbe) {
+            double[] x = genotypeCache.get(snpToId.get(e.getRsName()));
+            if (x != null) {
+                snpsForProbe.add(e.getRsName());
+                xs.add(x);
+            }
+        }
 
-                                System.err.println("ERROR: variance " + varianceY + " mean " + meanY + " for gene " + gene);
-                                if (logout != null) {
-                                    logout.writeln("ERROR: variance " + varianceY + " mean " + meanY + " for gene " + gene);
-                                }
-                                System.exit(-1);
-                            }
+        // use OLS for both single variants as well as multiple variants.
+        if (xs.isEmpty()) {
+            log.add(gene + "\thas 0 SNPs");
+        } else {
+            // setup design matrix
+            int nrIndividuals = xs.get(0).length;
+            DoubleMatrixDataset<String, String> xcovars = new DoubleMatrixDataset<>(xs.size(), xs.get(0).length);
+            for (int i = 0; i < nrIndividuals; i++) {
+                xcovars.getHashCols().put("Ind" + i, i);
+            }
 
-                            for (int i = 0; i < y.length; i++) {
-                                y[i] -= meanY;
-                            }
+            for (int i = 0; i < xs.size(); i++) {
+                xcovars.getRow(i).assign(xs.get(i));
+                xcovars.getHashRows().put(snpsForProbe.get(i), i);
+            }
 
-                            OLSMultipleLinearRegression ols = new OLSMultipleLinearRegression();
+            // transpose (samples should be on rows)
+            xcovars = xcovars.viewDice();
 
+            // check whether there are more predictors than data rows
+            if (xcovars.rows() < xcovars.columns()) {
+                // remove the rows with lowest variance
+                int toRemove = (xcovars.columns() - xcovars.rows()) + 1;
+                System.out.println("\nWarning: " + currentDataset.getSettings().name + " has more predictors than datapoints for gene " + gene + ": " + xcovars.rows() + "x" + xcovars.columns() + " removing " + toRemove + " lowest variance covars");
+                xcovars = removeCovarWithLowestVariance(xcovars, toRemove);
+                System.out.println("\nWarning: " + currentDataset.getSettings().name + " gene had few covars for " + gene + ". Remaining covars: " + xcovars.rows() + "x" + xcovars.columns());
+            }
 
-                            double[] rawDataUpdated = null;
-                            boolean singular = true;
-                            double rsq = 0;
-                            double[][] covars = xcovars.getMatrixAs2dDoubleArray();
-                            while (singular) {
-                                if (covars[0].length > 0) {
-                                    ols.newSampleData(y, covars);
-                                    try {
-                                        // use OLS to determine regression coefficients
-                                        rawDataUpdated = ols.estimateResiduals();
-                                        singular = false;
-                                        rsq = ols.calculateRSquared(); // I'm assuming this is an appropriate approximation of the explained variance.
-                                        // debug: check whether residuals are correlated to genotype?
-                                    } catch (SingularMatrixException e) {
-                                        // remove lowest variance covariate
-                                        // covars has samples on rows, covars on cols
-
-                                        System.err.println("WARNING: singular matrix exception when regressing eQTLs for: " + gene + " with " + covars[0].length + " covariates (variants). Removing lowest variance covariate.");
-
-                                        if (covars[0].length > 1) {
-                                            covars = removeCovarWithLowestVariance(covars, 1);
-
-                                        } else {
-                                            System.err.println("WARNING: could not resolve covariate issue for: " + gene + " keeping original data.");
-                                            if (logout != null) {
-                                                logout.writeln("WARNING: could not resolve covariate issue for: " + gene + " keeping original data.");
-                                            }
-                                            singular = false;
-                                            rsq = 0;
-                                        }
-                                    }
-                                } else {
-                                    // nothing more to do, all covariates have some issue or another
-                                    singular = false;
-                                }
-                            }
+            try {
+                // prevent aliasing; correct for variance inflation.
+                if (xcovars.columns() > 1) {
+                    VIF vif = new VIF();
+                    int prevCovars = xcovars.columns();
+                    xcovars = vif.vifCorrect(xcovars, (1 - 1E-4));
+                    int currentCovars = xcovars.columns();
+                    log.add(gene + "\t had " + prevCovars + " before VIF, and " + currentCovars + " after.");
+                }
 
-                            if (covars[0].length > 0) {
-                                if (rsq < 0) {
-                                    if (rsq < -1E-9) {
-                                        System.out.println("Warning: large negative r-squared: " + rsq + ". MeanY: " + meanY + ", varY: " + varianceY + ", SumSqTotal: " + ols.calculateTotalSumOfSquares() + ", SumSqResid: " + ols.calculateResidualSumOfSquares());
-                                        if (logout != null) {
-                                            logout.writeln("Warning: large negative r-squared: " + rsq + ". MeanY: " + meanY + ", varY: " + varianceY + ", SumSqTotal: " + ols.calculateTotalSumOfSquares() + ", SumSqResid: " + ols.calculateResidualSumOfSquares());
-                                        }
-                                    }
-                                    rsq = 0d;
-                                } else if (rsq > 1) {
-                                    System.out.println("Warning: r-squared > 1.0: " + rsq + ". MeanY: " + meanY + ", varY" + varianceY + ", SumSqTotal: " + ols.calculateTotalSumOfSquares() + ", SumSqResid: " + ols.calculateResidualSumOfSquares());
-                                    if (logout != null) {
-                                        logout.writeln("Warning: r-squared > 1.0: " + rsq + ". MeanY: " + meanY + ", varY" + varianceY + ", SumSqTotal: " + ols.calculateTotalSumOfSquares() + ", SumSqResid: " + ols.calculateResidualSumOfSquares());
-                                    }
-                                    rsq = 1d;
-                                }
+                // prepare expression
+                int[] expressionToGenotypeId = currentDataset.getExpressionToGenotypeIdArray();
+                double[][] rawData = currentDataset.getExpressionData().getMatrix();
+                double meanY;
+                double varianceY;
 
-                                explainedVariancePerEQTLProbe[d][(int) Math.round(rsq * 100d)]++;
+                double[] y = Y_WORKSPACE.get();
+                if (y == null || y.length != nrIndividuals) {
+                    y = new double[nrIndividuals];
+                    Y_WORKSPACE.set(y);
+                }
+                int totalGGSamples = currentDataset.getTotalGGSamples();
+
+                // Copy expression data.
+                int itr = 0;
+                for (int s = 0; s < rawData[geneId].length; s++) {
+                    int genotypeId = expressionToGenotypeId[s];
+
+                    // there should not be any missing values at this point..
+                    if (currentDataset.getGenotypeData().getIsIncluded()[genotypeId]) {
+                        double dVal = rawData[geneId][s];
+                        y[itr] = dVal;
+                        itr++;
+                    }
+                }
+                Arrays.fill(y, itr, y.length, 0);
 
-                                if (logout != null) {
-                                    SpearmansCorrelation sp = new SpearmansCorrelation();
+                //Normalize/center subset of data:
+                meanY = JSci.maths.ArrayMath.mean(y);
+                varianceY = JSci.maths.ArrayMath.variance(y);
+                if (Double.isNaN(meanY) || Double.isNaN(varianceY)) {
 
-                                    RankDoubleArray rda = new RankDoubleArray();
-                                    double[] ry = rda.rank(y);
-                                    double[] correlcoeff = new double[xcovars.columns()];
+                    System.err.println("ERROR: variance " + varianceY + " mean " + meanY + " for gene " + gene);
+                    if (logout != null) {
+                        log.add("ERROR: variance " + varianceY + " mean " + meanY + " for gene " + gene);
+                        logout.log(log);
+                        logout.close();
+                    }
+                    System.exit(-1);
+                }
 
-//								String[] indsY = currentDataset.getExpressionData().getIndividuals();
-//								String[] indsX = currentDataset.getGenotypeData().getIndividuals();
+                for (int i = 0; i < y.length; i++) {
+                    y[i] -= meanY;
+                }
 
-//								for (int q = 0; q < y.length; q++) {
-//									String outln = indsY[q] + "\t" + indsX[q] + "\t" + indsX[currentDataset.getExpressionToGenotypeIdArray()[q]] + "\t" + y[q] + "\t" + ry[q];
-//									for (int xc = 0; xc < xcovars.columns(); xc++) {
-//										outln += "\t" + xcovars.getElementQuick(q, xc);
-//									}
-//									System.out.println(q + "\t" + outln);
-//								}
-                                    for (int c = 0; c < xcovars.columns(); c++) {
-                                        correlcoeff[c] = sp.correlation(xcovars.getCol(c).toArray(), ry);
-                                    }
-                                    String logln = gene + "\tNr SNPs: " + xcovars.columns() + "\tMeanY: " + meanY + "\tVarY: " + varianceY + "\trsq: " + rsq + "\tcorrel: " + Strings.concat(correlcoeff, Strings.tab);
-                                    logout.writeln(logln);
-//								System.out.println(logln);
-//								System.exit(-1);
-                                }
+                OLSMultipleLinearRegression ols = OLS_WORKSPACE.get();
 
+                double[] rawDataUpdated = null;
+                boolean singular = true;
+                double rsq = 0;
+                double[][] covars = xcovars.getMatrixAs2dDoubleArray();
+                while (singular) {
+                    if (covars[0].length > 0) {
+                        ols.newSampleData(y, covars);
+                        try {
+                            // use OLS to determine regression coefficients
+                            rawDataUpdated = ols.estimateResiduals();
+                            singular = false;
+                            rsq = ols.calculateRSquared(); // I'm assuming this is an appropriate approximation of the explained variance.
+                        } catch (SingularMatrixException e) {
+                            // remove lowest variance covariate
+                            // covars has samples on rows, covars on cols
+
+                            System.err.println("WARNING: singular matrix exception when regressing eQTLs for: " + gene + " with " + covars[0].length + " covariates (variants). Removing lowest variance covariate.");
+
+                            if (covars[0].length > 1) {
+                                covars = removeCovarWithLowestVariance(covars, 1);
+                            } else {
+                                System.err.println("WARNING: could not resolve covariate issue for: " + gene + " keeping original data.");
+                                log.add("WARNING: could not resolve covariate issue for: " + gene + " keeping original data.");
+                                singular = false;
+                                rsq = 0;
+                            }
+                        }
+                    } else {
+                        // nothing more to do, all covariates have some issue or another
+                        singular = false;
+                    }
+                }
 
-                                //Make mean and standard deviation of residual gene expression identical to what it was before:
-                                double meanUpdated = JSci.maths.ArrayMath.mean(rawDataUpdated);
-                                double stdDevRatio = JSci.maths.ArrayMath.standardDeviation(rawDataUpdated) / Math.sqrt(varianceY);
+                if (covars[0].length > 0) {
+                    if (rsq < 0) {
+                        if (rsq < -1E-9) {
+                            System.out.println("Warning: large negative r-squared: " + rsq + ". MeanY: " + meanY + ", varY: " + varianceY + ", SumSqTotal: " + ols.calculateTotalSumOfSquares() + ", SumSqResid: " + ols.calculateResidualSumOfSquares());
+                            log.add("Warning: large negative r-squared: " + rsq + ". MeanY: " + meanY + ", varY: " + varianceY + ", SumSqTotal: " + ols.calculateTotalSumOfSquares() + ", SumSqResid: " + ols.calculateResidualSumOfSquares());
+                        }
+                        rsq = 0d;
+                    } else if (rsq > 1) {
+                        System.out.println("Warning: r-squared > 1.0: " + rsq + ". MeanY: " + meanY + ", varY" + varianceY + ", SumSqTotal: " + ols.calculateTotalSumOfSquares() + ", SumSqResid: " + ols.calculateResidualSumOfSquares());
+                        log.add("Warning: r-squared > 1.0: " + rsq + ". MeanY: " + meanY + ", varY" + varianceY + ", SumSqTotal: " + ols.calculateTotalSumOfSquares() + ", SumSqResid: " + ols.calculateResidualSumOfSquares());
+                        rsq = 1d;
+                    }
 
-                                if (!Double.isNaN(meanUpdated) && !Double.isNaN(stdDevRatio) && stdDevRatio > 0) {
-                                    for (int s = 0; s < totalGGSamples; s++) {
-                                        rawDataUpdated[s] -= meanUpdated;
-                                        rawDataUpdated[s] /= stdDevRatio;
-                                        rawDataUpdated[s] += meanY;
-                                    }
-                                    System.arraycopy(rawDataUpdated, 0, rawData[geneId], 0, totalGGSamples);
-                                    nrEQTLGenesRegressedOut[d]++;
-                                    nrEQTLsRegressedOut[d] += xcovars.columns();
-                                } else {
-                                    String logln = "Error: " + gene + "\tNr SNPs: " + xcovars.columns() + "\tMeanY: " + meanY + "\tVarY: " + varianceY + "\trsq: " + rsq + "\tmeanUpdated: " + meanUpdated + "\tstdevRatio: " + stdDevRatio;
-                                    if (logout != null) {
-                                        logout.writeln(logln);
-                                    }
-                                }
-                            }
+                    explainedVariancePerEQTLProbe.incrementAndGet((int) Math.round(rsq * 100d));
 
+                    if (logout != null) {
+                        SpearmansCorrelation sp = new SpearmansCorrelation();
 
-                        } catch (Exception e) {
-                            e.printStackTrace();
+                        RankDoubleArray rda = new RankDoubleArray();
+                        double[] ry = rda.rank(y);
+                        double[] correlcoeff = new double[xcovars.columns()];
+                        for (int c = 0; c < xcovars.columns(); c++) {
+                            correlcoeff[c] = sp.correlation(xcovars.getCol(c).toArray(), ry);
                         }
+                        log.add(gene + "\tNr SNPs: " + xcovars.columns() + "\tMeanY: " + meanY + "\tVarY: " + varianceY + "\trsq: " + rsq + "\tcorrel: " + Strings.concat(correlcoeff, Strings.tab));
+                    }
+
+                    //Make mean and standard deviation of residual gene expression identical to what it was before:
+                    double meanUpdated = JSci.maths.ArrayMath.mean(rawDataUpdated);
+                    double stdDevRatio = JSci.maths.ArrayMath.standardDeviation(rawDataUpdated) / Math.sqrt(varianceY);
 
-                        for (SNP s : snpsForProbe) {
-                            s.clearGenotypes();
+                    if (!Double.isNaN(meanUpdated) && !Double.isNaN(stdDevRatio) && stdDevRatio > 0) {
+                        for (int s = 0; s < totalGGSamples; s++) {
+                            rawDataUpdated[s] -= meanUpdated;
+                            rawDataUpdated[s] /= stdDevRatio;
+                            rawDataUpdated[s] += meanY;
                         }
+                        System.arraycopy(rawDataUpdated, 0, rawData[geneId], 0, totalGGSamples);
+                        nrEQTLGenesRegressedOut.incrementAndGet();
+                        nrEQTLsRegressedOut.addAndGet(xcovars.columns());
+                    } else {
+                        log.add("Error: " + gene + "\tNr SNPs: " + xcovars.columns() + "\tMeanY: " + meanY + "\tVarY: " + varianceY + "\trsq: " + rsq + "\tmeanUpdated: " + meanUpdated + "\tstdevRatio: " + stdDevRatio);
                     }
-
                 }
-                pb.iterate(d);
-                if (qtlctr % 10000 == 0) {
-                    pb.display();
-                }
-                qtlctr++;
-            }
-            pb.complete(d);
-            System.out.println("");
-            if (logout != null) {
-                try {
-                    logout.close();
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            }
-        });
-        pb.allCompleted();
 
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
 
-        for (int ds = 0; ds < gg.length; ds++) {
-//            gg[ds].getExpressionData().calcMeanAndVariance();
-            ggSNPLoaders[ds].close();
-            ggSNPLoaders[ds] = null;
+        if (logout != null && !log.isEmpty()) {
+            logout.log(log);
         }
 
-        System.out.println("\n");
-        System.out.println("eQTLs regressed per dataset:");
-        for (int d = 0; d < gg.length; d++) {
-            System.out.println(gg[d].getSettings().name + "\tGenes: " + nrEQTLGenesRegressedOut[d] + "\tTotal eQTLs: " + nrEQTLsRegressedOut[d]);
+    }
+
+    /**
+     * Writes the regression log of a dataset on its own thread, so the genes
+     * regressed in parallel do not wait on the compressed output.
+     */
+    private static class RegressionLogWriter extends Thread {
+
+        private static final List<String> END = new ArrayList<>();
+
+        private final TextFile out;
+        private final LinkedBlockingQueue<List<String>> queue = new LinkedBlockingQueue<>();
+
+        RegressionLogWriter(TextFile out) {
+            super("RegressionLogWriter");
+            this.out = out;
+            setDaemon(true);
         }
 
-        String output;
-        System.out.println("\n");
-        System.out.println("Proportion explained variance of genotypic variation on eQTLs per dataset:");
+        void log(String ln) {
+            log(Collections.singletonList(ln));
+        }
 
+        void log(List<String> lns) {
+            queue.add(lns);
+        }
 
-        output = "r2";
-        for (TriTyperGeneticalGenomicsDataset gg1 : gg) {
-            output += "\t" + gg1.getSettings().name;
+        @Override
+        public void run() {
+            try {
+                List<String> lns = queue.take();
+                while (lns != END) {
+                    for (String ln : lns) {
+                        out.writeln(ln);
+                    }
+                    lns = queue.take();
+                }
+            } catch (InterruptedException | IOException e) {
+                e.printStackTrace();
+            }
         }
 
-        System.out.println(output);
-        for (int e = 0; e <= 100; e++) {
-            double r2 = (double) e / 100;
-            output = String.valueOf(r2);
-            for (int d = 0; d < gg.length; d++) {
-                output += "\t" + explainedVariancePerEQTLProbe[d][e];
+        void close() throws IOException {
+            queue.add(END);
+            try {
+                join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
             }
-            System.out.println(output);
+            out.close();
         }
     }
 
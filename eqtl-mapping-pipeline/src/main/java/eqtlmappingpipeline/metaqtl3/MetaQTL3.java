@@ -319,11 +319,7 @@ public class MetaQTL3 {
 
         // rank and normalize data
         for (int i = 0; i < numDatasets; i++) {
-            if (!m_settings.performParametricAnalysis) {
-                m_gg[i].getExpressionData().rankAllExpressionData(m_settings.equalRankForTies);
-            }
-            m_gg[i].getExpressionData().calcAndSubtractMean();
-            m_gg[i].getExpressionData().calcMeanAndVariance();
+            prepareExpressionData(m_gg[i].getExpressionData());
             numAvailableInds += m_gg[i].getExpressionToGenotypeIdArray().length;
         }
 
@@ -339,11 +335,7 @@ public class MetaQTL3 {
 
             // shouldn't we re-rank?
             for (int i = 0; i < numDatasets; i++) {
-                if (!m_settings.performParametricAnalysis) {
-                    m_gg[i].getExpressionData().rankAllExpressionData(m_settings.equalRankForTies);
-                }
-                m_gg[i].getExpressionData().calcAndSubtractMean();
-                m_gg[i].getExpressionData().calcMeanAndVariance();
+                prepareExpressionData(m_gg[i].getExpressionData());
                 numAvailableInds += m_gg[i].getExpressionToGenotypeIdArray().length;
             }
         }
@@ -1027,7 +1019,67 @@ public class MetaQTL3 {
         probeLog.close();
     }
 
+    /**
+     * Ranks the expression data, unless a parametric analysis is performed,
+     * and centers it. Expression data must be prepared before it is mapped.
+     */
+    protected void prepareExpressionData(TriTyperExpressionData expressionData) {
+        if (!m_settings.performParametricAnalysis) {
+            expressionData.rankAllExpressionData(m_settings.equalRankForTies);
+        }
+        expressionData.calcAndSubtractMean();
+        expressionData.calcMeanAndVariance();
+    }
+
     public void mapEQTLs() throws IOException {
+        TriTyperExpressionData[][] expressiondata = new TriTyperExpressionData[1][m_gg.length];
+        for (int d = 0; d < m_gg.length; d++) {
+            expressiondata[0][d] = m_gg[d].getExpressionData();
+        }
+        mapEQTLs(expressiondata, new String[]{m_settings.outputReportsDir});
+    }
+
+    private boolean roundHasResults(String outputDir, int permutationRound) throws IOException {
+        String fileName;
+        if (permutationRound > 0) {
+            fileName = outputDir + "PermutedEQTLsPermutationRound" + permutationRound + ".txt.gz";
+        } else {
+            fileName = outputDir + "eQTLs.txt.gz";
+        }
+        TextFile tf = new TextFile(fileName, TextFile.R);
+        tf.readLine(); // skip header
+        int lnCounter = 0;
+        String line = tf.readLine();
+        while (line != null) {
+            lnCounter++;
+            if (lnCounter > 1) {
+                break;
+            }
+            line = tf.readLine();
+        }
+        tf.close();
+        return lnCounter > 0;
+    }
+
+    /**
+     * Maps the eQTLs against multiple versions of the expression data in one
+     * pass over the genotypes, for instance the expression data with an
+     * increasing number of PCs removed. The SNPs are loaded and QC'ed once per
+     * permutation round and each work package is tested against every level.
+     * Every level writes the same output, including the FDR, as a separate
+     * mapEQTLs() run would to its own output directory.
+     *
+     * All levels should have the individuals and probes of the expression data
+     * in m_gg, in the same order, so the probe translation table and the sample
+     * permutations can be shared. The first level should be the expression
+     * data of m_gg, the eQTL plots are only made for this level.
+     *
+     * @param levelExpressionData prepared expression data per level and
+     * dataset
+     * @param levelOutputDirs output directory per level
+     * @throws IOException
+     */
+    public void mapEQTLs(TriTyperExpressionData[][] levelExpressionData, String[] levelOutputDirs) throws IOException {
 
         // create work packages
         RunTimer t = new RunTimer();
@@ -1036,13 +1088,13 @@ public class MetaQTL3 {
             System.out.println("Resetting buffer size to: " + m_snpList.length);
         }
 
-        CalculationThread[] pool = new CalculationThread[m_settings.nrThreads];
+        int nrLevels = levelExpressionData.length;
+
+        Thread[] pool = new Thread[m_settings.nrThreads];
 
         SNPLoader[] snploaders = new SNPLoader[m_gg.length];
-        TriTyperExpressionData[] expressiondata = new TriTyperExpressionData[m_gg.length];
         for (int d = 0; d < snploaders.length; d++) {
             snploaders[d] = m_gg[d].getGenotypeData().createSNPLoader(m_settings.numberOfVariantsToBuffer);
-            expressiondata[d] = m_gg[d].getExpressionData();
         }
 
         // initialize lookup tables
@@ -1058,7 +1110,9 @@ public class MetaQTL3 {
 
         boolean permuting = false;
 
-        System.out.println("Will write output to dir: " + m_settings.outputReportsDir);
+        for (int level = 0; level < nrLevels; level++) {
+            System.out.println("Will write output to dir: " + levelOutputDirs[level]);
+        }
 
         int permStart = 0;
         int permEnd = m_settings.nrPermutationsFDR + 1;
@@ -1071,7 +1125,8 @@ public class MetaQTL3 {
             }
         }
 
-        boolean hasResults = true;
+        boolean[] hasResults = new boolean[nrLevels];
+        Arrays.fill(hasResults, true);
 
         DoubleMatrixDataset<String, String>[] covariateData = null;
         if (dataHasCovariates) {
@@ -1091,21 +1146,10 @@ public class MetaQTL3 {
                 System.out.print("Permuting data, round: " + permutationRound + " of " + m_settings.nrPermutationsFDR + "\n" + ConsoleGUIElems.LINE);
 
                 for (int d = 0; d < m_gg.length; d++) {
-//                    int[] indWGAOriginal = m_gg[d].getExpressionToGenotypeIdArray();
                     m_gg[d].permuteSampleLables(m_settings.randomNumberGenerator);
                     if (m_settings.permuteCovariates) {
                         m_gg[d].permuteCovariates(m_settings.randomNumberGenerator);
                     }
-
-//                    int[] indWGAPerm = m_gg[d].getExpressionToGenotypeIdArray();
-////                    int identical = 0;
-////                    for (int i = 0; i < indWGAPerm.length; i++) {
-////                        if (indWGAOriginal[i] == indWGAPerm[i]) {
-////                            identical++;
-////                        }
-////                    }
-////
-//////                    System.out.println("After permuting: " + identical + " unchanged, " + indWGAOriginal.length + " total");
                 }
                 permuting = true;
             } else {
@@ -1117,26 +1161,36 @@ public class MetaQTL3 {
                 expressionToGenotypeIds[d] = m_gg[d].getExpressionToGenotypeIdArray();
             }
 
-            LinkedBlockingQueue<WorkPackage> resultQueue = new LinkedBlockingQueue<WorkPackage>(100000);
-            ResultProcessorThread resultthread = new ResultProcessorThread(m_settings.nrThreads, resultQueue, m_settings.createBinaryOutputFiles,
-                    m_gg, m_settings, m_probeTranslationTable, permuting, permutationRound, m_snpList, m_probeList, m_workPackages);
-            resultthread.setName("ResultProcessorThread");
             if (m_settings.createMetaAnalysisZScoreMatrix) {
                 System.out.println("-------------------------------------------");
                 System.out.println("WARNING: dumping all results Z-score matrix");
                 System.out.println("-------------------------------------------");
-                resultthread.setCreateMetaAnalysisZScoreMatrix();
             }
             if (m_settings.dumpeverythingtodisk) {
                 System.out.println("-------------------------------------");
                 System.out.println("WARNING: dumping all results to disk!");
                 System.out.println("-------------------------------------");
-                resultthread.setDumpEverything();
             }
-            if (m_settings.updateProgressBar) {
-                resultthread.setUpdateProgressBar();
+
+            // one result processor per level, each writing to the output dir of its level
+            List<LinkedBlockingQueue<WorkPackage>> resultQueues = new ArrayList<LinkedBlockingQueue<WorkPackage>>(nrLevels);
+            ResultProcessorThread[] resultthreads = new ResultProcessorThread[nrLevels];
+            for (int level = 0; level < nrLevels; level++) {
+                resultQueues.add(new LinkedBlockingQueue<WorkPackage>(100000));
+                resultthreads[level] = new ResultProcessorThread(m_settings.nrThreads, resultQueues.get(level), m_settings.createBinaryOutputFiles,
+                        m_gg, m_settings, levelOutputDirs[level], m_probeTranslationTable, permuting, permutationRound, m_snpList, m_probeList, m_workPackages);
+                resultthreads[level].setName(nrLevels == 1 ? "ResultProcessorThread" : "ResultProcessorThread-" + level);
+                if (m_settings.createMetaAnalysisZScoreMatrix) {
+                    resultthreads[level].setCreateMetaAnalysisZScoreMatrix();
+                }
+                if (m_settings.dumpeverythingtodisk) {
+                    resultthreads[level].setDumpEverything();
+                }
+                if (m_settings.updateProgressBar && level == 0) {
+                    resultthreads[level].setUpdateProgressBar();
+                }
+                resultthreads[level].start();
             }
-            resultthread.start();
 
             // start production in advance
             LinkedBlockingQueue<WorkPackage> packageQueue = new LinkedBlockingQueue<WorkPackage>(100000);
@@ -1150,7 +1204,16 @@ public class MetaQTL3 {
                 if (!permuting) {
                     plotter = new EQTLPlotter(m_gg, m_settings, m_probeList, m_probeTranslationTable);
                 }
-                pool[tnum] = new CalculationThread(permutationRound, packageQueue, resultQueue, expressiondata, covariateData, m_probeTranslationTable, expressionToGenotypeIds, m_settings, plotter, m_settings.createBinaryOutputFiles, m_settings.useAbsoluteZScorePValue, m_settings.confineSNPsToSNPsPresentInAllDatasets);
+                if (nrLevels == 1) {
+                    pool[tnum] = new CalculationThread(permutationRound, packageQueue, resultQueues.get(0), levelExpressionData[0], covariateData, m_probeTranslationTable, expressionToGenotypeIds, m_settings, plotter, m_settings.createBinaryOutputFiles, m_settings.useAbsoluteZScorePValue, m_settings.confineSNPsToSNPsPresentInAllDatasets);
+                } else {
+                    // the levels analyze the packages of one thread, the SNPs are loaded once
+                    CalculationThread[] levels = new CalculationThread[nrLevels];
+                    for (int level = 0; level < nrLevels; level++) {
+                        levels[level] = new CalculationThread(permutationRound, null, resultQueues.get(level), levelExpressionData[level], covariateData, m_probeTranslationTable, expressionToGenotypeIds, m_settings, level == 0 ? plotter : null, m_settings.createBinaryOutputFiles, m_settings.useAbsoluteZScorePValue, m_settings.confineSNPsToSNPsPresentInAllDatasets);
+                    }
+                    pool[tnum] = new MultiLevelCalculationThread(packageQueue, levels);
+                }
                 pool[tnum].setName("CalcThread-" + tnum);
                 pool[tnum].start();
 
@@ -1161,15 +1224,18 @@ public class MetaQTL3 {
 
                 producer.join();
 
-//                System.out.println("Joining calculation threads");
                 for (int threadNum = 0; threadNum < m_settings.nrThreads; threadNum++) {
                     pool[threadNum].join();
                 }
 
-                WorkPackage poison = new WorkPackage();
-                poison.results = new Result(true);
-                resultQueue.put(poison);
-                resultthread.join();
+                for (int level = 0; level < nrLevels; level++) {
+                    WorkPackage poison = new WorkPackage();
+                    poison.results = new Result(true);
+                    resultQueues.get(level).put(poison);
+                }
+                for (int level = 0; level < nrLevels; level++) {
+                    resultthreads[level].join();
+                }
 
             } catch (InterruptedException e) {
                 System.err.println("Exception: Main Thread interrupted.");
@@ -1177,14 +1243,16 @@ public class MetaQTL3 {
             System.out.print(ConsoleGUIElems.LINE);
             System.out.println("Round done. Elapsed time:\t" + permtime.getTimeDesc());
             System.out.println("");
-            resultQueue.clear();
+            for (LinkedBlockingQueue<WorkPackage> resultQueue : resultQueues) {
+                resultQueue.clear();
+            }
             packageQueue.clear();
 
-            resultQueue = null;
+            resultQueues = null;
             packageQueue = null;
             permtime = null;
             producer = null;
-            resultthread = null;
+            resultthreads = null;
             expressionToGenotypeIds = null;
             for (int i = 0; i < pool.length; i++) {
                 pool[i] = null;
@@ -1192,27 +1260,11 @@ public class MetaQTL3 {
 
             if (!m_settings.dumpeverythingtodisk && m_settings.createTEXTOutputFiles) {
                 // check whether there were results..
-                String fileName;
-                if (permutationRound > 0) {
-                    fileName = m_settings.outputReportsDir + "PermutedEQTLsPermutationRound" + permutationRound + ".txt.gz";
-                } else {
-                    fileName = m_settings.outputReportsDir + "eQTLs.txt.gz";
-                }
-                TextFile tf = new TextFile(fileName, TextFile.R);
-                tf.readLine(); // skip header
-                int lnCounter = 0;
-                String line = tf.readLine();
-                while (line != null) {
-                    lnCounter++;
-                    if (lnCounter > 1) {
-                        break;
+                for (int level = 0; level < nrLevels; level++) {
+                    if (!roundHasResults(levelOutputDirs[level], permutationRound)) {
+                        System.err.println("WARNING: QTL Mapping did not yield any results" + (nrLevels == 1 ? "." : " for: " + levelOutputDirs[level]));
+                        hasResults[level] = false;
                     }
-                    line = tf.readLine();
-                }
-                tf.close();
-                if (lnCounter == 0) {
-                    System.err.println("WARNING: QTL Mapping did not yield any results.");
-                    hasResults = false;
                 }
             }
         }
@@ -1223,35 +1275,38 @@ public class MetaQTL3 {
 
 
         if (!m_settings.dumpeverythingtodisk) {
-            if (!m_settings.skipFDRCalculation && hasResults) {
-                if (m_settings.createTEXTOutputFiles && m_settings.nrPermutationsFDR > 0) {
-                    System.out.println("Calculating FDR:\n" + ConsoleGUIElems.LINE);
-                    FDR.calculateFDR(m_settings.outputReportsDir, m_settings.nrPermutationsFDR, m_settings.maxNrMostSignificantEQTLs,
-                            m_settings.fdrCutOff, m_settings.createQQPlot, null, null, m_settings.fdrType, m_settings.fullFdrOutput);
-
-                    if (m_settings.createDotPlot) {
-                        EQTLDotPlot edp = new EQTLDotPlot();
-                        try {
-                            if (new File(m_settings.outputReportsDir + "/eQTLsFDR" + m_settings.fdrCutOff + ".txt.gz").exists()) {
-                                edp.draw(m_settings.outputReportsDir + "/eQTLsFDR" + m_settings.fdrCutOff + ".txt.gz", m_settings.outputReportsDir + "/DotPlot-FDR" + m_settings.fdrCutOff + ".pdf", EQTLDotPlot.Output.PDF); // "/eQTLsFDR" + fdrCutOff + ".txt", outputReportsDir + "/eQTLsFDR" + fdrCutOff + "DotPlot.png"
+            for (int level = 0; level < nrLevels; level++) {
+                String outputDir = levelOutputDirs[level];
+                if (!m_settings.skipFDRCalculation && hasResults[level]) {
+                    if (m_settings.createTEXTOutputFiles && m_settings.nrPermutationsFDR > 0) {
+                        System.out.println("Calculating FDR" + (nrLevels == 1 ? "" : " for " + outputDir) + ":\n" + ConsoleGUIElems.LINE);
+                        FDR.calculateFDR(outputDir, m_settings.nrPermutationsFDR, m_settings.maxNrMostSignificantEQTLs,
+                                m_settings.fdrCutOff, m_settings.createQQPlot, null, null, m_settings.fdrType, m_settings.fullFdrOutput);
+
+                        if (m_settings.createDotPlot) {
+                            EQTLDotPlot edp = new EQTLDotPlot();
+                            try {
+                                if (new File(outputDir + "/eQTLsFDR" + m_settings.fdrCutOff + ".txt.gz").exists()) {
+                                    edp.draw(outputDir + "/eQTLsFDR" + m_settings.fdrCutOff + ".txt.gz", outputDir + "/DotPlot-FDR" + m_settings.fdrCutOff + ".pdf", EQTLDotPlot.Output.PDF); // "/eQTLsFDR" + fdrCutOff + ".txt", outputReportsDir + "/eQTLsFDR" + fdrCutOff + "DotPlot.png"
+                                }
+                            } catch (DocumentException ex) {
+                                Logger.getLogger(MetaQTL3.class.getName()).log(Level.SEVERE, null, ex);
                             }
-                        } catch (DocumentException ex) {
-                            Logger.getLogger(MetaQTL3.class.getName()).log(Level.SEVERE, null, ex);
+                            edp = null;
                         }
-                        edp = null;
-                    }
 
+                    }
+                } else {
+                    String reason = "";
+                    if (m_settings.skipFDRCalculation) {
+                        reason = "Defined in settings.";
+                    } else if (m_settings.runOnlyPermutations) {
+                        reason = "Only running permutations.";
+                    } else if (!hasResults[level]) {
+                        reason = "No results for QTL mapping.";
+                    }
+                    System.out.println("Skipping FDR calculation" + (nrLevels == 1 ? "" : " for " + outputDir) + ". Reason: " + reason);
                 }
-            } else {
-                String reason = "";
-                if (m_settings.skipFDRCalculation) {
-                    reason = "Defined in settings.";
-                } else if (m_settings.runOnlyPermutations) {
-                    reason = "Only running permutations.";
-                } else if (!hasResults) {
-                    reason = "No results for QTL mapping.";
-                }
-                System.out.println("Skipping FDR calculation. Reason: " + reason);
             }
         }
         System.out.print(ConsoleGUIElems.DOUBLELINE);
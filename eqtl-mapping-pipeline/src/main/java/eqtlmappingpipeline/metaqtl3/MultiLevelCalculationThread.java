@@ -0,0 +1,60 @@
+package eqtlmappingpipeline.metaqtl3;
+
+import eqtlmappingpipeline.metaqtl3.containers.WorkPackage;
+import umcg.genetica.io.trityper.SNP;
+
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Tests every work package against multiple versions of the expression data,
+ * for instance the expression data with increasing numbers of PCs removed.
+ * The SNPs are loaded and QC'ed once; each expression level has its own
+ * CalculationThread (used as analyzer, not started) and result queue.
+ */
+class MultiLevelCalculationThread extends Thread {
+
+	private final LinkedBlockingQueue<WorkPackage> m_workpackage_queue;
+	private final CalculationThread[] m_levels;
+
+	MultiLevelCalculationThread(LinkedBlockingQueue<WorkPackage> packageQueue, CalculationThread[] levels) {
+		m_workpackage_queue = packageQueue;
+		m_levels = levels;
+		for (CalculationThread level : levels) {
+			level.setClearGenotypesAfterAnalysis(false);
+		}
+	}
+
+	@Override
+	public void run() {
+		boolean poison = false;
+		while (!poison) {
+			try {
+				WorkPackage pack = m_workpackage_queue.take();
+				if (!pack.getPoison()) {
+					analyze(pack);
+				} else {
+					poison = pack.getPoison();
+				}
+
+			} catch (InterruptedException ex) {
+				ex.printStackTrace();
+			}
+		}
+	}
+
+	private void analyze(WorkPackage wp) {
+		// every result queue gets its own package, the SNPs are shared
+		for (CalculationThread level : m_levels) {
+			level.analyze(wp.copyWithoutResults());
+		}
+
+		SNP[] snps = wp.getSnps();
+		if (snps != null) {
+			for (SNP snp : snps) {
+				if (snp != null) {
+					snp.clearGenotypes();
+				}
+			}
+		}
+	}
+}
@@ -90,13 +90,23 @@ public class ResultProcessorThread extends Thread {
     public ResultProcessorThread(int nrThreads, LinkedBlockingQueue<WorkPackage> queue, boolean chargeOutput,
                                  TriTyperGeneticalGenomicsDataset[] gg, Settings settings, IntMatrix2D pprobeTranslation,
                                  boolean permuting, int round, String[] snplist, String[] probelist, WorkPackage[] allPackages) {
+        this(nrThreads, queue, chargeOutput, gg, settings, settings.outputReportsDir, pprobeTranslation, permuting, round, snplist, probelist, allPackages);
+    }
+
+    /**
+     * @param outputDir directory to write the results to, instead of the
+     * output directory of the settings
+     */
+    public ResultProcessorThread(int nrThreads, LinkedBlockingQueue<WorkPackage> queue, boolean chargeOutput,
+                                 TriTyperGeneticalGenomicsDataset[] gg, Settings settings, String outputDir, IntMatrix2D pprobeTranslation,
+                                 boolean permuting, int round, String[] snplist, String[] probelist, WorkPackage[] allPackages) {
         m_availableWorkPackages = allPackages;
         m_createBinaryFiles = settings.createBinaryOutputFiles;
         m_createTEXTFiles = settings.createTEXTOutputFiles;
         m_useAbsoluteZScore = settings.useAbsoluteZScorePValue;
         m_createBinaryFilesOnlyMetaAnalysis = settings.createBinaryFilesOnlyMetaAnalysis;
         m_queue = queue;
-        m_outputdir = settings.outputReportsDir;
+        m_outputdir = outputDir;
         m_permuting = permuting;
         m_permutationround = round;
         m_probeTranslation = pprobeTranslation;
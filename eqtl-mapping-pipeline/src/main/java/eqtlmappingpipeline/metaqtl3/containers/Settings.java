@@ -891,6 +891,14 @@ public class Settings extends TriTyperGeneticalGenomicsDatasetSettings {
             }
             s.logtransform = logtr;
 
+            // use a binary cache of the expression data?
+            boolean expressionCache = false;
+            try {
+                expressionCache = config.getBoolean("datasets.dataset(" + i + ").expressioncache", false);
+            } catch (Exception e) {
+            }
+            s.useBinaryExpressionCache = expressionCache;
+
             dataset = null;
             i++;
             try {
@@ -126,6 +126,25 @@ public class WorkPackage implements Comparable<WorkPackage> {
         this.flipSNPAlleles = b;
     }
 
+    /**
+     * Creates a package for the same SNPs and probes that keeps its own
+     * results. The SNP, probe and allele flip arrays are shared with this
+     * package, so the descriptions of the original package stay valid.
+     *
+     * @return a copy without results
+     */
+    public WorkPackage copyWithoutResults() {
+        WorkPackage copy = new WorkPackage();
+        copy.snps = snps;
+        copy.probes = probes;
+        copy.flipSNPAlleles = flipSNPAlleles;
+        copy.datasetsPassingQC = datasetsPassingQC;
+        copy.sortSNPsByDataset = sortSNPsByDataset;
+        copy.id = id;
+        copy.metaSNPId = metaSNPId;
+        return copy;
+    }
+
     public void setResult(Result dsResults) {
         results = dsResults;
     }
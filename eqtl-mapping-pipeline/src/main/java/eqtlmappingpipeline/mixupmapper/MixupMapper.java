@@ -24,6 +24,7 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.stream.IntStream;
 
 /**
  * @author harmjan
@@ -34,6 +35,8 @@ public class MixupMapper extends MetaQTL3 {
 	private DoubleMatrixDataset<String, String> traitData;
 	private HashMap<String, String> genotypeToTrait;
 	private HashMap<String, String> traitToGenotype;
+	// number of eQTLs of which the scores are kept in memory before adding them to the comparison matrix
+	private static final int EQTL_BLOCK_SIZE = 256;
 
 
 	public void run(String settingsFile, String inputeQTLs, boolean allCombos) {
@@ -337,9 +340,38 @@ public class MixupMapper extends MetaQTL3 {
 
 		// initialize matrices
 		double[][] comparisonMatrix = new double[nrGenotypes][nrTraits];
-		double[][] comparisonMatrixNrTested = new double[nrGenotypes][nrTraits];
+		int[][] comparisonMatrixNrTested = new int[nrGenotypes][nrTraits];
 		SNPLoader loader = genotypeData.createSNPLoader(100);
 
+		// expression sample for each trait index
+		int[] traitIndexToExp = new int[nrTraits];
+		Arrays.fill(traitIndexToExp, -1);
+		for (int exp = 0; exp < trInds.length; exp++) {
+			Integer traitIndex = traitToColIndex.get(trInds[exp]);
+			if (traitIndex != null) {
+				traitIndexToExp[traitIndex] = exp;
+			}
+		}
+
+		// genotype row and linked genotype row for each genotype and trait sample, -1 if not tested
+		int[] genotypeRowIndex = new int[gtInds.length];
+		for (int i = 0; i < gtInds.length; i++) {
+			Integer genotypeSampleIndex = genotypeToRowIndex.get(gtInds[i]);
+			genotypeRowIndex[i] = genotypeSampleIndex == null ? -1 : genotypeSampleIndex;
+		}
+		int[] linkedGenotypeRowIndex = new int[trInds.length];
+		for (int exp = 0; exp < trInds.length; exp++) {
+			String linkedGenotype = traitToGenotype.get(trInds[exp]);
+			Integer linkedGenotypeIndex = linkedGenotype == null ? null : genotypeToRowIndex.get(linkedGenotype);
+			linkedGenotypeRowIndex[exp] = linkedGenotypeIndex == null ? -1 : linkedGenotypeIndex;
+		}
+
+		// The score of a genotype sample and a trait sample for one eQTL only depends on the genotype group of the
+		// genotype sample. Per eQTL the z-scores of all trait samples are calculated for the three genotype groups,
+		// the comparison matrix is then the sum over eQTLs of the genotype group indicators times these z-scores.
+		// eQTLs are processed in blocks to bound the memory, the genotype rows of a block are summed in parallel.
+		MixupEQTLBlock block = new MixupEQTLBlock(EQTL_BLOCK_SIZE, nrGenotypes, nrTraits);
+
 		// test all eQTLs
 		int numTested = 0;
 		int numNotTested = 0;
@@ -369,6 +401,7 @@ public class MixupMapper extends MetaQTL3 {
 
 					SNP loadedSNP = genotypeData.getSNPObject(snpId);
 					loader.loadGenotypes(loadedSNP);
+					byte[] snpGenotypes = loadedSNP.getGenotypes();
 					int[] genotypes = new int[genotypeToRowIndex.size()];
 
 					int numAA = 0;
@@ -376,17 +409,12 @@ public class MixupMapper extends MetaQTL3 {
 					int numBB = 0;
 
 					for (int i = 0; i < gtInds.length; i++) {
-						String genotypeSample = gtInds[i];
-						Integer genotypeSampleIndex = genotypeToRowIndex.get(genotypeSample);
+						int genotypeSampleIndex = genotypeRowIndex[i];
 
-						if (genotypeSampleIndex != null) {
-							int gt = loadedSNP.getGenotypes()[i];
+						if (genotypeSampleIndex != -1) {
+							int gt = snpGenotypes[i];
 							genotypes[genotypeSampleIndex] = gt;
 
-//                            if (genotypeSampleIndex > 75) {
-//                                System.out.println(loadedSNP.getName() + "\t" + genotypeSample + "\t" + genotypeSampleIndex + "\t" + gt);
-//                            }
-
 							if (gt == 0) {
 								numAA++;
 							} else if (gt == 2) {
@@ -406,13 +434,12 @@ public class MixupMapper extends MetaQTL3 {
 						int abCTR = 0;
 						int bbCTR = 0;
 
+						double[] expression = traitData.rawData[probeId];
 						for (int exp = 0; exp < trInds.length; exp++) {
-							String traitSample = trInds[exp];
-							String linkedGenotype = traitToGenotype.get(traitSample);
-							Integer linkedGenotypeIndex = genotypeToRowIndex.get(linkedGenotype);
+							int linkedGenotypeIndex = linkedGenotypeRowIndex[exp];
 							// use only linked samples to recreate the eQTL
-							if (linkedGenotype != null) {
-								double expValue = traitData.rawData[probeId][exp];
+							if (linkedGenotypeIndex != -1) {
+								double expValue = expression[exp];
 								int gt = genotypes[linkedGenotypeIndex];
 								if (gt != -1) {
 									if (gt == 0) {
@@ -426,10 +453,7 @@ public class MixupMapper extends MetaQTL3 {
 										abCTR++;
 									}
 								}
-							} else {
-//                                System.err.println("No linked sample for expression sample: " + traitSample + "\t" + linkedGenotype);
 							}
-
 						}
 
 						sdAA = JSci.maths.ArrayMath.standardDeviation(aa);
@@ -441,37 +465,9 @@ public class MixupMapper extends MetaQTL3 {
 						meanAB = JSci.maths.ArrayMath.mean(ab);
 
 						if (sdAA > 0 && sdAB > 0 && sdBB > 0) {
-							for (int exp = 0; exp < trInds.length; exp++) {
-
-								String traitSample = trInds[exp];
-								Integer traitIndex = traitToColIndex.get(traitSample);
-								for (int gen = 0; gen < gtInds.length; gen++) {
-
-									String genotypeSample = gtInds[gen];
-									Integer genotypeIndex = genotypeToRowIndex.get(genotypeSample);
-									if (traitIndex != null && genotypeIndex != null) {
-
-										double expression = traitData.rawData[probeId][exp];
-
-										int gt = genotypes[genotypeIndex];
-										if (gt != -1) {
-											double z = 0;
-											if (gt == 0) {
-												z = Math.abs(expression - meanAA) / sdAA;
-											} else if (gt == 1) {
-												z = Math.abs(expression - meanAB) / sdAB;
-											} else {
-												z = Math.abs(expression - meanBB) / sdBB;
-											}
-
-//                                        System.out.println(genotypeIndex + " - " + comparisonMatrixNrTested.length + "\t" + traitIndex + " - " + comparisonMatrixNrTested[0].length);
-											if (!Double.isNaN(z) && z != 0) {
-												comparisonMatrixNrTested[genotypeIndex][traitIndex]++;
-												comparisonMatrix[genotypeIndex][traitIndex] += z;
-											}
-										}
-									}
-								}
+							block.add(genotypes, expression, traitIndexToExp, meanAA, sdAA, meanAB, sdAB, meanBB, sdBB);
+							if (block.isFull()) {
+								block.addTo(comparisonMatrix, comparisonMatrixNrTested);
 							}
 							numTested++;
 						} else {
@@ -487,6 +483,7 @@ public class MixupMapper extends MetaQTL3 {
 			}
 
 		}
+		block.addTo(comparisonMatrix, comparisonMatrixNrTested);
 		loader.close();
 
 		System.out.println("Number QTLs tested: " + numTested + "");
@@ -648,4 +645,83 @@ public class MixupMapper extends MetaQTL3 {
 
 
 	}
+
+	/**
+	 * z-scores of a block of eQTLs for the three genotype groups, for each
+	 * trait sample. z-scores that are not tested (0 or NaN) are stored as 0 and
+	 * are not counted, adding 0 does not change the sums.
+	 */
+	private static class MixupEQTLBlock {
+
+		private final byte[][] genotypes; // [eqtl][genotype row]
+		private final double[][][] z; // [eqtl][genotype group][trait col]
+		private final byte[][][] tested; // [eqtl][genotype group][trait col]
+		private int size = 0;
+
+		MixupEQTLBlock(int capacity, int nrGenotypes, int nrTraits) {
+			genotypes = new byte[capacity][nrGenotypes];
+			z = new double[capacity][3][nrTraits];
+			tested = new byte[capacity][3][nrTraits];
+		}
+
+		boolean isFull() {
+			return size == genotypes.length;
+		}
+
+		void add(int[] eqtlGenotypes, double[] expression, int[] traitIndexToExp,
+				 double meanAA, double sdAA, double meanAB, double sdAB, double meanBB, double sdBB) {
+
+			byte[] blockGenotypes = genotypes[size];
+			for (int row = 0; row < blockGenotypes.length; row++) {
+				blockGenotypes[row] = (byte) eqtlGenotypes[row];
+			}
+
+			double[] means = new double[]{meanAA, meanAB, meanBB};
+			double[] sds = new double[]{sdAA, sdAB, sdBB};
+			for (int group = 0; group < 3; group++) {
+				double[] groupZ = z[size][group];
+				byte[] groupTested = tested[size][group];
+				for (int col = 0; col < groupZ.length; col++) {
+					int exp = traitIndexToExp[col];
+					double zScore = exp == -1 ? Double.NaN : Math.abs(expression[exp] - means[group]) / sds[group];
+					if (!Double.isNaN(zScore) && zScore != 0) {
+						groupZ[col] = zScore;
+						groupTested[col] = 1;
+					} else {
+						groupZ[col] = 0;
+						groupTested[col] = 0;
+					}
+				}
+			}
+			size++;
+		}
+
+		/**
+		 * Adds the eQTLs of this block to the matrices and empties the block.
+		 * The eQTLs are added to each cell in input order, so the sums are the
+		 * same as when adding one eQTL at a time.
+		 */
+		void addTo(double[][] comparisonMatrix, int[][] comparisonMatrixNrTested) {
+			if (size == 0) {
+				return;
+			}
+			IntStream.range(0, comparisonMatrix.length).parallel().forEach(row -> {
+				double[] scores = comparisonMatrix[row];
+				int[] nrTested = comparisonMatrixNrTested[row];
+				for (int e = 0; e < size; e++) {
+					int gt = genotypes[e][row];
+					if (gt != -1) {
+						int group = gt == 0 ? 0 : (gt == 1 ? 1 : 2);
+						double[] groupZ = z[e][group];
+						byte[] groupTested = tested[e][group];
+						for (int col = 0; col < scores.length; col++) {
+							scores[col] += groupZ[col];
+							nrTested[col] += groupTested[col];
+						}
+					}
+				}
+			});
+			size = 0;
+		}
+	}
 }
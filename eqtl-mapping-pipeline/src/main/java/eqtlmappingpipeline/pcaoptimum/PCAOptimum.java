@@ -16,6 +16,7 @@ import umcg.genetica.io.Gpio;
 import umcg.genetica.io.text.TextFile;
 import umcg.genetica.io.trityper.EQTL;
 import umcg.genetica.io.trityper.QTLTextFile;
+import umcg.genetica.io.trityper.TriTyperExpressionData;
 import umcg.genetica.io.trityper.TriTyperGeneticalGenomicsDataset;
 import umcg.genetica.io.trityper.TriTyperGeneticalGenomicsDatasetSettings;
 import umcg.genetica.math.matrix2.DoubleMatrixDataset;
@@ -40,6 +41,7 @@ public class PCAOptimum extends MetaQTL3 {
 	protected String cissnps;
 	protected String transsnps;
 	private boolean performEigenVectorQTLMapping;
+	protected int nrPCLevelsPerPass = 1;
 	
 	public void setCovariatesRemoved(boolean b) {
 		covariatesremoved = b;
@@ -54,6 +56,15 @@ public class PCAOptimum extends MetaQTL3 {
 		this.performEigenVectorQTLMapping = performEigenvectorQTLMapping;
 	}
 	
+	/**
+	 * Number of PC levels to map in one pass over the genotypes. Every level in
+	 * a pass keeps its expression matrix in memory. 1 maps the levels one by
+	 * one, 0 or less maps all levels in a single pass.
+	 */
+	public void setNrPCLevelsPerPass(int nrPCLevelsPerPass) {
+		this.nrPCLevelsPerPass = nrPCLevelsPerPass;
+	}
+	
 	@Override
 	public void initialize(String xmlSettingsFile, String texttoreplace, String texttoreplacewith,
 						   String ingt, String inexp, String inexpplatform, String inexpannot, String gte,
@@ -227,70 +238,25 @@ public class PCAOptimum extends MetaQTL3 {
 		}
 		
 		
-		for (int pca = 0; pca <= max; pca += stepSize) {
-			for (int d = 0; d < m_settings.datasetSettings.size(); d++) {
-				String expfile = origExpDs.get(d);
-				
-				
-				if (pca > 0) {
-					String startExpressionFileName = expfile;
-					File st = new File(startExpressionFileName);
-					
-					// strip the parent dir name
-					String parentDir = Gpio.getParentDir(expfile);
-					parentDir += Gpio.getFileSeparator();
-					String minimalFilename = st.getName();
-					if (minimalFilename.endsWith(".txt")) {
-						minimalFilename = minimalFilename.substring(0, minimalFilename.length() - 4);
-					} else if (minimalFilename.endsWith(".txt.gz")) {
-						minimalFilename = minimalFilename.substring(0, minimalFilename.length() - 7);
-					}
-					if (performEigenVectorQTLMapping) {
-						expfile = parentDir + minimalFilename + "." + pca + "PCAsOverSamplesRemoved-GeneticVectorsNotRemoved.txt.gz";
-					} else {
-						expfile = parentDir + minimalFilename + "." + pca + "PCAsOverSamplesRemoved.txt.gz";
-					}
-				}
-				
-				
-				// check whether the file exists...
-				if (!Gpio.exists(expfile)) {
-					System.err.println("Could not find file for pca: " + pca + "\t" + expfile);
-					System.exit(-1);
-				}
-				m_settings.datasetSettings.get(d).expressionLocation = expfile;
-			}
+		if (nrPCLevelsPerPass != 1) {
 			try {
-				
 				if (cis) {
-					String outputDir = out + "Cis-" + pca + "PCAsRemoved/";
-					if (performEigenVectorQTLMapping && pca > 0) {
-						outputDir = out + "Cis-" + pca + "PCAsRemoved-GeneticVectorsNotRemoved/";
-					}
-					if ((pca == 0 && !Gpio.exists(outputDir + "eQTLProbesFDR0.05.txt.gz")) || pca > 0) {
-						for (int d = 0; d < m_settings.datasetSettings.size(); d++) {
-							System.out.println(m_settings.datasetSettings.get(d).toString());
-							
-						}
-//						System.exit(-1);
-						performeQTLMapping(true, false, outputDir, cisSnpsToTest, null, m_settings.nrThreads, m_settings.maxNrMostSignificantEQTLs);
-						cleanup();
-					}
+					performMultiLevelQTLMapping(true, false, out, "Cis-", cisSnpsToTest, origExpDs, max, stepSize);
 				}
 				if (trans) {
-					String outputDir = out + "Trans-" + pca + "PCAsRemoved/";
-					if (performEigenVectorQTLMapping && pca > 0) {
-						outputDir = out + "Trans-" + pca + "PCAsRemoved-GeneticVectorsNotRemoved/";
-					}
-					if ((pca == 0 && !Gpio.exists(outputDir + "eQTLProbesFDR0.05.txt.gz")) || pca > 0) {
-						performeQTLMapping(false, true, outputDir, transSnpsToTest, null, m_settings.nrThreads, m_settings.maxNrMostSignificantEQTLs);
-						cleanup();
-					}
+					performMultiLevelQTLMapping(false, true, out, "Trans-", transSnpsToTest, origExpDs, max, stepSize);
 				}
 			} catch (NullPointerException e) {
 				e.printStackTrace();
 				System.exit(-1);
 			}
+		} else {
+			for (int pca = 0; pca <= max; pca += stepSize) {
+				for (int d = 0; d < m_settings.datasetSettings.size(); d++) {
+					m_settings.datasetSettings.get(d).expressionLocation = getPCAExpressionFile(origExpDs.get(d), pca);
+				}
+				performPerLevelQTLMapping(cis, trans, out, pca, cisSnpsToTest, transSnpsToTest);
+			}
 		}
 		
 		
@@ -303,6 +269,122 @@ public class PCAOptimum extends MetaQTL3 {
 		
 	}
 	
+	/**
+	 * @return the expression file with this number of PCs removed, exits when
+	 * the file does not exist
+	 */
+	private String getPCAExpressionFile(String expfile, int pca) {
+		if (pca > 0) {
+			String startExpressionFileName = expfile;
+			File st = new File(startExpressionFileName);
+			
+			// strip the parent dir name
+			String parentDir = Gpio.getParentDir(expfile);
+			parentDir += Gpio.getFileSeparator();
+			String minimalFilename = st.getName();
+			if (minimalFilename.endsWith(".txt")) {
+				minimalFilename = minimalFilename.substring(0, minimalFilename.length() - 4);
+			} else if (minimalFilename.endsWith(".txt.gz")) {
+				minimalFilename = minimalFilename.substring(0, minimalFilename.length() - 7);
+			}
+			if (performEigenVectorQTLMapping) {
+				expfile = parentDir + minimalFilename + "." + pca + "PCAsOverSamplesRemoved-GeneticVectorsNotRemoved.txt.gz";
+			} else {
+				expfile = parentDir + minimalFilename + "." + pca + "PCAsOverSamplesRemoved.txt.gz";
+			}
+		}
+		
+		
+		// check whether the file exists...
+		if (!Gpio.exists(expfile)) {
+			System.err.println("Could not find file for pca: " + pca + "\t" + expfile);
+			System.exit(-1);
+		}
+		return expfile;
+	}
+	
+	private String getPCAOutputDir(String out, String prefix, int pca) {
+		if (performEigenVectorQTLMapping && pca > 0) {
+			return out + prefix + pca + "PCAsRemoved-GeneticVectorsNotRemoved/";
+		}
+		return out + prefix + pca + "PCAsRemoved/";
+	}
+	
+	private void performPerLevelQTLMapping(boolean cis, boolean trans, String out, int pca, HashSet<String> cisSnpsToTest, HashSet<String> transSnpsToTest) throws IOException, Exception {
+		try {
+			
+			if (cis) {
+				String outputDir = getPCAOutputDir(out, "Cis-", pca);
+				if ((pca == 0 && !Gpio.exists(outputDir + "eQTLProbesFDR0.05.txt.gz")) || pca > 0) {
+					for (int d = 0; d < m_settings.datasetSettings.size(); d++) {
+						System.out.println(m_settings.datasetSettings.get(d).toString());
+						
+					}
+//					System.exit(-1);
+					performeQTLMapping(true, false, outputDir, cisSnpsToTest, null, m_threads, m_settings.maxNrMostSignificantEQTLs);
+					cleanup();
+				}
+			}
+			if (trans) {
+				String outputDir = getPCAOutputDir(out, "Trans-", pca);
+				if ((pca == 0 && !Gpio.exists(outputDir + "eQTLProbesFDR0.05.txt.gz")) || pca > 0) {
+					performeQTLMapping(false, true, outputDir, transSnpsToTest, null, m_threads, m_settings.maxNrMostSignificantEQTLs);
+					cleanup();
+				}
+			}
+		} catch (NullPointerException e) {
+			e.printStackTrace();
+			System.exit(-1);
+		}
+	}
+	
+	/**
+	 * Maps the eQTLs for all PC levels, nrPCLevelsPerPass levels at a time. The
+	 * genotypes are loaded and QC'ed once per pass instead of once per level.
+	 */
+	private void performMultiLevelQTLMapping(boolean cis, boolean trans, String out, String prefix, HashSet<String> snpsToTest, ArrayList<String> origExpDs, int max, int stepSize) throws IOException, Exception {
+		ArrayList<Integer> levels = new ArrayList<>();
+		for (int pca = 0; pca <= max; pca += stepSize) {
+			if (pca > 0 || !Gpio.exists(getPCAOutputDir(out, prefix, pca) + "eQTLProbesFDR0.05.txt.gz")) {
+				levels.add(pca);
+			}
+		}
+		
+		int levelsPerPass = levels.size();
+		if (nrPCLevelsPerPass > 0 && nrPCLevelsPerPass < levelsPerPass) {
+			levelsPerPass = nrPCLevelsPerPass;
+		}
+		
+		for (int start = 0; start < levels.size(); start += levelsPerPass) {
+			List<Integer> passLevels = levels.subList(start, Math.min(start + levelsPerPass, levels.size()));
+			String[] outputDirs = new String[passLevels.size()];
+			String[][] expressionFiles = new String[passLevels.size()][m_settings.datasetSettings.size()];
+			for (int l = 0; l < passLevels.size(); l++) {
+				int pca = passLevels.get(l);
+				outputDirs[l] = getPCAOutputDir(out, prefix, pca);
+				for (int d = 0; d < m_settings.datasetSettings.size(); d++) {
+					expressionFiles[l][d] = getPCAExpressionFile(origExpDs.get(d), pca);
+				}
+			}
+			
+			System.out.println("Mapping " + prefix + "eQTLs in one pass for PC levels: " + passLevels);
+			if (!performeQTLMapping(cis, trans, outputDirs, expressionFiles, snpsToTest, m_threads, m_settings.maxNrMostSignificantEQTLs)) {
+				System.out.println("Mapping the PC levels one by one instead.");
+				for (int l = 0; l < outputDirs.length; l++) {
+					for (int d = 0; d < m_settings.datasetSettings.size(); d++) {
+						m_settings.datasetSettings.get(d).expressionLocation = expressionFiles[l][d];
+					}
+					performeQTLMapping(cis, trans, outputDirs[l], snpsToTest, null, m_threads, m_settings.maxNrMostSignificantEQTLs);
+					cleanup();
+				}
+			}
+		}
+		
+		for (int d = 0; d < m_settings.datasetSettings.size(); d++) {
+			m_settings.datasetSettings.get(d).expressionLocation = origExpDs.get(d);
+		}
+	}
+	
 	private ArrayList<Integer> getPCs(int d) {
 		String origInExp = m_settings.datasetSettings.get(d).expressionLocation;
 		
@@ -344,11 +426,7 @@ public class PCAOptimum extends MetaQTL3 {
 			System.out.println("- Loading dataset: " + m_settings.datasetSettings.get(i).name + "");
 			System.out.println(ConsoleGUIElems.LINE);
 			m_gg[i] = new TriTyperGeneticalGenomicsDataset(m_settings.datasetSettings.get(i));
-			if (!m_settings.performParametricAnalysis) {
-				m_gg[i].getExpressionData().rankAllExpressionData(m_settings.equalRankForTies);
-			}
-			m_gg[i].getExpressionData().calcAndSubtractMean();
-			m_gg[i].getExpressionData().calcMeanAndVariance();
+			prepareExpressionData(m_gg[i].getExpressionData());
 			
 			numAvailableInds += m_gg[i].getExpressionToGenotypeIdArray().length;
 			System.out.println(ConsoleGUIElems.LINE);
@@ -384,8 +462,14 @@ public class PCAOptimum extends MetaQTL3 {
 		}
 		
 		// save GTE's for future use
+		writeGenotypeToExpressionCouplings(m_settings.outputReportsDir);
+		
+		printSummary();
+	}
+	
+	private void writeGenotypeToExpressionCouplings(String outputdir) throws IOException {
 		for (int d = 0; d < m_gg.length; d++) {
-			String outf = m_settings.outputReportsDir + "GTE-" + m_gg[d].getSettings().name + ".txt";
+			String outf = outputdir + "GTE-" + m_gg[d].getSettings().name + ".txt";
 			TextFile tf = new TextFile(outf, TextFile.W);
 			THashMap<String, String> samples = m_gg[d].getGenotypeToExpressionCouplings();
 			for (Map.Entry<String, String> entry : samples.entrySet()) {
@@ -393,8 +477,31 @@ public class PCAOptimum extends MetaQTL3 {
 			}
 			tf.close();
 		}
+	}
+	
+	/**
+	 * Loads the expression data of another PC level for this dataset, with the
+	 * same probe confinements and individuals as the loaded expression data.
+	 *
+	 * @return null if the individuals or probes differ from the loaded
+	 * expression data
+	 */
+	private TriTyperExpressionData loadLevelExpressionData(TriTyperGeneticalGenomicsDataset gg, String expressionFile) throws IOException {
+		TriTyperExpressionData loaded = gg.getExpressionData();
 		
-		printSummary();
+		TriTyperExpressionData expressionData = gg.loadOtherExpressionData(expressionFile);
+		if (expressionData == null) {
+			System.out.println("Could not load expression data: " + expressionFile);
+			return null;
+		}
+		
+		if (!Arrays.equals(loaded.getIndividuals(), expressionData.getIndividuals()) || !Arrays.equals(loaded.getProbes(), expressionData.getProbes())) {
+			System.out.println("Individuals or probes of " + expressionFile + " differ from " + gg.getSettings().expressionLocation);
+			return null;
+		}
+		
+		prepareExpressionData(expressionData);
+		return expressionData;
 	}
 	
 	protected void cleanup() {
@@ -420,8 +527,66 @@ public class PCAOptimum extends MetaQTL3 {
 		// set standard cis-settings
 		Settings backup = m_settings;
 		
-		m_settings = new Settings();
-		m_settings.datasetSettings = new ArrayList<>();
+		m_settings = createMappingSettings(backup, cis, trans, outputdir, snpsToTest, probesToTest, threads, maxNrResults);
+		
+		init();
+		// set standard trans settings
+		super.mapEQTLs();
+		cleanup();
+		m_settings = backup;
+	}
+	
+	/**
+	 * Maps the eQTLs of multiple PC levels in one pass over the genotypes. The
+	 * datasets are loaded with the first expression files, the other levels
+	 * only load their expression data.
+	 *
+	 * @param outputDirs output directory per level
+	 * @param expressionFiles expression file per level and dataset
+	 * @return false if the expression files of the levels do not have the same
+	 * individuals and probes, nothing is mapped in that case
+	 */
+	protected boolean performeQTLMapping(boolean cis, boolean trans, String[] outputDirs, String[][] expressionFiles, HashSet<String> snpsToTest, int threads, Integer maxNrResults) throws IOException, Exception {
+		for (String outputdir : outputDirs) {
+			if (!Gpio.exists(outputdir)) {
+				Gpio.createDir(outputdir);
+			}
+		}
+		Settings backup = m_settings;
+		for (int d = 0; d < backup.datasetSettings.size(); d++) {
+			backup.datasetSettings.get(d).expressionLocation = expressionFiles[0][d];
+		}
+		
+		m_settings = createMappingSettings(backup, cis, trans, outputDirs[0], snpsToTest, null, threads, maxNrResults);
+		
+		init();
+		
+		TriTyperExpressionData[][] levelExpressionData = new TriTyperExpressionData[outputDirs.length][m_gg.length];
+		for (int d = 0; d < m_gg.length; d++) {
+			levelExpressionData[0][d] = m_gg[d].getExpressionData();
+		}
+		boolean sameIndividualsAndProbes = true;
+		for (int level = 1; level < outputDirs.length && sameIndividualsAndProbes; level++) {
+			for (int d = 0; d < m_gg.length && sameIndividualsAndProbes; d++) {
+				levelExpressionData[level][d] = loadLevelExpressionData(m_gg[d], expressionFiles[level][d]);
+				sameIndividualsAndProbes = levelExpressionData[level][d] != null;
+			}
+		}
+		
+		if (sameIndividualsAndProbes) {
+			for (int level = 1; level < outputDirs.length; level++) {
+				writeGenotypeToExpressionCouplings(outputDirs[level]);
+			}
+			super.mapEQTLs(levelExpressionData, outputDirs);
+		}
+		cleanup();
+		m_settings = backup;
+		return sameIndividualsAndProbes;
+	}
+	
+	private Settings createMappingSettings(Settings backup, boolean cis, boolean trans, String outputdir, HashSet<String> snpsToTest, THashSet<String> probesToTest, int threads, Integer maxNrResults) {
+		Settings settings = new Settings();
+		settings.datasetSettings = new ArrayList<>();
 		for (int d = 0; d < backup.datasetSettings.size(); d++) {
 			TriTyperGeneticalGenomicsDatasetSettings s = backup.datasetSettings.get(d);
 			s.cisAnalysis = cis;
@@ -429,52 +594,47 @@ public class PCAOptimum extends MetaQTL3 {
 			if (probesToTest != null) {
 				s.tsProbesConfine = probesToTest;
 			}
-			m_settings.datasetSettings.add(s);
+			settings.datasetSettings.add(s);
 			
 		}
 		
 		
-		m_settings.numberOfVariantsToBuffer = 1000;
+		settings.numberOfVariantsToBuffer = 1000;
 		
-		m_settings.createDotPlot = false;
-		m_settings.displayWarnings = false;
+		settings.createDotPlot = false;
+		settings.displayWarnings = false;
 		
 		
 		if (cis) {
-			m_settings.ciseQTLAnalysMaxSNPProbeMidPointDistance = 250000;
+			settings.ciseQTLAnalysMaxSNPProbeMidPointDistance = 250000;
 		} else {
-			m_settings.ciseQTLAnalysMaxSNPProbeMidPointDistance = 5000000;
+			settings.ciseQTLAnalysMaxSNPProbeMidPointDistance = 5000000;
 		}
 		
-		m_settings.nrThreads = threads;
-		m_settings.cisAnalysis = cis;
-		m_settings.transAnalysis = trans;
+		settings.nrThreads = threads;
+		settings.cisAnalysis = cis;
+		settings.transAnalysis = trans;
 		
-		m_settings.nrPermutationsFDR = permutations;
-		m_settings.tsSNPsConfine = snpsToTest;
-		m_settings.numberOfVariantsToBuffer = 1000;
+		settings.nrPermutationsFDR = permutations;
+		settings.tsSNPsConfine = snpsToTest;
+		settings.numberOfVariantsToBuffer = 1000;
 		if (snpsToTest != null) {
-			m_settings.numberOfVariantsToBuffer = 1;
+			settings.numberOfVariantsToBuffer = 1;
 		}
 		if (probesToTest != null) {
-			m_settings.tsProbesConfine = probesToTest;
+			settings.tsProbesConfine = probesToTest;
 		}
-		m_settings.outputReportsDir = outputdir;
-		m_settings.createTEXTOutputFiles = true;
-		m_settings.createBinaryOutputFiles = false;
-		m_settings.randomNumberGenerator = new Random(m_settings.rSeed);
-		m_settings.fdrType = FDR.FDRMethod.FULL;
+		settings.outputReportsDir = outputdir;
+		settings.createTEXTOutputFiles = true;
+		settings.createBinaryOutputFiles = false;
+		settings.randomNumberGenerator = new Random(settings.rSeed);
+		settings.fdrType = FDR.FDRMethod.FULL;
 		
 		if (maxNrResults != null) {
-			m_settings.maxNrMostSignificantEQTLs = maxNrResults;
+			settings.maxNrMostSignificantEQTLs = maxNrResults;
 			
 		}
-		
-		init();
-		// set standard trans settings
-		super.mapEQTLs();
-		cleanup();
-		m_settings = backup;
+		return settings;
 	}
 	
 	protected void compareZScores(EQTL[] ciseqtls, EQTL[] transeqtls, EQTL[] originalCisEQTLs, EQTL[] originalTransEQTLs, String out, int pca) {
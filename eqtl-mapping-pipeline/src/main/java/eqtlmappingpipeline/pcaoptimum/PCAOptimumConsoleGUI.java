@@ -46,6 +46,7 @@ public class PCAOptimumConsoleGUI {
         Integer runOnlyNumPCsRemoved = null;
 
         Integer nrEQTLsToOutput = null;
+        int nrPCLevelsPerPass = 1;
 
         for (int i = 0; i < args.length; i++) {
             String arg = args[i];
@@ -110,6 +111,13 @@ public class PCAOptimumConsoleGUI {
                     System.err.println("Error --threads should be an integer");
                     System.exit(-1);
                 }
+            } else if (arg.equals("--levelsperpass")) {
+                try {
+                    nrPCLevelsPerPass = Integer.parseInt(val);
+                } catch (NumberFormatException e) {
+                    System.err.println("Error --levelsperpass should be an integer");
+                    System.exit(-1);
+                }
             } else if (arg.equals("--maxresults")) {
                 try {
                     nrEQTLsToOutput = Integer.parseInt(val);
@@ -231,6 +239,7 @@ public class PCAOptimumConsoleGUI {
                     p.setSNPSets(cissnps, transsnps);
                     p.setPerformpcqtlNormalization(performEigenvectorQTLMapping);
                     p.setCovariatesRemoved(covariatesremoved);
+                    p.setNrPCLevelsPerPass(nrPCLevelsPerPass);
                     p.initialize(settingsfile, settingstexttoreplace, settingstexttoreplacewith,  in, inexp, inexpplatform, inexpannot, gte, out, cis, trans, perm, true, false, snpfile, threads, nrEQTLsToOutput, null, null, true, true, null, null, null);
                 }
             }
@@ -255,6 +264,7 @@ public class PCAOptimumConsoleGUI {
                 + "--inventorize-pcqtl\tdir\t\tSummarize the PC optimum results for a certain outputdirectory\n"
                 + "--cissnps\t\tstring\t\tList of SNPs to test in cis\n"
                 + "--transsnps\t\tstring\t\tList of SNPs to test in trans\n"
+                + "--levelsperpass\t\tinteger\t\tNumber of PC levels to map per pass over the genotypes, 0 for all levels. Default is 1.\n"
                 + "\nSpecific options for --pcqtl:\n"
                 + "--covariatesremoved\t\t\tIndicate whether covariates were removed\n"
                 + "--onlynormalize\t\t\t\tOnly perform the pcqtl mapping and subsequent normalization\n"
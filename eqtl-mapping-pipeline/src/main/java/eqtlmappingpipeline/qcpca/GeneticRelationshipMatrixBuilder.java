@@ -0,0 +1,231 @@
+package eqtlmappingpipeline.qcpca;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.molgenis.genotype.GenotypeData;
+import org.molgenis.genotype.variant.GeneticVariant;
+
+/**
+ * Builds the sample x sample identity by state (IBS) similarity matrix used by
+ * QCPCA. For every pair of samples the similarity is the mean over the
+ * variants called in both samples of 1 for identical genotypes, 0.5 for
+ * genotypes one allele apart and 0 for opposite homozygotes.
+ *
+ * The genotypes are packed per sample in one bit set per genotype class, so
+ * the counts for 64 variants at a time follow from AND operations and bit
+ * counts. The matrix is calculated in blocks of samples on multiple threads,
+ * each block passes over the variants in chunks that stay in cache.
+ */
+public class GeneticRelationshipMatrixBuilder {
+
+    private static final int SAMPLE_BLOCK_SIZE = 64;
+    private static final int WORD_BLOCK_SIZE = 1024;
+
+    private final int nrSamples;
+    private long[][] homozygousA;
+    private long[][] heterozygous;
+    private long[][] homozygousB;
+    private int capacity = 16;
+    private int nrVariants = 0;
+
+    public GeneticRelationshipMatrixBuilder(int nrSamples) {
+        this.nrSamples = nrSamples;
+        homozygousA = new long[nrSamples][capacity];
+        heterozygous = new long[nrSamples][capacity];
+        homozygousB = new long[nrSamples][capacity];
+    }
+
+    /**
+     * Adds all biallelic variants of the genotype data, using all samples.
+     */
+    public static GeneticRelationshipMatrixBuilder fromGenotypeData(GenotypeData genotypeData) {
+        GeneticRelationshipMatrixBuilder builder = new GeneticRelationshipMatrixBuilder(genotypeData.getSamples().size());
+        builder.addVariants(genotypeData);
+        return builder;
+    }
+
+    public int getNrSamples() {
+        return nrSamples;
+    }
+
+    public int getNrVariants() {
+        return nrVariants;
+    }
+
+    /**
+     * @param genotypes genotype per sample: 0, 1 or 2 and -1 for missing
+     */
+    public void addVariant(double[] genotypes) {
+        checkNrSamples(genotypes.length);
+        int word = nextWord();
+        long bit = 1L << (nrVariants & 63);
+        for (int s = 0; s < nrSamples; s++) {
+            double genotype = genotypes[s];
+            if (genotype == 0) {
+                homozygousA[s][word] |= bit;
+            } else if (genotype == 1) {
+                heterozygous[s][word] |= bit;
+            } else if (genotype == 2) {
+                homozygousB[s][word] |= bit;
+            } else if (genotype != -1) {
+                throw new IllegalArgumentException("Genotype should be 0, 1, 2 or -1 for missing, found: " + genotype);
+            }
+        }
+        nrVariants++;
+    }
+
+    /**
+     * @param genotypes genotype per sample: 0, 1 or 2 and -1 for missing
+     */
+    public void addVariant(byte[] genotypes) {
+        checkNrSamples(genotypes.length);
+        int word = nextWord();
+        long bit = 1L << (nrVariants & 63);
+        for (int s = 0; s < nrSamples; s++) {
+            switch (genotypes[s]) {
+                case 0:
+                    homozygousA[s][word] |= bit;
+                    break;
+                case 1:
+                    heterozygous[s][word] |= bit;
+                    break;
+                case 2:
+                    homozygousB[s][word] |= bit;
+                    break;
+                case -1:
+                    break;
+                default:
+                    throw new IllegalArgumentException("Genotype should be 0, 1, 2 or -1 for missing, found: " + genotypes[s]);
+            }
+        }
+        nrVariants++;
+    }
+
+    /**
+     * Adds the called dosages of the biallelic variants, other variants are
+     * skipped. IBS does not depend on which allele is counted.
+     *
+     * @return number of variants added
+     */
+    public int addVariants(Iterable<GeneticVariant> variants) {
+        int added = 0;
+        for (GeneticVariant variant : variants) {
+            if (variant.isBiallelic()) {
+                addVariant(variant.getSampleCalledDosages());
+                added++;
+            }
+        }
+        return added;
+    }
+
+    /**
+     * @return similarity between all samples, 1 on the diagonal and NaN for
+     * pairs without variants called in both samples
+     */
+    public double[][] build(int nrThreads) {
+        final double[][] matrix = new double[nrSamples][nrSamples];
+        final int nrWords = (nrVariants + 63) >>> 6;
+        int nrBlocks = (nrSamples + SAMPLE_BLOCK_SIZE - 1) / SAMPLE_BLOCK_SIZE;
+
+        ExecutorService threadPool = Executors.newFixedThreadPool(Math.max(1, nrThreads));
+        try {
+            List<Future<?>> blocks = new ArrayList<Future<?>>();
+            for (int blockI = 0; blockI < nrBlocks; blockI++) {
+                for (int blockJ = blockI; blockJ < nrBlocks; blockJ++) {
+                    final int i = blockI;
+                    final int j = blockJ;
+                    blocks.add(threadPool.submit(() -> calculateBlock(i, j, nrWords, matrix)));
+                }
+            }
+            for (Future<?> block : blocks) {
+                block.get();
+            }
+        } catch (InterruptedException | ExecutionException e) {
+            throw new RuntimeException(e);
+        } finally {
+            threadPool.shutdown();
+        }
+
+        for (int s = 0; s < nrSamples; s++) {
+            matrix[s][s] = 1.0;
+        }
+        return matrix;
+    }
+
+    private void calculateBlock(int blockI, int blockJ, int nrWords, double[][] matrix) {
+        int iStart = blockI * SAMPLE_BLOCK_SIZE;
+        int iEnd = Math.min(iStart + SAMPLE_BLOCK_SIZE, nrSamples);
+        int jStart = blockJ * SAMPLE_BLOCK_SIZE;
+        int jEnd = Math.min(jStart + SAMPLE_BLOCK_SIZE, nrSamples);
+
+        int[][] identical = new int[iEnd - iStart][jEnd - jStart];
+        int[][] oneAlleleApart = new int[iEnd - iStart][jEnd - jStart];
+        int[][] calledInBoth = new int[iEnd - iStart][jEnd - jStart];
+
+        for (int w0 = 0; w0 < nrWords; w0 += WORD_BLOCK_SIZE) {
+            int w1 = Math.min(w0 + WORD_BLOCK_SIZE, nrWords);
+            for (int i = iStart; i < iEnd; i++) {
+                long[] aI = homozygousA[i];
+                long[] hI = heterozygous[i];
+                long[] bI = homozygousB[i];
+                int jFrom = blockI == blockJ ? i + 1 : jStart;
+                for (int j = jFrom; j < jEnd; j++) {
+                    long[] aJ = homozygousA[j];
+                    long[] hJ = heterozygous[j];
+                    long[] bJ = homozygousB[j];
+                    int ibs2 = 0;
+                    int ibs1 = 0;
+                    int both = 0;
+                    for (int w = w0; w < w1; w++) {
+                        // the genotype classes are disjoint, so the bit sets can be combined before counting
+                        long homI = aI[w] | bI[w];
+                        long homJ = aJ[w] | bJ[w];
+                        ibs2 += Long.bitCount((aI[w] & aJ[w]) | (hI[w] & hJ[w]) | (bI[w] & bJ[w]));
+                        ibs1 += Long.bitCount((hI[w] & homJ) | (homI & hJ[w]));
+                        both += Long.bitCount((homI | hI[w]) & (homJ | hJ[w]));
+                    }
+                    identical[i - iStart][j - jStart] += ibs2;
+                    oneAlleleApart[i - iStart][j - jStart] += ibs1;
+                    calledInBoth[i - iStart][j - jStart] += both;
+                }
+            }
+        }
+
+        for (int i = iStart; i < iEnd; i++) {
+            int jFrom = blockI == blockJ ? i + 1 : jStart;
+            for (int j = jFrom; j < jEnd; j++) {
+                double ibsCount = identical[i - iStart][j - jStart] + 0.5d * oneAlleleApart[i - iStart][j - jStart];
+                double similarity = ibsCount / (double) calledInBoth[i - iStart][j - jStart];
+                matrix[i][j] = similarity;
+                matrix[j][i] = similarity;
+            }
+        }
+    }
+
+    private void checkNrSamples(int length) {
+        if (length != nrSamples) {
+            throw new IllegalArgumentException("Expected genotypes for " + nrSamples + " samples, found: " + length);
+        }
+    }
+
+    /**
+     * @return the word of the next variant, the bit sets are grown if needed
+     */
+    private int nextWord() {
+        int word = nrVariants >>> 6;
+        if (word >= capacity) {
+            capacity *= 2;
+            for (int s = 0; s < nrSamples; s++) {
+                homozygousA[s] = Arrays.copyOf(homozygousA[s], capacity);
+                heterozygous[s] = Arrays.copyOf(heterozygous[s], capacity);
+                homozygousB[s] = Arrays.copyOf(homozygousB[s], capacity);
+            }
+        }
+        return word;
+    }
+}
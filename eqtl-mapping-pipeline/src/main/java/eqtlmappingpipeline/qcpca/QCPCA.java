@@ -34,6 +34,20 @@ public class QCPCA {
 
     private boolean useCorrelationMatrix = false;
     private boolean LDpruning = false;
+    private int nrThreads = Runtime.getRuntime().availableProcessors();
+    private Integer nrPCs = null;
+
+    public void setNrThreads(int nrThreads) {
+        this.nrThreads = nrThreads;
+    }
+
+    /**
+     * Only calculate this number of genetic and expression PCs, instead of
+     * decomposing the full sample x sample matrices. null calculates all PCs.
+     */
+    public void setNrPCs(Integer nrPCs) {
+        this.nrPCs = nrPCs;
+    }
 
     // test
     public void run(String expressionLoc, String expressionPlatform, String genotypeLoc, String gte, String probeannotation, String outputdirectory, String prunedSNPListFile) {
@@ -71,7 +85,13 @@ public class QCPCA {
 
             System.out.println("Copying data to array");
             ProgressBar pb = new ProgressBar(ldSNPs.size());
-            double[][] datatmp = new double[numsamples][ldSNPs.size()];
+            double[][] datatmp = null;
+            GeneticRelationshipMatrixBuilder grm = null;
+            if (useCorrelationMatrix) {
+                datatmp = new double[numsamples][ldSNPs.size()];
+            } else {
+                grm = new GeneticRelationshipMatrixBuilder(numsamples);
+            }
             HashSet<Integer> snpsWoData = new HashSet<Integer>();
             for (int i = 0; i < ldSNPs.size(); i++) {
                 Integer snpID = ldSNPs.get(i);
@@ -84,8 +104,12 @@ public class QCPCA {
                 double[] snpdata = getSNPData(loader, numsamples, indWGA, snpObj, false);
 
                 if (snpdata != null) {
-                    for (int j = 0; j < snpdata.length; j++) {
-                        datatmp[j][i] = snpdata[j];
+                    if (useCorrelationMatrix) {
+                        for (int j = 0; j < snpdata.length; j++) {
+                            datatmp[j][i] = snpdata[j];
+                        }
+                    } else {
+                        grm.addVariant(snpdata);
                     }
                 } else {
                     snpsWoData.add(i);
@@ -95,101 +119,66 @@ public class QCPCA {
             }
             pb.close();
 
-            double[][] datafinal = null;
-            if (snpsWoData.size() > 0) {
-                System.out.println("Detected " + snpsWoData.size() + " SNPs not passing QC, out of " + ldSNPs.size());
-                int numsnpswdata = ldSNPs.size() - snpsWoData.size();
-                datafinal = new double[numsamples][numsnpswdata];
-                int snpcounter = 0;
-                for (int i = 0; i < ldSNPs.size(); i++) {
-                    if (!snpsWoData.contains(i)) {
-                        for (int j = 0; j < datatmp.length; j++) {
-                            datatmp[j][snpcounter] = datatmp[j][i];
+            double[][] correlationmatrix;
+            if (useCorrelationMatrix) {
+                double[][] datafinal = null;
+                if (snpsWoData.size() > 0) {
+                    System.out.println("Detected " + snpsWoData.size() + " SNPs not passing QC, out of " + ldSNPs.size());
+                    int numsnpswdata = ldSNPs.size() - snpsWoData.size();
+                    datafinal = new double[numsamples][numsnpswdata];
+                    int snpcounter = 0;
+                    for (int i = 0; i < ldSNPs.size(); i++) {
+                        if (!snpsWoData.contains(i)) {
+                            for (int j = 0; j < datatmp.length; j++) {
+                                datatmp[j][snpcounter] = datatmp[j][i];
+                            }
+                            snpcounter++;
                         }
-                        snpcounter++;
                     }
+                } else {
+                    datafinal = datatmp;
                 }
-            } else {
-                datafinal = datatmp;
-            }
-
-            double[][] correlationmatrix = new double[numsamples][numsamples];
-
-
-            if (useCorrelationMatrix) {
                 correlationmatrix = calculatecorrelationmatrix(datafinal, true);
             } else {
-
-                for (int i = 0; i < numsamples; i++) {
-                    double[] snpsi = datafinal[i];
-                    for (int j = i + 1; j < numsamples; j++) {
-                        double[] snpsj = datafinal[j];
-                        int nrSNPsWithGenotypeDataAvailableForBothSamples = 0;
-                        double ibsCount = 0;
-                        for (int s = 0; s < snpsi.length; s++) {
-                            if (snpsi[s] != -1 && snpsj[s] != -1) {
-                                double ibsVal = 0;
-                                if (snpsi[s] == snpsj[s]) {
-                                    ibsVal = 1.0d;
-                                } else {
-                                    if (Math.abs(snpsi[s] - snpsj[s]) == 1) {
-                                        ibsVal = 0.5d;
-                                    }
-                                }
-                                ibsCount += ibsVal;
-                                nrSNPsWithGenotypeDataAvailableForBothSamples++;
-                            }
-                        }
-
-
-                        double corr = (double) ibsCount / (double) nrSNPsWithGenotypeDataAvailableForBothSamples;
-
-                        correlationmatrix[i][j] = corr;
-                        correlationmatrix[j][i] = corr;
-
-                        pb.iterate();
-
-                    }
-
-                    correlationmatrix[i][i] = 1.0;
+                if (snpsWoData.size() > 0) {
+                    System.out.println("Detected " + snpsWoData.size() + " SNPs not passing QC, out of " + ldSNPs.size());
                 }
+                System.out.println("Calculating IBS between all " + numsamples + " samples using " + grm.getNrVariants() + " SNPs and " + nrThreads + " threads");
+                correlationmatrix = grm.build(nrThreads);
+                grm = null;
             }
 
             TextFile corMat = new TextFile(outputdirectory + "snpcorrmat.txt", TextFile.W);
+            StringBuilder output = new StringBuilder();
             for (int i = 0; i < correlationmatrix.length; i++) {
-                String output = "";
+                output.setLength(0);
                 for (int j = 0; j < correlationmatrix.length; j++) {
-                    output += "\t" + correlationmatrix[i][j];
+                    output.append('\t').append(correlationmatrix[i][j]);
                 }
-                corMat.write(output + "\n");
+                corMat.write(output.append('\n').toString());
             }
             corMat.close();
-            pb.close();
 
-            for (int i = 0; i < 10; i++) {
-                String output = "";
-                for (int j = 0; j < 10; j++) {
-                    output += "\t" + correlationmatrix[i][j];
+            for (int i = 0; i < 10 && i < numsamples; i++) {
+                output.setLength(0);
+                for (int j = 0; j < 10 && j < numsamples; j++) {
+                    output.append('\t').append(correlationmatrix[i][j]);
                 }
                 System.out.println(output);
             }
 
-            System.out.println("Performing eigenvalue decomposition");
-            Jama.EigenvalueDecomposition eig = PCA.eigenValueDecomposition(correlationmatrix);
-            System.out.println("Getting eigenvalues");
-            double[] eigenValues = PCA.getRealEigenvalues(eig);
-            System.out.println("Getting eigenvariance");
-            double genVarPC1 = PCA.getEigenValueVar(eigenValues, 1);
-            System.out.println("Getting eigenvector");
-            double[] PC1GenEigenVector = PCA.getEigenVector(eig, eigenValues, 1);
-            System.out.println("Getting eigenvector");
-            double[] PC2GenEigenVector = PCA.getEigenVector(eig, eigenValues, 2);
+            Decomposition genetic = decompose(correlationmatrix);
+            double[] eigenValues = genetic.eigenValues;
+            double[][] eigenVectors = genetic.eigenVectors;
+            double sumEigenValues = genetic.sumEigenValues;
+            int nrEigenValues = eigenValues.length;
+            double genVarPC1 = getEigenValueVar(eigenValues, sumEigenValues, 1);
 
             TextFile eigenvectorsout = new TextFile(outputdirectory + "PCAOverSamplesEigenvalues.txt.gz", TextFile.W);
 
             double cumVarPCA = 0;
-            for (int pca = 0; pca < numsamples; pca++) {
-                double varPCA = PCA.getEigenValueVar(eigenValues, pca);
+            for (int pca = 0; pca < nrEigenValues; pca++) {
+                double varPCA = getEigenValueVar(eigenValues, sumEigenValues, pca);
                 int pcaNr = pca + 1;
                 cumVarPCA += varPCA;
                 eigenvectorsout.write(pcaNr + "\t" + varPCA + "\t" + cumVarPCA + "\n");
@@ -201,24 +190,24 @@ public class QCPCA {
             System.out.println("Done");
             System.out.println(genVarPC1);
 
-            for (int i = 1; i < 11; i++) {
+            for (int i = 1; i < 11 && i + 1 < nrEigenValues; i++) {
                 ScatterPlot scat = new ScatterPlot();
-                scat.draw(PCA.getEigenVector(eig, eigenValues, i), PCA.getEigenVector(eig, eigenValues, i + 1), "PC" + i, "PC" + (i + 1), "Genetic Eigenvalues", outputdirectory + "SNP-");
+                scat.draw(getEigenVector(eigenVectors, i), getEigenVector(eigenVectors, i + 1), "PC" + i, "PC" + (i + 1), "Genetic Eigenvalues", outputdirectory + "SNP-");
 
             }
 
             TextFile out = new TextFile(outputdirectory + "EigenVectors-SNPs.txt", TextFile.W);
             for (int i = 0; i < numsamples; i++) {
-                String probeCoefficients = "";
-                for (int pc = 1; pc <= numsamples - 1; pc++) {
-                    probeCoefficients += "\t" + PCA.getEigenVector(eig, eigenValues, pc)[i];
+                output.setLength(0);
+                for (int pc = 1; pc <= nrEigenValues - 1; pc++) {
+                    output.append('\t').append(eigenVectors[i][nrEigenValues - 1 - pc]);
                 }
 //                System.out.println(ds.getExpressionData().getIndividuals()[i]+"\t"+ds.getGenotypeData().getIndividuals()[indWGA[i]]+probeCoefficients);
-                out.write(ds.getExpressionData().getIndividuals()[i] + "\t" + ds.getGenotypeData().getIndividuals()[indWGA[i]] + probeCoefficients + "\n");
+                out.write(ds.getExpressionData().getIndividuals()[i] + "\t" + ds.getGenotypeData().getIndividuals()[indWGA[i]] + output + "\n");
             }
             out.close();
 
-// EXPRESSION DATA!    
+// EXPRESSION DATA!
 
             DoubleMatrixDataset<String, String> dataset = new DoubleMatrixDataset<String, String>();
             dataset.setMatrix(ds.getExpressionData().getMatrix());
@@ -233,19 +222,19 @@ public class QCPCA {
             for (int p = 0; p < dataset.rows(); p++) {
                 double[] row = dataset.getRow(p).toArray();
                 double mean = Descriptives.mean(row);
-                double stdev = Math.sqrt(Descriptives.variance(row, mean));
                 for (int s = 0; s < dataset.columns(); s++) {
-                    double v = row[s];
-                    dataset.setElementQuick(p,s,v-mean);
+                    dataset.setElementQuick(p, s, row[s] - mean);
                     //                rawData[p][s] /= stdev;   // do not scale each probe for stdev: this will remove the variation captured by the
                 }
             }
 
             System.out.println("- Standardizing sample mean and standard deviation");
+            // samples x probes, so the covariances below read contiguous rows
+            double[][] sampleData = new double[nrSamples][nrProbes];
             for (int s = 0; s < nrSamples; s++) {
-                double[] vals = new double[nrProbes];
+                double[] vals = sampleData[s];
                 for (int p = 0; p < nrProbes; p++) {
-                    vals[p] = dataset.getElementQuick(p,s);
+                    vals[p] = dataset.getElementQuick(p, s);
                 }
                 double mean = Descriptives.mean(vals);
                 for (int p = 0; p < nrProbes; p++) {
@@ -254,7 +243,7 @@ public class QCPCA {
                 double var = Descriptives.variance(vals, mean);
                 double stdev = Math.sqrt(var);
                 for (int p = 0; p < nrProbes; p++) {
-                    dataset.setElementQuick(p,s,(vals[p] / stdev));
+                    vals[p] /= stdev;
                 }
             }
 
@@ -264,11 +253,12 @@ public class QCPCA {
 
             ProgressBar pv2 = new ProgressBar(nrSamples * nrSamples);
             for (int f = 0; f < nrSamples; f++) {
+                double[] valsF = sampleData[f];
                 for (int g = f; g < nrSamples; g++) {
-
+                    double[] valsG = sampleData[g];
                     double covarianceInterim = 0;
                     for (int p = 0; p < nrProbes; p++) {
-                        covarianceInterim += dataset.getElementQuick(p,f)* dataset.getElementQuick(p,g);
+                        covarianceInterim += valsF[p] * valsG[p];
                     }
                     double covariance = covarianceInterim / probeCountMinusOne;
                     correlationMatrix[f][g] = covariance;
@@ -280,24 +270,17 @@ public class QCPCA {
             pv2.close();
             System.out.println("100%");
 
-            System.out.println("Performing eigenvalue decomposition");
-            Jama.EigenvalueDecomposition eigExp = PCA.eigenValueDecomposition(correlationmatrix);
-            System.out.println("Getting eigenvalues");
-            double[] eigenValuesExp = PCA.getRealEigenvalues(eigExp);
-            System.out.println("Getting eigenvariance");
-            double expVarPC1 = PCA.getEigenValueVar(eigenValuesExp, 1);
-            System.out.println("Getting eigenvector");
-            double[] PC1ExpEigenVector = PCA.getEigenVector(eigExp, eigenValuesExp, 1);
-            System.out.println("Getting eigenvector");
-            double[] PC2ExpEigenVector = PCA.getEigenVector(eigExp, eigenValuesExp, 2);
+            Decomposition expression = decompose(correlationMatrix);
+            double[][] eigenVectorsExp = expression.eigenVectors;
+            int nrEigenValuesExp = expression.eigenValues.length;
 
             double[][] correlationmatrix2 = new double[numsamples][numsamples];
             pb = new ProgressBar(numsamples * numsamples);
             pb.print();
 
-            for (int i = 1; i < 11; i++) {
+            for (int i = 1; i < 11 && i + 1 < nrEigenValuesExp; i++) {
                 ScatterPlot scat = new ScatterPlot();
-                scat.draw(PCA.getEigenVector(eigExp, eigenValuesExp, i), PCA.getEigenVector(eigExp, eigenValuesExp, i + 1), "PC" + i, "PC" + (i + 1), "Expression Eigenvalues", outputdirectory + "Exp-");
+                scat.draw(getEigenVector(eigenVectorsExp, i), getEigenVector(eigenVectorsExp, i + 1), "PC" + i, "PC" + (i + 1), "Expression Eigenvalues", outputdirectory + "Exp-");
             }
 
             if (numsamples > 100) {
@@ -308,10 +291,11 @@ public class QCPCA {
 
             System.out.println("Determining significant correlations between genetic PCs and expression PCs");
             System.out.println("Threshold: " + bonferroni);
-            for (int pc = 1; pc <= numsamples - 1; pc++) {
-                double[] genEig = PCA.getEigenVector(eig, eigenValues, pc);
-                for (int pc2 = pc; pc2 <= numsamples - 1; pc2++) {
-                    double[] expEig = PCA.getEigenVector(eigExp, eigenValuesExp, pc2);
+            int nrPCsToCompare = Math.min(numsamples, Math.min(nrEigenValues, nrEigenValuesExp));
+            for (int pc = 1; pc <= nrPCsToCompare - 1; pc++) {
+                double[] genEig = getEigenVector(eigenVectors, pc);
+                for (int pc2 = pc; pc2 <= nrPCsToCompare - 1; pc2++) {
+                    double[] expEig = getEigenVector(eigenVectorsExp, pc2);
                     double corr = JSci.maths.ArrayMath.correlation(genEig, expEig);
                     correlationmatrix2[pc][pc2] = corr;
                     correlationmatrix2[pc2][pc] = corr;
@@ -355,6 +339,72 @@ public class QCPCA {
 
     }
 
+    /**
+     * Eigenvalues and eigenvectors in ascending order, like Jama.
+     */
+    private static class Decomposition {
+
+        private double[] eigenValues;
+        private double[][] eigenVectors;
+        private double sumEigenValues = 0;
+    }
+
+    /**
+     * Decomposes a sample x sample matrix, only the top nrPCs + 1 eigenpairs
+     * when the number of PCs is set.
+     */
+    private Decomposition decompose(double[][] matrix) {
+        Decomposition decomposition = new Decomposition();
+        TopEigenDecomposition topEig = null;
+        if (nrPCs != null && nrPCs + 1 < matrix.length) {
+            // the vectors up to PC nrPCs + 1 are used, see PCA.getEigenVector()
+            System.out.println("Calculating the eigenvectors of the " + (nrPCs + 1) + " largest eigenvalues");
+            topEig = new TopEigenDecomposition(matrix, nrPCs + 1, nrThreads);
+            System.out.println("Converged in " + topEig.getNrIterations() + " iterations");
+            if (!topEig.mayBePositiveSemiDefinite()) {
+                System.out.println("The matrix is not positive semi-definite, the explained variance needs all eigenvalues");
+                topEig = null;
+            }
+        }
+        if (topEig != null) {
+            decomposition.eigenValues = topEig.getRealEigenvalues();
+            decomposition.eigenVectors = topEig.getV();
+            // the trace equals the sum of the absolute eigenvalues of a positive semi-definite matrix
+            decomposition.sumEigenValues = topEig.getTrace();
+        } else {
+            System.out.println("Performing eigenvalue decomposition");
+            Jama.EigenvalueDecomposition eig = PCA.eigenValueDecomposition(matrix);
+            System.out.println("Getting eigenvalues");
+            decomposition.eigenValues = PCA.getRealEigenvalues(eig);
+            decomposition.eigenVectors = eig.getV().getArray();
+            for (Double d : decomposition.eigenValues) {
+                decomposition.sumEigenValues += Math.abs(d);
+            }
+        }
+        return decomposition;
+    }
+
+    /**
+     * Same as PCA.getEigenVector(), for the eigenvectors of Jama or
+     * TopEigenDecomposition: pca 0 is the eigenvector of the largest
+     * eigenvalue.
+     */
+    private static double[] getEigenVector(double[][] eigenVectors, int pca) {
+        double[] eigenVector = new double[eigenVectors.length];
+        for (int i = 0; i < eigenVectors.length; i++) {
+            eigenVector[i] = eigenVectors[i][eigenVectors[i].length - 1 - pca];
+        }
+        return eigenVector;
+    }
+
+    /**
+     * Same as PCA.getEigenValueVar(), with the sum of the absolute eigenvalues
+     * given.
+     */
+    private static double getEigenValueVar(double[] eigenValues, double sumEigenValues, int pca) {
+        return eigenValues[eigenValues.length - 1 - pca] / sumEigenValues;
+    }
+
     private double[] getSampleData(double[][] expressiondata, int sample) {
         double[] data = new double[expressiondata.length];
         for (int i = 0; i < expressiondata.length; i++) {
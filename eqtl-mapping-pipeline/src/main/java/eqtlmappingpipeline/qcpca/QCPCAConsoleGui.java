@@ -29,6 +29,7 @@ public class QCPCAConsoleGui {
         String gte = null;
         String snpfile = null;
         Integer threads = null;
+        Integer nrPCs = null;
         
         boolean performEigenvectorQTLMapping = false;
         boolean inventorize      = false;
@@ -76,6 +77,12 @@ public class QCPCAConsoleGui {
                     System.err.println("Error --threads should be an integer");
                 }
                         
+            } else if (arg.equals("--nrpcs")) {
+                try{
+                    nrPCs = Integer.parseInt(val);
+                } catch (NumberFormatException e){
+                    System.err.println("Error --nrpcs should be an integer");
+                }
             }
         }
 
@@ -85,6 +92,10 @@ public class QCPCAConsoleGui {
                 printUsage();
             } else {
                 QCPCA q = new QCPCA();
+                if (threads != null) {
+                    q.setNrThreads(threads);
+                }
+                q.setNrPCs(nrPCs);
                 q.run(inexp, inexpplatform, in, gte, inexpannot, out, snpfile);
             }
         } catch (Exception e) {
@@ -108,7 +119,9 @@ public class QCPCAConsoleGui {
                 + "--inexpplatform\t\tstring\t\tGene expression platform\n"
                 + "--inexpannot\t\tstring\t\tLocation of annotation file for gene expression data\n"
                 + "--gte\t\t\tstring\t\tLocation of genotype to expression coupling file\n"
-                + "--snps\t\t\tstring\t\tDon't prune SNPs, but use list of pruned SNPs (eg. generated by PLINK)"
+                + "--snps\t\t\tstring\t\tDon't prune SNPs, but use list of pruned SNPs (eg. generated by PLINK)\n"
+                + "--threads\t\tinteger\t\tNumber of threads used for the genetic similarity matrix (default: number of processors)\n"
+                + "--nrpcs\t\t\tinteger\t\tOnly calculate this number of genetic and expression PCs (default: all)"
                 );
         System.out.println("");
     }
@@ -0,0 +1,275 @@
+package eqtlmappingpipeline.qcpca;
+
+import Jama.EigenvalueDecomposition;
+import Jama.Matrix;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Eigenvalues and eigenvectors of the largest eigenvalues of a symmetric
+ * matrix, using subspace iteration with Rayleigh-Ritz projection. Only the
+ * product of the matrix with a sample x block matrix is needed per iteration,
+ * which is calculated on multiple threads, instead of the full O(n^3)
+ * decomposition.
+ *
+ * The eigenvalues and eigenvectors are stored in ascending order like
+ * Jama.EigenvalueDecomposition, so the last column is the first PC. The sign
+ * of an eigenvector is arbitrary, like in any decomposition. The iteration
+ * converges to the eigenvalues largest in magnitude, which are only the
+ * largest eigenvalues of a positive semi-definite matrix. The IBS matrix is
+ * positive semi-definite without missing genotypes, but excluding missing
+ * genotypes per pair can break that, see mayBePositiveSemiDefinite().
+ */
+public class TopEigenDecomposition {
+
+    private static final int MAX_ITERATIONS = 1000;
+    private static final double TOLERANCE = 1e-10;
+
+    private final double[] eigenvalues;
+    private final double[][] eigenvectors;
+    private final int nrIterations;
+    private final boolean converged;
+    private final double trace;
+    private final boolean mayBePositiveSemiDefinite;
+
+    /**
+     * @param matrix symmetric matrix
+     * @param nrEigenvectors number of eigenvalues and eigenvectors to
+     * calculate
+     * @param nrThreads threads used for the matrix products
+     */
+    public TopEigenDecomposition(double[][] matrix, int nrEigenvectors, int nrThreads) {
+        int n = matrix.length;
+        int k = Math.min(nrEigenvectors, n);
+        int blockSize = Math.min(n, Math.max(2 * k, k + 10));
+
+        ExecutorService threadPool = Executors.newFixedThreadPool(Math.max(1, nrThreads));
+        try {
+            Random random = new Random(0);
+            double[][] q = new double[n][blockSize];
+            for (int i = 0; i < n; i++) {
+                for (int c = 0; c < blockSize; c++) {
+                    q[i][c] = random.nextGaussian();
+                }
+            }
+            q = orthonormalize(q);
+
+            double[] ritzValues;
+            double[][] ritzCoefficients;
+            boolean isConverged = false;
+            int iteration = 0;
+            while (true) {
+                iteration++;
+                double[][] z = multiply(matrix, q, threadPool, nrThreads);
+
+                // Rayleigh-Ritz: eigenvectors of the matrix projected on the subspace
+                double[][] projected = new double[blockSize][blockSize];
+                for (int i = 0; i < n; i++) {
+                    double[] qi = q[i];
+                    double[] zi = z[i];
+                    for (int a = 0; a < blockSize; a++) {
+                        double qia = qi[a];
+                        double[] projectedA = projected[a];
+                        for (int b = 0; b < blockSize; b++) {
+                            projectedA[b] += qia * zi[b];
+                        }
+                    }
+                }
+                for (int a = 0; a < blockSize; a++) {
+                    for (int b = a + 1; b < blockSize; b++) {
+                        double mean = (projected[a][b] + projected[b][a]) / 2;
+                        projected[a][b] = mean;
+                        projected[b][a] = mean;
+                    }
+                }
+                EigenvalueDecomposition eig = new Matrix(projected).eig();
+                ritzValues = eig.getRealEigenvalues();
+                ritzCoefficients = eig.getV().getArray();
+
+                isConverged = maxResidual(q, z, ritzValues, ritzCoefficients, k) <= TOLERANCE * largestMagnitude(ritzValues);
+                if (isConverged || iteration == MAX_ITERATIONS) {
+                    break;
+                }
+                q = orthonormalize(z);
+            }
+
+            eigenvalues = new double[k];
+            eigenvectors = new double[n][k];
+            for (int c = 0; c < k; c++) {
+                int ritz = blockSize - k + c;
+                eigenvalues[c] = ritzValues[ritz];
+                for (int i = 0; i < n; i++) {
+                    double sum = 0;
+                    for (int l = 0; l < blockSize; l++) {
+                        sum += q[i][l] * ritzCoefficients[l][ritz];
+                    }
+                    eigenvectors[i][c] = sum;
+                }
+            }
+            nrIterations = iteration;
+            converged = isConverged;
+
+            double diagonalSum = 0;
+            double sumOfSquares = 0;
+            for (int i = 0; i < n; i++) {
+                diagonalSum += matrix[i][i];
+                for (int j = 0; j < n; j++) {
+                    sumOfSquares += matrix[i][j] * matrix[i][j];
+                }
+            }
+            trace = diagonalSum;
+            mayBePositiveSemiDefinite = checkPositiveSemiDefinite(ritzValues, eigenvalues, trace, sumOfSquares);
+        } finally {
+            threadPool.shutdown();
+        }
+
+        if (!converged) {
+            System.err.println("WARNING: eigenvectors did not converge in " + MAX_ITERATIONS + " iterations.");
+        }
+    }
+
+    /**
+     * @return the eigenvalues in ascending order
+     */
+    public double[] getRealEigenvalues() {
+        return eigenvalues;
+    }
+
+    /**
+     * @return the eigenvectors in the columns, in the order of the
+     * eigenvalues
+     */
+    public double[][] getV() {
+        return eigenvectors;
+    }
+
+    /**
+     * @return sum of the diagonal, which equals the sum of all eigenvalues
+     */
+    public double getTrace() {
+        return trace;
+    }
+
+    /**
+     * Only the largest eigenvalues are known, so this detects matrices that
+     * are certainly not positive semi-definite: a negative eigenvalue in the
+     * subspace, or remaining eigenvalues that can not all be between 0 and the
+     * smallest calculated eigenvalue given the trace and the sum of squares of
+     * the matrix.
+     *
+     * @return false if the matrix is not positive semi-definite, the trace is
+     * then not the sum of the absolute eigenvalues
+     */
+    public boolean mayBePositiveSemiDefinite() {
+        return mayBePositiveSemiDefinite;
+    }
+
+    public int getNrIterations() {
+        return nrIterations;
+    }
+
+    public boolean isConverged() {
+        return converged;
+    }
+
+    /**
+     * Largest norm of A*v - lambda*v over the k largest Ritz pairs. Because the
+     * columns of q are orthonormal, A*v = z * w and v = q * w.
+     */
+    private static double maxResidual(double[][] q, double[][] z, double[] ritzValues, double[][] ritzCoefficients, int k) {
+        int blockSize = ritzValues.length;
+        double maxResidual = 0;
+        for (int ritz = blockSize - k; ritz < blockSize; ritz++) {
+            double sumOfSquares = 0;
+            for (int i = 0; i < q.length; i++) {
+                double av = 0;
+                double v = 0;
+                for (int l = 0; l < blockSize; l++) {
+                    av += z[i][l] * ritzCoefficients[l][ritz];
+                    v += q[i][l] * ritzCoefficients[l][ritz];
+                }
+                double r = av - ritzValues[ritz] * v;
+                sumOfSquares += r * r;
+            }
+            maxResidual = Math.max(maxResidual, Math.sqrt(sumOfSquares));
+        }
+        return maxResidual;
+    }
+
+    private static boolean checkPositiveSemiDefinite(double[] ritzValues, double[] eigenvalues, double trace, double sumOfSquares) {
+        double norm = Math.sqrt(sumOfSquares);
+        double tolerance = 1e-8 * norm;
+        for (double ritzValue : ritzValues) {
+            if (ritzValue < -tolerance) {
+                return false;
+            }
+        }
+        // sum and sum of squares of the eigenvalues that are not calculated
+        double remainingSum = trace;
+        double remainingSumOfSquares = sumOfSquares;
+        for (double eigenvalue : eigenvalues) {
+            remainingSum -= eigenvalue;
+            remainingSumOfSquares -= eigenvalue * eigenvalue;
+        }
+        if (remainingSum < -tolerance) {
+            return false;
+        }
+        // values between 0 and the smallest calculated eigenvalue
+        double smallest = eigenvalues.length == 0 ? 0 : eigenvalues[0];
+        return remainingSumOfSquares <= smallest * Math.max(remainingSum, 0) + tolerance * norm;
+    }
+
+    private static double largestMagnitude(double[] values) {
+        double max = 0;
+        for (double value : values) {
+            max = Math.max(max, Math.abs(value));
+        }
+        return max;
+    }
+
+    private static double[][] orthonormalize(double[][] columns) {
+        return new Matrix(columns).qr().getQ().getArray();
+    }
+
+    /**
+     * @return matrix * block, calculated in row chunks on the thread pool
+     */
+    private static double[][] multiply(final double[][] matrix, final double[][] block, ExecutorService threadPool, int nrThreads) {
+        final int n = matrix.length;
+        final int blockSize = block[0].length;
+        final double[][] product = new double[n][blockSize];
+        int chunkSize = (n + Math.max(1, nrThreads) - 1) / Math.max(1, nrThreads);
+
+        List<Future<?>> chunks = new ArrayList<Future<?>>();
+        for (int start = 0; start < n; start += chunkSize) {
+            final int from = start;
+            final int to = Math.min(start + chunkSize, n);
+            chunks.add(threadPool.submit(() -> {
+                for (int i = from; i < to; i++) {
+                    double[] row = matrix[i];
+                    double[] productRow = product[i];
+                    for (int j = 0; j < n; j++) {
+                        double value = row[j];
+                        double[] blockRow = block[j];
+                        for (int c = 0; c < blockSize; c++) {
+                            productRow[c] += value * blockRow[c];
+                        }
+                    }
+                }
+            }));
+        }
+        try {
+            for (Future<?> chunk : chunks) {
+                chunk.get();
+            }
+        } catch (InterruptedException | ExecutionException e) {
+            throw new RuntimeException(e);
+        }
+        return product;
+    }
+}
@@ -6,26 +6,38 @@ package eqtlmappingpipeline.textmeta;
 
 import eqtlmappingpipeline.util.QTLFileSorter;
 import umcg.genetica.console.ProgressBar;
-import umcg.genetica.containers.Pair;
 import umcg.genetica.io.Gpio;
 import umcg.genetica.io.text.TextFile;
 import umcg.genetica.io.trityper.EQTL;
 import umcg.genetica.io.trityper.QTLTextFile;
-import umcg.genetica.text.Strings;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.HashSet;
 import java.util.concurrent.*;
-import java.util.logging.Level;
-import java.util.logging.Logger;
 
 /**
  * @author harmjan
  */
 public class FixedEffectMetaAnalysis {
 	
+	// SNP-probe combinations per meta-analysis task
+	private static final int BATCH_SIZE = 10000;
+	
+	private int sortBatchSize = SNPProbeSortedQTLReader.DEFAULT_BATCH_SIZE;
+	
+	/**
+	 * Number of eQTLs sorted in memory at once, split over the input files.
+	 * Larger files are sorted using temporary files.
+	 */
+	public void setSortBatchSize(int sortBatchSize) {
+		if (sortBatchSize < 1) {
+			throw new IllegalArgumentException("Sort batch size should be at least 1, found: " + sortBatchSize);
+		}
+		this.sortBatchSize = sortBatchSize;
+	}
+	
 	public void run(String filesDir, String output, Integer minimalNrDatasets, Integer minimalNrSamples) throws IOException {
 		if (filesDir == null || output == null) {
 			throw new IllegalArgumentException("Both input and output locations should be set!");
@@ -82,123 +94,114 @@ public class FixedEffectMetaAnalysis {
 		
 		// obviously, we want to iterate through permuted files as well at some point,
 		// although for the current analysis this is left out.
-		EQTL[][] allEQTLs = new EQTL[filesInDir.length][0];
-		HashSet<Pair<String, String>> uniqueSNPProbeCombos = new HashSet<Pair<String, String>>();
-		HashSet<Pair<String, String>> sharedSNPProbeCombos = new HashSet<Pair<String, String>>();
-		for (int f = 0; f < filesInDir.length; f++) {
-			String fileName = filesInDir[f];
-			TextFile tf = new TextFile(fileName, TextFile.R);
-			String header = tf.readLine();
-			String[] elems = tf.readLineElemsReturnObjects(TextFile.tab);
-			ArrayList<EQTL> eqtls = new ArrayList<EQTL>();
-			int ctr = 0;
+		// every file is read sorted by SNP and probe, so the eQTLs of the same SNP-probe
+		// combination in all files can be joined while streaming over the files.
+		int fileSortBatchSize = Math.max(1, sortBatchSize / filesInDir.length);
+		SNPProbeSortedQTLReader[] readers = new SNPProbeSortedQTLReader[filesInDir.length];
+		EQTL[] heads = new EQTL[filesInDir.length];
+		long nrEQTLs = 0;
+		int nrUniqueSNPProbeCombos = 0;
+		int nrSharedSNPProbeCombos = 0;
+		ExecutorService threadPool = null;
+		TextFile outfile = null;
+		// the readers are closed on failure too, which removes their temporary files
+		try {
+			for (int f = 0; f < filesInDir.length; f++) {
+				readers[f] = new SNPProbeSortedQTLReader(filesInDir[f], output + "-sort-" + f, fileSortBatchSize);
+				heads[f] = readers[f].next();
+				nrEQTLs += readers[f].getNrEQTLs();
+				System.out.println(readers[f].getNrEQTLs() + " QTLs loaded from file: " + filesInDir[f]);
+			}
 			
-			while (elems != null) {
-				
-				if (elems.length > 10) {
-					
-					EQTL e = new EQTL();
-					String snp = elems[1];
-					String probe = elems[4];
-					Pair<String, String> p = new Pair<String, String>(snp, probe);
-					if (uniqueSNPProbeCombos.contains(p)) {
-						sharedSNPProbeCombos.add(p);
-					} else {
-						uniqueSNPProbeCombos.add(p);
+			// iterate through all eQTLs
+			// and just assume that snp-probe combinations are unique for each dataset.
+			outfile = new TextFile(output, TextFile.W);
+			outfile.writeln(QTLTextFile.header);
+			
+			int nrprocs = Runtime.getRuntime().availableProcessors();
+			threadPool = Executors.newFixedThreadPool(nrprocs);
+			// results are written in the order of submission, with a bounded number of batches in memory
+			ArrayDeque<Future<ArrayList<String>>> submittedBatches = new ArrayDeque<Future<ArrayList<String>>>();
+			int maxSubmittedBatches = 4 * nrprocs;
+			
+			long nrEQTLsRead = 0;
+			ProgressBar pb = new ProgressBar(nrEQTLs, "Running meta-analysis.");
+			ArrayList<ArrayList<EQTL>> batch = new ArrayList<ArrayList<EQTL>>(BATCH_SIZE);
+			while (true) {
+				// the smallest SNP-probe combination over all files
+				EQTL min = null;
+				for (EQTL head : heads) {
+					if (head != null && (min == null || SNPProbeSortedQTLReader.compareSNPProbe(head.getRsName(), head.getProbe(), min.getRsName(), min.getProbe()) < 0)) {
+						min = head;
 					}
-					
-					
-					// file may contain multiple datasets
-					String[] datasetname = Strings.semicolon.split(elems[QTLTextFile.DATASETNAMES]);
-					
-					Double overallZscore = Double.parseDouble(elems[QTLTextFile.METAZ]);
-					Integer[] samplesizes = new Integer[datasetname.length];
-					
-					Double[] datasetZ = new Double[datasetname.length];
-					
-					String[] samplesizestr = Strings.semicolon.split(elems[QTLTextFile.DATASETSIZE]);
-					String[] datasetZstr = Strings.semicolon.split(elems[QTLTextFile.DATASETZSCORE]);
-					for (int i = 0; i < datasetname.length; i++) {
-						try {
-							samplesizes[i] = Integer.parseInt(samplesizestr[i]);
-							datasetZ[i] = Double.parseDouble(datasetZstr[i]);
-						} catch (NumberFormatException ex) {
-						
+				}
+				if (min != null) {
+					String snp = min.getRsName();
+					String probe = min.getProbe();
+					ArrayList<EQTL> eqtls = new ArrayList<EQTL>();
+					for (int f = 0; f < heads.length; f++) {
+						EQTL found = null;
+						// the last eQTL wins when a file contains the same combination more than once
+						while (heads[f] != null && heads[f].getRsName().equals(snp) && heads[f].getProbe().equals(probe)) {
+							found = heads[f];
+							heads[f] = readers[f].next();
+							nrEQTLsRead++;
 						}
+						if (found != null) {
+							eqtls.add(found);
+						}
+					}
+					nrUniqueSNPProbeCombos++;
+					if (eqtls.size() > 1) {
+						nrSharedSNPProbeCombos++;
 					}
-					
-					String alleleAssessed = elems[QTLTextFile.ASESSEDALLELE];
-					String alleles = elems[QTLTextFile.ASESSEDALLELE - 1];
-					
-					e.setAlleles(alleles);
-					e.setAlleleAssessed(alleleAssessed);
-					e.setZscore(overallZscore);
-					e.setDatasetZScores(datasetZ);
-					e.setDatasets(datasetname);
-					e.setDatasetsSamples(samplesizes);
-					e.setProbe(probe);
-					e.setRsName(snp);
-					
-					eqtls.add(e);
-					ctr++;
+					batch.add(eqtls);
+				}
+				
+				if (batch.size() == BATCH_SIZE || (min == null && !batch.isEmpty())) {
+					submittedBatches.add(threadPool.submit(new FixedEffectMetaAnalysisTask(batch, minimalNrDatasets, minimalNrSamples)));
+					batch = new ArrayList<ArrayList<EQTL>>(BATCH_SIZE);
+				}
+				
+				while (!submittedBatches.isEmpty() && (submittedBatches.size() >= maxSubmittedBatches || min == null)) {
+					try {
+						for (String outputStr : submittedBatches.poll().get()) {
+							outfile.writeln(outputStr);
+						}
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						throw new InterruptedIOException("Interrupted while waiting for the meta-analysis");
+					} catch (ExecutionException ex) {
+						// a missing batch would silently drop SNP-probe combinations from the output
+						throw new IOException("Meta-analysis of a batch of SNP-probe combinations failed", ex.getCause());
+					}
+					pb.set(nrEQTLsRead);
+				}
+				
+				if (min == null) {
+					break;
 				}
-				elems = tf.readLineElemsReturnObjects(TextFile.tab);
 			}
-			tf.close();
-			allEQTLs[f] = eqtls.toArray(new EQTL[0]);
-			System.out.println(eqtls.size() + " QTLs loaded from file: " + fileName);
-		}
-		
-		System.out.println(uniqueSNPProbeCombos.size() + " unique SNP-probe combinations");
-		System.out.println(sharedSNPProbeCombos.size() + " SNP-probe combinations shared with > 1 dataset");
-		
-		// iterate through all eQTLs
-		// and just assume that snp-probe combinations are unique for each dataset.
-		TextFile outfile = new TextFile(output, TextFile.W);
-		outfile.writeln(QTLTextFile.header);
-		int eqctr = 0;
-		
-		int nrprocs = Runtime.getRuntime().availableProcessors();
-		ExecutorService threadPool = Executors.newFixedThreadPool(nrprocs);
-		CompletionService<String> pool = new ExecutorCompletionService<String>(threadPool);
-		
-		HashMap<String, Integer> eqtlindex = new HashMap<String, Integer>();
-		for (int i = 0; i < allEQTLs.length; i++) {
-			for (int j = 0; j < allEQTLs[i].length; j++) {
-				eqtlindex.put(i + "-" + allEQTLs[i][j].getRsName() + "-" + allEQTLs[i][j].getProbe(), j);
+			pb.close();
+			outfile.close();
+			outfile = null;
+		} finally {
+			if (outfile != null) {
+				outfile.close();
 			}
-		}
-		
-		int submitted = 0;
-		for (Pair<String, String> eqtl : uniqueSNPProbeCombos) {
-			FixedEffectMetaAnalysisTask t = new FixedEffectMetaAnalysisTask(eqtlindex, eqtl, filesInDir, allEQTLs, minimalNrDatasets, minimalNrSamples);
-			pool.submit(t);
-			submitted++;
-		}
-		System.out.println(submitted + " eQTLs meta-analyzing");
-		
-		int received = 0;
-		ProgressBar pb = new ProgressBar(submitted, "Running meta-analysis.");
-		while (received < submitted) {
-			try {
-				Future<String> future = pool.take();
-				String outputStr = future.get();
-				if (outputStr != null) {
-					outfile.writeln(outputStr);
+			for (SNPProbeSortedQTLReader reader : readers) {
+				if (reader != null) {
+					reader.close();
 				}
-				received++;
-				pb.set(received);
-//                System.out.println(received + " / " + submitted);
-			} catch (InterruptedException e) {
-				e.printStackTrace();
-			} catch (ExecutionException ex) {
-				Logger.getLogger(FixedEffectMetaAnalysis.class.getName()).log(Level.SEVERE, null, ex);
 			}
-			
+			if (threadPool != null) {
+				// cancels the batches that are still queued when the run is aborted
+				threadPool.shutdownNow();
+			}
 		}
 		
-		pb.close();
-		outfile.close();
+		System.out.println(nrUniqueSNPProbeCombos + " unique SNP-probe combinations");
+		System.out.println(nrSharedSNPProbeCombos + " SNP-probe combinations shared with > 1 dataset");
 		
 		System.out.println("Done. Now sorting results");
 		QTLFileSorter sorter = new QTLFileSorter();
@@ -206,7 +209,6 @@ public class FixedEffectMetaAnalysis {
 		if (Gpio.exists(output + "tmp.txt.gz")) {
 			Gpio.moveFile(output + "tmp.txt.gz", output);
 		}
-		threadPool.shutdown();
 		
 	}
 	
@@ -5,57 +5,61 @@
 package eqtlmappingpipeline.textmeta;
 
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.concurrent.Callable;
 
-import umcg.genetica.containers.Pair;
 import umcg.genetica.io.trityper.EQTL;
 import umcg.genetica.io.trityper.util.BaseAnnot;
 import umcg.genetica.math.stats.ZScores;
 import umcg.genetica.text.Strings;
-import umcg.genetica.util.Primitives;
 
 /**
+ * Meta-analyzes a batch of SNP-probe combinations. Every combination comes
+ * with the eQTLs of the datasets (files) it was found in, in file order.
+ *
  * @author harmjan
  */
-public class FixedEffectMetaAnalysisTask implements Callable<String> {
+public class FixedEffectMetaAnalysisTask implements Callable<ArrayList<String>> {
 	
-	Pair<String, String> eqtl;
-	String[] filesInDir;
-	EQTL[][] allEQTLs;
-	private final HashMap<String, Integer> index;
+	private final ArrayList<ArrayList<EQTL>> batch;
 	private final int minimalNrDatasets;
 	private final int minimalNrSamples;
 	
-	public FixedEffectMetaAnalysisTask(HashMap<String, Integer> index, Pair<String, String> eqtl, String[] files, EQTL[][] allEQTLs, int minimalNrDatasets, int minimalNrSamples) {
-		this.eqtl = eqtl;
-		this.index = index;
-		this.filesInDir = files;
-		this.allEQTLs = allEQTLs;
+	public FixedEffectMetaAnalysisTask(ArrayList<ArrayList<EQTL>> batch, int minimalNrDatasets, int minimalNrSamples) {
+		this.batch = batch;
 		this.minimalNrDatasets = minimalNrDatasets;
 		this.minimalNrSamples = minimalNrSamples;
 	}
 	
+	/**
+	 * @return the output lines of the combinations passing the thresholds, in
+	 * the order of the batch
+	 */
 	@Override
-	public String call() throws Exception {
-		ArrayList<EQTL> eqtls = new ArrayList<EQTL>();
-		String snp = eqtl.getLeft();
-		String probe = eqtl.getRight();
-		for (int f = 0; f < filesInDir.length; f++) {
-			Integer id = index.get(f + "-" + snp + "-" + probe);
-			if (id != null) {
-				EQTL eq = allEQTLs[f][id];
-				eqtls.add(eq);
+	public ArrayList<String> call() throws Exception {
+		ArrayList<String> output = new ArrayList<String>();
+		for (ArrayList<EQTL> eqtls : batch) {
+			String outStr = metaAnalyze(eqtls);
+			if (outStr != null) {
+				output.add(outStr);
 			}
-			
 		}
+		return output;
+	}
+	
+	private String metaAnalyze(ArrayList<EQTL> eqtls) {
+		String snp = eqtls.get(0).getRsName();
+		String probe = eqtls.get(0).getProbe();
 		
 		// meta-analyze the collected EQTLs
-//        double[] zscores = new double[eqtls.size()];
-//        int[] samplesize = new int[eqtls.size()];
-		ArrayList<Double> zScores = new ArrayList<>();
-		ArrayList<Integer> sampleSizes = new ArrayList<>();
-		ArrayList<String> datasetNames = new ArrayList<>();
+		int maxNrDatasets = 0;
+		for (EQTL e : eqtls) {
+			maxNrDatasets += e.getDatasetZScores().length;
+		}
+		double[] zscores = new double[maxNrDatasets];
+		int[] samplesizes = new int[maxNrDatasets];
+		String[] datasetNames = new String[maxNrDatasets];
+		int nrDatasets = 0;
 		
 		int nrSamples = 0;
 		
@@ -82,13 +86,14 @@ public class FixedEffectMetaAnalysisTask implements Callable<String> {
 						Double dz = dsZscores[d];
 						if (dz != null) {
 							if (flipZ) {
-								zScores.add(-dz);
+								zscores[nrDatasets] = -dz;
 							} else {
-								zScores.add(dz);
+								zscores[nrDatasets] = dz;
 							}
-							sampleSizes.add(e.getDatasetsSamples()[d]);
+							samplesizes[nrDatasets] = e.getDatasetsSamples()[d];
 							nrSamples += e.getDatasetsSamples()[d];
-							datasetNames.add(e.getDatasets()[d]);
+							datasetNames[nrDatasets] = e.getDatasets()[d];
+							nrDatasets++;
 						}
 						
 					}
@@ -97,8 +102,11 @@ public class FixedEffectMetaAnalysisTask implements Callable<String> {
 			
 			if (nrSamples >= minimalNrSamples) {
 				// calculate meta statistics
-				double[] zscores = Primitives.toPrimitiveArr(zScores.toArray(new Double[0]));
-				int[] samplesizes = Primitives.toPrimitiveArr(sampleSizes.toArray(new Integer[0]));
+				if (nrDatasets < maxNrDatasets) {
+					zscores = Arrays.copyOf(zscores, nrDatasets);
+					samplesizes = Arrays.copyOf(samplesizes, nrDatasets);
+					datasetNames = Arrays.copyOf(datasetNames, nrDatasets);
+				}
 				double metaZ = ZScores.getWeightedZ(zscores, samplesizes);
 				double pvalue = ZScores.zToP(metaZ);
 				
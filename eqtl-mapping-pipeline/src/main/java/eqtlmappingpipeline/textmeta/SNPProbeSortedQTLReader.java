@@ -0,0 +1,305 @@
+package eqtlmappingpipeline.textmeta;
+
+import umcg.genetica.io.text.TextFile;
+import umcg.genetica.io.trityper.EQTL;
+import umcg.genetica.io.trityper.QTLTextFile;
+import umcg.genetica.text.Strings;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Reads the eQTLs of a QTL text file ordered by SNP and then probe name, using
+ * bounded memory. The file is read in batches that are sorted in memory and,
+ * when the file does not fit in one batch, written to temporary files that are
+ * merged while reading. At most MAX_MERGE_FAN_IN temporary files are open at
+ * once, more batches are first merged in multiple passes. The order of eQTLs
+ * with the same SNP and probe is the order in the file.
+ */
+public class SNPProbeSortedQTLReader {
+
+	public static final int DEFAULT_BATCH_SIZE = 2500000;
+	public static final int MAX_MERGE_FAN_IN = 64;
+
+	private static final Comparator<String[]> SNP_PROBE_COMPARATOR = new Comparator<String[]>() {
+		@Override
+		public int compare(String[] o1, String[] o2) {
+			return compareSNPProbe(o1[1], o1[4], o2[1], o2[4]);
+		}
+	};
+
+	private final String fileName;
+	private final String tmpPrefix;
+	private final ArrayList<String> tmpFiles = new ArrayList<String>();
+	private int nrTmpFilesCreated = 0;
+	private BatchMerger batchMerger;
+	// the only batch, when the file fits in memory
+	private ArrayList<String[]> memoryBatch;
+	private int memoryBatchIndex;
+	private int nrEQTLs = 0;
+
+	/**
+	 * @param fileName QTL text file
+	 * @param tmpPrefix prefix of the temporary batch files
+	 * @param batchSize number of eQTLs sorted in memory at once
+	 */
+	public SNPProbeSortedQTLReader(String fileName, String tmpPrefix, int batchSize) throws IOException {
+		this.fileName = fileName;
+		this.tmpPrefix = tmpPrefix;
+
+		try {
+			TextFile tf = new TextFile(fileName, TextFile.R);
+			tf.readLine(); // header
+			ArrayList<String[]> batch = new ArrayList<String[]>();
+			String[] elems = tf.readLineElemsReturnObjects(TextFile.tab);
+			while (elems != null) {
+				if (elems.length > 10) {
+					if (batch.size() == batchSize) {
+						writeBatch(batch);
+						batch.clear();
+					}
+					batch.add(elems);
+					nrEQTLs++;
+				}
+				elems = tf.readLineElemsReturnObjects(TextFile.tab);
+			}
+			tf.close();
+
+			if (tmpFiles.isEmpty()) {
+				// stable sort, so the order of duplicate SNP-probe combinations stays the same
+				Collections.sort(batch, SNP_PROBE_COMPARATOR);
+				memoryBatch = batch;
+			} else {
+				if (!batch.isEmpty()) {
+					writeBatch(batch);
+				}
+				batch = null;
+				while (tmpFiles.size() > MAX_MERGE_FAN_IN) {
+					mergePass();
+				}
+				batchMerger = new BatchMerger(tmpFiles);
+			}
+		} catch (IOException e) {
+			close();
+			throw e;
+		}
+	}
+
+	public String getFileName() {
+		return fileName;
+	}
+
+	public int getNrEQTLs() {
+		return nrEQTLs;
+	}
+
+	/**
+	 * @return the next eQTL, or null when all eQTLs are read
+	 */
+	public EQTL next() throws IOException {
+		String[] elems;
+		if (memoryBatch != null) {
+			if (memoryBatchIndex == memoryBatch.size()) {
+				return null;
+			}
+			elems = memoryBatch.get(memoryBatchIndex);
+			memoryBatch.set(memoryBatchIndex, null);
+			memoryBatchIndex++;
+		} else {
+			elems = batchMerger.next();
+			if (elems == null) {
+				return null;
+			}
+		}
+		return parseEQTL(elems);
+	}
+
+	/**
+	 * Closes and removes the temporary batch files.
+	 */
+	public void close() throws IOException {
+		if (batchMerger != null) {
+			batchMerger.close();
+			batchMerger = null;
+		}
+		for (String tmpFile : tmpFiles) {
+			new File(tmpFile).delete();
+		}
+		tmpFiles.clear();
+		memoryBatch = null;
+	}
+
+	public static int compareSNPProbe(String snp1, String probe1, String snp2, String probe2) {
+		int comp = snp1.compareTo(snp2);
+		if (comp == 0) {
+			comp = probe1.compareTo(probe2);
+		}
+		return comp;
+	}
+
+	private String createTmpFile() {
+		String tmpFile = tmpPrefix + "-tmp-" + nrTmpFilesCreated++ + ".txt.lz4";
+		tmpFiles.add(tmpFile);
+		return tmpFile;
+	}
+
+	private void writeBatch(ArrayList<String[]> batch) throws IOException {
+		Collections.sort(batch, SNP_PROBE_COMPARATOR);
+		TextFile out = new TextFile(createTmpFile(), TextFile.W);
+		for (String[] elems : batch) {
+			out.writeln(Strings.concat(elems, Strings.tab));
+		}
+		out.close();
+	}
+
+	/**
+	 * Merges every MAX_MERGE_FAN_IN consecutive batches into one batch. The
+	 * merged batches stay in the order of the file, so ties are still resolved
+	 * in the order of the file.
+	 */
+	private void mergePass() throws IOException {
+		ArrayList<String> batches = new ArrayList<String>(tmpFiles);
+		tmpFiles.clear();
+		try {
+			for (int start = 0; start < batches.size(); start += MAX_MERGE_FAN_IN) {
+				List<String> group = batches.subList(start, Math.min(start + MAX_MERGE_FAN_IN, batches.size()));
+				if (group.size() == 1) {
+					tmpFiles.add(group.get(0));
+					continue;
+				}
+				BatchMerger merger = new BatchMerger(group);
+				try {
+					TextFile out = new TextFile(createTmpFile(), TextFile.W);
+					String[] elems;
+					while ((elems = merger.next()) != null) {
+						out.writeln(Strings.concat(elems, Strings.tab));
+					}
+					out.close();
+				} finally {
+					merger.close();
+				}
+				for (String batch : group) {
+					new File(batch).delete();
+				}
+			}
+		} catch (IOException e) {
+			// keep the remaining input batches so close() removes them
+			for (String batch : batches) {
+				if (new File(batch).exists()) {
+					tmpFiles.add(batch);
+				}
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * Merges sorted batch files, keeping the head of every batch in a priority
+	 * queue. On ties the earlier batch wins, to keep the order of the file.
+	 */
+	private static class BatchMerger {
+
+		private final TextFile[] batchFiles;
+		private final PriorityQueue<BatchHead> heads;
+
+		BatchMerger(List<String> batches) throws IOException {
+			batchFiles = new TextFile[batches.size()];
+			heads = new PriorityQueue<BatchHead>(Math.max(1, batches.size()));
+			try {
+				for (int b = 0; b < batchFiles.length; b++) {
+					batchFiles[b] = new TextFile(batches.get(b), TextFile.R);
+					String[] elems = batchFiles[b].readLineElemsReturnObjects(TextFile.tab);
+					if (elems != null) {
+						heads.add(new BatchHead(elems, b));
+					}
+				}
+			} catch (IOException e) {
+				close();
+				throw e;
+			}
+		}
+
+		String[] next() throws IOException {
+			BatchHead head = heads.poll();
+			if (head == null) {
+				return null;
+			}
+			String[] elems = batchFiles[head.batch].readLineElemsReturnObjects(TextFile.tab);
+			if (elems != null) {
+				heads.add(new BatchHead(elems, head.batch));
+			}
+			return head.elems;
+		}
+
+		void close() throws IOException {
+			for (TextFile batchFile : batchFiles) {
+				if (batchFile != null) {
+					batchFile.close();
+				}
+			}
+		}
+	}
+
+	private static class BatchHead implements Comparable<BatchHead> {
+
+		private final String[] elems;
+		private final int batch;
+
+		BatchHead(String[] elems, int batch) {
+			this.elems = elems;
+			this.batch = batch;
+		}
+
+		@Override
+		public int compareTo(BatchHead o) {
+			int comp = SNP_PROBE_COMPARATOR.compare(elems, o.elems);
+			if (comp == 0) {
+				comp = Integer.compare(batch, o.batch);
+			}
+			return comp;
+		}
+	}
+
+	private static EQTL parseEQTL(String[] elems) {
+		EQTL e = new EQTL();
+		String snp = elems[1];
+		String probe = elems[4];
+
+		// file may contain multiple datasets
+		String[] datasetname = Strings.semicolon.split(elems[QTLTextFile.DATASETNAMES]);
+
+		Double overallZscore = Double.parseDouble(elems[QTLTextFile.METAZ]);
+		Integer[] samplesizes = new Integer[datasetname.length];
+
+		Double[] datasetZ = new Double[datasetname.length];
+
+		String[] samplesizestr = Strings.semicolon.split(elems[QTLTextFile.DATASETSIZE]);
+		String[] datasetZstr = Strings.semicolon.split(elems[QTLTextFile.DATASETZSCORE]);
+		for (int i = 0; i < datasetname.length; i++) {
+			try {
+				samplesizes[i] = Integer.parseInt(samplesizestr[i]);
+				datasetZ[i] = Double.parseDouble(datasetZstr[i]);
+			} catch (NumberFormatException ex) {
+
+			}
+		}
+
+		String alleleAssessed = elems[QTLTextFile.ASESSEDALLELE];
+		String alleles = elems[QTLTextFile.ASESSEDALLELE - 1];
+
+		e.setAlleles(alleles);
+		e.setAlleleAssessed(alleleAssessed);
+		e.setZscore(overallZscore);
+		e.setDatasetZScores(datasetZ);
+		e.setDatasets(datasetname);
+		e.setDatasetsSamples(samplesizes);
+		e.setProbe(probe);
+		e.setRsName(snp);
+		return e;
+	}
+}
@@ -13,13 +13,11 @@ import java.util.Map.Entry;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Pattern;
-import org.apache.commons.io.FileUtils;
-import org.apache.commons.io.LineIterator;
-import org.apache.commons.lang.math.NumberUtils;
 import org.apache.commons.lang3.StringUtils;
 import umcg.genetica.console.ProgressBar;
 import umcg.genetica.containers.Pair;
 import umcg.genetica.io.Gpio;
+import umcg.genetica.io.chrContacts.ChrContactStore;
 import umcg.genetica.io.chrContacts.DesiredChrContact;
 import umcg.genetica.io.text.TextFile;
 import umcg.genetica.io.trityper.EQTL;
@@ -34,6 +32,7 @@ import umcg.genetica.io.trityper.util.ChrAnnotation;
 class HiCQTLAnnotatorSnpBased {
 
     private static final Pattern SPLIT_TAB = Pattern.compile("\t");
+    private static final String[] NORM_METHODS = {"KRnorm", "SQRTVCnorm", "VCnorm"};
 
     public static void main(String[] args) throws IOException {
         String folderHighC = "G:\\Contacts\\";
@@ -80,6 +79,7 @@ class HiCQTLAnnotatorSnpBased {
         TextFile outWriter = new TextFile(out, TextFile.W);
 
         for (Entry<String, ArrayList<DesiredChrContact>> contactsToCheck : qtls.entrySet()) {
+            // sorted lookups stay in the same or next block of the contact store
             Collections.sort(contactsToCheck.getValue());
 
             String[] chrs = contactsToCheck.getKey().split("-");
@@ -101,15 +101,13 @@ class HiCQTLAnnotatorSnpBased {
                 fileToReads = baseName + "\\chr" + ChrSmaller + "_" + ChrLarger + "_" + resolution + ".RAWobserved";
             }
 
+            ChrContactStore contacts = openContactStore(fileToReads, baseName, ChrSmaller, ChrLarger, resolution, intra, normMethod);
             if (normMethod == null) {
-                processRawContactInformation(fileToReads, minValue, contactsToCheck.getValue(), outWriter, intra);
+                processRawContactInformation(contacts, minValue, contactsToCheck.getValue(), outWriter);
             } else {
-                if (intra) {
-                    processNormalizedIntraContactInformation(fileToReads, baseName, normMethod, ChrSmaller, contactsToCheck.getValue(), resolution, minValue, outWriter);
-                } else {
-                    processNormalizedInterContactInformation(fileToReads, baseName, normMethod, ChrSmaller, ChrLarger, contactsToCheck.getValue(), resolution, minValue, outWriter);
-                }
+                processNormalizedContactInformation(contacts, baseName, normMethod, contactsToCheck.getValue(), minValue, outWriter);
             }
+            contacts.close();
 
             pb.iterate();
         }
@@ -117,60 +115,72 @@ class HiCQTLAnnotatorSnpBased {
         outWriter.close();
     }
 
-    //For example, here is a line from the 5kb chr1 MAPQGE30 raw observed contact matrix (GM12878_combined/5kb_resolution_intrachromosomal/chr1/MAPQGE30/chr1_5kb.RAWobserved):
-//40000000 40100000 59.0
-    private static void processRawContactInformation(String fileToRead, double minValue, ArrayList<DesiredChrContact> contactsToCheck, TextFile outWriter, boolean intra) throws IOException {
-
-        //Check if sorted version is available
-        //If not make sorted available.
-        if (!Gpio.exists(fileToRead + ".sorted")) {
-            if (intra) {
-                umcg.genetica.io.chrContacts.SortIntraChrContacts.readNonSortedWriteSorted(fileToRead, fileToRead + ".sorted");
-            } else {
-                umcg.genetica.io.chrContacts.SortInterChrContacts.readNonSortedWriteSorted(fileToRead, fileToRead + ".sorted");
+    /**
+     * Opens the binary contact store of a RAWobserved file. The store is
+     * created next to the RAWobserved file on first use, including the
+     * normalization vectors that are available. An existing store without the
+     * vectors of the requested normalization method is created again when the
+     * normalization files are available by now, and a store older than the
+     * RAWobserved file or its normalization files is created again as well.
+     *
+     * @param normMethod normalization method that will be used, or null
+     */
+    static ChrContactStore openContactStore(String fileToRead, String baseName, String chrSmaller, String chrLarger, String resolution, boolean intra, String normMethod) throws IOException {
+        String storeFile = fileToRead + ".bin";
+        long sourceLastModified = new File(fileToRead).lastModified();
+        HashMap<String, String> normSmallerChr = new HashMap<String, String>();
+        HashMap<String, String> normLargerChr = new HashMap<String, String>();
+        for (String method : NORM_METHODS) {
+            String normSmaller = baseName + "\\chr" + chrSmaller + "_" + resolution + "." + method;
+            if (Gpio.exists(normSmaller)) {
+                normSmallerChr.put(method, normSmaller);
+                sourceLastModified = Math.max(sourceLastModified, new File(normSmaller).lastModified());
+            }
+            String normLarger = baseName + "\\chr" + chrLarger + "_" + resolution + "." + method;
+            if (!intra && Gpio.exists(normLarger)) {
+                normLargerChr.put(method, normLarger);
+                sourceLastModified = Math.max(sourceLastModified, new File(normLarger).lastModified());
             }
-
         }
 
-        int numberToBeMatched = 0;
+        if (Gpio.exists(storeFile) && new File(storeFile).lastModified() < sourceLastModified) {
+            System.out.println("Recreating " + storeFile + " because " + fileToRead + " or its normalization files changed");
+        } else if (Gpio.exists(storeFile)) {
+            ChrContactStore store = new ChrContactStore(storeFile);
+            if (normMethod == null
+                    || (store.getNormalizationVector(normMethod, false) != null || !normSmallerChr.containsKey(normMethod))
+                    && (intra || store.getNormalizationVector(normMethod, true) != null || !normLargerChr.containsKey(normMethod))) {
+                return store;
+            }
+            store.close();
+            System.out.println("Recreating " + storeFile + " to include the " + normMethod + " normalization vectors");
+        }
 
-        LineIterator it = FileUtils.lineIterator(new File(fileToRead + ".sorted"), "UTF-8");
+        // write to a temporary file first, so an interrupted conversion is not used later on
+        ChrContactStore.convert(fileToRead, intra, getNumericResolution(resolution), normSmallerChr, normLargerChr, storeFile + ".tmp");
+        File store = new File(storeFile);
+        if (store.exists() && !store.delete()) {
+            throw new IOException("Could not delete " + storeFile);
+        }
+        if (!new File(storeFile + ".tmp").renameTo(store)) {
+            throw new IOException("Could not rename " + storeFile + ".tmp to " + storeFile);
+        }
+        return new ChrContactStore(storeFile);
+    }
 
-        try {
-            while (it.hasNext()) {
-                String[] parts = StringUtils.split(it.nextLine(), '\t');
-
-                int posChr1 = org.apache.commons.lang.math.NumberUtils.createInteger(parts[0]);
-                int posChr2 = org.apache.commons.lang.math.NumberUtils.createInteger(parts[1]);
-
-                while (numberToBeMatched < contactsToCheck.size()) {
-                    if (posChr1 < contactsToCheck.get(numberToBeMatched).getChrLocationSmaller()) {
-                        break;
-                    } else if (posChr1 == contactsToCheck.get(numberToBeMatched).getChrLocationSmaller()) {
-                        if (posChr2 < contactsToCheck.get(numberToBeMatched).getChrLocationLarger()) {
-                            break;
-                        }
-                        if (posChr2 == contactsToCheck.get(numberToBeMatched).getChrLocationLarger()) {
-                            double contact = org.apache.commons.lang.math.NumberUtils.createDouble(parts[2]);
-                            if (contact >= minValue) {
-                                outWriter.writeln(contactsToCheck.get(numberToBeMatched).getSnpName() + "\t" + contactsToCheck.get(numberToBeMatched).getProbeName() + "\t" + posChr1 + "\t" + posChr2 + "\tContact\t" + contact);
-                                numberToBeMatched++;
-                            } else {
-                                outWriter.writeln(contactsToCheck.get(numberToBeMatched).getSnpName() + "\t" + contactsToCheck.get(numberToBeMatched).getProbeName() + "\t" + posChr1 + "\t" + posChr2 + "\t-\t-");
-                                numberToBeMatched++;
-                            }
-                        } else if (posChr2 > contactsToCheck.get(numberToBeMatched).getChrLocationLarger()) {
-                            outWriter.writeln(contactsToCheck.get(numberToBeMatched).getSnpName() + "\t" + contactsToCheck.get(numberToBeMatched).getProbeName() + "\t" + posChr1 + "\t" + posChr2 + "\t-\t-");
-                            numberToBeMatched++;
-                        }
-                    } else if (posChr1 > contactsToCheck.get(numberToBeMatched).getChrLocationSmaller()) {
-                        outWriter.writeln(contactsToCheck.get(numberToBeMatched).getSnpName() + "\t" + contactsToCheck.get(numberToBeMatched).getProbeName() + "\t" + posChr1 + "\t" + posChr2 + "\t-\t-");
-                        numberToBeMatched++;
-                    }
-                }
+    //For example, here is a line from the 5kb chr1 MAPQGE30 raw observed contact matrix (GM12878_combined/5kb_resolution_intrachromosomal/chr1/MAPQGE30/chr1_5kb.RAWobserved):
+//40000000 40100000 59.0
+    private static void processRawContactInformation(ChrContactStore contacts, double minValue, ArrayList<DesiredChrContact> contactsToCheck, TextFile outWriter) throws IOException {
+
+        for (DesiredChrContact toCheck : contactsToCheck) {
+            int posChr1 = toCheck.getChrLocationSmaller();
+            int posChr2 = toCheck.getChrLocationLarger();
+            double contact = contacts.getContact(posChr1, posChr2);
+            if (!Double.isNaN(contact) && contact >= minValue) {
+                outWriter.writeln(toCheck.getSnpName() + "\t" + toCheck.getProbeName() + "\t" + posChr1 + "\t" + posChr2 + "\tContact\t" + contact);
+            } else {
+                outWriter.writeln(toCheck.getSnpName() + "\t" + toCheck.getProbeName() + "\t" + posChr1 + "\t" + posChr2 + "\t-\t-");
             }
-        } finally {
-            LineIterator.closeQuietly(it);
         }
 
     }
@@ -181,168 +191,42 @@ class HiCQTLAnnotatorSnpBased {
     //of GM12878_combined/5kb_resolution_intrachromosomal/chr1/MAPQGE30/chr1_5kb.KRnorm. The 8001st line of the KR norm file is 1.2988778370674694;
     //The 8021st line of the KR norm file is 1.6080499717941548. So the corresponding KR normalized entry for the entry above is 59.0/(1.2988778370674694*1.6080499717941548)
     //or 28.24776973966101.
-    //If the KR normalization vector file is empty or all NaNs, then the KR algorithm didn’t converge on that particular matrix (likely due to sparsity of the matrix).
-    private static void processNormalizedInterContactInformation(String fileToRead, String baseName, String normMethod, String chrSmaller, String chrLarger, ArrayList<DesiredChrContact> contactsToCheck, String resolution, double minValue, TextFile outWriter) throws IOException {
-
-        //ReadIn normalization chr1
-        TextFile inputNormChr1 = new TextFile(baseName + "\\chr" + chrSmaller + "_" + resolution + "." + normMethod, TextFile.R);
-        ArrayList<String> normFactorSmallerChr = inputNormChr1.readAsArrayList();
-        inputNormChr1.close();
-
-//        System.out.println("Done reading norm factor 1");
-        //ReadIn normalization chr2
-        TextFile inputNormChr2 = new TextFile(baseName + "\\chr" + chrLarger + "_" + resolution + "." + normMethod, TextFile.R);
-        ArrayList<String> normFactorLargerChr = inputNormChr2.readAsArrayList();
-        inputNormChr2.close();
-
-//        System.out.println("Done reading norm factor 2");
-        if (!Gpio.exists(fileToRead + ".sorted")) {
-            umcg.genetica.io.chrContacts.SortInterChrContacts.readNonSortedWriteSorted(fileToRead, fileToRead + ".sorted");
-        }
+    //If the KR normalization vector file is empty or all NaNs, then the KR algorithm didn't converge on that particular matrix (likely due to sparsity of the matrix).
+    private static void processNormalizedContactInformation(ChrContactStore contacts, String baseName, String normMethod, ArrayList<DesiredChrContact> contactsToCheck, double minValue, TextFile outWriter) throws IOException {
 
-        int numberToBeMatched = 0;
-
-        LineIterator it = FileUtils.lineIterator(new File(fileToRead + ".sorted"), "UTF-8");
-
-        try {
-            while (it.hasNext()) {
-                String[] parts = StringUtils.split(it.nextLine(), '\t');
-
-                int posChr1 = org.apache.commons.lang.math.NumberUtils.createInteger(parts[0]);
-                int posChr2 = org.apache.commons.lang.math.NumberUtils.createInteger(parts[1]);
-
-                while (numberToBeMatched < contactsToCheck.size()) {
-                    if (posChr1 < contactsToCheck.get(numberToBeMatched).getChrLocationSmaller()) {
-                        break;
-                    } else if (posChr1 == contactsToCheck.get(numberToBeMatched).getChrLocationSmaller()) {
-                        if (posChr2 < contactsToCheck.get(numberToBeMatched).getChrLocationLarger()) {
-                            break;
-                        }
-                        if (posChr2 == contactsToCheck.get(numberToBeMatched).getChrLocationLarger()) {
-                            if (((posChr1 / getNumericResolution(resolution)) + 1) > normFactorSmallerChr.size()) {
-                                System.out.println(baseName);
-                                System.out.println("Smaller");
-                                System.out.println((posChr1 / getNumericResolution(resolution) + 1));
-                                System.out.println(normFactorSmallerChr.size());
-                                System.exit(-1);
-                            }
-                            if (((posChr2 / getNumericResolution(resolution)) + 1) > normFactorLargerChr.size()) {
-                                System.out.println(baseName);
-                                System.out.println("Larger");
-                                System.out.println((posChr2 / getNumericResolution(resolution)) + 1);
-                                System.out.println(normFactorLargerChr.size());
-                                System.exit(-1);
-                            }
-                            String factor1Base = normFactorSmallerChr.get((posChr1 / getNumericResolution(resolution)) + 1);
-                            String factor2Base = normFactorLargerChr.get((posChr2 / getNumericResolution(resolution)) + 1);
-
-                            double factor1 = 1.0;
-                            double factor2 = 1.0;
-
-                            if (NumberUtils.isNumber(factor1Base) && NumberUtils.isNumber(factor2Base)) {
-                                factor1 = Double.parseDouble(factor1Base);
-                                factor2 = Double.parseDouble(factor2Base);
-                            } else if (NumberUtils.isNumber(factor1Base)) {
-                                factor1 = Double.parseDouble(factor1Base);
-                                System.out.println("Error in files.");
-                                System.out.println("Base 2 is reset to 1");
-                            } else if (NumberUtils.isNumber(factor2Base)) {
-                                factor2 = Double.parseDouble(factor2Base);
-                                System.out.println("Error in files.");
-                                System.out.println("Base 1 is reset to 1");
-                            }
-
-                            double contact = org.apache.commons.lang.math.NumberUtils.createDouble(parts[2]) / (factor1 * factor2);
-                            if (contact >= minValue) {
-                                outWriter.writeln(contactsToCheck.get(numberToBeMatched).getSnpName() + "\t" + contactsToCheck.get(numberToBeMatched).getProbeName() + "\t" + posChr1 + "\t" + posChr2 + "\tContact\t" + contact + "\t" + org.apache.commons.lang.math.NumberUtils.createDouble(parts[2]));
-                                numberToBeMatched++;
-                            } else {
-                                outWriter.writeln(contactsToCheck.get(numberToBeMatched).getSnpName() + "\t" + contactsToCheck.get(numberToBeMatched).getProbeName() + "\t" + posChr1 + "\t" + posChr2 + "\t-\t-\t-");
-                                numberToBeMatched++;
-                            }
-
-                        } else if (posChr2 > contactsToCheck.get(numberToBeMatched).getChrLocationLarger()) {
-                            outWriter.writeln(contactsToCheck.get(numberToBeMatched).getSnpName() + "\t" + contactsToCheck.get(numberToBeMatched).getProbeName() + "\t" + posChr1 + "\t" + posChr2 + "\t-\t-\t-");
-                            numberToBeMatched++;
-                        }
-                    } else if (posChr1 > contactsToCheck.get(numberToBeMatched).getChrLocationSmaller()) {
-                        outWriter.writeln(contactsToCheck.get(numberToBeMatched).getSnpName() + "\t" + contactsToCheck.get(numberToBeMatched).getProbeName() + "\t" + posChr1 + "\t" + posChr2 + "\t-\t-\t-");
-                        numberToBeMatched++;
-                    }
-                }
-            }
-        } finally {
-            LineIterator.closeQuietly(it);
+        if (contacts.getNormalizationVector(normMethod, false) == null || contacts.getNormalizationVector(normMethod, true) == null) {
+            throw new IOException("No " + normMethod + " normalization vectors available for: " + baseName);
         }
 
-    }
-
-    private static void processNormalizedIntraContactInformation(String fileToRead, String baseName, String normMethod, String chrSmaller, ArrayList<DesiredChrContact> contactsToCheck, String resolution, double minValue, TextFile outWriter) throws IOException {
-
-        //ReadIn normalization chr1
-        TextFile inputNormChr1 = new TextFile(baseName + "\\chr" + chrSmaller + "_" + resolution + "." + normMethod, TextFile.R);
-        ArrayList<String> normFactorSmallerChr = inputNormChr1.readAsArrayList();
-        inputNormChr1.close();
-
-//        System.out.println("Done reading norm factor 1");
-        if (!Gpio.exists(fileToRead + ".sorted")) {
-            umcg.genetica.io.chrContacts.SortIntraChrContacts.readNonSortedWriteSorted(fileToRead, fileToRead + ".sorted");
-        }
-
-        int numberToBeMatched = 0;
+        for (DesiredChrContact toCheck : contactsToCheck) {
+            int posChr1 = toCheck.getChrLocationSmaller();
+            int posChr2 = toCheck.getChrLocationLarger();
+            double rawContact = contacts.getContact(posChr1, posChr2);
+            if (Double.isNaN(rawContact)) {
+                outWriter.writeln(toCheck.getSnpName() + "\t" + toCheck.getProbeName() + "\t" + posChr1 + "\t" + posChr2 + "\t-\t-\t-");
+                continue;
+            }
 
-        LineIterator it = FileUtils.lineIterator(new File(fileToRead + ".sorted"), "UTF-8");
+            // line (pos / resolution) + 1 of the normalization file, as in the example above
+            double factor1 = contacts.getNormalizationFactor(normMethod, false, posChr1);
+            double factor2 = contacts.getNormalizationFactor(normMethod, true, posChr2);
+            if (Double.isNaN(factor1)) {
+                factor1 = 1.0;
+                System.out.println("Error in files.");
+                System.out.println("Base 1 is reset to 1");
+            }
+            if (Double.isNaN(factor2)) {
+                factor2 = 1.0;
+                System.out.println("Error in files.");
+                System.out.println("Base 2 is reset to 1");
+            }
 
-        try {
-            while (it.hasNext()) {
-                String[] parts = StringUtils.split(it.nextLine(), '\t');
-
-                int posChr1 = org.apache.commons.lang.math.NumberUtils.createInteger(parts[0]);
-                int posChr2 = org.apache.commons.lang.math.NumberUtils.createInteger(parts[1]);
-
-                while (numberToBeMatched < contactsToCheck.size()) {
-                    if (posChr1 < contactsToCheck.get(numberToBeMatched).getChrLocationSmaller()) {
-                        break;
-                    } else if (posChr1 == contactsToCheck.get(numberToBeMatched).getChrLocationSmaller()) {
-                        if (posChr2 < contactsToCheck.get(numberToBeMatched).getChrLocationLarger()) {
-                            break;
-                        }
-                        if (posChr2 == contactsToCheck.get(numberToBeMatched).getChrLocationLarger()) {
-
-                            String factor1Base = normFactorSmallerChr.get((posChr1 / getNumericResolution(resolution)) + 1);
-                            String factor2Base = normFactorSmallerChr.get((posChr2 / getNumericResolution(resolution)) + 1);
-
-                            double factor1;
-                            double factor2;
-
-                            if (StringUtils.isNumeric(factor1Base) && StringUtils.isNumeric(factor2Base)) {
-                                factor1 = org.apache.commons.lang.math.NumberUtils.createDouble(factor1Base);
-                                factor2 = org.apache.commons.lang.math.NumberUtils.createDouble(factor2Base);
-
-                                double contact = org.apache.commons.lang.math.NumberUtils.createDouble(parts[2]) / (factor1 * factor2);
-                                if (contact >= minValue) {
-                                    outWriter.writeln(contactsToCheck.get(numberToBeMatched).getSnpName() + "\t" + contactsToCheck.get(numberToBeMatched).getProbeName() + "\t" + posChr1 + "\t" + posChr2 + "\tContact\t" + contact + "\t" + org.apache.commons.lang.math.NumberUtils.createDouble(parts[2]));
-                                    numberToBeMatched++;
-                                } else {
-                                    outWriter.writeln(contactsToCheck.get(numberToBeMatched).getSnpName() + "\t" + contactsToCheck.get(numberToBeMatched).getProbeName() + "\t" + posChr1 + "\t" + posChr2 + "\t-\t-\t-");
-                                    numberToBeMatched++;
-                                }
-                            } else {
-                                System.out.println("Error in files.");
-                                numberToBeMatched++;
-                            }
-                        } else if (posChr2 > contactsToCheck.get(numberToBeMatched).getChrLocationLarger()) {
-                            outWriter.writeln(contactsToCheck.get(numberToBeMatched).getSnpName() + "\t" + contactsToCheck.get(numberToBeMatched).getProbeName() + "\t" + posChr1 + "\t" + posChr2 + "\t-\t-\t-");
-                            numberToBeMatched++;
-                        }
-                    } else if (posChr1 > contactsToCheck.get(numberToBeMatched).getChrLocationSmaller()) {
-                        outWriter.writeln(contactsToCheck.get(numberToBeMatched).getSnpName() + "\t" + contactsToCheck.get(numberToBeMatched).getProbeName() + "\t" + posChr1 + "\t" + posChr2 + "\t-\t-\t-");
-                        numberToBeMatched++;
-                    }
-                }
+            double contact = rawContact / (factor1 * factor2);
+            if (contact >= minValue) {
+                outWriter.writeln(toCheck.getSnpName() + "\t" + toCheck.getProbeName() + "\t" + posChr1 + "\t" + posChr2 + "\tContact\t" + contact + "\t" + rawContact);
+            } else {
+                outWriter.writeln(toCheck.getSnpName() + "\t" + toCheck.getProbeName() + "\t" + posChr1 + "\t" + posChr2 + "\t-\t-\t-");
             }
-        } finally {
-            LineIterator.closeQuietly(it);
         }
 
     }
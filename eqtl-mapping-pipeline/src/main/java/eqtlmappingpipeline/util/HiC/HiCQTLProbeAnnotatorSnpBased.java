@@ -4,7 +4,6 @@
  */
 package eqtlmappingpipeline.util.HiC;
 
-import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
@@ -13,11 +12,8 @@ import java.util.HashSet;
 import java.util.Map.Entry;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import org.apache.commons.io.FileUtils;
-import org.apache.commons.io.LineIterator;
-import org.apache.commons.lang3.StringUtils;
 import umcg.genetica.console.ProgressBar;
-import umcg.genetica.io.Gpio;
+import umcg.genetica.io.chrContacts.ChrContactStore;
 import umcg.genetica.io.chrContacts.DesiredChrContact;
 import umcg.genetica.io.text.TextFile;
 import umcg.genetica.io.trityper.MinimalEQTL;
@@ -100,17 +96,19 @@ class HiCQTLProbeAnnotatorSnpBased {
                 }
 
                 if (normMethod == null) {
+                    ChrContactStore contacts = HiCQTLAnnotatorSnpBased.openContactStore(fileToReads, baseName, ChrSmaller, ChrLarger, resolution, intra, null);
                     if (intra) {
-                        processRawContactInformation(fileToReads, minValue, copy, intra, probeIsSmaller);
+                        processRawContactInformation(contacts, minValue, copy, probeIsSmaller);
                     } else {
-                        processRawContactInformation(fileToReads, minValue, probeChr.getValue(), intra, probeIsSmaller);
+                        processRawContactInformation(contacts, minValue, probeChr.getValue(), probeIsSmaller);
                     }
+                    contacts.close();
                 } else {
                     throw new UnsupportedOperationException("Not supported yet.");
                 }
             }
 
-            writeContactInformation(outWriter, probeChr.getValue(), copy);
+            writeContactInformation(outWriter, copy, probeChr.getValue());
             pb.iterate();
         }
         pb.close();
@@ -119,52 +117,30 @@ class HiCQTLProbeAnnotatorSnpBased {
 
     //For example, here is a line from the 5kb chr1 MAPQGE30 raw observed contact matrix (GM12878_combined/5kb_resolution_intrachromosomal/chr1/MAPQGE30/chr1_5kb.RAWobserved):
 //40000000 40100000 59.0
-    private static void processRawContactInformation(String fileToRead, double minValue, ArrayList<DesiredChrContact> contactsToCheck, boolean intra, boolean probeIsSmaller) throws IOException {
-
-        //Check if sorted version is available
-        //If not make sorted available.
-        if (!Gpio.exists(fileToRead + ".sorted")) {
-            if (intra) {
-                umcg.genetica.io.chrContacts.SortIntraChrContacts.readNonSortedWriteSorted(fileToRead, fileToRead + ".sorted");
-            } else {
-                umcg.genetica.io.chrContacts.SortInterChrContacts.readNonSortedWriteSorted(fileToRead, fileToRead + ".sorted");
-            }
-
-        }
-
-        int numberToBeMatched = 0;
-
-        LineIterator it = FileUtils.lineIterator(new File(fileToRead + ".sorted"), "UTF-8");
-
-        try {
-            while (it.hasNext()) {
-                String[] parts = StringUtils.split(it.nextLine(), '\t');
-
-                int posChr1;
-
-                if (probeIsSmaller) {
-                    posChr1 = org.apache.commons.lang.math.NumberUtils.createInteger(parts[0]);
-                } else {
-                    posChr1 = org.apache.commons.lang.math.NumberUtils.createInteger(parts[1]);
-                }
-
-                while (numberToBeMatched < contactsToCheck.size()) {
-                    if (posChr1 < contactsToCheck.get(numberToBeMatched).getChrLocationSmaller()) {
-                        break;
-                    } else if (posChr1 == contactsToCheck.get(numberToBeMatched).getChrLocationSmaller()) {
-                        double contact = org.apache.commons.lang.math.NumberUtils.createDouble(parts[2]);
-                        if (contact >= minValue) {
-                            contactsToCheck.get(numberToBeMatched).setNormalizedContactValue(contactsToCheck.get(numberToBeMatched).getNormalizedContactValue() + 1);
-                        }
-                        numberToBeMatched++;
-
-                    } else if (posChr1 > contactsToCheck.get(numberToBeMatched).getChrLocationSmaller()) {
-                        numberToBeMatched++;
+    private static void processRawContactInformation(ChrContactStore contacts, double minValue, ArrayList<DesiredChrContact> contactsToCheck, final boolean probeIsSmaller) throws IOException {
+
+        // positions on the probe chromosome with at least one contact, within chromosome both sides are on the probe chromosome
+        final HashSet<Integer> positionsWithContact = new HashSet<>();
+        final boolean intra = contacts.isIntra();
+        final double minContact = minValue;
+        contacts.forEachContact(new ChrContactStore.ContactVisitor() {
+            @Override
+            public void visit(int posSmallerChr, int posLargerChr, double value) {
+                if (value >= minContact) {
+                    if (intra || probeIsSmaller) {
+                        positionsWithContact.add(posSmallerChr);
+                    }
+                    if (intra || !probeIsSmaller) {
+                        positionsWithContact.add(posLargerChr);
                     }
                 }
             }
-        } finally {
-            LineIterator.closeQuietly(it);
+        });
+
+        for (DesiredChrContact toCheck : contactsToCheck) {
+            if (positionsWithContact.contains(toCheck.getChrLocationSmaller())) {
+                toCheck.setNormalizedContactValue(toCheck.getNormalizedContactValue() + 1);
+            }
         }
 
     }
@@ -9,6 +9,7 @@ import eqtlmappingpipeline.metaqtl3.FDR;
 import eqtlmappingpipeline.metaqtl3.FDR.FDRMethod;
 import eqtlmappingpipeline.pcaoptimum.PCAOptimum;
 import eqtlmappingpipeline.textmeta.FixedEffectMetaAnalysis;
+import eqtlmappingpipeline.textmeta.SNPProbeSortedQTLReader;
 import umcg.genetica.console.ConsoleGUIElems;
 import umcg.genetica.io.Gpio;
 import umcg.genetica.io.trityper.ConvertDoubleMatrixDataToTriTyper;
@@ -79,6 +80,7 @@ public class UtilConsoleGUI {
         Integer threads = 1;
         Integer minnrdatasets = null;
         Integer minnrsamples = null;
+        Integer sortbatchsize = null;
 
         String snpprobeselectionlist = null;
         boolean createQQPlot = true;
@@ -214,6 +216,8 @@ public class UtilConsoleGUI {
                 probefile = val;
             } else if (arg.equals("--threads")) {
                 threads = Integer.parseInt(val);
+            } else if (arg.equals("--sortbatchsize")) {
+                sortbatchsize = Integer.parseInt(val);
             } else if (arg.equals("--perm")) {
                 perm = Integer.parseInt(val);
             } else if (arg.equals("--nreqtls")) {
@@ -507,6 +511,9 @@ public class UtilConsoleGUI {
                             printUsage();
                         } else {
                             FixedEffectMetaAnalysis f = new FixedEffectMetaAnalysis();
+                            if (sortbatchsize != null) {
+                                f.setSortBatchSize(sortbatchsize);
+                            }
                             f.run(in, out, minnrdatasets, minnrsamples);
                         }
 
@@ -664,7 +671,7 @@ public class UtilConsoleGUI {
                 + "--sorteqtlfilebypos\t\t\tSort eQTL files by chromosome position.\n"
                 + "--calculatebeta\t\t\tCalculate beta using Z-score, MAF, and N\n"
                 + "--getmaffromqclog\t\t\tCalculate MAF from SNPQCLog.txt.gz, for use with --calculatebeta\n"
-                + "--meta\t\t\t\tFixed effect meta analysis.\n"
+                + "--meta\t\t\t\tFixed effect meta analysis. Use --sortbatchsize to set the number of eQTLs sorted in memory (default: " + SNPProbeSortedQTLReader.DEFAULT_BATCH_SIZE + ")\n"
                 + "--nonGeneticPcaCorrection\tCorrect expression data for non-genetic components.\n"
                 + "--getSNPProbeCombinatios\tCreate list of valid SNP-Probe combinations to test.\n"
                 + "--formatAsTT\t\t\tConverts a doublematrix dataset to a TriTyper genotype file.\n"
@@ -132,4 +132,37 @@ public class AseVariantTest {
 		
 	}
 
+
+	/**
+	 * Test of addCounts(AseVariantAppendable) and AseResults.merge, counts of
+	 * two loader threads should be the same as adding them to one variant.
+	 */
+	@Test
+	public void testMergeCounts() {
+
+		AseCountsAccumulator thread1 = new AseCountsAccumulator();
+		thread1.addCounts("1", 1, GeneticVariantId.createVariantId("rs1"), Allele.A, Allele.C, 10, 20, "sample1");
+		thread1.addCounts("1", 1, GeneticVariantId.createVariantId("rs1"), Allele.A, Allele.C, 20, 30, "sample2");
+
+		AseCountsAccumulator thread2 = new AseCountsAccumulator();
+		thread2.addCounts("1", 1, GeneticVariantId.createVariantId("rs1"), Allele.A, Allele.C, 20, 21, "sample3");
+		thread2.addCounts("1", 1, GeneticVariantId.createVariantId("rs1"), Allele.A, Allele.C, 30, 20, "sample4");
+		thread2.addCounts("2", 5, GeneticVariantId.createVariantId("rs2"), Allele.A, Allele.C, 30, 20, "sample4");
+
+		AseResults results = new AseResults();
+		results.merge(thread1);
+		results.merge(thread2);
+
+		assertEquals(results.getCount(), 2);
+
+		AseVariantAppendable merged = results.chrIterator("1").next();
+
+		assertEquals(merged.getSampleCount(), 4);
+		assertEquals(merged.getSampleIds(), aseVariant1.getSampleIds());
+		assertEquals(merged.getMetaZscore(), aseVariant1.getMetaZscore(), 0.00001);
+		assertEquals(merged.getLikelihoodRatioP(), aseVariant1.getLikelihoodRatioP(), 0.00001);
+		assertFalse(results.isEncounteredBaseQuality());
+
+	}
+
 }
\ No newline at end of file
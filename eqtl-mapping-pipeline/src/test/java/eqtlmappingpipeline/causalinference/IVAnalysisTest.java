@@ -0,0 +1,109 @@
+package eqtlmappingpipeline.causalinference;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Random;
+import org.testng.annotations.BeforeTest;
+import org.testng.annotations.Test;
+import umcg.genetica.io.text.TextFile;
+
+import static org.testng.Assert.*;
+
+/**
+ * The output of IVAnalysis.run should not depend on the number of threads.
+ */
+public class IVAnalysisTest {
+
+    private static final int NR_PERMUTATIONS = 2;
+
+    private File tmpOutputFolder;
+    private final String fileSep = System.getProperty("file.separator");
+    private final File testFilesFolder;
+
+    public IVAnalysisTest() throws URISyntaxException {
+        testFilesFolder = new File(this.getClass().getResource("/GeuvadisTestData/").toURI());
+    }
+
+    @BeforeTest
+    public void setUpMethod() throws Exception {
+        File tmpDir = new File(System.getProperty("java.io.tmpdir"));
+
+        DateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd_HH-mm-ss");
+        Date date = new Date();
+
+        tmpOutputFolder = new File(tmpDir, "IVAnalysisTest_" + dateFormat.format(date));
+        tmpOutputFolder.mkdir();
+
+        System.out.println("Temp folder with output of this test: " + tmpOutputFolder.getAbsolutePath());
+    }
+
+    /**
+     * Writes SNP-cis-trans combinations of the first SNPs and probes, enough
+     * for multiple batches.
+     */
+    private String writeCombinations() throws IOException {
+        ArrayList<String> snps = new TextFile(testFilesFolder + fileSep + "trityper" + fileSep + "SNPs.txt", TextFile.R).readAsArrayList();
+
+        ArrayList<String> probes = new ArrayList<String>();
+        TextFile expression = new TextFile(testFilesFolder + fileSep + "Geuvadis_CEU_YRI_Expr.txt.gz", TextFile.R);
+        expression.readLine();
+        String[] elems = expression.readLineElems(TextFile.tab);
+        while (elems != null && probes.size() < 10) {
+            probes.add(elems[0]);
+            elems = expression.readLineElems(TextFile.tab);
+        }
+        expression.close();
+
+        String combinations = tmpOutputFolder.getAbsolutePath() + fileSep + "combinations.txt";
+        TextFile out = new TextFile(combinations, TextFile.W);
+        for (int s = 0; s < 30; s++) {
+            for (int p = 0; p + 1 < probes.size(); p++) {
+                out.writeln(snps.get(s) + "\t" + probes.get(p) + "\t" + probes.get(p + 1));
+            }
+        }
+        out.close();
+        return combinations;
+    }
+
+    private String run(String combinations, int threads) throws Exception {
+        String out = tmpOutputFolder.getAbsolutePath() + fileSep + "threads" + threads + fileSep;
+        IVAnalysis analysis = new IVAnalysis(null,
+                testFilesFolder + fileSep + "trityper" + fileSep,
+                testFilesFolder + fileSep + "Geuvadis_CEU_YRI_Expr.txt.gz",
+                "Ensembl_v.71",
+                testFilesFolder + fileSep + "Geuvadis_CEU_YRI_Annot.txt",
+                testFilesFolder + fileSep + "Geuvadis_CEU_gte.txt",
+                out, NR_PERMUTATIONS, combinations, false);
+        analysis.m_settings.randomNumberGenerator = new Random(1);
+        analysis.setNrThreads(threads);
+        analysis.run();
+        return out;
+    }
+
+    @Test
+    public void testSameOutputForAnyNumberOfThreads() throws Exception {
+        String combinations = writeCombinations();
+
+        String singleThreadOut = run(combinations, 1);
+        String multiThreadOut = run(combinations, 4);
+
+        ArrayList<String> realData = null;
+        for (int perm = 0; perm <= NR_PERMUTATIONS; perm++) {
+            String fileName = perm == 0 ? "Dataset_IVAnalysis-RealData.txt" : "Dataset_IVAnalysis-PermutationRound-" + perm + ".txt";
+            ArrayList<String> expected = new TextFile(singleThreadOut + fileName, TextFile.R).readAsArrayList();
+            // more than one batch of combinations is tested
+            assertTrue(expected.size() > 201, fileName + " has " + expected.size() + " lines");
+            assertEquals(new TextFile(multiThreadOut + fileName, TextFile.R).readAsArrayList(), expected, fileName);
+            if (perm == 0) {
+                realData = expected;
+            } else {
+                assertFalse(expected.equals(realData), fileName + " should differ from the real data");
+            }
+        }
+    }
+}
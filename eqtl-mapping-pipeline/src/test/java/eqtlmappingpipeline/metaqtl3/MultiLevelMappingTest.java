@@ -0,0 +1,119 @@
+package eqtlmappingpipeline.metaqtl3;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Random;
+import org.testng.annotations.BeforeTest;
+import org.testng.annotations.Test;
+import umcg.genetica.io.text.TextFile;
+import umcg.genetica.io.trityper.TriTyperExpressionData;
+
+import static org.testng.Assert.*;
+
+/**
+ * Mapping multiple expression levels in one pass over the genotypes should
+ * give every level the output of a separate run.
+ */
+public class MultiLevelMappingTest {
+
+    private File tmpOutputFolder;
+    private final String fileSep = System.getProperty("file.separator");
+    private final File testFilesFolder;
+
+    public MultiLevelMappingTest() throws URISyntaxException {
+        testFilesFolder = new File(this.getClass().getResource("/GeuvadisTestData/").toURI());
+    }
+
+    @BeforeTest
+    public void setUpMethod() throws Exception {
+        File tmpDir = new File(System.getProperty("java.io.tmpdir"));
+
+        DateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd_HH-mm-ss");
+        Date date = new Date();
+
+        tmpOutputFolder = new File(tmpDir, "MultiLevelMappingTest_" + dateFormat.format(date));
+        tmpOutputFolder.mkdir();
+
+        System.out.println("Temp folder with output of this test: " + tmpOutputFolder.getAbsolutePath());
+    }
+
+    private MetaQTL3 initialize(String expression, String out) throws Exception {
+        MetaQTL3 qtlMapping = new MetaQTL3();
+        qtlMapping.initialize(null, null, null,
+                testFilesFolder + fileSep + "trityper" + fileSep,
+                expression,
+                "Ensembl_v.71",
+                testFilesFolder + fileSep + "Geuvadis_CEU_YRI_Annot.txt",
+                testFilesFolder + fileSep + "Geuvadis_CEU_gte.txt",
+                out, true, false, 2, true, false, null, 1, null, null, null, true, true, 1L, null, null);
+        return qtlMapping;
+    }
+
+    /**
+     * Writes the test expression data with fixed noise added, so that the
+     * second level maps to other eQTLs than the first.
+     */
+    private String writeNoisyExpression(String out) throws IOException {
+        Random random = new Random(1);
+        TextFile in = new TextFile(testFilesFolder + fileSep + "Geuvadis_CEU_YRI_Expr.txt.gz", TextFile.R);
+        TextFile tf = new TextFile(out, TextFile.W);
+        tf.writeln(in.readLine());
+        String[] elems = in.readLineElems(TextFile.tab);
+        while (elems != null) {
+            StringBuilder line = new StringBuilder(elems[0]);
+            for (int i = 1; i < elems.length; i++) {
+                line.append('\t').append(Double.parseDouble(elems[i]) + random.nextGaussian());
+            }
+            tf.writeln(line.toString());
+            elems = in.readLineElems(TextFile.tab);
+        }
+        in.close();
+        tf.close();
+        return out;
+    }
+
+    @Test
+    public void testLevelsSameAsSeparateRuns() throws Exception {
+        String[] expression = new String[]{
+            testFilesFolder + fileSep + "Geuvadis_CEU_YRI_Expr.txt.gz",
+            writeNoisyExpression(tmpOutputFolder.getAbsolutePath() + fileSep + "Geuvadis_CEU_YRI_Expr.Noise.txt.gz")};
+
+        String[] separateOut = new String[expression.length];
+        for (int level = 0; level < expression.length; level++) {
+            separateOut[level] = tmpOutputFolder.getAbsolutePath() + fileSep + "separate" + level + fileSep;
+            initialize(expression[level], separateOut[level]).mapEQTLs();
+        }
+
+        String[] levelOut = new String[expression.length];
+        for (int level = 0; level < expression.length; level++) {
+            levelOut[level] = tmpOutputFolder.getAbsolutePath() + fileSep + "level" + level + fileSep;
+            new File(levelOut[level]).mkdirs();
+        }
+
+        MetaQTL3 multiLevel = initialize(expression[0], levelOut[0]);
+        TriTyperExpressionData[][] levelExpressionData = new TriTyperExpressionData[expression.length][1];
+        levelExpressionData[0][0] = multiLevel.m_gg[0].getExpressionData();
+        for (int level = 1; level < expression.length; level++) {
+            levelExpressionData[level][0] = multiLevel.m_gg[0].loadOtherExpressionData(expression[level]);
+            multiLevel.prepareExpressionData(levelExpressionData[level][0]);
+        }
+        multiLevel.mapEQTLs(levelExpressionData, levelOut);
+
+        for (String fileName : new String[]{"eQTLs.txt.gz", "PermutedEQTLsPermutationRound1.txt.gz", "PermutedEQTLsPermutationRound2.txt.gz"}) {
+            for (int level = 0; level < expression.length; level++) {
+                ArrayList<String> expected = new TextFile(separateOut[level] + fileName, TextFile.R).readAsArrayList();
+                assertTrue(expected.size() > 1, separateOut[level] + fileName);
+                assertEquals(new TextFile(levelOut[level] + fileName, TextFile.R).readAsArrayList(), expected, levelOut[level] + fileName);
+            }
+        }
+
+        ArrayList<String> level0 = new TextFile(separateOut[0] + "eQTLs.txt.gz", TextFile.R).readAsArrayList();
+        ArrayList<String> level1 = new TextFile(separateOut[1] + "eQTLs.txt.gz", TextFile.R).readAsArrayList();
+        assertFalse(level0.equals(level1), "the levels should map to different eQTLs");
+    }
+}
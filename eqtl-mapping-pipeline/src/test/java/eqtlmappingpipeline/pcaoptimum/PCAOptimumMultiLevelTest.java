@@ -0,0 +1,139 @@
+package eqtlmappingpipeline.pcaoptimum;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Random;
+import org.testng.annotations.BeforeTest;
+import org.testng.annotations.Test;
+import umcg.genetica.io.text.TextFile;
+
+import static org.testng.Assert.*;
+
+/**
+ * Mapping the PC levels in one pass should give the same output as mapping
+ * them one by one, also when a level can not be mapped in the same pass.
+ */
+public class PCAOptimumMultiLevelTest {
+
+	private File tmpOutputFolder;
+	private final String fileSep = System.getProperty("file.separator");
+	private final File testFilesFolder;
+
+	public PCAOptimumMultiLevelTest() throws URISyntaxException {
+		testFilesFolder = new File(this.getClass().getResource("/GeuvadisTestData/").toURI());
+	}
+
+	@BeforeTest
+	public void setUpMethod() throws Exception {
+		File tmpDir = new File(System.getProperty("java.io.tmpdir"));
+
+		DateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd_HH-mm-ss");
+		Date date = new Date();
+
+		tmpOutputFolder = new File(tmpDir, "PCAOptimumMultiLevelTest_" + dateFormat.format(date));
+		tmpOutputFolder.mkdir();
+
+		System.out.println("Temp folder with output of this test: " + tmpOutputFolder.getAbsolutePath());
+	}
+
+	/**
+	 * Writes the test expression data and a 4 PCs removed level with fixed
+	 * noise added to the folder.
+	 *
+	 * @param dropSample sample left out of the 4 PCs removed level, or null
+	 * @return the expression file of the 0 PCs removed level
+	 */
+	private String writeLevels(String folder, String dropSample) throws IOException {
+		new File(folder).mkdirs();
+		String expression = folder + "Expr.txt.gz";
+		Random random = new Random(1);
+
+		TextFile in = new TextFile(testFilesFolder + fileSep + "Geuvadis_CEU_YRI_Expr.txt.gz", TextFile.R);
+		TextFile level0 = new TextFile(expression, TextFile.W);
+		TextFile level4 = new TextFile(folder + "Expr.4PCAsOverSamplesRemoved.txt.gz", TextFile.W);
+		String[] header = in.readLineElems(TextFile.tab);
+		int dropColumn = -1;
+		for (int i = 1; i < header.length; i++) {
+			if (header[i].equals(dropSample)) {
+				dropColumn = i;
+			}
+		}
+
+		String[] elems = header;
+		while (elems != null) {
+			StringBuilder line0 = new StringBuilder(elems[0]);
+			StringBuilder line4 = new StringBuilder(elems[0]);
+			for (int i = 1; i < elems.length; i++) {
+				line0.append('\t').append(elems[i]);
+				if (i == dropColumn) {
+					continue;
+				}
+				if (elems == header) {
+					line4.append('\t').append(elems[i]);
+				} else {
+					line4.append('\t').append(Double.parseDouble(elems[i]) + random.nextGaussian());
+				}
+			}
+			level0.writeln(line0.toString());
+			level4.writeln(line4.toString());
+			elems = in.readLineElems(TextFile.tab);
+		}
+		in.close();
+		level0.close();
+		level4.close();
+		return expression;
+	}
+
+	private void run(String expression, String out, int nrPCLevelsPerPass) throws Exception {
+		PCAOptimum pcaOptimum = new PCAOptimum();
+		pcaOptimum.setSNPSets(testFilesFolder + fileSep + "trityper" + fileSep + "SNPs.txt", null);
+		pcaOptimum.setNrPCLevelsPerPass(nrPCLevelsPerPass);
+		pcaOptimum.initialize(null, null, null,
+				testFilesFolder + fileSep + "trityper" + fileSep,
+				expression,
+				"Ensembl_v.71",
+				testFilesFolder + fileSep + "Geuvadis_CEU_YRI_Annot.txt",
+				testFilesFolder + fileSep + "Geuvadis_CEU_gte.txt",
+				out, true, false, 2, true, false, null, 1, null, null, null, true, true, 1L, null, null);
+	}
+
+	private void assertSameOutput(String perLevelOut, String multiLevelOut) throws IOException {
+		for (String level : new String[]{"Cis-0PCAsRemoved", "Cis-4PCAsRemoved"}) {
+			for (String fileName : new String[]{"eQTLs.txt.gz", "PermutedEQTLsPermutationRound1.txt.gz", "PermutedEQTLsPermutationRound2.txt.gz"}) {
+				String file = level + fileSep + fileName;
+				ArrayList<String> expected = new TextFile(perLevelOut + file, TextFile.R).readAsArrayList();
+				assertTrue(expected.size() > 1, perLevelOut + file);
+				assertEquals(new TextFile(multiLevelOut + file, TextFile.R).readAsArrayList(), expected, multiLevelOut + file);
+			}
+		}
+	}
+
+	@Test
+	public void testMultiLevelSameAsPerLevel() throws Exception {
+		String folder = tmpOutputFolder.getAbsolutePath() + fileSep + "multiLevel" + fileSep;
+		String expression = writeLevels(folder + "expression" + fileSep, null);
+
+		run(expression, folder + "perLevel" + fileSep, 1);
+		run(expression, folder + "onePass" + fileSep, 0);
+
+		assertSameOutput(folder + "perLevel" + fileSep, folder + "onePass" + fileSep);
+	}
+
+	@Test
+	public void testFallbackSameAsPerLevel() throws Exception {
+		// the 4 PCs removed level misses a sample, so the levels can not be
+		// mapped in one pass and are mapped one by one instead
+		String folder = tmpOutputFolder.getAbsolutePath() + fileSep + "fallback" + fileSep;
+		String expression = writeLevels(folder + "expression" + fileSep, "ERR188327");
+
+		run(expression, folder + "perLevel" + fileSep, 1);
+		run(expression, folder + "onePass" + fileSep, 0);
+
+		assertSameOutput(folder + "perLevel" + fileSep, folder + "onePass" + fileSep);
+	}
+}
@@ -0,0 +1,128 @@
+package eqtlmappingpipeline.qcpca;
+
+import java.util.Random;
+import org.testng.annotations.Test;
+import static org.testng.Assert.*;
+
+public class GeneticRelationshipMatrixBuilderTest {
+
+    /**
+     * Compares the blocked bit set kernel with the IBS pair loop QCPCA used
+     * before, with more samples than one block and missing genotypes.
+     */
+    @Test
+    public void testBuild() {
+        Random random = new Random(1);
+        int nrSamples = 150;
+        int nrVariants = 1100;
+        double[][] genotypes = new double[nrSamples][nrVariants];
+        GeneticRelationshipMatrixBuilder builder = new GeneticRelationshipMatrixBuilder(nrSamples);
+        for (int v = 0; v < nrVariants; v++) {
+            double[] variant = new double[nrSamples];
+            for (int s = 0; s < nrSamples; s++) {
+                variant[s] = random.nextDouble() < 0.05 ? -1 : random.nextInt(3);
+                genotypes[s][v] = variant[s];
+            }
+            builder.addVariant(variant);
+        }
+        assertEquals(builder.getNrVariants(), nrVariants);
+
+        double[][] matrix = builder.build(3);
+        for (int i = 0; i < nrSamples; i++) {
+            assertEquals(matrix[i][i], 1d);
+            for (int j = i + 1; j < nrSamples; j++) {
+                double ibs = 0;
+                int calledInBoth = 0;
+                for (int v = 0; v < nrVariants; v++) {
+                    double gi = genotypes[i][v];
+                    double gj = genotypes[j][v];
+                    if (gi != -1 && gj != -1) {
+                        calledInBoth++;
+                        if (gi == gj) {
+                            ibs += 1;
+                        } else if (Math.abs(gi - gj) == 1) {
+                            ibs += 0.5;
+                        }
+                    }
+                }
+                assertEquals(matrix[i][j], ibs / calledInBoth, 1e-15);
+                assertEquals(matrix[j][i], matrix[i][j]);
+            }
+        }
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testInvalidGenotype() {
+        new GeneticRelationshipMatrixBuilder(2).addVariant(new double[]{0, 3});
+    }
+
+    @Test
+    public void testTopEigenDecomposition() {
+        Random random = new Random(2);
+        int n = 60;
+        double[][] x = new double[n][n];
+        for (int i = 0; i < n; i++) {
+            for (int j = 0; j < n; j++) {
+                x[i][j] = random.nextGaussian();
+            }
+        }
+        // positive semi-definite, like the IBS matrix
+        double[][] matrix = new Jama.Matrix(x).times(new Jama.Matrix(x).transpose()).getArray();
+
+        Jama.EigenvalueDecomposition full = new Jama.Matrix(matrix).eig();
+        double[] fullValues = full.getRealEigenvalues();
+        double[][] fullVectors = full.getV().getArray();
+
+        int k = 5;
+        TopEigenDecomposition top = new TopEigenDecomposition(matrix, k, 2);
+        assertTrue(top.isConverged());
+        double[] topValues = top.getRealEigenvalues();
+        double[][] topVectors = top.getV();
+        assertEquals(topValues.length, k);
+
+        for (int c = 0; c < k; c++) {
+            int fullC = n - k + c;
+            assertEquals(topValues[c], fullValues[fullC], 1e-8 * fullValues[n - 1]);
+            // the sign of an eigenvector is arbitrary
+            double dot = 0;
+            for (int i = 0; i < n; i++) {
+                dot += topVectors[i][c] * fullVectors[i][fullC];
+            }
+            assertEquals(Math.abs(dot), 1d, 1e-6);
+        }
+
+        double sumOfValues = 0;
+        for (double value : fullValues) {
+            sumOfValues += value;
+        }
+        assertEquals(top.getTrace(), sumOfValues, 1e-8 * fullValues[n - 1]);
+        assertTrue(top.mayBePositiveSemiDefinite());
+    }
+
+    @Test
+    public void testTopEigenDecompositionNotPositiveSemiDefinite() {
+        Random random = new Random(3);
+        int n = 60;
+        double[][] x = new double[n][n];
+        double[] u = new double[n];
+        for (int i = 0; i < n; i++) {
+            for (int j = 0; j < n; j++) {
+                x[i][j] = random.nextGaussian();
+            }
+            u[i] = random.nextGaussian() / Math.sqrt(n);
+        }
+        // a positive semi-definite matrix minus a large rank one matrix has a
+        // negative eigenvalue, so the trace is not the sum of the absolute
+        // eigenvalues
+        double[][] matrix = new Jama.Matrix(x).times(new Jama.Matrix(x).transpose()).getArray();
+        double shift = 4 * n * n;
+        for (int i = 0; i < n; i++) {
+            for (int j = 0; j < n; j++) {
+                matrix[i][j] -= shift * u[i] * u[j];
+            }
+        }
+
+        TopEigenDecomposition top = new TopEigenDecomposition(matrix, 5, 2);
+        assertFalse(top.mayBePositiveSemiDefinite());
+    }
+}
@@ -0,0 +1,119 @@
+package eqtlmappingpipeline.textmeta;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Random;
+import org.testng.annotations.Test;
+import umcg.genetica.io.text.TextFile;
+import umcg.genetica.io.trityper.EQTL;
+import umcg.genetica.io.trityper.QTLTextFile;
+
+import static org.testng.Assert.*;
+
+/**
+ * The reader should return the eQTLs of a file in the order of a stable sort
+ * on SNP and probe, however many batches the file is spilled to.
+ */
+public class SNPProbeSortedQTLReaderTest {
+
+	private static final int NR_SNPS = 10;
+	private static final int NR_PROBES = 5;
+
+	/**
+	 * Writes eQTLs with random SNP-probe combinations, so most combinations
+	 * occur multiple times. The Z-score of an eQTL is its line number.
+	 */
+	private String[][] writeQTLFile(File file, int nrEQTLs) throws IOException {
+		Random random = new Random(1);
+		String[][] eqtls = new String[nrEQTLs][];
+		TextFile out = new TextFile(file.getAbsolutePath(), TextFile.W);
+		out.writeln(QTLTextFile.header);
+		for (int i = 0; i < nrEQTLs; i++) {
+			String snp = "rs" + random.nextInt(NR_SNPS);
+			String probe = "probe" + random.nextInt(NR_PROBES);
+			eqtls[i] = new String[]{snp, probe, String.valueOf((double) i)};
+			out.writeln("0.001\t" + snp + "\t1\t100\t" + probe + "\t1\t200\tCis\tA/G\tA\t" + (double) i + "\tds1;ds2\t1.0;2.0\t100;200\t-\t-\t-\t-\t-\t-\t-\t-");
+		}
+		out.close();
+		return eqtls;
+	}
+
+	private int countTmpFiles(File dir) {
+		int nrTmpFiles = 0;
+		for (File f : dir.listFiles()) {
+			if (f.getName().startsWith("sort-tmp-")) {
+				nrTmpFiles++;
+			}
+		}
+		return nrTmpFiles;
+	}
+
+	private void assertSortedLikeFile(int nrEQTLs, int batchSize, boolean spilled) throws IOException {
+		File dir = Files.createTempDirectory("SNPProbeSortedQTLReaderTest").toFile();
+		File file = new File(dir, "eQTLs.txt");
+		String[][] eqtls = writeQTLFile(file, nrEQTLs);
+
+		ArrayList<String[]> expected = new ArrayList<String[]>();
+		Collections.addAll(expected, eqtls);
+		// stable sort, so ties stay in the order of the file
+		Collections.sort(expected, new Comparator<String[]>() {
+			@Override
+			public int compare(String[] o1, String[] o2) {
+				return SNPProbeSortedQTLReader.compareSNPProbe(o1[0], o1[1], o2[0], o2[1]);
+			}
+		});
+
+		SNPProbeSortedQTLReader reader = new SNPProbeSortedQTLReader(file.getAbsolutePath(), dir.getAbsolutePath() + File.separator + "sort", batchSize);
+		try {
+			assertEquals(reader.getNrEQTLs(), nrEQTLs);
+			int nrTmpFiles = countTmpFiles(dir);
+			if (spilled) {
+				assertTrue(nrTmpFiles > 0);
+				assertTrue(nrTmpFiles <= SNPProbeSortedQTLReader.MAX_MERGE_FAN_IN, "too many batches to merge: " + nrTmpFiles);
+			} else {
+				assertEquals(nrTmpFiles, 0);
+			}
+
+			for (String[] e : expected) {
+				EQTL eqtl = reader.next();
+				assertNotNull(eqtl);
+				assertEquals(eqtl.getRsName(), e[0]);
+				assertEquals(eqtl.getProbe(), e[1]);
+				assertEquals(eqtl.getZscore(), Double.parseDouble(e[2]), 0);
+			}
+			assertNull(reader.next());
+		} finally {
+			reader.close();
+		}
+		assertEquals(countTmpFiles(dir), 0);
+
+		file.delete();
+		dir.delete();
+	}
+
+	@Test
+	public void testInMemory() throws IOException {
+		assertSortedLikeFile(500, 1000, false);
+	}
+
+	@Test
+	public void testSpilledBatches() throws IOException {
+		assertSortedLikeFile(500, 50, true);
+	}
+
+	@Test
+	public void testMergePass() throws IOException {
+		// 167 batches are first merged to 3
+		assertSortedLikeFile(500, 3, true);
+	}
+
+	@Test
+	public void testMultipleMergePasses() throws IOException {
+		// 5000 batches are merged to 79 and then to 2
+		assertSortedLikeFile(5000, 1, true);
+	}
+}
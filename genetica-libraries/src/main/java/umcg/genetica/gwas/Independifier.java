@@ -18,7 +18,6 @@ import umcg.genetica.io.text.TextFile;
 import umcg.genetica.io.trityper.SNP;
 import umcg.genetica.io.trityper.SNPLoader;
 import umcg.genetica.io.trityper.TriTyperGenotypeData;
-import umcg.genetica.io.trityper.util.DetermineLD;
 import umcg.genetica.math.matrix.DoubleMatrixDataset;
 
 /**
@@ -33,6 +32,8 @@ public class Independifier {
     TriTyperGenotypeData genotypeData;
     final SNPLoader snpLoader;
     Map<String, DoubleMatrixDataset<String, String>> permDatasets;
+    private int nrThreads = Runtime.getRuntime().availableProcessors();
+    private boolean greedyClumping = false;
 
     public Independifier(String datadir) throws IOException {
         genotypeData = new TriTyperGenotypeData();
@@ -45,6 +46,25 @@ public class Independifier {
         this.snpLoader = snpLoader;
     }
 
+    /**
+     * @param nrThreads threads used to calculate the LD between SNPs
+     */
+    public void setNrThreads(int nrThreads) {
+        this.nrThreads = nrThreads;
+    }
+
+    /**
+     * By default SNPs connected through SNPs in LD form one cluster, with the
+     * same clusters and cluster order as before. With greedy clumping every
+     * cluster is the first remaining SNP with the remaining SNPs in LD with
+     * it, so SNPs are only grouped with a lead SNP they are in LD with.
+     *
+     * @param greedyClumping use greedy clumping instead of transitive clusters
+     */
+    public void setGreedyClumping(boolean greedyClumping) {
+        this.greedyClumping = greedyClumping;
+    }
+
     public void selectSNPsWithSimilarMAFsAsRealInputSNPs(String[] snps) throws IOException {
 
         TObjectIntHashMap<String> snpToSNPId = genotypeData.getSnpToSNPId();
@@ -103,7 +123,7 @@ public class Independifier {
         TObjectIntHashMap<String> snpToSNPId = genotypeData.getSnpToSNPId();
         Vector vecSNPsPresentInGenotypeData = new Vector();
         for (int s = 0; s < snps.length; s++) {
-            if (snpToSNPId.get(snps[s]) == -9) {
+            if (snpToSNPId.get(snps[s]) != -9) {
                 vecSNPsPresentInGenotypeData.add(snps[s]);
             } else {
                 System.out.println("Error! SNP " + snps[s] + " is not present in the genotype data!!!!!!");
@@ -115,111 +135,30 @@ public class Independifier {
         }
 
         // calculate pairwise LD over all SNPs in the same chromosome within the given distance
-        DetermineLD ldCalc = new DetermineLD();
-        double[][] r2Matrix = new double[snps.length][snps.length];
-        int[] snpsChr = new int[snps.length];
-        int[] snpsChrPos = new int[snps.length];
-        for (int s1 = 0; s1 < snps.length; s1++) {
-            Integer get = snpToSNPId.get(snps[s1]);
-            SNP snp1 = genotypeData.getSNPObject(get);
-            synchronized (snpLoader) {
-                snpLoader.loadGenotypes(snp1);
-            }
-            byte chr1 = snp1.getChr();
-            int chrPos1 = snp1.getChrPos();
-            snpsChr[s1] = chr1;
-            snpsChrPos[s1] = chrPos1;
-            for (int s2 = s1 + 1; s2 < snps.length; s2++) {
-                SNP snp2 = genotypeData.getSNPObject(snpToSNPId.get(snps[s2]));
-                if (s1 != s2 && chr1 == snp2.getChr() && Math.abs(chrPos1 - snp2.getChrPos()) < bpThreshold) {
-                    synchronized (snpLoader) {
-                        snpLoader.loadGenotypes(snp2);
-                    }
-                    double r2 = ldCalc.getRSquared(snp1, snp2, genotypeData, DetermineLD.RETURN_R_SQUARED, DetermineLD.INCLUDE_CASES_AND_CONTROLS, false);
-                    r2Matrix[s1][s2] = r2;
-                    r2Matrix[s2][s1] = r2;
-                }
-            }
-        }
+        LDGraph ldGraph = LDGraph.build(genotypeData, snpLoader, snps, r2Threshold, bpThreshold, false, nrThreads);
 
         int nrIndependifiedLeadSNPs = 0;
         int nrSNPsToUse = snps.length;
         System.out.println("Nr of SNPs with available genotype data in imputed dataset:\t" + nrSNPsToUse);
 
-        int[] clusters = new int[snps.length];
-        for (int s1 = 0; s1 < snps.length; s1++) {
-            clusters[s1] = -1;
-        }
-        int nrClusters = 0;
-
         // assign SNPs to clusters
-        for (int s1 = 0; s1 < nrSNPsToUse; s1++) {
-            boolean SNPInLDWithOtherSNP = false;
-            for (int s2 = 0; s2 < nrSNPsToUse; s2++) {
-                if (s1 != s2 && snpsChr[s1] == snpsChr[s2] && Math.abs(snpsChrPos[s1] - snpsChrPos[s2]) < bpThreshold) {
-                    double r2 = r2Matrix[s1][s2];
-                    if (r2 > r2Threshold) {
-                        SNPInLDWithOtherSNP = true;
-                        if (clusters[s1] == -1 && clusters[s2] == -1) {
-                            //Both SNPs have not yet been assigned to any cluster, easy!
-                            clusters[s1] = nrClusters;
-                            clusters[s2] = nrClusters;
-                            nrClusters++;
-                        } else {
-                            if (clusters[s1] != -1 && clusters[s2] != -1) {
-                                //Both SNPS have already been assigned to clusters, merge these clusters:
-                                int previousClusterS1 = clusters[s1];
-                                int previousClusterS2 = clusters[s2];
-                                for (int q = 0; q < nrSNPsToUse; q++) {
-                                    if (clusters[q] == previousClusterS1) {
-                                        clusters[q] = nrClusters;
-                                    }
-                                    if (clusters[q] == previousClusterS2) {
-                                        clusters[q] = nrClusters;
-                                    }
-                                }
-                                nrClusters++;
-                            } else {
-                                if (clusters[s1] == -1) {
-                                    clusters[s1] = clusters[s2];
-                                }
-                                if (clusters[s2] == -1) {
-                                    clusters[s2] = clusters[s1];
-                                }
-                            }
-                        }
-                    }
-                }
-            }
-            if (!SNPInLDWithOtherSNP) {
-                clusters[s1] = nrClusters;
-                nrClusters++;
-            }
-        }
+        int[][] clusters = cluster(ldGraph, nrSNPsToUse);
 
         // build string array representation of SNP clusters
         // the first SNP in each cluster will be the most significant one if the SNPs were given in order of significance
         List<String> independifiedSNPs = new ArrayList<String>();
         nrIndependifiedLeadSNPs = 0;
-        for (int c = 0; c < nrClusters; c++) {
-            boolean clusterContainsSNPs = false;
-            for (int s1 = 0; s1 < nrSNPsToUse; s1++) {
-                if (clusters[s1] == c) {
-                    clusterContainsSNPs = true;
-                    break;
-                }
-            }
-            if (clusterContainsSNPs) {
+        for (int[] cluster : clusters) {
+            if (cluster.length > 0) {
                 nrIndependifiedLeadSNPs++;
-                String snpsThisCluster = "";
-                String delim = "";
-                for (int s1 = 0; s1 < nrSNPsToUse; s1++) {
-                    if (clusters[s1] == c) {
-                        snpsThisCluster += delim + snps[s1];
-                        delim = ";";
+                StringBuilder snpsThisCluster = new StringBuilder();
+                for (int s1 : cluster) {
+                    if (snpsThisCluster.length() > 0) {
+                        snpsThisCluster.append(';');
                     }
+                    snpsThisCluster.append(snps[s1]);
                 }
-                independifiedSNPs.add(snpsThisCluster);
+                independifiedSNPs.add(snpsThisCluster.toString());
             }
         }
 
@@ -273,36 +212,10 @@ public class Independifier {
             snps[q] = ((umcg.genetica.containers.StringDoubleObject) vecTopResults.get(q)).stringValue;
         }
 
-        LOGGER.log(Level.INFO, "Permutation {0}:\tUsing {1} SNPs, this will require {2} MB of memory", new Object[]{permutation, snps.length, 4 * snps.length * (snps.length / 1024d / 1024d)});
+        LOGGER.log(Level.INFO, "Permutation {0}:\tUsing {1} SNPs", new Object[]{permutation, snps.length});
 
-        DetermineLD ldCalc = new DetermineLD();
-        float[][] r2Matrix = new float[snps.length][snps.length];
-        int[] snpsChr = new int[snps.length];
-        int[] snpsChrPos = new int[snps.length];
-        for (int s1 = 0; s1 < snps.length; s1++) {
-            Integer get = snpToSNPId.get(snps[s1]);
-            SNP snp1 = genotypeData.getSNPObject(get);
-            synchronized (snpLoader) {
-                snpLoader.loadGenotypes(snp1);
-            }
-            byte chr1 = snp1.getChr();
-            int chrPos1 = snp1.getChrPos();
-            snpsChr[s1] = chr1;
-            snpsChrPos[s1] = chrPos1;
-            for (int s2 = s1 + 1; s2 < snps.length; s2++) {
-                SNP snp2 = genotypeData.getSNPObject(snpToSNPId.get(snps[s2]));
-                if (s1 != s2 && chr1 == snp2.getChr() && Math.abs(chrPos1 - snp2.getChrPos()) < bpThreshold) {
-                    synchronized (snpLoader) {
-                        snpLoader.loadGenotypes(snp2);
-                    }
-                    double r2 = ldCalc.getRSquared(snp1, snp2, genotypeData, DetermineLD.RETURN_R_SQUARED, DetermineLD.INCLUDE_CASES_AND_CONTROLS, false);
-                    r2Matrix[s1][s2] = (float) r2;
-                    r2Matrix[s2][s1] = (float) r2;
-                }
-                snp2.clearGenotypes();
-            }
-            snp1.clearGenotypes();
-        }
+        // LD is stored in single precision, like the full r2 matrix used to be
+        LDGraph ldGraph = LDGraph.build(genotypeData, snpLoader, snps, r2Threshold, bpThreshold, true, nrThreads);
 
         int nrIndependifiedLeadSNPs = 0;
         int nrSNPsToUse = snps.length;
@@ -315,55 +228,7 @@ public class Independifier {
 
             nrSNPsToUse = (upper + lower) / 2;
 
-            int[] clusters = new int[snps.length];
-            for (int s1 = 0; s1 < snps.length; s1++) {
-                clusters[s1] = -1;
-            }
-            int nrClusters = 0;
-
-            for (int s1 = 0; s1 < nrSNPsToUse; s1++) {
-                boolean SNPInLDWithOtherSNP = false;
-                for (int s2 = 0; s2 < nrSNPsToUse; s2++) {
-                    if (s1 != s2 && snpsChr[s1] == snpsChr[s2] && Math.abs(snpsChrPos[s1] - snpsChrPos[s2]) < bpThreshold) {
-                        double r2 = r2Matrix[s1][s2];
-                        if (r2 > r2Threshold) {
-                            SNPInLDWithOtherSNP = true;
-                            if (clusters[s1] == -1 && clusters[s2] == -1) {
-                                //Both SNPs have not yet been assigned to any cluster, easy!
-                                clusters[s1] = nrClusters;
-                                clusters[s2] = nrClusters;
-                                nrClusters++;
-                            } else {
-                                if (clusters[s1] != -1 && clusters[s2] != -1) {
-                                    //Both SNPS have already been assigned to clusters, merge these clusters:
-                                    int previousClusterS1 = clusters[s1];
-                                    int previousClusterS2 = clusters[s2];
-                                    for (int q = 0; q < nrSNPsToUse; q++) {
-                                        if (clusters[q] == previousClusterS1) {
-                                            clusters[q] = nrClusters;
-                                        }
-                                        if (clusters[q] == previousClusterS2) {
-                                            clusters[q] = nrClusters;
-                                        }
-                                    }
-                                    nrClusters++;
-                                } else {
-                                    if (clusters[s1] == -1) {
-                                        clusters[s1] = clusters[s2];
-                                    }
-                                    if (clusters[s2] == -1) {
-                                        clusters[s2] = clusters[s1];
-                                    }
-                                }
-                            }
-                        }
-                    }
-                }
-                if (!SNPInLDWithOtherSNP) {
-                    clusters[s1] = nrClusters;
-                    nrClusters++;
-                }
-            }
+            int[][] clusters = cluster(ldGraph, nrSNPsToUse);
 
             independifiedSNPs = new ArrayList<String>();
             TextFile out = null;
@@ -371,31 +236,23 @@ public class Independifier {
                 out = new TextFile(outFile, true);
             }
             nrIndependifiedLeadSNPs = 0;
-            for (int c = 0; c < nrClusters; c++) {
-                boolean clusterContainsSNPs = false;
-                for (int s1 = 0; s1 < nrSNPsToUse; s1++) {
-                    if (clusters[s1] == c) {
-                        clusterContainsSNPs = true;
-                        break;
-                    }
-                }
-                if (clusterContainsSNPs) {
+            for (int c = 0; c < clusters.length; c++) {
+                if (clusters[c].length > 0) {
                     nrIndependifiedLeadSNPs++;
                     if (out != null) {
                         out.write(c + "");
                     }
-                    String snpsThisCluster = "";
-                    String delim = "";
-                    for (int s1 = 0; s1 < nrSNPsToUse; s1++) {
-                        if (clusters[s1] == c) {
-                            snpsThisCluster += delim + snps[s1];
-                            delim = ";";
-                            if (out != null) {
-                                out.write("\t" + snps[s1]);
-                            }
+                    StringBuilder snpsThisCluster = new StringBuilder();
+                    for (int s1 : clusters[c]) {
+                        if (snpsThisCluster.length() > 0) {
+                            snpsThisCluster.append(';');
+                        }
+                        snpsThisCluster.append(snps[s1]);
+                        if (out != null) {
+                            out.write("\t" + snps[s1]);
                         }
                     }
-                    independifiedSNPs.add(snpsThisCluster);
+                    independifiedSNPs.add(snpsThisCluster.toString());
                     if (out != null) {
                         out.writeln();
                     }
@@ -421,4 +278,16 @@ public class Independifier {
 
         return independifiedSNPs.toArray(new String[0]);
     }
+
+    /**
+     * @return the SNPs per cluster of the first nrSNPsToUse SNPs, some
+     * clusters can be empty
+     */
+    private int[][] cluster(LDGraph ldGraph, int nrSNPsToUse) {
+        if (greedyClumping) {
+            return ldGraph.clump(nrSNPsToUse);
+        } else {
+            return ldGraph.clusterTransitive(nrSNPsToUse);
+        }
+    }
 }
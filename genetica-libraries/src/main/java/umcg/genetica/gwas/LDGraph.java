@@ -0,0 +1,310 @@
+package umcg.genetica.gwas;
+
+import gnu.trove.map.hash.TObjectIntHashMap;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import umcg.genetica.io.trityper.SNP;
+import umcg.genetica.io.trityper.SNPLoader;
+import umcg.genetica.io.trityper.TriTyperGenotypeData;
+import umcg.genetica.io.trityper.util.DetermineLD;
+
+/**
+ * Sparse graph of the SNP pairs in LD (r2 above a threshold) within a base pair
+ * window. The genotypes of every SNP are loaded once and packed in one bit set
+ * per genotype, so the genotype table of a pair used by DetermineLD follows
+ * from AND operations and bit counts. The pairs are found by sliding a window
+ * over the SNPs sorted on position, on multiple threads.
+ */
+class LDGraph {
+
+    private static final int CHUNK_SIZE = 256;
+
+    private final int[][] neighbours;
+
+    /**
+     * @param neighbours SNPs in LD per SNP, in ascending order
+     */
+    LDGraph(int[][] neighbours) {
+        this.neighbours = neighbours;
+    }
+
+    /**
+     * @param snps SNPs present in the genotype data
+     * @param r2Threshold pairs with an r2 above this threshold are in LD
+     * @param bpThreshold only pairs on the same chromosome closer than this
+     * distance are tested
+     * @param singlePrecision compare the r2 rounded to a float with the
+     * threshold
+     */
+    static LDGraph build(TriTyperGenotypeData genotypeData, SNPLoader snpLoader, String[] snps, final double r2Threshold, final int bpThreshold, final boolean singlePrecision, int nrThreads) throws IOException {
+
+        TObjectIntHashMap<String> snpToSNPId = genotypeData.getSnpToSNPId();
+        final int nrSNPs = snps.length;
+        final int[] chr = new int[nrSNPs];
+        final int[] chrPos = new int[nrSNPs];
+        final long[][][] packed = new long[nrSNPs][][];
+        for (int s = 0; s < nrSNPs; s++) {
+            SNP snp = genotypeData.getSNPObject(snpToSNPId.get(snps[s]));
+            synchronized (snpLoader) {
+                snpLoader.loadGenotypes(snp);
+            }
+            chr[s] = snp.getChr();
+            chrPos[s] = snp.getChrPos();
+            packed[s] = pack(snp.getGenotypes());
+            snp.clearGenotypes();
+        }
+
+        // window over the SNPs sorted on chromosome and position
+        Integer[] order = new Integer[nrSNPs];
+        for (int s = 0; s < nrSNPs; s++) {
+            order[s] = s;
+        }
+        Arrays.sort(order, (a, b) -> chr[a] != chr[b] ? Integer.compare(chr[a], chr[b]) : Integer.compare(chrPos[a], chrPos[b]));
+        final int[] sorted = new int[nrSNPs];
+        for (int s = 0; s < nrSNPs; s++) {
+            sorted[s] = order[s];
+        }
+
+        int[] degree = new int[nrSNPs];
+        List<int[]> edges = new ArrayList<int[]>();
+        ExecutorService threadPool = Executors.newFixedThreadPool(Math.max(1, nrThreads));
+        try {
+            List<Future<int[]>> chunks = new ArrayList<Future<int[]>>();
+            for (int start = 0; start < nrSNPs; start += CHUNK_SIZE) {
+                final int from = start;
+                final int to = Math.min(start + CHUNK_SIZE, nrSNPs);
+                chunks.add(threadPool.submit(() -> findPairsInLD(sorted, from, to, chr, chrPos, packed, r2Threshold, bpThreshold, singlePrecision)));
+            }
+            for (Future<int[]> chunk : chunks) {
+                int[] pairs = chunk.get();
+                for (int p = 0; p < pairs.length; p += 2) {
+                    degree[pairs[p]]++;
+                    degree[pairs[p + 1]]++;
+                }
+                edges.add(pairs);
+            }
+        } catch (InterruptedException | ExecutionException e) {
+            throw new RuntimeException(e);
+        } finally {
+            threadPool.shutdown();
+        }
+
+        int[][] neighbours = new int[nrSNPs][];
+        for (int s = 0; s < nrSNPs; s++) {
+            neighbours[s] = new int[degree[s]];
+            degree[s] = 0;
+        }
+        for (int[] pairs : edges) {
+            for (int p = 0; p < pairs.length; p += 2) {
+                int s1 = pairs[p];
+                int s2 = pairs[p + 1];
+                neighbours[s1][degree[s1]++] = s2;
+                neighbours[s2][degree[s2]++] = s1;
+            }
+        }
+        for (int[] n : neighbours) {
+            Arrays.sort(n);
+        }
+        return new LDGraph(neighbours);
+    }
+
+    /**
+     * @return the pairs in LD of the SNPs at sorted positions from until to
+     * with the SNPs after them in the window, as consecutive indices
+     */
+    static int[] findPairsInLD(int[] sorted, int from, int to, int[] chr, int[] chrPos, long[][][] packed, double r2Threshold, int bpThreshold, boolean singlePrecision) {
+        DetermineLD ldCalc = new DetermineLD();
+        int[][] genotypes = new int[3][3];
+        int[] pairs = new int[16];
+        int nrPairs = 0;
+        for (int i = from; i < to; i++) {
+            int s1 = sorted[i];
+            for (int j = i + 1; j < sorted.length; j++) {
+                int s2 = sorted[j];
+                if (chr[s1] != chr[s2] || chrPos[s2] - chrPos[s1] >= bpThreshold) {
+                    break;
+                }
+                double r2;
+                if (packed[s1] == null || packed[s2] == null || packed[s1][0].length != packed[s2][0].length) {
+                    r2 = 0;
+                } else {
+                    countGenotypes(packed[s1], packed[s2], genotypes);
+                    r2 = ldCalc.getLD(genotypes, false).getRight();
+                }
+                if (singlePrecision) {
+                    r2 = (float) r2;
+                }
+                if (r2 > r2Threshold) {
+                    if (nrPairs + 2 > pairs.length) {
+                        pairs = Arrays.copyOf(pairs, pairs.length * 2);
+                    }
+                    pairs[nrPairs++] = s1;
+                    pairs[nrPairs++] = s2;
+                }
+            }
+        }
+        return Arrays.copyOf(pairs, nrPairs);
+    }
+
+    /**
+     * @return one bit set per genotype 0, 1 and 2, missing genotypes are in
+     * none
+     */
+    static long[][] pack(byte[] genotypes) {
+        if (genotypes == null) {
+            return null;
+        }
+        long[][] packed = new long[3][(genotypes.length + 63) >>> 6];
+        for (int ind = 0; ind < genotypes.length; ind++) {
+            int genotype = genotypes[ind];
+            if (genotype >= 0 && genotype <= 2) {
+                packed[genotype][ind >>> 6] |= 1L << (ind & 63);
+            }
+        }
+        return packed;
+    }
+
+    static void countGenotypes(long[][] x, long[][] y, int[][] genotypes) {
+        for (int gx = 0; gx < 3; gx++) {
+            long[] bitsX = x[gx];
+            for (int gy = 0; gy < 3; gy++) {
+                long[] bitsY = y[gy];
+                int count = 0;
+                for (int w = 0; w < bitsX.length; w++) {
+                    count += Long.bitCount(bitsX[w] & bitsY[w]);
+                }
+                genotypes[gx][gy] = count;
+            }
+        }
+    }
+
+    /**
+     * @return the SNPs in LD with a SNP, in ascending order
+     */
+    int[] getNeighbours(int snp) {
+        return neighbours[snp];
+    }
+
+    /**
+     * Transitive clusters of the first nrSNPsToUse SNPs: SNPs are in the same
+     * cluster when they are connected through SNPs in LD. The clusters and the
+     * order of the clusters are the same as the previous pairwise assignment,
+     * in which a SNP joins the cluster of a SNP in LD and two clusters linked
+     * by a pair in LD are merged under a new cluster number, processed in the
+     * order of the SNPs. Union-find replaces relabelling all SNPs on a merge.
+     *
+     * @return the SNPs per cluster number, in input order; merged cluster
+     * numbers are empty
+     */
+    int[][] clusterTransitive(int nrSNPsToUse) {
+        int[] parent = new int[nrSNPsToUse];
+        int[] clusterOfRoot = new int[nrSNPsToUse];
+        boolean[] assigned = new boolean[nrSNPsToUse];
+        for (int s = 0; s < nrSNPsToUse; s++) {
+            parent[s] = s;
+        }
+        int nrClusters = 0;
+
+        for (int s1 = 0; s1 < nrSNPsToUse; s1++) {
+            boolean SNPInLDWithOtherSNP = false;
+            for (int s2 : neighbours[s1]) {
+                if (s2 >= nrSNPsToUse) {
+                    break;
+                }
+                SNPInLDWithOtherSNP = true;
+                int root1 = find(parent, s1);
+                int root2 = find(parent, s2);
+                if (!assigned[s1] && !assigned[s2]) {
+                    parent[root2] = root1;
+                    clusterOfRoot[root1] = nrClusters++;
+                } else if (assigned[s1] && assigned[s2]) {
+                    // merged clusters get a new number, also when they were the same cluster
+                    parent[root2] = root1;
+                    clusterOfRoot[root1] = nrClusters++;
+                } else {
+                    int cluster = assigned[s1] ? clusterOfRoot[root1] : clusterOfRoot[root2];
+                    parent[root2] = root1;
+                    clusterOfRoot[root1] = cluster;
+                }
+                assigned[s1] = true;
+                assigned[s2] = true;
+            }
+            if (!SNPInLDWithOtherSNP) {
+                assigned[s1] = true;
+                clusterOfRoot[find(parent, s1)] = nrClusters++;
+            }
+        }
+
+        int[] clusters = new int[nrSNPsToUse];
+        int[] clusterSizes = new int[nrClusters];
+        for (int s = 0; s < nrSNPsToUse; s++) {
+            clusters[s] = clusterOfRoot[find(parent, s)];
+            clusterSizes[clusters[s]]++;
+        }
+        return collect(clusters, clusterSizes, nrSNPsToUse);
+    }
+
+    /**
+     * Greedy clumping of the first nrSNPsToUse SNPs: the first SNP that is not
+     * yet in a clump starts a new clump with all SNPs in LD with it that are
+     * not yet in a clump. With the SNPs in order of significance every clump
+     * is the most significant remaining SNP and its proxies.
+     *
+     * @return the SNPs per clump, in input order so the lead SNP is first
+     */
+    int[][] clump(int nrSNPsToUse) {
+        int[] clusters = new int[nrSNPsToUse];
+        Arrays.fill(clusters, -1);
+        int nrClusters = 0;
+        List<Integer> clusterSizes = new ArrayList<Integer>();
+        for (int s1 = 0; s1 < nrSNPsToUse; s1++) {
+            if (clusters[s1] != -1) {
+                continue;
+            }
+            int size = 1;
+            clusters[s1] = nrClusters;
+            for (int s2 : neighbours[s1]) {
+                if (s2 >= nrSNPsToUse) {
+                    break;
+                }
+                if (clusters[s2] == -1) {
+                    clusters[s2] = nrClusters;
+                    size++;
+                }
+            }
+            clusterSizes.add(size);
+            nrClusters++;
+        }
+        int[] sizes = new int[nrClusters];
+        for (int c = 0; c < nrClusters; c++) {
+            sizes[c] = clusterSizes.get(c);
+        }
+        return collect(clusters, sizes, nrSNPsToUse);
+    }
+
+    private static int[][] collect(int[] clusters, int[] clusterSizes, int nrSNPsToUse) {
+        int[][] members = new int[clusterSizes.length][];
+        for (int c = 0; c < clusterSizes.length; c++) {
+            members[c] = new int[clusterSizes[c]];
+        }
+        int[] filled = new int[clusterSizes.length];
+        for (int s = 0; s < nrSNPsToUse; s++) {
+            members[clusters[s]][filled[clusters[s]]++] = s;
+        }
+        return members;
+    }
+
+    private static int find(int[] parent, int s) {
+        while (parent[s] != s) {
+            parent[s] = parent[parent[s]];
+            s = parent[s];
+        }
+        return s;
+    }
+}
@@ -5,11 +5,11 @@
 package umcg.genetica.io.bin;
 
 import com.mastfrog.util.streams.HashingOutputStream;
+import umcg.genetica.io.concurrent.ParallelGZIPInputStream;
+import umcg.genetica.io.concurrent.ParallelGZIPOutputStream;
 
 import java.io.*;
 import java.security.NoSuchAlgorithmException;
-import java.util.zip.GZIPInputStream;
-import java.util.zip.GZIPOutputStream;
 
 /**
  * @author harm-jan
@@ -48,7 +48,7 @@ public class BinaryFile {
                     osh = new HashingOutputStream("md5", new FileOutputStream(loc));
                 }
                 if (loc.endsWith(".gz")) {
-                    os = new DataOutputStream(new GZIPOutputStream(new BufferedOutputStream(osh, buffersize)));
+                    os = new DataOutputStream(new BufferedOutputStream(new ParallelGZIPOutputStream(osh), buffersize));
                 } else {
                     os = new DataOutputStream(new BufferedOutputStream(osh, buffersize));
                 }
@@ -58,7 +58,7 @@ public class BinaryFile {
             }
         } else {
             if (loc.endsWith(".gz")) {
-                is = new DataInputStream(new GZIPInputStream(new BufferedInputStream(new FileInputStream(loc), buffersize)));
+                is = new DataInputStream(new BufferedInputStream(ParallelGZIPInputStream.open(new FileInputStream(loc), buffersize), buffersize));
             } else {
                 is = new DataInputStream(new BufferedInputStream(new FileInputStream(loc), buffersize));
             }
@@ -212,7 +212,7 @@ public class BinaryFile {
                 HashingOutputStream hash = (HashingOutputStream) osh;
                 return hash.getDigest();
             } else {
-                throw new UnsupportedOperationException("OutputStream is not a HashingOutputStream");
+                throw new UnsupportedOperationException("No hash available, " + loc + " was not opened with useHash");
             }
 
         } else {
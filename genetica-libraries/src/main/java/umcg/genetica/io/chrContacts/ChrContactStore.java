@@ -0,0 +1,740 @@
+package umcg.genetica.io.chrContacts;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.PriorityQueue;
+import umcg.genetica.io.text.TextFile;
+import umcg.genetica.io.text.TextFileTokenizer;
+
+/**
+ * Binary store of the contacts of one chromosome (pair) at one resolution,
+ * converted once from a RAWobserved text file. The contacts are stored sorted
+ * by the position on the smaller chromosome and then on the larger chromosome
+ * (for intra chromosomal contacts the smaller position first), in blocks of
+ * which the first positions are kept in memory. A lookup is a binary search
+ * over the blocks followed by a binary search in one block read from disk. The
+ * normalization vectors (KRnorm, VCnorm, ...) of both chromosomes can be
+ * embedded in the same file.
+ *
+ * Not thread safe, every thread should open its own store.
+ */
+public class ChrContactStore {
+
+    private static final int MAGIC = 0x48694343;
+    private static final int VERSION = 1;
+    private static final int NR_CONTACTS_OFFSET = 4 + 4 + 4 + 1;
+    private static final int HEADER_SIZE = NR_CONTACTS_OFFSET + 8 + 4;
+    private static final int RECORD_SIZE = 4 + 4 + 8;
+    public static final int DEFAULT_BLOCK_SIZE = 4096;
+    public static final int DEFAULT_CHUNK_SIZE = 1 << 21;
+    private static final int MAX_MERGE_FAN_IN = 64;
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final int resolution;
+    private final boolean intra;
+    private final long nrContacts;
+    private final int blockSize;
+    private final int[] blockFirstPos1;
+    private final int[] blockFirstPos2;
+    private final HashMap<String, double[]> smallerChrNorm = new HashMap<String, double[]>();
+    private final HashMap<String, double[]> largerChrNorm = new HashMap<String, double[]>();
+
+    private final ByteBuffer blockBuffer;
+    private int cachedBlock = -1;
+    private int cachedBlockLength;
+    private final int[] cachedPos1;
+    private final int[] cachedPos2;
+    private final double[] cachedValues;
+
+    public ChrContactStore(String fileName) throws IOException {
+        file = new RandomAccessFile(fileName, "r");
+        channel = file.getChannel();
+        DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel.position(0))));
+        if (in.readInt() != MAGIC) {
+            file.close();
+            throw new IOException("Not a contact store: " + fileName);
+        }
+        int version = in.readInt();
+        if (version != VERSION) {
+            file.close();
+            throw new IOException("Unsupported contact store version " + version + ": " + fileName);
+        }
+        resolution = in.readInt();
+        intra = in.readBoolean();
+        nrContacts = in.readLong();
+        blockSize = in.readInt();
+
+        // the normalization vectors and block index follow the contacts
+        channel.position(HEADER_SIZE + nrContacts * RECORD_SIZE);
+        in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+        int nrVectors = in.readInt();
+        for (int v = 0; v < nrVectors; v++) {
+            String method = in.readUTF();
+            boolean largerChr = in.readBoolean();
+            double[] vector = new double[in.readInt()];
+            for (int i = 0; i < vector.length; i++) {
+                vector[i] = in.readDouble();
+            }
+            (largerChr ? largerChrNorm : smallerChrNorm).put(method, vector);
+        }
+        int nrBlocks = in.readInt();
+        blockFirstPos1 = new int[nrBlocks];
+        blockFirstPos2 = new int[nrBlocks];
+        for (int b = 0; b < nrBlocks; b++) {
+            blockFirstPos1[b] = in.readInt();
+            blockFirstPos2[b] = in.readInt();
+        }
+
+        blockBuffer = ByteBuffer.allocate(blockSize * RECORD_SIZE);
+        cachedPos1 = new int[blockSize];
+        cachedPos2 = new int[blockSize];
+        cachedValues = new double[blockSize];
+    }
+
+    public int getResolution() {
+        return resolution;
+    }
+
+    public boolean isIntra() {
+        return intra;
+    }
+
+    public long getNrContacts() {
+        return nrContacts;
+    }
+
+    /**
+     * @param posSmallerChr position (bin start) on the smaller chromosome
+     * @param posLargerChr position (bin start) on the larger chromosome
+     * @return the raw contact value, or NaN if there is no contact
+     */
+    public double getContact(int posSmallerChr, int posLargerChr) throws IOException {
+        if (intra && posSmallerChr > posLargerChr) {
+            int tmp = posSmallerChr;
+            posSmallerChr = posLargerChr;
+            posLargerChr = tmp;
+        }
+        // last block starting at or before the position
+        int low = 0;
+        int high = blockFirstPos1.length - 1;
+        int block = -1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (compare(blockFirstPos1[mid], blockFirstPos2[mid], posSmallerChr, posLargerChr) <= 0) {
+                block = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        if (block == -1) {
+            return Double.NaN;
+        }
+        loadBlock(block);
+        int index = find(posSmallerChr, posLargerChr);
+        return index >= 0 ? cachedValues[index] : Double.NaN;
+    }
+
+    /**
+     * @return the normalized contact value: the raw value divided by the
+     * normalization factors of both bins, or NaN if there is no contact
+     */
+    public double getNormalizedContact(String normMethod, int posSmallerChr, int posLargerChr) throws IOException {
+        double contact = getContact(posSmallerChr, posLargerChr);
+        if (Double.isNaN(contact)) {
+            return contact;
+        }
+        return contact / (getNormalizationFactor(normMethod, false, posSmallerChr) * getNormalizationFactor(normMethod, true, posLargerChr));
+    }
+
+    /**
+     * @param largerChr use the vector of the larger chromosome, the same as the
+     * smaller chromosome for intra chromosomal stores
+     * @return the normalization vector, indexed by position / resolution, or
+     * null if not stored
+     */
+    public double[] getNormalizationVector(String normMethod, boolean largerChr) {
+        if (intra || !largerChr) {
+            return smallerChrNorm.get(normMethod);
+        }
+        return largerChrNorm.get(normMethod);
+    }
+
+    /**
+     * @return the normalization factor of the bin containing the position, NaN
+     * if the vector or the bin is not available
+     */
+    public double getNormalizationFactor(String normMethod, boolean largerChr, int pos) {
+        double[] vector = getNormalizationVector(normMethod, largerChr);
+        int bin = pos / resolution;
+        if (vector == null || bin < 0 || bin >= vector.length) {
+            return Double.NaN;
+        }
+        return vector[bin];
+    }
+
+    public interface ContactVisitor {
+
+        void visit(int posSmallerChr, int posLargerChr, double value) throws IOException;
+    }
+
+    /**
+     * Visits all contacts in sorted order.
+     */
+    public void forEachContact(ContactVisitor visitor) throws IOException {
+        forEachContact(Integer.MIN_VALUE, Integer.MAX_VALUE, visitor);
+    }
+
+    /**
+     * Visits the contacts with a position on the smaller chromosome between
+     * from and to (inclusive), in sorted order.
+     */
+    public void forEachContact(int posSmallerChrFrom, int posSmallerChrTo, ContactVisitor visitor) throws IOException {
+        // first block that can contain the start, blocks are compared on the smaller position only
+        int low = 0;
+        int high = blockFirstPos1.length - 1;
+        int block = 0;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (blockFirstPos1[mid] < posSmallerChrFrom) {
+                block = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        for (; block < blockFirstPos1.length && blockFirstPos1[block] <= posSmallerChrTo; block++) {
+            loadBlock(block);
+            for (int i = 0; i < cachedBlockLength; i++) {
+                if (cachedPos1[i] > posSmallerChrTo) {
+                    return;
+                }
+                if (cachedPos1[i] >= posSmallerChrFrom) {
+                    visitor.visit(cachedPos1[i], cachedPos2[i], cachedValues[i]);
+                }
+            }
+        }
+    }
+
+    public void close() throws IOException {
+        file.close();
+    }
+
+    private void loadBlock(int block) throws IOException {
+        if (block == cachedBlock) {
+            return;
+        }
+        long first = (long) block * blockSize;
+        cachedBlockLength = (int) Math.min(blockSize, nrContacts - first);
+        blockBuffer.clear();
+        blockBuffer.limit(cachedBlockLength * RECORD_SIZE);
+        long position = HEADER_SIZE + first * RECORD_SIZE;
+        while (blockBuffer.hasRemaining()) {
+            if (channel.read(blockBuffer, position + blockBuffer.position()) < 0) {
+                throw new IOException("Unexpected end of contact store");
+            }
+        }
+        blockBuffer.flip();
+        for (int i = 0; i < cachedBlockLength; i++) {
+            cachedPos1[i] = blockBuffer.getInt();
+            cachedPos2[i] = blockBuffer.getInt();
+            cachedValues[i] = blockBuffer.getDouble();
+        }
+        cachedBlock = block;
+    }
+
+    private int find(int pos1, int pos2) {
+        int low = 0;
+        int high = cachedBlockLength - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int comp = compare(cachedPos1[mid], cachedPos2[mid], pos1, pos2);
+            if (comp < 0) {
+                low = mid + 1;
+            } else if (comp > 0) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    private static int compare(int pos1a, int pos2a, int pos1b, int pos2b) {
+        if (pos1a != pos1b) {
+            return pos1a < pos1b ? -1 : 1;
+        }
+        return pos2a < pos2b ? -1 : (pos2a == pos2b ? 0 : 1);
+    }
+
+    /**
+     * Converts a RAWobserved file (tab separated: position on the smaller
+     * chromosome, position on the larger chromosome, contact value) to a
+     * contact store. The contacts are sorted in chunks that are merged from
+     * temporary files next to the output file when the contacts do not fit in
+     * one chunk. For duplicate positions only the first contact in the file is
+     * kept.
+     *
+     * @param intra intra chromosomal contacts, the positions are stored with
+     * the smaller position first
+     * @param smallerChrNormFiles normalization method to file with one factor
+     * per bin for the (smaller) chromosome, or null
+     * @param largerChrNormFiles same for the larger chromosome, null for intra
+     * chromosomal contacts
+     */
+    public static void convert(String rawObservedFile, boolean intra, int resolution, Map<String, String> smallerChrNormFiles, Map<String, String> largerChrNormFiles, String outputFile) throws IOException {
+        convert(rawObservedFile, intra, resolution, smallerChrNormFiles, largerChrNormFiles, outputFile, DEFAULT_BLOCK_SIZE);
+    }
+
+    /**
+     * @param blockSize number of contacts per block
+     */
+    public static void convert(String rawObservedFile, boolean intra, int resolution, Map<String, String> smallerChrNormFiles, Map<String, String> largerChrNormFiles, String outputFile, int blockSize) throws IOException {
+        convert(rawObservedFile, intra, resolution, smallerChrNormFiles, largerChrNormFiles, outputFile, blockSize, DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * @param blockSize number of contacts per block
+     * @param chunkSize number of contacts sorted in memory at once
+     */
+    public static void convert(String rawObservedFile, boolean intra, int resolution, Map<String, String> smallerChrNormFiles, Map<String, String> largerChrNormFiles, String outputFile, int blockSize, int chunkSize) throws IOException {
+        // the chunk grows up to the chunk size, so small files stay small in memory
+        long[] keys = new long[Math.min(chunkSize, 1 << 16)];
+        double[] values = new double[keys.length];
+        long[] tmpKeys = null;
+        double[] tmpValues = null;
+        int size = 0;
+        boolean sorted = true;
+        ArrayList<File> runs = new ArrayList<File>();
+
+        try {
+            TextFileTokenizer tokenizer = new TextFileTokenizer(rawObservedFile, TextFileTokenizer.TAB);
+            try {
+                while (tokenizer.nextLine()) {
+                    if (tokenizer.getNrFields() < 3) {
+                        continue;
+                    }
+                    int pos1 = tokenizer.parseInt(0);
+                    int pos2 = tokenizer.parseInt(1);
+                    if (intra && pos1 > pos2) {
+                        int tmp = pos1;
+                        pos1 = pos2;
+                        pos2 = tmp;
+                    }
+                    if (size == keys.length && size < chunkSize) {
+                        keys = Arrays.copyOf(keys, (int) Math.min(2L * size, chunkSize));
+                        values = Arrays.copyOf(values, keys.length);
+                    } else if (size == chunkSize) {
+                        if (!sorted) {
+                            if (tmpKeys == null) {
+                                tmpKeys = new long[chunkSize];
+                                tmpValues = new double[chunkSize];
+                            }
+                            sort(keys, values, size, tmpKeys, tmpValues);
+                        }
+                        runs.add(writeRun(keys, values, size, outputFile + ".run" + runs.size()));
+                        size = 0;
+                        sorted = true;
+                    }
+                    // positions are not negative, so the packed keys sort like the positions
+                    keys[size] = ((long) pos1 << 32) | (pos2 & 0xffffffffL);
+                    values[size] = tokenizer.parseDouble(2);
+                    if (size > 0 && keys[size] < keys[size - 1]) {
+                        sorted = false;
+                    }
+                    size++;
+                }
+            } finally {
+                tokenizer.close();
+            }
+
+            if (!sorted) {
+                if (tmpKeys == null || tmpKeys.length < size) {
+                    tmpKeys = new long[size];
+                    tmpValues = new double[size];
+                }
+                sort(keys, values, size, tmpKeys, tmpValues);
+            }
+            tmpKeys = null;
+            tmpValues = null;
+
+            SortedContacts contacts;
+            if (runs.isEmpty()) {
+                contacts = new ChunkContacts(keys, values, size);
+            } else {
+                runs.add(writeRun(keys, values, size, outputFile + ".run" + runs.size()));
+                keys = null;
+                values = null;
+                int nrRunsCreated = runs.size();
+                // merge consecutive runs, so duplicates stay in the order of the file
+                while (runs.size() > MAX_MERGE_FAN_IN) {
+                    ArrayList<File> merged = new ArrayList<File>();
+                    try {
+                        for (int from = 0; from < runs.size(); from += MAX_MERGE_FAN_IN) {
+                            List<File> group = runs.subList(from, Math.min(from + MAX_MERGE_FAN_IN, runs.size()));
+                            File run = new File(outputFile + ".run" + nrRunsCreated++);
+                            // the new run replaces the group only when it is written completely
+                            RunMerger merger = new RunMerger(group);
+                            try {
+                                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(run), 1 << 16));
+                                try {
+                                    while (merger.next()) {
+                                        out.writeLong(merger.getKey());
+                                        out.writeDouble(merger.getValue());
+                                    }
+                                } finally {
+                                    out.close();
+                                }
+                            } catch (IOException e) {
+                                run.delete();
+                                throw e;
+                            } finally {
+                                merger.close();
+                            }
+                            merged.add(run);
+                        }
+                    } catch (IOException e) {
+                        // the runs of this pass are not in runs yet
+                        deleteRuns(merged);
+                        throw e;
+                    }
+                    deleteRuns(runs);
+                    runs = merged;
+                }
+                contacts = new RunMerger(runs);
+            }
+
+            try {
+                writeStore(contacts, intra, resolution, smallerChrNormFiles, largerChrNormFiles, outputFile, blockSize);
+            } finally {
+                contacts.close();
+            }
+        } finally {
+            deleteRuns(runs);
+        }
+    }
+
+    private static File writeRun(long[] keys, double[] values, int size, String fileName) throws IOException {
+        File run = new File(fileName);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(run), 1 << 16));
+        try {
+            for (int i = 0; i < size; i++) {
+                out.writeLong(keys[i]);
+                out.writeDouble(values[i]);
+            }
+        } finally {
+            out.close();
+        }
+        return run;
+    }
+
+    private static void deleteRuns(List<File> runs) {
+        for (File run : runs) {
+            run.delete();
+        }
+        runs.clear();
+    }
+
+    /**
+     * Writes the unique contacts in sorted order, the normalization vectors
+     * and the block index. The number of contacts in the header is filled in
+     * afterwards.
+     */
+    private static void writeStore(SortedContacts contacts, boolean intra, int resolution, Map<String, String> smallerChrNormFiles, Map<String, String> largerChrNormFiles, String outputFile, int blockSize) throws IOException {
+        long nrUnique = 0;
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(outputFile), 1 << 16));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(resolution);
+            out.writeBoolean(intra);
+            out.writeLong(0);
+            out.writeInt(blockSize);
+
+            int nrBlocks = 0;
+            int[] blockFirstPos1 = new int[1024];
+            int[] blockFirstPos2 = new int[1024];
+            long previousKey = 0;
+            while (contacts.next()) {
+                long key = contacts.getKey();
+                if (nrUnique > 0 && key == previousKey) {
+                    continue;
+                }
+                int pos1 = (int) (key >>> 32);
+                int pos2 = (int) key;
+                if (nrUnique % blockSize == 0) {
+                    if (nrBlocks == blockFirstPos1.length) {
+                        blockFirstPos1 = Arrays.copyOf(blockFirstPos1, nrBlocks * 2);
+                        blockFirstPos2 = Arrays.copyOf(blockFirstPos2, nrBlocks * 2);
+                    }
+                    blockFirstPos1[nrBlocks] = pos1;
+                    blockFirstPos2[nrBlocks] = pos2;
+                    nrBlocks++;
+                }
+                out.writeInt(pos1);
+                out.writeInt(pos2);
+                out.writeDouble(contacts.getValue());
+                previousKey = key;
+                nrUnique++;
+            }
+
+            LinkedHashMap<String, double[]> smallerVectors = readNormalizationVectors(smallerChrNormFiles);
+            LinkedHashMap<String, double[]> largerVectors = intra ? new LinkedHashMap<String, double[]>() : readNormalizationVectors(largerChrNormFiles);
+            out.writeInt(smallerVectors.size() + largerVectors.size());
+            writeNormalizationVectors(out, smallerVectors, false);
+            writeNormalizationVectors(out, largerVectors, true);
+
+            out.writeInt(nrBlocks);
+            for (int b = 0; b < nrBlocks; b++) {
+                out.writeInt(blockFirstPos1[b]);
+                out.writeInt(blockFirstPos2[b]);
+            }
+        } finally {
+            out.close();
+        }
+
+        RandomAccessFile header = new RandomAccessFile(outputFile, "rw");
+        try {
+            header.seek(NR_CONTACTS_OFFSET);
+            header.writeLong(nrUnique);
+        } finally {
+            header.close();
+        }
+    }
+
+    /**
+     * Reads normalization vector files with one factor per line; factors that
+     * are not a number are stored as NaN.
+     */
+    private static LinkedHashMap<String, double[]> readNormalizationVectors(Map<String, String> normFiles) throws IOException {
+        LinkedHashMap<String, double[]> vectors = new LinkedHashMap<String, double[]>();
+        if (normFiles == null) {
+            return vectors;
+        }
+        for (Entry<String, String> normFile : normFiles.entrySet()) {
+            TextFile tf = new TextFile(normFile.getValue(), TextFile.R);
+            ArrayList<String> lines = tf.readAsArrayList();
+            tf.close();
+            double[] vector = new double[lines.size()];
+            for (int i = 0; i < vector.length; i++) {
+                try {
+                    vector[i] = Double.parseDouble(lines.get(i).trim());
+                } catch (NumberFormatException e) {
+                    vector[i] = Double.NaN;
+                }
+            }
+            vectors.put(normFile.getKey(), vector);
+        }
+        return vectors;
+    }
+
+    private static void writeNormalizationVectors(DataOutputStream out, LinkedHashMap<String, double[]> vectors, boolean largerChr) throws IOException {
+        for (Entry<String, double[]> vector : vectors.entrySet()) {
+            out.writeUTF(vector.getKey());
+            out.writeBoolean(largerChr);
+            out.writeInt(vector.getValue().length);
+            for (double factor : vector.getValue()) {
+                out.writeDouble(factor);
+            }
+        }
+    }
+
+    /**
+     * Stable merge sort of the first size keys, the values are moved along.
+     * Duplicate keys keep their order, so the first contact of a position
+     * stays first.
+     */
+    private static void sort(long[] keys, double[] values, int size, long[] tmpKeys, double[] tmpValues) {
+        final int insertionSortSize = 32;
+        for (int from = 0; from < size; from += insertionSortSize) {
+            int to = Math.min(from + insertionSortSize, size);
+            for (int i = from + 1; i < to; i++) {
+                long key = keys[i];
+                double value = values[i];
+                int j = i;
+                for (; j > from && keys[j - 1] > key; j--) {
+                    keys[j] = keys[j - 1];
+                    values[j] = values[j - 1];
+                }
+                keys[j] = key;
+                values[j] = value;
+            }
+        }
+
+        long[] srcKeys = keys;
+        double[] srcValues = values;
+        long[] dstKeys = tmpKeys;
+        double[] dstValues = tmpValues;
+        for (long width = insertionSortSize; width < size; width *= 2) {
+            for (long from = 0; from < size; from += 2 * width) {
+                int mid = (int) Math.min(from + width, size);
+                int to = (int) Math.min(from + 2 * width, size);
+                int i = (int) from;
+                int j = mid;
+                for (int k = (int) from; k < to; k++) {
+                    if (i < mid && (j >= to || srcKeys[i] <= srcKeys[j])) {
+                        dstKeys[k] = srcKeys[i];
+                        dstValues[k] = srcValues[i++];
+                    } else {
+                        dstKeys[k] = srcKeys[j];
+                        dstValues[k] = srcValues[j++];
+                    }
+                }
+            }
+            long[] swapKeys = srcKeys;
+            srcKeys = dstKeys;
+            dstKeys = swapKeys;
+            double[] swapValues = srcValues;
+            srcValues = dstValues;
+            dstValues = swapValues;
+        }
+        if (srcKeys != keys) {
+            System.arraycopy(srcKeys, 0, keys, 0, size);
+            System.arraycopy(srcValues, 0, values, 0, size);
+        }
+    }
+
+    /**
+     * Contacts in sorted order, duplicate positions in the order of the file.
+     */
+    private interface SortedContacts {
+
+        boolean next() throws IOException;
+
+        long getKey();
+
+        double getValue();
+
+        void close() throws IOException;
+    }
+
+    private static class ChunkContacts implements SortedContacts {
+
+        private final long[] keys;
+        private final double[] values;
+        private final int size;
+        private int index = -1;
+
+        ChunkContacts(long[] keys, double[] values, int size) {
+            this.keys = keys;
+            this.values = values;
+            this.size = size;
+        }
+
+        @Override
+        public boolean next() {
+            return ++index < size;
+        }
+
+        @Override
+        public long getKey() {
+            return keys[index];
+        }
+
+        @Override
+        public double getValue() {
+            return values[index];
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    /**
+     * Merges sorted run files, on equal keys the earlier run goes first.
+     */
+    private static class RunMerger implements SortedContacts {
+
+        private final DataInputStream[] runs;
+        private final long[] remaining;
+        private final long[] runKeys;
+        private final double[] runValues;
+        private final PriorityQueue<Integer> heads;
+        private long key;
+        private double value;
+
+        RunMerger(List<File> runFiles) throws IOException {
+            runs = new DataInputStream[runFiles.size()];
+            remaining = new long[runs.length];
+            runKeys = new long[runs.length];
+            runValues = new double[runs.length];
+            heads = new PriorityQueue<Integer>(Math.max(1, runs.length), new Comparator<Integer>() {
+                @Override
+                public int compare(Integer a, Integer b) {
+                    int comp = Long.compare(runKeys[a], runKeys[b]);
+                    return comp != 0 ? comp : Integer.compare(a, b);
+                }
+            });
+            try {
+                for (int r = 0; r < runs.length; r++) {
+                    runs[r] = new DataInputStream(new BufferedInputStream(new FileInputStream(runFiles.get(r)), 1 << 16));
+                    remaining[r] = runFiles.get(r).length() / 16;
+                    advance(r);
+                }
+            } catch (IOException e) {
+                close();
+                throw e;
+            }
+        }
+
+        private void advance(int run) throws IOException {
+            if (remaining[run] > 0) {
+                runKeys[run] = runs[run].readLong();
+                runValues[run] = runs[run].readDouble();
+                remaining[run]--;
+                heads.add(run);
+            }
+        }
+
+        @Override
+        public boolean next() throws IOException {
+            Integer run = heads.poll();
+            if (run == null) {
+                return false;
+            }
+            key = runKeys[run];
+            value = runValues[run];
+            advance(run);
+            return true;
+        }
+
+        @Override
+        public long getKey() {
+            return key;
+        }
+
+        @Override
+        public double getValue() {
+            return value;
+        }
+
+        @Override
+        public void close() throws IOException {
+            for (DataInputStream run : runs) {
+                if (run != null) {
+                    run.close();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,208 @@
+package umcg.genetica.io.concurrent;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * Reads BGZF files, as written by ParallelGZIPOutputStream, samtools and
+ * htslib. The compressed size of every block is known from its header, so the
+ * blocks ahead of the reader are inflated on the shared thread pool of
+ * ParallelGZIPOutputStream.
+ *
+ * Use open() to get a ParallelGZIPInputStream for BGZF files and a normal
+ * GZIPInputStream for other gzip files.
+ */
+public class ParallelGZIPInputStream extends InputStream {
+
+	private static final ThreadLocal<Inflater> INFLATERS = new ThreadLocal<Inflater>() {
+		@Override
+		protected Inflater initialValue() {
+			return new Inflater(true);
+		}
+	};
+	private final InputStream in;
+	private final int maxBlocksInFlight;
+	private final ArrayDeque<Future<byte[]>> blocksInFlight = new ArrayDeque<Future<byte[]>>();
+	private boolean inputDone = false;
+	private byte[] block = new byte[0];
+	private int blockPos = 0;
+
+	private ParallelGZIPInputStream(InputStream in) {
+		this.in = in;
+		this.maxBlocksInFlight = Runtime.getRuntime().availableProcessors() * 4;
+	}
+
+	/**
+	 * Opens a gzip stream, BGZF files are read in parallel.
+	 *
+	 * @param in compressed input
+	 * @param buffersize
+	 * @return
+	 * @throws IOException
+	 */
+	public static InputStream open(InputStream in, int buffersize) throws IOException {
+		BufferedInputStream bufferedIn = new BufferedInputStream(in, Math.max(buffersize, ParallelGZIPOutputStream.HEADER_SIZE));
+		byte[] header = new byte[ParallelGZIPOutputStream.HEADER_SIZE];
+		bufferedIn.mark(header.length);
+		int read = 0;
+		while (read < header.length) {
+			int n = bufferedIn.read(header, read, header.length - read);
+			if (n < 0) {
+				break;
+			}
+			read += n;
+		}
+		bufferedIn.reset();
+
+		if (read == header.length && isBgzfHeader(header)) {
+			return new ParallelGZIPInputStream(bufferedIn);
+		} else {
+			return new GZIPInputStream(bufferedIn, buffersize);
+		}
+	}
+
+	private static boolean isBgzfHeader(byte[] header) {
+		return header[0] == 0x1f && header[1] == (byte) 0x8b && header[2] == 8 && (header[3] & 4) != 0
+				&& header[10] == 6 && header[11] == 0 && header[12] == 'B' && header[13] == 'C' && header[14] == 2 && header[15] == 0;
+	}
+
+	private void readAhead() throws IOException {
+		while (!inputDone && blocksInFlight.size() < maxBlocksInFlight) {
+			byte[] header = new byte[ParallelGZIPOutputStream.HEADER_SIZE];
+			int read = readFully(header, 0, header.length);
+			if (read == 0) {
+				inputDone = true;
+				return;
+			}
+			if (read < header.length || !isBgzfHeader(header)) {
+				throw new ZipException("Not a BGZF block");
+			}
+			int blockSize = ((header[16] & 0xff) | ((header[17] & 0xff) << 8)) + 1;
+			final byte[] compressed = new byte[blockSize];
+			System.arraycopy(header, 0, compressed, 0, header.length);
+			if (readFully(compressed, header.length, blockSize - header.length) < blockSize - header.length) {
+				throw new EOFException("Unexpected end of BGZF block");
+			}
+			blocksInFlight.add(ParallelGZIPOutputStream.getPool().submit(() -> inflateBlock(compressed)));
+		}
+	}
+
+	private int readFully(byte[] b, int off, int len) throws IOException {
+		int read = 0;
+		while (read < len) {
+			int n = in.read(b, off + read, len - read);
+			if (n < 0) {
+				break;
+			}
+			read += n;
+		}
+		return read;
+	}
+
+	private static byte[] inflateBlock(byte[] compressed) throws IOException {
+		int footer = compressed.length - ParallelGZIPOutputStream.FOOTER_SIZE;
+		int expectedCrc = readInt(compressed, footer);
+		int length = readInt(compressed, footer + 4);
+
+		byte[] data = new byte[length];
+		Inflater inflater = INFLATERS.get();
+		inflater.reset();
+		inflater.setInput(compressed, ParallelGZIPOutputStream.HEADER_SIZE, footer - ParallelGZIPOutputStream.HEADER_SIZE);
+		try {
+			int inflated = 0;
+			while (inflated < length) {
+				int n = inflater.inflate(data, inflated, length - inflated);
+				if (n == 0 && (inflater.finished() || inflater.needsInput())) {
+					break;
+				}
+				inflated += n;
+			}
+			if (inflated != length) {
+				throw new ZipException("Corrupt BGZF block");
+			}
+		} catch (DataFormatException e) {
+			throw new ZipException(e.getMessage());
+		}
+
+		CRC32 crc = new CRC32();
+		crc.update(data, 0, length);
+		if ((int) crc.getValue() != expectedCrc) {
+			throw new ZipException("Corrupt BGZF block, CRC mismatch");
+		}
+		return data;
+	}
+
+	private static int readInt(byte[] b, int off) {
+		return (b[off] & 0xff) | ((b[off + 1] & 0xff) << 8) | ((b[off + 2] & 0xff) << 16) | ((b[off + 3] & 0xff) << 24);
+	}
+
+	/**
+	 * @return false at the end of the stream
+	 */
+	private boolean nextBlock() throws IOException {
+		while (blockPos == block.length) {
+			readAhead();
+			if (blocksInFlight.isEmpty()) {
+				return false;
+			}
+			try {
+				block = blocksInFlight.removeFirst().get();
+			} catch (InterruptedException e) {
+				throw new IOException(e);
+			} catch (ExecutionException e) {
+				if (e.getCause() instanceof IOException) {
+					throw (IOException) e.getCause();
+				}
+				throw new IOException(e.getCause());
+			}
+			blockPos = 0;
+		}
+		return true;
+	}
+
+	@Override
+	public int read() throws IOException {
+		if (!nextBlock()) {
+			return -1;
+		}
+		return block[blockPos++] & 0xff;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0) {
+			return 0;
+		}
+		if (!nextBlock()) {
+			return -1;
+		}
+		int toCopy = Math.min(len, block.length - blockPos);
+		System.arraycopy(block, blockPos, b, off, toCopy);
+		blockPos += toCopy;
+		return toCopy;
+	}
+
+	@Override
+	public int available() throws IOException {
+		return block.length - blockPos;
+	}
+
+	@Override
+	public void close() throws IOException {
+		for (Future<byte[]> future : blocksInFlight) {
+			future.cancel(false);
+		}
+		blocksInFlight.clear();
+		in.close();
+	}
+}
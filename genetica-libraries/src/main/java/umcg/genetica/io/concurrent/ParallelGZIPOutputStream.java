@@ -0,0 +1,219 @@
+package umcg.genetica.io.concurrent;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Gzip output stream that compresses blocks of at most 64KB on a thread pool.
+ * Every block is written as a separate gzip member, with the BGZF extra field
+ * that contains the compressed size of the member (same layout as samtools
+ * and htslib). The output can be read by any gzip reader, and in parallel by
+ * ParallelGZIPInputStream.
+ *
+ * Not thread safe, like GZIPOutputStream.
+ */
+public class ParallelGZIPOutputStream extends OutputStream {
+
+	/**
+	 * Maximum uncompressed bytes per block. Chosen so that the compressed
+	 * block, including header and footer, always fits in the 16 bit size
+	 * field of BGZF.
+	 */
+	static final int BLOCK_SIZE = 0xff00;
+	static final int MAX_COMPRESSED_BLOCK_SIZE = 0x10000;
+	static final int HEADER_SIZE = 18;
+	static final int FOOTER_SIZE = 8;
+	// empty block that marks the end of a BGZF file
+	static final byte[] EOF_BLOCK = {
+		0x1f, (byte) 0x8b, 0x08, 0x04, 0x00, 0x00, 0x00, 0x00, 0x00, (byte) 0xff, 0x06, 0x00, 0x42, 0x43, 0x02, 0x00,
+		0x1b, 0x00, 0x03, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00};
+	private static ExecutorService pool = null;
+	// one deflater per compression level (-1 to 9) per thread, changing the level of a deflater is not clean
+	private static final ThreadLocal<Deflater[]> DEFLATERS = new ThreadLocal<Deflater[]>() {
+		@Override
+		protected Deflater[] initialValue() {
+			return new Deflater[11];
+		}
+	};
+	private final OutputStream out;
+	private final int level;
+	private final int maxBlocksInFlight;
+	private final ArrayDeque<Future<byte[]>> blocksInFlight = new ArrayDeque<Future<byte[]>>();
+	private byte[] block = new byte[BLOCK_SIZE];
+	private int blockFilled = 0;
+	private boolean closed = false;
+
+	public ParallelGZIPOutputStream(OutputStream out) {
+		this(out, Deflater.DEFAULT_COMPRESSION);
+	}
+
+	public ParallelGZIPOutputStream(OutputStream out, int level) {
+		this.out = out;
+		this.level = level;
+		this.maxBlocksInFlight = Runtime.getRuntime().availableProcessors() * 4;
+	}
+
+	/**
+	 * Pool shared by all parallel gzip streams, with daemon threads so open
+	 * streams do not keep the JVM alive.
+	 *
+	 * @return
+	 */
+	static synchronized ExecutorService getPool() {
+		if (pool == null) {
+			pool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "parallel-gzip");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return pool;
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		if (blockFilled == BLOCK_SIZE) {
+			submitBlock();
+		}
+		block[blockFilled++] = (byte) b;
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		while (len > 0) {
+			if (blockFilled == BLOCK_SIZE) {
+				submitBlock();
+			}
+			int toCopy = Math.min(len, BLOCK_SIZE - blockFilled);
+			System.arraycopy(b, off, block, blockFilled, toCopy);
+			blockFilled += toCopy;
+			off += toCopy;
+			len -= toCopy;
+		}
+	}
+
+	private void submitBlock() throws IOException {
+		if (blockFilled == 0) {
+			return;
+		}
+		final byte[] data = block;
+		final int length = blockFilled;
+		blocksInFlight.add(getPool().submit(() -> compressBlock(data, length, level)));
+		block = new byte[BLOCK_SIZE];
+		blockFilled = 0;
+
+		while (blocksInFlight.size() >= maxBlocksInFlight) {
+			writeFirstBlock();
+		}
+	}
+
+	private void writeFirstBlock() throws IOException {
+		try {
+			out.write(blocksInFlight.removeFirst().get());
+		} catch (InterruptedException e) {
+			throw new IOException(e);
+		} catch (ExecutionException e) {
+			throw new IOException(e.getCause());
+		}
+	}
+
+	static byte[] compressBlock(byte[] data, int length, int level) {
+		Deflater[] deflaters = DEFLATERS.get();
+		Deflater deflater = deflaters[level + 1];
+		if (deflater == null) {
+			deflater = new Deflater(level, true);
+			deflaters[level + 1] = deflater;
+		} else {
+			deflater.reset();
+		}
+		deflater.setInput(data, 0, length);
+		deflater.finish();
+
+		byte[] compressed = new byte[MAX_COMPRESSED_BLOCK_SIZE];
+		int compressedSize = 0;
+		while (!deflater.finished()) {
+			int n = deflater.deflate(compressed, HEADER_SIZE + compressedSize, compressed.length - HEADER_SIZE - FOOTER_SIZE - compressedSize);
+			if (n == 0 && !deflater.finished()) {
+				throw new IllegalStateException("Compressed gzip block does not fit in " + MAX_COMPRESSED_BLOCK_SIZE + " bytes");
+			}
+			compressedSize += n;
+		}
+		int blockSize = HEADER_SIZE + compressedSize + FOOTER_SIZE;
+
+		compressed[0] = 0x1f;
+		compressed[1] = (byte) 0x8b;
+		compressed[2] = 8; // deflate
+		compressed[3] = 4; // extra field present
+		// 4 - 7 modification time, 8 extra flags: zero
+		compressed[9] = (byte) 0xff; // unknown OS
+		compressed[10] = 6; // length of extra field
+		compressed[12] = 'B';
+		compressed[13] = 'C';
+		compressed[14] = 2; // length of BC subfield
+		writeShort(compressed, 16, blockSize - 1);
+
+		CRC32 crc = new CRC32();
+		crc.update(data, 0, length);
+		writeInt(compressed, HEADER_SIZE + compressedSize, (int) crc.getValue());
+		writeInt(compressed, HEADER_SIZE + compressedSize + 4, length);
+
+		byte[] result = new byte[blockSize];
+		System.arraycopy(compressed, 0, result, 0, blockSize);
+		return result;
+	}
+
+	private static void writeShort(byte[] b, int off, int v) {
+		b[off] = (byte) v;
+		b[off + 1] = (byte) (v >>> 8);
+	}
+
+	private static void writeInt(byte[] b, int off, int v) {
+		b[off] = (byte) v;
+		b[off + 1] = (byte) (v >>> 8);
+		b[off + 2] = (byte) (v >>> 16);
+		b[off + 3] = (byte) (v >>> 24);
+	}
+
+	/**
+	 * Only compresses the current block when it is full, flushing smaller
+	 * blocks would make the compression worse. Blocks that are already
+	 * compressed are written to the underlying stream.
+	 *
+	 * @throws IOException
+	 */
+	@Override
+	public void flush() throws IOException {
+		while (!blocksInFlight.isEmpty() && blocksInFlight.peekFirst().isDone()) {
+			writeFirstBlock();
+		}
+		out.flush();
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		try {
+			submitBlock();
+			while (!blocksInFlight.isEmpty()) {
+				writeFirstBlock();
+			}
+			out.write(EOF_BLOCK);
+		} finally {
+			out.close();
+		}
+	}
+}
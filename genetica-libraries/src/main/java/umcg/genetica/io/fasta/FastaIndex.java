@@ -0,0 +1,241 @@
+package umcg.genetica.io.fasta;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Samtools compatible FASTA index (.fai). Every sequence is described by its
+ * name, length, file offset of the first base, bases per line and bytes per
+ * line including the line end, which gives the file offset of any base. This
+ * requires all lines of a sequence, except the last, to have the same length.
+ */
+public class FastaIndex {
+
+    private final List<Entry> entries;
+
+    private FastaIndex(List<Entry> entries) {
+        this.entries = Collections.unmodifiableList(entries);
+    }
+
+    /**
+     * Reads fastaFile.fai, or indexes the FASTA and tries to save the index
+     * next to it when there is no index yet.
+     */
+    public static FastaIndex load(File fastaFile) throws IOException {
+        File indexFile = new File(fastaFile.getPath() + ".fai");
+        if (indexFile.exists() && indexFile.lastModified() >= fastaFile.lastModified()) {
+            return read(indexFile);
+        }
+        FastaIndex index = build(fastaFile);
+        try {
+            index.write(indexFile);
+        } catch (IOException e) {
+            System.err.println("WARNING: could not write FASTA index " + indexFile.getAbsolutePath() + ": " + e.getMessage());
+        }
+        return index;
+    }
+
+    public static FastaIndex read(File indexFile) throws IOException {
+        ArrayList<Entry> entries = new ArrayList<Entry>();
+        BufferedReader reader = new BufferedReader(new FileReader(indexFile));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.length() == 0) {
+                    continue;
+                }
+                String[] elems = line.split("\t");
+                if (elems.length < 5) {
+                    throw new IOException("Error parsing FASTA index line: " + line);
+                }
+                entries.add(new Entry(elems[0], Long.parseLong(elems[1]), Long.parseLong(elems[2]), Integer.parseInt(elems[3]), Integer.parseInt(elems[4])));
+            }
+        } finally {
+            reader.close();
+        }
+        return new FastaIndex(entries);
+    }
+
+    /**
+     * Indexes a FASTA file in one pass over the bytes.
+     */
+    public static FastaIndex build(File fastaFile) throws IOException {
+        ArrayList<Entry> entries = new ArrayList<Entry>();
+        InputStream in = new FileInputStream(fastaFile);
+        try {
+            byte[] buffer = new byte[1 << 20];
+            StringBuilder header = null;
+            String name = null;
+            long offset = 0;
+            long length = 0;
+            int lineBases = 0;
+            int lineWidth = 0;
+            // a line shorter than the first line ends the sequence
+            boolean ended = false;
+
+            long filePos = 0;
+            boolean lineStart = true;
+            int bases = 0;
+            int width = 0;
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                for (int i = 0; i < read; i++, filePos++) {
+                    byte b = buffer[i];
+                    if (lineStart && b == '>') {
+                        if (name != null) {
+                            entries.add(new Entry(name, length, offset, lineBases, lineWidth));
+                        }
+                        header = new StringBuilder();
+                        name = null;
+                        lineStart = false;
+                        continue;
+                    }
+                    lineStart = false;
+                    if (header != null) {
+                        if (b == '\n') {
+                            name = parseName(header);
+                            header = null;
+                            offset = filePos + 1;
+                            length = 0;
+                            lineBases = 0;
+                            lineWidth = 0;
+                            ended = false;
+                            lineStart = true;
+                        } else if (b != '\r') {
+                            header.append((char) b);
+                        }
+                        continue;
+                    }
+                    width++;
+                    if (b == '\n') {
+                        if (bases > 0) {
+                            if (name == null) {
+                                throw new IOException("Sequence before the first FASTA header in: " + fastaFile.getAbsolutePath());
+                            }
+                            if (lineBases == 0) {
+                                lineBases = bases;
+                                lineWidth = width;
+                            } else if (ended || bases > lineBases || (bases == lineBases && width != lineWidth)) {
+                                throw new IOException("Different line lengths in sequence " + name + " of FASTA: " + fastaFile.getAbsolutePath());
+                            }
+                            if (bases < lineBases) {
+                                ended = true;
+                            }
+                            length += bases;
+                        } else {
+                            ended = true;
+                        }
+                        bases = 0;
+                        width = 0;
+                        lineStart = true;
+                    } else if (b != '\r') {
+                        bases++;
+                    }
+                }
+            }
+            if (header != null) {
+                name = parseName(header);
+                offset = filePos;
+                length = 0;
+            } else if (bases > 0) {
+                // last line without line end
+                if (lineBases == 0) {
+                    lineBases = bases;
+                    lineWidth = width + 1;
+                } else if (ended || bases > lineBases) {
+                    throw new IOException("Different line lengths in sequence " + name + " of FASTA: " + fastaFile.getAbsolutePath());
+                }
+                length += bases;
+            }
+            if (name != null) {
+                entries.add(new Entry(name, length, offset, lineBases, lineWidth));
+            }
+        } finally {
+            in.close();
+        }
+        return new FastaIndex(entries);
+    }
+
+    private static String parseName(StringBuilder header) {
+        int end = 0;
+        while (end < header.length() && !Character.isWhitespace(header.charAt(end))) {
+            end++;
+        }
+        return header.substring(0, end);
+    }
+
+    public void write(File indexFile) throws IOException {
+        BufferedWriter writer = new BufferedWriter(new FileWriter(indexFile));
+        try {
+            for (Entry entry : entries) {
+                writer.write(entry.getName() + "\t" + entry.getLength() + "\t" + entry.getOffset() + "\t" + entry.getLineBases() + "\t" + entry.getLineWidth() + "\n");
+            }
+        } finally {
+            writer.close();
+        }
+    }
+
+    public List<Entry> getEntries() {
+        return entries;
+    }
+
+    public static class Entry {
+
+        private final String name;
+        private final long length;
+        private final long offset;
+        private final int lineBases;
+        private final int lineWidth;
+
+        public Entry(String name, long length, long offset, int lineBases, int lineWidth) {
+            this.name = name;
+            this.length = length;
+            this.offset = offset;
+            this.lineBases = lineBases;
+            this.lineWidth = lineWidth;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getLength() {
+            return length;
+        }
+
+        /**
+         * @return file offset of the first base
+         */
+        public long getOffset() {
+            return offset;
+        }
+
+        public int getLineBases() {
+            return lineBases;
+        }
+
+        /**
+         * @return bytes per line including the line end
+         */
+        public int getLineWidth() {
+            return lineWidth;
+        }
+
+        /**
+         * @param index 0 based position in the sequence
+         * @return file offset of the base
+         */
+        public long getFileOffset(long index) {
+            return offset + (index / lineBases) * lineWidth + index % lineBases;
+        }
+    }
+}
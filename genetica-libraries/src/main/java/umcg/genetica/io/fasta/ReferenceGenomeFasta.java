@@ -1,9 +1,11 @@
 package umcg.genetica.io.fasta;
 
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileReader;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.LinkedHashMap;
@@ -17,10 +19,9 @@ import java.util.regex.Pattern;
  */
 public class ReferenceGenomeFasta {
 
-    private final LinkedHashMap<String, LargeByteArray> chromosomes;
+    private final LinkedHashMap<String, MappedSequence> chromosomes;
     private static final Pattern FASTA_HEADER_PATTERN = Pattern.compile("^\\>(\\S+).*:(\\d+):\\d+$");
     private static final Pattern FASTA_HEADER_PATTERN_ENSEMBL = Pattern.compile("^\\>(\\S+).*:(\\d+):\\d+ REF$");
-    private static final Pattern FASTA_HEADER_CHR_PATTERN = Pattern.compile("^\\>(\\S+)");
 
     /**
      * CHR 1-22, X, Y and MT
@@ -60,193 +61,109 @@ public class ReferenceGenomeFasta {
 
     public ReferenceGenomeFasta(File fastaFile, Set<String> chrIncludeFilter) throws IOException, Exception {
 
-        chromosomes = new LinkedHashMap<String, LargeByteArray>(32);
+        chromosomes = new LinkedHashMap<String, MappedSequence>(32);
+        addFasta(fastaFile, chrIncludeFilter, false);
 
-        BufferedReader fasteReader = new BufferedReader(new FileReader(fastaFile));
-
-        String line;
-        LargeByteArray currentSeq = null;
-        long pos = 0;
-        boolean skip = false;
-
-        while ((line = fasteReader.readLine()) != null) {
-
-            if (line.length() == 0) {
-                continue;
-            }
-
-            if (line.charAt(0) == '>') {
-
-//				System.out.println("Previous chr bases read: " + pos);
-                Matcher headerChrMatcher = FASTA_HEADER_CHR_PATTERN.matcher(line);
-
-                if (!headerChrMatcher.find()) {
-                    throw new Exception("Error parsing reference genome fasta header: " + line);
-                }
-
-                String chr = headerChrMatcher.group(1);
-
-                if (!chrIncludeFilter.contains(chr)) {
-                    skip = true;
-                    continue;
-                }
-
-                skip = false;
-
-                Matcher headerMatcher = FASTA_HEADER_PATTERN.matcher(line);
-
-                if (!headerMatcher.matches()) {
-                    throw new Exception("Error parsing reference genome fasta header: " + line);
-                }
-//				System.out.println("----");
-//				System.out.println(line);
-
-                long lenght = Long.parseLong(headerMatcher.group(2));
-
-                if (chr.equals("Y") && lenght == 59034049) {
-                    lenght = 59373566;
-                }
+    }
 
-//				System.out.println(chr + " " + lenght);
-                pos = 0;
-                currentSeq = new LargeByteArray(lenght);
-                chromosomes.put(chr, currentSeq);
+    public ReferenceGenomeFasta(File fastaFile) throws IOException, Exception {
 
-//				System.out.println(currentSeq.getSize());
-            } else if (!skip) {
+        chromosomes = new LinkedHashMap<String, MappedSequence>(32);
+        addFasta(fastaFile, null, false);
 
-                for (int n = 0; n < line.length(); ++n) {
-                    currentSeq.setQuick(pos++, (byte) line.charAt(n));
-                }
+    }
 
-            }
+    public ReferenceGenomeFasta(File[] fastaFiles) throws IOException, Exception {
 
+        chromosomes = new LinkedHashMap<String, MappedSequence>(32);
+        for (File f : fastaFiles) {
+            System.out.println(f.getAbsolutePath());
+            addFasta(f, null, true);
         }
-
     }
 
-    public ReferenceGenomeFasta(File fastaFile) throws IOException, Exception {
-
-        chromosomes = new LinkedHashMap<String, LargeByteArray>(32);
-
-        BufferedReader fasteReader = new BufferedReader(new FileReader(fastaFile));
-
-        String line;
-        LargeByteArray currentSeq = null;
-        long pos = 0;
-
-        while ((line = fasteReader.readLine()) != null) {
+    /**
+     * Maps the sequences of a FASTA file using its .fai index, which is
+     * created when missing. Nothing is read into memory, the operating system
+     * pages in the parts of the file that are used.
+     *
+     * @param chrIncludeFilter chromosomes to include, or null for all
+     * @param allowEnsembl also accept Ensembl headers ending with REF
+     */
+    private void addFasta(File fastaFile, Set<String> chrIncludeFilter, boolean allowEnsembl) throws IOException, Exception {
 
-            if (line.length() == 0) {
-                continue;
-            }
+        FastaIndex index = FastaIndex.load(fastaFile);
 
-            if (line.charAt(0) == '>') {
+        RandomAccessFile fasta = new RandomAccessFile(fastaFile, "r");
+        try {
+            FileChannel channel = fasta.getChannel();
+            for (FastaIndex.Entry entry : index.getEntries()) {
 
-//				System.out.println("Previous chr bases read: " + pos);
-//                                System.out.println(line);
-                Matcher headerChrMatcher = FASTA_HEADER_CHR_PATTERN.matcher(line);
+                String chr = entry.getName();
 
-                if (!headerChrMatcher.find()) {
-                    throw new Exception("Error parsing reference genome fasta header: " + line);
+                if (chrIncludeFilter != null && !chrIncludeFilter.contains(chr)) {
+                    continue;
                 }
 
-                String chr = headerChrMatcher.group(1);
+                String header = readHeader(fasta, entry.getOffset());
 
-                Matcher headerMatcher = FASTA_HEADER_PATTERN.matcher(line);
+                Matcher headerMatcher = FASTA_HEADER_PATTERN.matcher(header);
 
                 if (!headerMatcher.matches()) {
-                    throw new Exception("Error parsing reference genome fasta header: " + line);
+                    headerMatcher = FASTA_HEADER_PATTERN_ENSEMBL.matcher(header);
+                    if (!allowEnsembl || !headerMatcher.matches()) {
+                        throw new Exception("Error parsing reference genome fasta header: " + header);
+                    }
                 }
-//				System.out.println("----");
-//				System.out.println(line);
 
+                //The length in the header is used as size of the chromosome
                 long lenght = Long.parseLong(headerMatcher.group(2));
 
                 if (chr.equals("Y") && lenght == 59034049) {
                     lenght = 59373566;
                 }
 
-//				System.out.println(chr + " " + lenght);
-                pos = 0;
-                currentSeq = new LargeByteArray(lenght);
-                chromosomes.put(chr, currentSeq);
-
-//				System.out.println(currentSeq.getSize());
-            } else {
-                for (int n = 0; n < line.length(); ++n) {
-                    currentSeq.setQuick(pos++, (byte) line.charAt(n));
+                if (allowEnsembl && chr.equals("Y") && lenght == 56887902) {
+                    lenght = 57227415;
                 }
+
+                chromosomes.put(chr, new MappedSequence(channel, entry, lenght));
             }
+        } finally {
+            //The mappings stay valid after closing the file
+            fasta.close();
         }
 
     }
 
-    public ReferenceGenomeFasta(File[] fastaFiles) throws IOException, Exception {
-
-        chromosomes = new LinkedHashMap<String, LargeByteArray>(32);
-        for (File f : fastaFiles) {
-            System.out.println(f.getAbsolutePath());
-            BufferedReader fasteReader = new BufferedReader(new FileReader(f));
-
-            String line;
-            LargeByteArray currentSeq = null;
-            long pos = 0;
-            while ((line = fasteReader.readLine()) != null) {
-
-                if (line.length() == 0) {
-                    continue;
-                }
-
-                if (line.charAt(0) == '>') {
-
-                    //				System.out.println("Previous chr bases read: " + pos);
-                    //                                System.out.println(line);
-                    Matcher headerChrMatcher = FASTA_HEADER_CHR_PATTERN.matcher(line);
-
-                    if (!headerChrMatcher.find()) {
-                        throw new Exception("Error parsing reference genome fasta header: " + line);
-                    }
-
-                    String chr = headerChrMatcher.group(1);
-
-                    Matcher headerMatcher = FASTA_HEADER_PATTERN.matcher(line);
-
-                    if (!headerMatcher.matches()) {
-                        headerMatcher = FASTA_HEADER_PATTERN_ENSEMBL.matcher(line);
-                        if (!headerMatcher.matches()) {
-                            throw new Exception("Error parsing reference genome fasta header: " + line);
-                        }
-                    }
-                    //				System.out.println("----");
-                    //				System.out.println(line);
-//                    System.out.println(headerMatcher.group(2));
-                    long lenght = Long.parseLong(headerMatcher.group(2));
-
-                    if (chr.equals("Y") && lenght == 59034049) {
-                        lenght = 59373566;
-                    }
-                    
-                    if (chr.equals("Y") && lenght == 56887902) {
-                        lenght = 57227415;
-                    }
-                    //				System.out.println(chr + " " + lenght);
-                    pos = 0;
-                    currentSeq = new LargeByteArray(lenght);
-                    chromosomes.put(chr, currentSeq);
-
-                    //				System.out.println(currentSeq.getSize());
-                } else {
-                    for (int n = 0; n < line.length(); ++n) {
-                        currentSeq.setQuick(pos++, (byte) line.charAt(n));
+    /**
+     * @return the header line before the first base of a sequence
+     */
+    private static String readHeader(RandomAccessFile fasta, long sequenceOffset) throws IOException {
+        long end = sequenceOffset - 1; // line end of the header
+        long start = Math.max(0, end - 1024);
+        while (true) {
+            byte[] bytes = new byte[(int) (end - start)];
+            fasta.seek(start);
+            fasta.readFully(bytes);
+            for (int i = bytes.length - 1; i >= 0; --i) {
+                if (bytes[i] == '>' && (i == 0 ? start == 0 : bytes[i - 1] == '\n')) {
+                    int length = bytes.length - i;
+                    if (length > 0 && bytes[bytes.length - 1] == '\r') {
+                        --length;
                     }
+                    return new String(bytes, i, length, StandardCharsets.US_ASCII);
                 }
             }
+            if (start == 0) {
+                throw new IOException("No FASTA header found before offset " + sequenceOffset);
+            }
+            start = Math.max(0, start - 1024);
         }
     }
 
     public char getNucleotide(String chr, long pos) throws Exception {
-        LargeByteArray chrNucleotides = chromosomes.get(chr);
+        MappedSequence chrNucleotides = chromosomes.get(chr);
         if (chrNucleotides == null) {
             throw new Exception("Chr " + chr + " not found in reference fasta");
         }
@@ -255,11 +172,11 @@ public class ReferenceGenomeFasta {
             throw new Exception("Chr " + chr + " is shorter than < " + pos);
         }
 
-        return (char) chrNucleotides.getQuick(pos - 1);
+        return (char) chrNucleotides.get(pos - 1);
     }
 
     public StringBuilder getNucleotides(String chr, long posStart, long posStop) throws Exception {
-        LargeByteArray chrNucleotides = chromosomes.get(chr);
+        MappedSequence chrNucleotides = chromosomes.get(chr);
 
         if (chrNucleotides == null) {
             throw new Exception("Chr " + chr + " not found in reference fasta");
@@ -269,10 +186,10 @@ public class ReferenceGenomeFasta {
             throw new Exception("Chr " + chr + " is shorter than < " + posStart + " or " + posStop);
         }
 
-        StringBuilder nucleotides = new StringBuilder();
+        StringBuilder nucleotides = new StringBuilder((int) Math.max(0, posStop - posStart + 1));
 
         for (long i = posStart - 1; i < posStop; i++) {
-            nucleotides.append((char) chrNucleotides.getQuick(i));
+            nucleotides.append((char) chrNucleotides.get(i));
         }
 
         return nucleotides;
@@ -285,4 +202,48 @@ public class ReferenceGenomeFasta {
     public boolean loadedChr(String chr) {
         return chromosomes.containsKey(chr);
     }
+
+    /**
+     * Bases of one sequence, memory mapped in segments because a single
+     * mapping is limited to 2 GB.
+     */
+    private static class MappedSequence {
+
+        private static final int SEGMENT_SHIFT = 30;
+        private static final long SEGMENT_MASK = (1L << SEGMENT_SHIFT) - 1;
+
+        private final FastaIndex.Entry entry;
+        private final long size;
+        private final MappedByteBuffer[] segments;
+
+        MappedSequence(FileChannel channel, FastaIndex.Entry entry, long size) throws IOException {
+            this.entry = entry;
+            this.size = size;
+            long bytes = entry.getLength() == 0 ? 0 : entry.getFileOffset(entry.getLength() - 1) + 1 - entry.getOffset();
+            segments = new MappedByteBuffer[(int) ((bytes + SEGMENT_MASK) >>> SEGMENT_SHIFT)];
+            for (int s = 0; s < segments.length; ++s) {
+                long start = (long) s << SEGMENT_SHIFT;
+                segments[s] = channel.map(FileChannel.MapMode.READ_ONLY, entry.getOffset() + start, Math.min(bytes - start, SEGMENT_MASK + 1));
+            }
+        }
+
+        /**
+         * Size from the FASTA header, bases beyond the sequence in the file
+         * are 0
+         */
+        long getSize() {
+            return size;
+        }
+
+        byte get(long index) {
+            if (index < 0 || index >= size) {
+                throw new ArrayIndexOutOfBoundsException("Index " + index + " outside sequence of size " + size);
+            }
+            if (index >= entry.getLength()) {
+                return 0;
+            }
+            long relative = entry.getFileOffset(index) - entry.getOffset();
+            return segments[(int) (relative >>> SEGMENT_SHIFT)].get((int) (relative & SEGMENT_MASK));
+        }
+    }
 }
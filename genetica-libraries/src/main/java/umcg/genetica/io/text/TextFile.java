@@ -8,14 +8,16 @@ import net.jpountz.lz4.LZ4BlockInputStream;
 import net.jpountz.lz4.LZ4BlockOutputStream;
 import umcg.genetica.containers.Pair;
 import umcg.genetica.containers.Triple;
+import umcg.genetica.io.concurrent.ParallelGZIPInputStream;
+import umcg.genetica.io.concurrent.ParallelGZIPOutputStream;
 import umcg.genetica.text.Strings;
 
 import java.io.*;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
 import java.util.regex.Pattern;
 import java.util.zip.Deflater;
-import java.util.zip.GZIPInputStream;
-import java.util.zip.GZIPOutputStream;
 
 /**
  * @author harmjan
@@ -83,30 +85,55 @@ public class TextFile implements Iterable<String> {
 					out = new BufferedWriter(new OutputStreamWriter(os,"US-ASCII"), buffersize);
 					
 				} else if (gzipped) {
-//					ParallelGZIPOutputStream gzipOutputStream = new ParallelGZIPOutputStream(new FileOutputStream(file), buffersize));
-					GZIPOutputStream gzipOutputStream = new GZIPOutputStream(new FileOutputStream(file), buffersize) {{
-						def.setLevel(Deflater.BEST_SPEED);
-					}};
+					ParallelGZIPOutputStream gzipOutputStream = new ParallelGZIPOutputStream(new FileOutputStream(file), Deflater.BEST_SPEED);
 					out = new BufferedWriter(new OutputStreamWriter(gzipOutputStream, "US-ASCII"), buffersize);
 					
 				} else {
 					out = new BufferedWriter(new FileWriter(file), buffersize);
 				}
 			} else {
-				if (uselz4) {
-					LZ4BlockInputStream is = new LZ4BlockInputStream(new FileInputStream(file));
-					in = new BufferedReader(new InputStreamReader(is, "US-ASCII"));
-				} else if (gzipped) {
-					GZIPInputStream gzipInputStream = new GZIPInputStream(new FileInputStream(file), buffersize);
-					in = new BufferedReader(new InputStreamReader(gzipInputStream, "US-ASCII"));
+				if (uselz4 || gzipped) {
+					in = new BufferedReader(new InputStreamReader(openInputStream(), "US-ASCII"));
 				} else {
 //                System.out.println("Opening file: "+file);
-					in = new BufferedReader(new InputStreamReader(new FileInputStream(file), ENCODING), buffersize);
+					in = new BufferedReader(new InputStreamReader(openInputStream(), ENCODING), buffersize);
 				}
 			}
 		}
 	}
 	
+	/**
+	 * Opens a new, decompressed byte stream on the file of this TextFile,
+	 * independent of the reader used by readLine(). Used by TextFileTokenizer.
+	 *
+	 * @return
+	 * @throws IOException
+	 */
+	public InputStream openInputStream() throws IOException {
+		if (uselz4) {
+			return new LZ4BlockInputStream(new FileInputStream(file));
+		} else if (gzipped) {
+			return ParallelGZIPInputStream.open(new FileInputStream(file), buffersize);
+		} else {
+			return new FileInputStream(file);
+		}
+	}
+	
+	/**
+	 * @return the charset readLine() decodes with
+	 */
+	public Charset getCharset() {
+		return uselz4 || gzipped ? StandardCharsets.US_ASCII : Charset.forName(ENCODING);
+	}
+	
+	public boolean isCompressed() {
+		return uselz4 || gzipped;
+	}
+	
+	public File getFile() {
+		return file;
+	}
+	
 	public String readLine() throws IOException {
 		return in.readLine();
 	}
@@ -0,0 +1,530 @@
+package umcg.genetica.io.text;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Byte level alternative for TextFile.readLineElems(). Lines are scanned in a
+ * reused byte buffer, fields are only positions in that buffer. No String or
+ * String[] is created per line unless asked for with getString().
+ *
+ * The fields of the current line are only valid until the next call to
+ * nextLine().
+ *
+ * In contrast to Pattern.split() trailing empty fields are not removed, so
+ * getNrFields() is always the number of delimiters + 1.
+ *
+ * Uncompressed files can be read in parallel: getByteRanges() splits the
+ * file in ranges that each start at a line start, every range can be read by
+ * its own tokenizer.
+ */
+public class TextFileTokenizer {
+
+	public static final byte TAB = '\t';
+	public static final byte COMMA = ',';
+	public static final byte SPACE = ' ';
+	private static final double[] POW10 = {
+		1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10,
+		1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22};
+	private static final float[] POW10F = {1e0f, 1e1f, 1e2f, 1e3f, 1e4f, 1e5f, 1e6f, 1e7f, 1e8f, 1e9f, 1e10f};
+	private static final long MAX_EXACT_DOUBLE = 1L << 53;
+	private static final long MAX_EXACT_FLOAT = 1L << 24;
+	private final InputStream in;
+	private final FileChannel channel;
+	private final byte delimiter;
+	private final Charset charset;
+	private final long rangeEnd;
+	private byte[] buffer;
+	private int bufferFilled = 0;
+	private int bufferPos = 0;
+	private long bufferFileOffset;
+	private boolean eof = false;
+	private int lineStart;
+	private int lineEnd;
+	private int nrFields = 0;
+	private int[] fieldStarts = new int[16];
+	private int[] fieldEnds = new int[16];
+
+	public TextFileTokenizer(String loc, byte delimiter) throws IOException {
+		this(new TextFile(loc, TextFile.R), delimiter);
+	}
+
+	/**
+	 * Reads the file of a TextFile, the TextFile itself is closed.
+	 * Compression and the charset of getString() are handled like TextFile
+	 * does.
+	 *
+	 * @param file
+	 * @param delimiter
+	 * @throws IOException
+	 */
+	public TextFileTokenizer(TextFile file, byte delimiter) throws IOException {
+		file.close();
+		this.in = file.openInputStream();
+		this.channel = null;
+		this.delimiter = delimiter;
+		this.charset = file.getCharset();
+		this.rangeEnd = Long.MAX_VALUE;
+		this.buffer = new byte[TextFile.DEFAULT_BUFFER_SIZE];
+		this.bufferFileOffset = 0;
+	}
+
+	/**
+	 * Reads the lines that start in [start, end) of an uncompressed file. If
+	 * start is not the start of a line the tokenizer starts at the next line.
+	 *
+	 * @param loc
+	 * @param delimiter
+	 * @param start
+	 * @param end
+	 * @throws IOException
+	 */
+	public TextFileTokenizer(String loc, byte delimiter, long start, long end) throws IOException {
+		TextFile file = new TextFile(loc, TextFile.R);
+		file.close();
+		if (file.isCompressed()) {
+			throw new IOException("Byte ranges are only supported for uncompressed files: " + loc);
+		}
+		this.in = null;
+		this.channel = FileChannel.open(new File(loc).toPath(), StandardOpenOption.READ);
+		this.delimiter = delimiter;
+		this.charset = file.getCharset();
+		this.rangeEnd = end;
+		this.buffer = new byte[TextFile.DEFAULT_BUFFER_SIZE];
+		if (start > 0) {
+			// the line containing start - 1 belongs to the previous range
+			channel.position(start - 1);
+			this.bufferFileOffset = start - 1;
+			readLine();
+		} else {
+			this.bufferFileOffset = 0;
+		}
+	}
+
+	/**
+	 * Splits an uncompressed file in ranges of about the same size.
+	 *
+	 * @param loc
+	 * @param nrRanges
+	 * @return nrRanges + 1 boundaries, range i is [ranges[i], ranges[i + 1])
+	 */
+	public static long[] getByteRanges(String loc, int nrRanges) {
+		long length = new File(loc).length();
+		long[] ranges = new long[nrRanges + 1];
+		for (int i = 0; i <= nrRanges; i++) {
+			ranges[i] = length * i / nrRanges;
+		}
+		return ranges;
+	}
+
+	/**
+	 * Processes an uncompressed file in parallel. The file is split in one
+	 * range per thread. The first line of the file (often a header) is part
+	 * of range 0.
+	 *
+	 * @param loc
+	 * @param delimiter
+	 * @param nrThreads
+	 * @param processor called once per range, on its own thread
+	 * @throws IOException
+	 */
+	public static void processInParallel(final String loc, final byte delimiter, int nrThreads, final RangeProcessor processor) throws IOException {
+		final long[] ranges = getByteRanges(loc, nrThreads);
+		ExecutorService pool = Executors.newFixedThreadPool(nrThreads);
+		try {
+			ArrayList<Future<Void>> futures = new ArrayList<Future<Void>>();
+			for (int r = 0; r < nrThreads; r++) {
+				final int range = r;
+				futures.add(pool.submit(() -> {
+					TextFileTokenizer tokenizer = new TextFileTokenizer(loc, delimiter, ranges[range], ranges[range + 1]);
+					try {
+						processor.process(range, tokenizer);
+					} finally {
+						tokenizer.close();
+					}
+					return null;
+				}));
+			}
+			for (Future<Void> future : futures) {
+				future.get();
+			}
+		} catch (InterruptedException e) {
+			throw new IOException(e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IOException(e.getCause());
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	public interface RangeProcessor {
+
+		void process(int range, TextFileTokenizer tokenizer) throws IOException;
+	}
+
+	/**
+	 * Moves to the next line and splits it on the delimiter
+	 *
+	 * @return false if there are no more lines
+	 * @throws IOException
+	 */
+	public boolean nextLine() throws IOException {
+		if (bufferFileOffset + bufferPos >= rangeEnd) {
+			return false;
+		}
+		if (!readLine()) {
+			return false;
+		}
+
+		nrFields = 0;
+		int fieldStart = lineStart;
+		for (int i = lineStart; i < lineEnd; i++) {
+			if (buffer[i] == delimiter) {
+				addField(fieldStart, i);
+				fieldStart = i + 1;
+			}
+		}
+		addField(fieldStart, lineEnd);
+		return true;
+	}
+
+	private void addField(int start, int end) {
+		if (nrFields == fieldStarts.length) {
+			int[] tmp = new int[nrFields * 2];
+			System.arraycopy(fieldStarts, 0, tmp, 0, nrFields);
+			fieldStarts = tmp;
+			tmp = new int[nrFields * 2];
+			System.arraycopy(fieldEnds, 0, tmp, 0, nrFields);
+			fieldEnds = tmp;
+		}
+		fieldStarts[nrFields] = start;
+		fieldEnds[nrFields] = end;
+		nrFields++;
+	}
+
+	private boolean readLine() throws IOException {
+		int scan = bufferPos;
+		while (true) {
+			while (scan < bufferFilled && buffer[scan] != '\n') {
+				scan++;
+			}
+			if (scan < bufferFilled) {
+				break;
+			}
+			if (eof) {
+				if (bufferPos == bufferFilled) {
+					return false;
+				}
+				// last line without line end
+				break;
+			}
+
+			// move the incomplete line to the start of the buffer and read more
+			int remaining = bufferFilled - bufferPos;
+			if (remaining == buffer.length) {
+				byte[] tmp = new byte[buffer.length * 2];
+				System.arraycopy(buffer, bufferPos, tmp, 0, remaining);
+				buffer = tmp;
+			} else if (bufferPos > 0) {
+				System.arraycopy(buffer, bufferPos, buffer, 0, remaining);
+			}
+			bufferFileOffset += bufferPos;
+			scan -= bufferPos;
+			bufferPos = 0;
+			bufferFilled = remaining;
+
+			int read = fill(bufferFilled, buffer.length - bufferFilled);
+			if (read < 0) {
+				eof = true;
+			} else {
+				bufferFilled += read;
+			}
+		}
+
+		lineStart = bufferPos;
+		lineEnd = scan;
+		bufferPos = scan < bufferFilled ? scan + 1 : bufferFilled;
+		if (lineEnd > lineStart && buffer[lineEnd - 1] == '\r') {
+			lineEnd--;
+		}
+		return true;
+	}
+
+	private int fill(int off, int len) throws IOException {
+		if (channel != null) {
+			return channel.read(ByteBuffer.wrap(buffer, off, len));
+		} else {
+			return in.read(buffer, off, len);
+		}
+	}
+
+	public int getNrFields() {
+		return nrFields;
+	}
+
+	/**
+	 * The buffer the fields point into, only valid until the next call to
+	 * nextLine()
+	 *
+	 * @return
+	 */
+	public byte[] getBuffer() {
+		return buffer;
+	}
+
+	public int getFieldStart(int field) {
+		checkField(field);
+		return fieldStarts[field];
+	}
+
+	public int getFieldLength(int field) {
+		checkField(field);
+		return fieldEnds[field] - fieldStarts[field];
+	}
+
+	public String getString(int field) {
+		checkField(field);
+		return new String(buffer, fieldStarts[field], fieldEnds[field] - fieldStarts[field], charset);
+	}
+
+	public String getLine() {
+		return new String(buffer, lineStart, lineEnd - lineStart, charset);
+	}
+
+	/**
+	 * Same as TextFile.readLineElems(), except that trailing empty fields are
+	 * kept
+	 *
+	 * @return
+	 */
+	public String[] getStrings() {
+		String[] elems = new String[nrFields];
+		for (int i = 0; i < nrFields; i++) {
+			elems[i] = getString(i);
+		}
+		return elems;
+	}
+
+	/**
+	 * Compares a field to a String without creating a String for the field
+	 *
+	 * @param field
+	 * @param value
+	 * @return
+	 */
+	public boolean fieldEquals(int field, String value) {
+		checkField(field);
+		int start = fieldStarts[field];
+		int length = fieldEnds[field] - start;
+		if (length != value.length()) {
+			return false;
+		}
+		for (int i = 0; i < length; i++) {
+			if (buffer[start + i] < 0 && !StandardCharsets.ISO_8859_1.equals(charset)) {
+				// bytes above 127 only map to a single char in ISO-8859-1
+				return getString(field).equals(value);
+			}
+			if ((buffer[start + i] & 0xff) != value.charAt(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Parses a field as double. Plain decimal notation with up to 18
+	 * significant digits is parsed directly from the bytes, everything else is
+	 * handed to Double.parseDouble() so the result is always the same as
+	 * Double.parseDouble(getString(field)).
+	 *
+	 * @param field
+	 * @return
+	 * @throws NumberFormatException
+	 */
+	public double parseDouble(int field) {
+		checkField(field);
+		int start = fieldStarts[field];
+		int end = fieldEnds[field];
+
+		int i = start;
+		boolean negative = false;
+		if (i < end && (buffer[i] == '-' || buffer[i] == '+')) {
+			negative = buffer[i] == '-';
+			i++;
+		}
+
+		long mantissa = 0;
+		int digits = 0;
+		int exponent = 0;
+		boolean anyDigit = false;
+		while (i < end && buffer[i] >= '0' && buffer[i] <= '9') {
+			if (mantissa > 0 || buffer[i] != '0') {
+				digits++;
+			}
+			mantissa = mantissa * 10 + (buffer[i] - '0');
+			anyDigit = true;
+			i++;
+		}
+		if (i < end && buffer[i] == '.') {
+			i++;
+			while (i < end && buffer[i] >= '0' && buffer[i] <= '9') {
+				if (mantissa > 0 || buffer[i] != '0') {
+					digits++;
+				}
+				mantissa = mantissa * 10 + (buffer[i] - '0');
+				exponent--;
+				anyDigit = true;
+				i++;
+			}
+		}
+		if (anyDigit && i < end && (buffer[i] == 'e' || buffer[i] == 'E')) {
+			i++;
+			boolean negativeExponent = false;
+			if (i < end && (buffer[i] == '-' || buffer[i] == '+')) {
+				negativeExponent = buffer[i] == '-';
+				i++;
+			}
+			int exp = 0;
+			int expDigits = 0;
+			while (i < end && buffer[i] >= '0' && buffer[i] <= '9' && expDigits < 5) {
+				exp = exp * 10 + (buffer[i] - '0');
+				expDigits++;
+				i++;
+			}
+			if (expDigits == 0) {
+				return parseDoubleFallback(start, end);
+			}
+			exponent += negativeExponent ? -exp : exp;
+		}
+
+		if (!anyDigit || i != end || digits > 18) {
+			return parseDoubleFallback(start, end);
+		}
+		if (mantissa == 0) {
+			return negative ? -0d : 0d;
+		}
+		if (mantissa >= MAX_EXACT_DOUBLE || exponent < -22 || exponent > 22) {
+			return parseDoubleFallback(start, end);
+		}
+
+		// both the mantissa and the power of ten are exact doubles, so a single correctly rounded operation
+		double value = exponent >= 0 ? mantissa * POW10[exponent] : mantissa / POW10[-exponent];
+		return negative ? -value : value;
+	}
+
+	private double parseDoubleFallback(int start, int end) {
+		return Double.parseDouble(new String(buffer, start, end - start, StandardCharsets.ISO_8859_1));
+	}
+
+	/**
+	 * Parses a field as float, the result is always the same as
+	 * Float.parseFloat(getString(field)).
+	 *
+	 * @param field
+	 * @return
+	 * @throws NumberFormatException
+	 */
+	public float parseFloat(int field) {
+		checkField(field);
+		int start = fieldStarts[field];
+		int end = fieldEnds[field];
+
+		int i = start;
+		boolean negative = false;
+		if (i < end && (buffer[i] == '-' || buffer[i] == '+')) {
+			negative = buffer[i] == '-';
+			i++;
+		}
+
+		long mantissa = 0;
+		int exponent = 0;
+		boolean anyDigit = false;
+		while (i < end && buffer[i] >= '0' && buffer[i] <= '9' && mantissa < MAX_EXACT_FLOAT) {
+			mantissa = mantissa * 10 + (buffer[i] - '0');
+			anyDigit = true;
+			i++;
+		}
+		if (i < end && buffer[i] == '.') {
+			i++;
+			while (i < end && buffer[i] >= '0' && buffer[i] <= '9' && mantissa < MAX_EXACT_FLOAT) {
+				mantissa = mantissa * 10 + (buffer[i] - '0');
+				exponent--;
+				anyDigit = true;
+				i++;
+			}
+		}
+
+		if (!anyDigit || i != end || mantissa >= MAX_EXACT_FLOAT || exponent < -10) {
+			return Float.parseFloat(new String(buffer, start, end - start, StandardCharsets.ISO_8859_1));
+		}
+		if (mantissa == 0) {
+			return negative ? -0f : 0f;
+		}
+
+		float value = mantissa / POW10F[-exponent];
+		return negative ? -value : value;
+	}
+
+	/**
+	 * Parses a field as int, the result is always the same as
+	 * Integer.parseInt(getString(field)).
+	 *
+	 * @param field
+	 * @return
+	 * @throws NumberFormatException
+	 */
+	public int parseInt(int field) {
+		checkField(field);
+		int start = fieldStarts[field];
+		int end = fieldEnds[field];
+
+		int i = start;
+		boolean negative = false;
+		if (i < end && (buffer[i] == '-' || buffer[i] == '+')) {
+			negative = buffer[i] == '-';
+			i++;
+		}
+		if (i == end || end - i > 9) {
+			// empty or possibly overflowing, let Integer.parseInt deal with it
+			return Integer.parseInt(new String(buffer, start, end - start, StandardCharsets.ISO_8859_1));
+		}
+
+		int value = 0;
+		for (; i < end; i++) {
+			int digit = buffer[i] - '0';
+			if (digit < 0 || digit > 9) {
+				throw new NumberFormatException("For input string: \"" + new String(buffer, start, end - start, StandardCharsets.ISO_8859_1) + "\"");
+			}
+			value = value * 10 + digit;
+		}
+		return negative ? -value : value;
+	}
+
+	private void checkField(int field) {
+		if (field >= nrFields) {
+			throw new ArrayIndexOutOfBoundsException(field);
+		}
+	}
+
+	public void close() throws IOException {
+		if (channel != null) {
+			channel.close();
+		} else {
+			in.close();
+		}
+	}
+}
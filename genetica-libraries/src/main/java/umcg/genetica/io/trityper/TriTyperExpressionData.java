@@ -48,6 +48,7 @@ public class TriTyperExpressionData {
 	private double[] probeVariance;
 	private String m_platform;
 	private Pair<List<String>, List<List<String>>> pathwayDefinitions;
+	private boolean useBinaryCache = false;
 	
 	public TriTyperExpressionData() {
 	}
@@ -143,13 +144,31 @@ public class TriTyperExpressionData {
 		this.probesConfine = probes;
 	}
 	
+	/**
+	 * Use a binary copy of the expression file, see TriTyperExpressionDataCache.
+	 * The cache is written next to the expression file the first time the data
+	 * is loaded.
+	 */
+	public void setUseBinaryCache(boolean useBinaryCache) {
+		this.useBinaryCache = useBinaryCache;
+	}
+	
 	public final boolean load(String loc, String probeAnnotationLoc, String platform, boolean cistrans) throws IOException {
 		if (!Gpio.exists(loc)) {
 			throw new IOException("! Error loading expression data: " + loc + " does not exist");
 		}
 		System.out.println("Loading expression data from: " + loc);
 		
-		TextFile in = new TextFile(loc, TextFile.R);
+		TriTyperExpressionDataCache cache = null;
+		if (useBinaryCache) {
+			try {
+				cache = TriTyperExpressionDataCache.open(loc);
+			} catch (IOException e) {
+				System.err.println("WARNING: could not read expression data cache, parsing text file instead: " + e.getMessage());
+			}
+		}
+		
+		TextFile in = null;
 		
 		// detect whether TriTyper dataset
 		// load probeAnnotation otherwise
@@ -157,8 +176,15 @@ public class TriTyperExpressionData {
 		boolean trityperformat = false;
 		int offset = 1;
 		String[] elems = null;
-		numProbes = in.countLines();
-		elems = in.readLineElemsReturnReference(TextFile.tab);
+		if (cache != null) {
+			System.out.println("Using binary expression data cache");
+			numProbes = cache.getNrRows();
+			elems = cache.getHeader();
+		} else {
+			in = new TextFile(loc, TextFile.R);
+			numProbes = in.countLines();
+			elems = in.readLineElemsReturnReference(TextFile.tab);
+		}
 		
 		// header line...
 		// MultipleHits    SequenceIdentity        Chr     ChrStart        ChrEnd
@@ -170,6 +196,15 @@ public class TriTyperExpressionData {
 			throw new IOException("ERROR: Probe annotation is not specified. Please specify probe annotation or provide expression data in TriTyper format!");
 		}
 		
+		TriTyperExpressionDataCache.Writer cacheWriter = null;
+		if (useBinaryCache && cache == null) {
+			try {
+				cacheWriter = new TriTyperExpressionDataCache.Writer(loc, elems, offset);
+			} catch (IOException e) {
+				System.err.println("WARNING: could not create expression data cache: " + e.getMessage());
+			}
+		}
+		
 		// load the probe annotation, if any present
 		HashMap<String, Byte> hashProbeChr = null;
 		HashMap<String, Integer> hashProbeChrStart = null;
@@ -256,6 +291,17 @@ public class TriTyperExpressionData {
 		
 		individualNameToId = indToId;
 		
+		// columns to read from the cache, relative to the first sample column
+		int[] includedCacheColumns = new int[numIndsIncluded];
+		indNo = 0;
+		for (int pos = offset; pos < elems.length; pos++) {
+			if (includeCol[pos]) {
+				includedCacheColumns[indNo++] = pos - offset;
+			}
+		}
+		int nrColumns = elems.length;
+		int cacheRow = 0;
+		
 		System.out.println("Found gene expression data for " + numIndsIncluded + " individuals");
 		
 		ArrayList<Integer> tmpChrStart = new ArrayList<Integer>();
@@ -267,7 +313,11 @@ public class TriTyperExpressionData {
 		
 		annotationToProbeId = new THashMap<String, ArrayIntList>();
 		int probeNr = 0;
-		elems = in.readLineElemsReturnReference(TextFile.tab);
+		if (cache != null) {
+			elems = cacheRow < cache.getNrRows() ? cache.getRowAnnotation(cacheRow) : null;
+		} else {
+			elems = in.readLineElemsReturnReference(TextFile.tab);
+		}
 		
 		if (!trityperformat) {
 			if (hashProbeChr == null && !cistrans) {
@@ -280,7 +330,13 @@ public class TriTyperExpressionData {
 		HashSet<Integer> probesWithMissingValues = new HashSet<Integer>();
 		while (elems != null) {
 			boolean printreason = true;
-			if (elems.length > 1) {
+			if (cache == null) {
+				nrColumns = elems.length;
+				if (cacheWriter != null && nrColumns > 1) {
+					cacheWriter.addRow(elems);
+				}
+			}
+			if (nrColumns > 1) {
 				String probe = new String(elems[0].getBytes("UTF-8"));
 				String annotstr = null;
 				Byte probeChr = null;
@@ -289,7 +345,7 @@ public class TriTyperExpressionData {
 				boolean includeprobe = false;
 				String reason = "";
 				
-				if (trityperformat && elems.length > 9) {
+				if (trityperformat && nrColumns > 9) {
 					// Probe	MultipleHits	SequenceIdentity	Chr	ChrStart	ChrEnd	Ensembl	HUGO	DIP
 					Byte bchr = ChrAnnotation.parseChr(elems[3]);
 					if (probesConfine == null || probesConfine.contains(probe)) {
@@ -391,24 +447,36 @@ public class TriTyperExpressionData {
 					
 					int samplePos = 0;
 					float[] tmpDt = new float[numIndsIncluded];
-					try {
-						for (int pos = offset; pos < elems.length; pos++) {
-							if (includeCol[pos]) {
-								try {
-									tmpDt[samplePos] = Float.parseFloat(elems[pos]);
-								} catch (NumberFormatException e) {
-									System.err.println("WARNING: missing value for column:\t" + pos + "\tprobe:\t" + probe);
-									tmpDt[samplePos] = Float.NaN;
-									probesWithMissingValues.add(probeNr);
+					if (cache != null) {
+						cache.readRow(cacheRow, includedCacheColumns, tmpDt);
+						if (cache.hasUnparsableValues(cacheRow)) {
+							for (int i = 0; i < numIndsIncluded; i++) {
+								if (Float.isNaN(tmpDt[i])) {
+									System.err.println("WARNING: missing value for column:\t" + (includedCacheColumns[i] + offset) + "\tprobe:\t" + probe);
+								}
+							}
+							probesWithMissingValues.add(probeNr);
+						}
+					} else {
+						try {
+							for (int pos = offset; pos < elems.length; pos++) {
+								if (includeCol[pos]) {
+									try {
+										tmpDt[samplePos] = Float.parseFloat(elems[pos]);
+									} catch (NumberFormatException e) {
+										System.err.println("WARNING: missing value for column:\t" + pos + "\tprobe:\t" + probe);
+										tmpDt[samplePos] = Float.NaN;
+										probesWithMissingValues.add(probeNr);
+									}
+									samplePos++;
 								}
-								samplePos++;
 							}
+						} catch (ArrayIndexOutOfBoundsException e) {
+							System.err.println("ERROR: array index out of bounds: ");
+							System.err.println(e.getMessage());
+							System.err.println("Seems like your expression data is malformed (e.g. is there a column shift?).");
+							System.exit(-1);
 						}
-					} catch (ArrayIndexOutOfBoundsException e) {
-						System.err.println("ERROR: array index out of bounds: ");
-						System.err.println(e.getMessage());
-						System.err.println("Seems like your expression data is malformed (e.g. is there a column shift?).");
-						System.exit(-1);
 					}
 					
 					tmpRaw.add(tmpDt);
@@ -424,9 +492,26 @@ public class TriTyperExpressionData {
 				}
 			}
 			
-			elems = in.readLineElemsReturnReference(TextFile.tab);
+			if (cache != null) {
+				cacheRow++;
+				elems = cacheRow < cache.getNrRows() ? cache.getRowAnnotation(cacheRow) : null;
+			} else {
+				elems = in.readLineElemsReturnReference(TextFile.tab);
+			}
+		}
+		if (cache != null) {
+			cache.close();
+		} else {
+			in.close();
+		}
+		if (cacheWriter != null) {
+			try {
+				cacheWriter.close();
+			} catch (IOException e) {
+				System.err.println("WARNING: could not write expression data cache: " + e.getMessage());
+				cacheWriter.abort();
+			}
 		}
-		in.close();
 		
 		if (probesWithMissingValues.size() > 0) {
 			if (displayWarnings) {
@@ -497,10 +582,14 @@ public class TriTyperExpressionData {
 			
 		}
 		
-		for (int i = 0; i < numIndsIncluded; i++) {
-			for (int p = 0; p < probeNr; p++) {
-				matrix[p][i] = tmpRaw.get(p)[i];
+		// convert one probe at a time, so the float copy of a probe can be released directly
+		for (int p = 0; p < probeNr; p++) {
+			float[] raw = tmpRaw.get(p);
+			double[] row = matrix[p];
+			for (int i = 0; i < numIndsIncluded; i++) {
+				row[i] = raw[i];
 			}
+			tmpRaw.set(p, null);
 		}
 		
 		tmpChrStart = null;
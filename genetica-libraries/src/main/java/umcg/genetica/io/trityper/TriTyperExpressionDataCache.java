@@ -0,0 +1,325 @@
+package umcg.genetica.io.trityper;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.BufferedInputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+
+/**
+ * Binary copy of a text expression file, so TriTyperExpressionData does not
+ * have to parse the text on every run. The cache contains all rows and columns
+ * of the text file: probe selection and sample selection are still done in
+ * TriTyperExpressionData.load().
+ *
+ * Layout: header, row-major float matrix, per probe annotation, footer. The
+ * float matrix is memory-mapped so single probes can be read without loading
+ * the whole matrix.
+ *
+ * A cache is only used when the size and modification time of the text file
+ * are the same as when the cache was written.
+ */
+public class TriTyperExpressionDataCache {
+
+	public static final String EXTENSION = ".bincache";
+	private static final long MAGIC = 0x5454455850524331L;
+	private static final int VERSION = 2;
+	// TriTyperExpressionData keys the annotation to probe map on column 7
+	private static final int ANNOTATION_KEY_COLUMN = 7;
+	// map at most this many bytes per buffer, MappedByteBuffer is limited to 2GB.
+	private static final long MAX_MAP_SIZE = 1L << 30;
+	private final String[] header;
+	private final int offset;
+	private final int nrValues;
+	private final int nrRows;
+	private final int nrAnnotationColumns;
+	private final String[][] rowAnnotation;
+	private final boolean[] rowHasUnparsableValues;
+	private final MappedByteBuffer[] buffers;
+	private final int rowsPerBuffer;
+	private final RandomAccessFile file;
+
+	private TriTyperExpressionDataCache(String cacheLoc) throws IOException {
+
+		File cacheFile = new File(cacheLoc);
+		file = new RandomAccessFile(cacheFile, "r");
+		long fileLength = file.length();
+
+		// footer
+		file.seek(fileLength - 20);
+		long annotationStart = file.readLong();
+		nrRows = file.readInt();
+		if (file.readLong() != MAGIC) {
+			throw new IOException("Incomplete expression data cache: " + cacheLoc);
+		}
+
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(cacheFile)));
+		try {
+			in.readLong(); // magic
+			in.readInt(); // version
+			in.readLong(); // source length
+			in.readLong(); // source last modified
+			offset = in.readInt();
+			header = new String[in.readInt()];
+			for (int i = 0; i < header.length; i++) {
+				header[i] = in.readUTF();
+			}
+		} finally {
+			in.close();
+		}
+		nrValues = header.length - offset;
+		nrAnnotationColumns = getNrAnnotationColumns(header.length, offset);
+
+		long dataStart = annotationStart - ((long) nrRows * nrValues * 4);
+
+		// per row annotation
+		in = new DataInputStream(new BufferedInputStream(new FileInputStream(cacheFile)));
+		try {
+			long toSkip = annotationStart;
+			while (toSkip > 0) {
+				toSkip -= in.skip(toSkip);
+			}
+			rowAnnotation = new String[nrRows][];
+			rowHasUnparsableValues = new boolean[nrRows];
+			for (int r = 0; r < nrRows; r++) {
+				String[] annotation = new String[nrAnnotationColumns];
+				for (int c = 0; c < nrAnnotationColumns; c++) {
+					annotation[c] = in.readUTF();
+				}
+				rowAnnotation[r] = annotation;
+				rowHasUnparsableValues[r] = in.readBoolean();
+			}
+		} finally {
+			in.close();
+		}
+
+		// map the matrix in blocks of whole rows
+		long rowBytes = (long) nrValues * 4;
+		rowsPerBuffer = rowBytes == 0 ? Math.max(nrRows, 1) : (int) Math.max(1, MAX_MAP_SIZE / rowBytes);
+		int nrBuffers = (nrRows + rowsPerBuffer - 1) / rowsPerBuffer;
+		buffers = new MappedByteBuffer[nrBuffers];
+		FileChannel channel = file.getChannel();
+		for (int b = 0; b < nrBuffers; b++) {
+			int firstRow = b * rowsPerBuffer;
+			int rowsInBuffer = Math.min(rowsPerBuffer, nrRows - firstRow);
+			buffers[b] = channel.map(FileChannel.MapMode.READ_ONLY, dataStart + firstRow * rowBytes, rowsInBuffer * rowBytes);
+		}
+
+	}
+
+	/**
+	 * Opens the cache of a text expression file
+	 *
+	 * @param loc the text expression file
+	 * @return null if there is no cache or if the cache is outdated
+	 * @throws IOException
+	 */
+	public static TriTyperExpressionDataCache open(String loc) throws IOException {
+
+		File source = new File(loc);
+		File cacheFile = new File(loc + EXTENSION);
+		if (!cacheFile.exists() || cacheFile.length() < 40) {
+			return null;
+		}
+
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(cacheFile)));
+		try {
+			if (in.readLong() != MAGIC || in.readInt() != VERSION) {
+				return null;
+			}
+			if (in.readLong() != source.length() || in.readLong() != source.lastModified()) {
+				System.out.println("Expression data cache is outdated: " + cacheFile.getAbsolutePath());
+				return null;
+			}
+		} finally {
+			in.close();
+		}
+
+		return new TriTyperExpressionDataCache(cacheFile.getAbsolutePath());
+	}
+
+	public String[] getHeader() {
+		return header;
+	}
+
+	/**
+	 * @return the number of columns before the first sample
+	 */
+	public int getOffset() {
+		return offset;
+	}
+
+	public int getNrRows() {
+		return nrRows;
+	}
+
+	/**
+	 * @return the number of text columns stored per row: the columns before
+	 * the first sample, and at least up to the annotation key column
+	 */
+	private static int getNrAnnotationColumns(int nrColumns, int offset) {
+		return Math.min(nrColumns, Math.max(offset, ANNOTATION_KEY_COLUMN + 1));
+	}
+
+	/**
+	 * @param row
+	 * @return the first offset columns of this row, starting with the probe
+	 * name, and the columns up to column 7 when the row has them
+	 */
+	public String[] getRowAnnotation(int row) {
+		return rowAnnotation[row];
+	}
+
+	/**
+	 * @param row
+	 * @return true if one or more values of this row could not be parsed and
+	 * are stored as NaN
+	 */
+	public boolean hasUnparsableValues(int row) {
+		return rowHasUnparsableValues[row];
+	}
+
+	/**
+	 * Reads the values of a single row, only this row is paged in from disk.
+	 *
+	 * @param row
+	 * @param columns sample indices to read, relative to the first sample
+	 * column
+	 * @param dest filled with the values of the requested columns
+	 */
+	public void readRow(int row, int[] columns, float[] dest) {
+		MappedByteBuffer buffer = buffers[row / rowsPerBuffer];
+		int rowStart = (row % rowsPerBuffer) * nrValues * 4;
+		for (int i = 0; i < columns.length; i++) {
+			dest[i] = buffer.getFloat(rowStart + columns[i] * 4);
+		}
+	}
+
+	public void close() throws IOException {
+		file.close();
+	}
+
+	/**
+	 * Streams a text expression file to a cache while it is being parsed.
+	 */
+	public static class Writer {
+
+		private final File cacheFile;
+		private final File tmpFile;
+		private final DataOutputStream out;
+		private final int offset;
+		private final int nrColumns;
+		private final int nrAnnotationColumns;
+		private final ArrayList<String[]> rowAnnotation = new ArrayList<String[]>();
+		private final ArrayList<Boolean> rowHasUnparsableValues = new ArrayList<Boolean>();
+		private long dataBytes = 0;
+		private long headerBytes;
+		private boolean failed = false;
+
+		public Writer(String loc, String[] header, int offset) throws IOException {
+			File source = new File(loc);
+			this.cacheFile = new File(loc + EXTENSION);
+			this.tmpFile = new File(loc + EXTENSION + ".tmp");
+			this.offset = offset;
+			this.nrColumns = header.length;
+			this.nrAnnotationColumns = getNrAnnotationColumns(nrColumns, offset);
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile), 1 << 20));
+			out.writeLong(MAGIC);
+			out.writeInt(VERSION);
+			out.writeLong(source.length());
+			out.writeLong(source.lastModified());
+			out.writeInt(offset);
+			out.writeInt(header.length);
+			for (String column : header) {
+				out.writeUTF(column);
+			}
+			headerBytes = out.size();
+		}
+
+		/**
+		 * Adds a text row. Rows that do not have the same number of columns as
+		 * the header can't be cached, in that case no cache will be written.
+		 *
+		 * @param elems
+		 */
+		public void addRow(String[] elems) {
+			if (failed) {
+				return;
+			}
+			if (elems.length != nrColumns) {
+				System.out.println("Not writing expression data cache, row with " + elems.length + " instead of " + nrColumns + " columns: " + elems[0]);
+				abort();
+				return;
+			}
+
+			boolean unparsable = false;
+			try {
+				for (int c = offset; c < nrColumns; c++) {
+					float value;
+					try {
+						value = Float.parseFloat(elems[c]);
+					} catch (NumberFormatException e) {
+						value = Float.NaN;
+						unparsable = true;
+					}
+					out.writeFloat(value);
+				}
+			} catch (IOException e) {
+				System.err.println("WARNING: could not write expression data cache: " + e.getMessage());
+				abort();
+				return;
+			}
+			dataBytes += (long) (nrColumns - offset) * 4;
+
+			String[] annotation = new String[nrAnnotationColumns];
+			for (int c = 0; c < nrAnnotationColumns; c++) {
+				annotation[c] = new String(elems[c]);
+			}
+			rowAnnotation.add(annotation);
+			rowHasUnparsableValues.add(unparsable);
+		}
+
+		public void abort() {
+			if (!failed) {
+				failed = true;
+				try {
+					out.close();
+				} catch (IOException e) {
+				}
+				tmpFile.delete();
+			}
+		}
+
+		public void close() throws IOException {
+			if (failed) {
+				return;
+			}
+			long annotationStart = headerBytes + dataBytes;
+			for (int r = 0; r < rowAnnotation.size(); r++) {
+				for (String column : rowAnnotation.get(r)) {
+					out.writeUTF(column);
+				}
+				out.writeBoolean(rowHasUnparsableValues.get(r));
+			}
+			out.writeLong(annotationStart);
+			out.writeInt(rowAnnotation.size());
+			out.writeLong(MAGIC);
+			out.close();
+
+			if (cacheFile.exists()) {
+				cacheFile.delete();
+			}
+			if (!tmpFile.renameTo(cacheFile)) {
+				throw new IOException("Could not move expression data cache to: " + cacheFile.getAbsolutePath());
+			}
+			System.out.println("Written expression data cache to: " + cacheFile.getAbsolutePath());
+		}
+	}
+}
@@ -39,6 +39,8 @@ public final class TriTyperGeneticalGenomicsDataset implements Comparable<TriTyp
 	private boolean expressionDataLoadedCorrectly = true;
 	private short[] genotypeToExpressionIdArray;
 	DoubleMatrixDataset<String, String> covariates = null;
+	private Pair<List<String>, List<List<String>>> pathwayDefinitions;
+	private boolean displayWarnings;
 
 	public TriTyperGeneticalGenomicsDataset(TriTyperGeneticalGenomicsDatasetSettings settings, Pair<List<String>, List<List<String>>> pathwayDefinitions, boolean displayWarnings) throws IOException, Exception {
 
@@ -78,13 +80,9 @@ public final class TriTyperGeneticalGenomicsDataset implements Comparable<TriTyp
 		}
 
 		// load the expression data
-		expressionData = new TriTyperExpressionData();
-		expressionData.displayWarnings = displayWarnings;
-		expressionData.confineToProbes(settings.tsProbesConfine);
-		expressionData.setConfineToProbesThatMapToAnyChromosome(settings.confineProbesToProbesMappingToAnyChromosome);
-		expressionData.setConfineToProbesThatMapToChromosome(settings.confineProbesToProbesThatMapToChromosome);
-		expressionData.setIncludeIndividuals(includedExpressionIndividuals);
-		expressionData.setPathwayDefinitions(pathwayDefinitions);
+		this.pathwayDefinitions = pathwayDefinitions;
+		this.displayWarnings = displayWarnings;
+		expressionData = createExpressionData(includedExpressionIndividuals);
 		expressionDataLoadedCorrectly = expressionData.load(settings.expressionLocation, settings.probeannotation, settings.expressionplatform, (settings.cisAnalysis && settings.transAnalysis));
 		pruneGenotypeToExpressionCouplings();
 
@@ -135,6 +133,40 @@ public final class TriTyperGeneticalGenomicsDataset implements Comparable<TriTyp
 		this(triTyperGeneticalGenomicsDatasetSettings, pathwayDefinitions, true);
 	}
 
+	private TriTyperExpressionData createExpressionData(THashSet<String> includedExpressionIndividuals) {
+		TriTyperExpressionData data = new TriTyperExpressionData();
+		data.displayWarnings = displayWarnings;
+		data.confineToProbes(settings.tsProbesConfine);
+		data.setConfineToProbesThatMapToAnyChromosome(settings.confineProbesToProbesMappingToAnyChromosome);
+		data.setConfineToProbesThatMapToChromosome(settings.confineProbesToProbesThatMapToChromosome);
+		data.setIncludeIndividuals(includedExpressionIndividuals);
+		data.setPathwayDefinitions(pathwayDefinitions);
+		data.setUseBinaryCache(settings.useBinaryExpressionCache);
+		return data;
+	}
+
+	/**
+	 * Loads another expression file, for instance with a different number of
+	 * PCs removed, the same way as the expression data of this dataset. Only
+	 * the individuals of the loaded expression data are included and they are
+	 * put in the order of the covariates, if any. The expression data of this
+	 * dataset is not changed.
+	 *
+	 * @param expressionLocation
+	 * @return the expression data or null if it could not be loaded
+	 * @throws IOException
+	 */
+	public TriTyperExpressionData loadOtherExpressionData(String expressionLocation) throws IOException {
+		TriTyperExpressionData otherExpressionData = createExpressionData(new THashSet<String>(Arrays.asList(expressionData.getIndividuals())));
+		if (!otherExpressionData.load(expressionLocation, settings.probeannotation, settings.expressionplatform, (settings.cisAnalysis && settings.transAnalysis))) {
+			return null;
+		}
+		if (covariates != null) {
+			otherExpressionData.pruneAndReorderSamples(covariates.colObjects);
+		}
+		return otherExpressionData;
+	}
+
 	/**
 	 * @return the genotypeData
 	 */
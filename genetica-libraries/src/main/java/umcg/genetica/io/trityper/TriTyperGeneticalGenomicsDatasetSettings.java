@@ -26,6 +26,7 @@ public class TriTyperGeneticalGenomicsDatasetSettings {
 	public String probeannotation;
 	public boolean cisAnalysis, transAnalysis;
 	public String covariateFile;
+	public boolean useBinaryExpressionCache = false;
 
 	@Override
 	public String toString() {
@@ -46,6 +47,7 @@ public class TriTyperGeneticalGenomicsDatasetSettings {
 				"\n, cisAnalysis=" + cisAnalysis +
 				"\n, transAnalysis=" + transAnalysis +
 				"\n, covariateFile='" + covariateFile + '\'' +
+				"\n, useBinaryExpressionCache=" + useBinaryExpressionCache +
 				'}';
 	}
 }
@@ -79,6 +79,26 @@ public class DetermineLD {
         }
         //System.out.println("NrCalledGenotypes:\t" + nrCalledGenotypes);
 
+        return getLD(genotypes, print);
+    }
+
+    /**
+     * LD from the counts of the genotype combinations of two SNPs, for callers
+     * that count the genotypes themselves.
+     *
+     * @param genotypes number of individuals per genotype of SNP X (first
+     * index) and SNP Y (second index), both coded 0, 1 and 2
+     * @return D' and r2
+     */
+    public synchronized Pair<Double, Double> getLD(int[][] genotypes, boolean print) {
+
+        nrCalledGenotypes = 0;
+        for (int x = 0; x < 3; x++) {
+            for (int y = 0; y < 3; y++) {
+                nrCalledGenotypes += genotypes[x][y];
+            }
+        }
+
         //Determine genotype frequencies:
         double[][] genotypesFreq = new double[3][3];
         for (int x = 0; x < 3; x++) {
@@ -0,0 +1,140 @@
+package umcg.genetica.gwas;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import static org.testng.Assert.*;
+import org.testng.annotations.Test;
+import umcg.genetica.io.trityper.SNP;
+import umcg.genetica.io.trityper.util.DetermineLD;
+
+public class LDGraphTest {
+
+    /**
+     * SNP 0 - 2 - 1 in LD as a chain, 3 alone, 4 in LD with 1.
+     */
+    private static LDGraph chain() {
+        return new LDGraph(new int[][]{{2}, {2, 4}, {0, 1}, {}, {1}});
+    }
+
+    @Test
+    public void testClusterTransitive() {
+        int[][] clusters = chain().clusterTransitive(5);
+
+        // every pair in LD between SNPs that are already assigned gives a new
+        // cluster number, so the chain ends up last, after SNP 3
+        assertEquals(clusters.length, 5);
+        for (int c = 0; c < 3; c++) {
+            assertEquals(clusters[c].length, 0);
+        }
+        assertTrue(Arrays.equals(clusters[3], new int[]{3}));
+        assertTrue(Arrays.equals(clusters[4], new int[]{0, 1, 2, 4}));
+    }
+
+    @Test
+    public void testClusterTransitiveMerge() {
+        // 0-3 and 1-2 are clusters 0 and 1, 2-3 merges them
+        LDGraph graph = new LDGraph(new int[][]{{3}, {2}, {1, 3}, {0, 2}});
+        int[][] clusters = graph.clusterTransitive(4);
+
+        assertEquals(clusters.length, 6);
+        assertTrue(Arrays.equals(clusters[5], new int[]{0, 1, 2, 3}));
+    }
+
+    @Test
+    public void testClusterFirstSNPs() {
+        int[][] clusters = chain().clusterTransitive(2);
+
+        assertEquals(clusters.length, 2);
+        assertTrue(Arrays.equals(clusters[0], new int[]{0}));
+        assertTrue(Arrays.equals(clusters[1], new int[]{1}));
+    }
+
+    @Test
+    public void testClump() {
+        int[][] clumps = chain().clump(5);
+
+        // 1 is not in LD with lead SNP 0, so it leads its own clump with 4
+        assertEquals(clumps.length, 3);
+        assertTrue(Arrays.equals(clumps[0], new int[]{0, 2}));
+        assertTrue(Arrays.equals(clumps[1], new int[]{1, 4}));
+        assertTrue(Arrays.equals(clumps[2], new int[]{3}));
+    }
+
+    @Test
+    public void testSameRSquaredAsDetermineLD() {
+        Random random = new Random(1);
+        int nrSNPs = 40;
+        // not a multiple of the 64 individuals per packed word
+        int nrIndividuals = 150;
+        Boolean[] included = new Boolean[nrIndividuals];
+        Arrays.fill(included, Boolean.TRUE);
+        byte[] alleleCodes = {'A', 'G'};
+
+        SNP[] snps = new SNP[nrSNPs];
+        byte[] allele1 = null;
+        byte[] allele2 = null;
+        for (int s = 0; s < nrSNPs; s++) {
+            // SNPs copy most alleles of the previous SNP, to get pairs in LD
+            boolean copy = s > 0 && random.nextBoolean();
+            byte[] previous1 = allele1;
+            byte[] previous2 = allele2;
+            allele1 = new byte[nrIndividuals];
+            allele2 = new byte[nrIndividuals];
+            for (int ind = 0; ind < nrIndividuals; ind++) {
+                if (random.nextDouble() < 0.1) {
+                    // missing call
+                    continue;
+                }
+                if (copy && previous1[ind] != 0 && random.nextDouble() < 0.8) {
+                    allele1[ind] = previous1[ind];
+                    allele2[ind] = previous2[ind];
+                } else {
+                    allele1[ind] = alleleCodes[random.nextInt(2)];
+                    allele2[ind] = alleleCodes[random.nextInt(2)];
+                }
+            }
+            snps[s] = new SNP();
+            snps[s].setChr((byte) 1);
+            snps[s].setChrPos(s * 1000);
+            snps[s].setAlleles(allele1, allele2, included, null);
+        }
+
+        long[][][] packed = new long[nrSNPs][][];
+        int[] chr = new int[nrSNPs];
+        int[] chrPos = new int[nrSNPs];
+        int[] sorted = new int[nrSNPs];
+        for (int s = 0; s < nrSNPs; s++) {
+            packed[s] = LDGraph.pack(snps[s].getGenotypes());
+            chr[s] = snps[s].getChr();
+            chrPos[s] = snps[s].getChrPos();
+            sorted[s] = s;
+        }
+
+        DetermineLD ldCalc = new DetermineLD();
+        int[][] genotypes = new int[3][3];
+        double r2Threshold = 0.3;
+        int bpThreshold = 5000;
+        List<Integer> expectedPairs = new ArrayList<Integer>();
+        for (int s1 = 0; s1 < nrSNPs; s1++) {
+            for (int s2 = s1 + 1; s2 < nrSNPs; s2++) {
+                double expected = ldCalc.getRSquared(snps[s1], snps[s2], null, DetermineLD.RETURN_R_SQUARED, DetermineLD.INCLUDE_CASES_AND_CONTROLS, false);
+                LDGraph.countGenotypes(packed[s1], packed[s2], genotypes);
+                assertEquals(ldCalc.getLD(genotypes, false).getRight(), expected, 1e-12);
+                if (chrPos[s2] - chrPos[s1] < bpThreshold && expected > r2Threshold) {
+                    expectedPairs.add(s1);
+                    expectedPairs.add(s2);
+                }
+            }
+        }
+
+        int[] pairs = LDGraph.findPairsInLD(sorted, 0, nrSNPs, chr, chrPos, packed, r2Threshold, bpThreshold, false);
+        assertTrue(expectedPairs.size() > 0);
+        List<Integer> actualPairs = new ArrayList<Integer>();
+        for (int pair : pairs) {
+            actualPairs.add(pair);
+        }
+        assertEquals(actualPairs, expectedPairs);
+    }
+}
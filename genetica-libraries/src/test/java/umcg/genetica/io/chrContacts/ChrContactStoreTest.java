@@ -0,0 +1,175 @@
+package umcg.genetica.io.chrContacts;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeMap;
+import static org.testng.Assert.*;
+import org.testng.annotations.Test;
+import umcg.genetica.io.text.TextFile;
+
+public class ChrContactStoreTest {
+
+    private static final int RESOLUTION = 1000;
+
+    private File createTempFile(String extension) throws IOException {
+        File file = File.createTempFile("chrContactStoreTest", extension);
+        file.deleteOnExit();
+        return file;
+    }
+
+    @Test
+    public void testLookupUnsortedIntra() throws IOException {
+        File raw = createTempFile(".RAWobserved");
+        Random random = new Random(1);
+        // expected contacts keyed on smaller position, larger position
+        TreeMap<Long, Double> expected = new TreeMap<Long, Double>();
+        TextFile out = new TextFile(raw, TextFile.W);
+        for (int i = 0; i < 5000; i++) {
+            int pos1 = random.nextInt(500) * RESOLUTION;
+            int pos2 = random.nextInt(500) * RESOLUTION;
+            long key = ((long) Math.min(pos1, pos2) << 32) | Math.max(pos1, pos2);
+            if (expected.containsKey(key)) {
+                continue;
+            }
+            double value = random.nextInt(100) + 0.5;
+            expected.put(key, value);
+            // intra contacts may be written in either orientation
+            out.writeln(pos1 + "\t" + pos2 + "\t" + value);
+        }
+        out.close();
+
+        File bin = createTempFile(".bin");
+        ChrContactStore.convert(raw.getAbsolutePath(), true, RESOLUTION, null, null, bin.getAbsolutePath(), 64);
+
+        ChrContactStore store = new ChrContactStore(bin.getAbsolutePath());
+        assertTrue(store.isIntra());
+        assertEquals(store.getResolution(), RESOLUTION);
+        assertEquals(store.getNrContacts(), expected.size());
+        for (int i = 0; i < 500; i++) {
+            for (int j = i; j < 500; j += 7) {
+                int pos1 = i * RESOLUTION;
+                int pos2 = j * RESOLUTION;
+                Double value = expected.get(((long) pos1 << 32) | pos2);
+                if (value == null) {
+                    assertTrue(Double.isNaN(store.getContact(pos1, pos2)));
+                } else {
+                    assertEquals(store.getContact(pos1, pos2), value.doubleValue());
+                    assertEquals(store.getContact(pos2, pos1), value.doubleValue());
+                }
+            }
+        }
+        assertTrue(Double.isNaN(store.getContact(-RESOLUTION, 0)));
+        assertTrue(Double.isNaN(store.getContact(1000 * RESOLUTION, 1000 * RESOLUTION)));
+
+        // the visited contacts are sorted and complete
+        final List<Long> visited = new ArrayList<Long>();
+        store.forEachContact(new ChrContactStore.ContactVisitor() {
+            @Override
+            public void visit(int posSmallerChr, int posLargerChr, double value) {
+                visited.add(((long) posSmallerChr << 32) | posLargerChr);
+            }
+        });
+        assertEquals(visited, new ArrayList<Long>(expected.keySet()));
+
+        visited.clear();
+        store.forEachContact(100 * RESOLUTION, 120 * RESOLUTION, new ChrContactStore.ContactVisitor() {
+            @Override
+            public void visit(int posSmallerChr, int posLargerChr, double value) {
+                visited.add(((long) posSmallerChr << 32) | posLargerChr);
+            }
+        });
+        assertEquals(visited, new ArrayList<Long>(expected.subMap(100L * RESOLUTION << 32, 121L * RESOLUTION << 32).keySet()));
+        store.close();
+    }
+
+    @Test
+    public void testChunkedConversion() throws IOException {
+        File raw = createTempFile(".RAWobserved");
+        Random random = new Random(2);
+        // the first contact of each position is kept
+        TreeMap<Long, Double> expected = new TreeMap<Long, Double>();
+        TextFile out = new TextFile(raw, TextFile.W);
+        for (int i = 0; i < 10000; i++) {
+            int pos1 = random.nextInt(150) * RESOLUTION;
+            int pos2 = random.nextInt(150) * RESOLUTION;
+            double value = i;
+            long key = ((long) Math.min(pos1, pos2) << 32) | Math.max(pos1, pos2);
+            if (!expected.containsKey(key)) {
+                expected.put(key, value);
+            }
+            out.writeln(pos1 + "\t" + pos2 + "\t" + value);
+        }
+        out.close();
+
+        // 200 chunks, more than can be merged at once
+        File bin = createTempFile(".bin");
+        ChrContactStore.convert(raw.getAbsolutePath(), true, RESOLUTION, null, null, bin.getAbsolutePath(), 64, 50);
+        assertFalse(new File(bin.getAbsolutePath() + ".run0").exists());
+
+        ChrContactStore store = new ChrContactStore(bin.getAbsolutePath());
+        assertEquals(store.getNrContacts(), expected.size());
+        final List<Long> visited = new ArrayList<Long>();
+        final List<Double> visitedValues = new ArrayList<Double>();
+        store.forEachContact(new ChrContactStore.ContactVisitor() {
+            @Override
+            public void visit(int posSmallerChr, int posLargerChr, double value) {
+                visited.add(((long) posSmallerChr << 32) | posLargerChr);
+                visitedValues.add(value);
+            }
+        });
+        assertEquals(visited, new ArrayList<Long>(expected.keySet()));
+        assertEquals(visitedValues, new ArrayList<Double>(expected.values()));
+        store.close();
+    }
+
+    @Test
+    public void testInterNormalization() throws IOException {
+        File raw = createTempFile(".RAWobserved");
+        TextFile out = new TextFile(raw, TextFile.W);
+        out.writeln("0\t2000\t10.0");
+        out.writeln("0\t2000\t20.0");
+        out.writeln("1000\t0\t4.0");
+        out.close();
+
+        File smallerNorm = createTempFile(".KRnorm");
+        out = new TextFile(smallerNorm, TextFile.W);
+        out.writeln("2.0");
+        out.writeln("NaN");
+        out.close();
+        File largerNorm = createTempFile(".KRnorm");
+        out = new TextFile(largerNorm, TextFile.W);
+        out.writeln("1.0");
+        out.writeln("3.0");
+        out.writeln("5.0");
+        out.close();
+
+        HashMap<String, String> smallerNormFiles = new HashMap<String, String>();
+        smallerNormFiles.put("KRnorm", smallerNorm.getAbsolutePath());
+        HashMap<String, String> largerNormFiles = new HashMap<String, String>();
+        largerNormFiles.put("KRnorm", largerNorm.getAbsolutePath());
+
+        File bin = createTempFile(".bin");
+        ChrContactStore.convert(raw.getAbsolutePath(), false, RESOLUTION, smallerNormFiles, largerNormFiles, bin.getAbsolutePath());
+
+        ChrContactStore store = new ChrContactStore(bin.getAbsolutePath());
+        assertFalse(store.isIntra());
+        assertEquals(store.getNrContacts(), 2);
+        // duplicates keep the first contact
+        assertEquals(store.getContact(0, 2000), 10.0);
+        assertEquals(store.getContact(1000, 0), 4.0);
+        // inter chromosomal positions are not swapped
+        assertTrue(Double.isNaN(store.getContact(2000, 0)));
+
+        assertEquals(store.getNormalizationFactor("KRnorm", false, 999), 2.0);
+        assertTrue(Double.isNaN(store.getNormalizationFactor("KRnorm", false, 1000)));
+        assertEquals(store.getNormalizationFactor("KRnorm", true, 2000), 5.0);
+        assertTrue(Double.isNaN(store.getNormalizationFactor("KRnorm", true, 3000)));
+        assertNull(store.getNormalizationVector("VCnorm", false));
+        assertEquals(store.getNormalizedContact("KRnorm", 0, 2000), 1.0);
+        store.close();
+    }
+}
@@ -0,0 +1,77 @@
+package umcg.genetica.io.concurrent;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import static org.testng.Assert.*;
+import org.testng.annotations.Test;
+
+public class ParallelGZIPStreamTest {
+
+	private static byte[] testData() {
+		// mix of compressible text and random bytes, spanning many blocks
+		Random random = new Random(1);
+		byte[] data = new byte[1000000];
+		for (int i = 0; i < data.length; i++) {
+			data[i] = i % 3 == 0 ? (byte) random.nextInt() : (byte) ('a' + (i % 26));
+		}
+		return data;
+	}
+
+	private static byte[] readAll(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[1000];
+		int n;
+		while ((n = in.read(buffer)) >= 0) {
+			out.write(buffer, 0, n);
+		}
+		in.close();
+		return out.toByteArray();
+	}
+
+	@Test
+	public void testRoundTrip() throws IOException {
+		byte[] data = testData();
+
+		ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+		ParallelGZIPOutputStream out = new ParallelGZIPOutputStream(compressed);
+		out.write(data, 0, 12345);
+		out.write(data[12345]);
+		out.write(data, 12346, data.length - 12346);
+		out.close();
+
+		InputStream in = ParallelGZIPInputStream.open(new ByteArrayInputStream(compressed.toByteArray()), 1024);
+		assertTrue(in instanceof ParallelGZIPInputStream);
+		assertEquals(readAll(in), data);
+
+		// concatenated gzip members, readable by any gzip reader
+		assertEquals(readAll(new GZIPInputStream(new ByteArrayInputStream(compressed.toByteArray()))), data);
+	}
+
+	@Test
+	public void testNormalGzip() throws IOException {
+		byte[] data = testData();
+
+		ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+		GZIPOutputStream out = new GZIPOutputStream(compressed);
+		out.write(data);
+		out.close();
+
+		InputStream in = ParallelGZIPInputStream.open(new ByteArrayInputStream(compressed.toByteArray()), 1024);
+		assertFalse(in instanceof ParallelGZIPInputStream);
+		assertEquals(readAll(in), data);
+	}
+
+	@Test
+	public void testEmpty() throws IOException {
+		ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+		new ParallelGZIPOutputStream(compressed).close();
+
+		assertEquals(readAll(ParallelGZIPInputStream.open(new ByteArrayInputStream(compressed.toByteArray()), 1024)).length, 0);
+		assertEquals(readAll(new GZIPInputStream(new ByteArrayInputStream(compressed.toByteArray()))).length, 0);
+	}
+}
@@ -0,0 +1,82 @@
+package umcg.genetica.io.fasta;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Random;
+import static org.testng.Assert.*;
+import org.testng.annotations.Test;
+
+public class ReferenceGenomeFastaTest {
+
+	private static final char[] BASES = {'A', 'C', 'G', 'T', 'N', 'a', 'c', 'g', 't'};
+
+	private static String randomSequence(Random random, int length) {
+		StringBuilder sequence = new StringBuilder(length);
+		for (int i = 0; i < length; ++i) {
+			sequence.append(BASES[random.nextInt(BASES.length)]);
+		}
+		return sequence.toString();
+	}
+
+	private static void writeSequence(FileWriter out, String header, String sequence, int lineBases, String lineEnd) throws IOException {
+		out.write(header + lineEnd);
+		for (int i = 0; i < sequence.length(); i += lineBases) {
+			out.write(sequence.substring(i, Math.min(i + lineBases, sequence.length())) + lineEnd);
+		}
+	}
+
+	private File writeFasta(String seq1, String seq2, String lineEnd) throws IOException {
+		File fasta = File.createTempFile("referenceGenomeFastaTest", ".fa");
+		fasta.deleteOnExit();
+		new File(fasta.getPath() + ".fai").deleteOnExit();
+		FileWriter out = new FileWriter(fasta);
+		writeSequence(out, ">1 dna:chromosome chromosome:GRCh37:1:1:" + seq1.length() + ":1", seq1, 60, lineEnd);
+		writeSequence(out, ">2 dna:chromosome chromosome:GRCh37:2:1:" + seq2.length() + ":1", seq2, 7, lineEnd);
+		out.close();
+		return fasta;
+	}
+
+	@Test
+	public void testGetNucleotide() throws Exception {
+		Random random = new Random(1);
+		String seq1 = randomSequence(random, 1000);
+		String seq2 = randomSequence(random, 95);
+
+		for (String lineEnd : new String[]{"\n", "\r\n"}) {
+			File fasta = writeFasta(seq1, seq2, lineEnd);
+			ReferenceGenomeFasta reference = new ReferenceGenomeFasta(fasta);
+
+			assertTrue(new File(fasta.getPath() + ".fai").exists());
+			assertTrue(reference.loadedChr("1"));
+			assertTrue(reference.loadedChr("2"));
+			for (int pos = 1; pos <= seq1.length(); ++pos) {
+				assertEquals(reference.getNucleotide("1", pos), seq1.charAt(pos - 1));
+			}
+			for (int pos = 1; pos <= seq2.length(); ++pos) {
+				assertEquals(reference.getNucleotide("2", pos), seq2.charAt(pos - 1));
+			}
+			assertEquals(reference.getNucleotides("1", 55, 130).toString(), seq1.substring(54, 130));
+			assertEquals(reference.getNucleotides("2", 1, 95).toString(), seq2);
+
+			// the second time the saved index is used
+			reference = new ReferenceGenomeFasta(fasta, Collections.singleton("2"));
+			assertFalse(reference.loadedChr("1"));
+			assertEquals(reference.getNucleotides("2", 6, 15).toString(), seq2.substring(5, 15));
+		}
+	}
+
+	@Test(expectedExceptions = Exception.class)
+	public void testBeyondChromosome() throws Exception {
+		File fasta = writeFasta("ACGT", "ACGTACGT", "\n");
+		new ReferenceGenomeFasta(fasta).getNucleotide("1", 5);
+	}
+
+	@Test(expectedExceptions = Exception.class)
+	public void testUnknownChromosome() throws Exception {
+		File fasta = writeFasta("ACGT", "ACGTACGT", "\n");
+		new ReferenceGenomeFasta(fasta, new HashSet<String>(ReferenceGenomeFasta.HUMAN_NORMAL_CHR)).getNucleotide("3", 1);
+	}
+}
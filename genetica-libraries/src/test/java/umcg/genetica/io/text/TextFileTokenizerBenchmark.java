@@ -0,0 +1,131 @@
+package umcg.genetica.io.text;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Compares parsing an expression like matrix with TextFile.readLineElems() and
+ * Double.parseDouble against TextFileTokenizer. Not part of the unit tests, run
+ * the main method from the test classpath.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class TextFileTokenizerBenchmark {
+
+	@Param({"10000"})
+	public int rows;
+	@Param({"500"})
+	public int columns;
+	@Param({".txt", ".txt.gz"})
+	public String extension;
+	private File file;
+
+	@Setup(Level.Trial)
+	public void writeMatrix() throws IOException {
+		file = File.createTempFile("tokenizerBenchmark", extension);
+		Random random = new Random(1);
+		TextFile out = new TextFile(file, TextFile.W);
+		StringBuilder line = new StringBuilder("probe");
+		for (int c = 0; c < columns; c++) {
+			line.append("\tsample").append(c);
+		}
+		out.writeln(line.toString());
+		for (int r = 0; r < rows; r++) {
+			line.setLength(0);
+			line.append("probe").append(r);
+			for (int c = 0; c < columns; c++) {
+				line.append('\t').append((float) random.nextGaussian());
+			}
+			out.writeln(line.toString());
+		}
+		out.close();
+	}
+
+	@TearDown(Level.Trial)
+	public void deleteMatrix() {
+		file.delete();
+	}
+
+	@Benchmark
+	public double patternSplit() throws IOException {
+		TextFile in = new TextFile(file, TextFile.R);
+		double sum = 0;
+		in.readLineElems(TextFile.tab);
+		String[] elems;
+		while ((elems = in.readLineElemsReturnReference(TextFile.tab)) != null) {
+			for (int c = 1; c < elems.length; c++) {
+				sum += Double.parseDouble(elems[c]);
+			}
+		}
+		in.close();
+		return sum;
+	}
+
+	@Benchmark
+	public double tokenizer() throws IOException {
+		TextFileTokenizer in = new TextFileTokenizer(file.getAbsolutePath(), TextFileTokenizer.TAB);
+		double sum = 0;
+		in.nextLine();
+		while (in.nextLine()) {
+			for (int c = 1; c < in.getNrFields(); c++) {
+				sum += in.parseDouble(c);
+			}
+		}
+		in.close();
+		return sum;
+	}
+
+	@Benchmark
+	public double tokenizerParallel() throws IOException {
+		if (extension.endsWith(".gz")) {
+			return tokenizer();
+		}
+		final double[] sums = new double[Runtime.getRuntime().availableProcessors()];
+		TextFileTokenizer.processInParallel(file.getAbsolutePath(), TextFileTokenizer.TAB, sums.length, new TextFileTokenizer.RangeProcessor() {
+			@Override
+			public void process(int range, TextFileTokenizer in) throws IOException {
+				if (range == 0) {
+					in.nextLine();
+				}
+				double sum = 0;
+				while (in.nextLine()) {
+					for (int c = 1; c < in.getNrFields(); c++) {
+						sum += in.parseDouble(c);
+					}
+				}
+				sums[range] = sum;
+			}
+		});
+		double sum = 0;
+		for (double s : sums) {
+			sum += s;
+		}
+		return sum;
+	}
+
+	public static void main(String[] args) throws RunnerException {
+		new Runner(new OptionsBuilder().include(TextFileTokenizerBenchmark.class.getSimpleName()).build()).run();
+	}
+}
@@ -0,0 +1,133 @@
+package umcg.genetica.io.text;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.GZIPOutputStream;
+import static org.testng.Assert.*;
+import org.testng.annotations.Test;
+
+public class TextFileTokenizerTest {
+
+	private File writeTestFile(String extension, int nrLines) throws IOException {
+		File file = File.createTempFile("tokenizerTest", extension);
+		file.deleteOnExit();
+		Random random = new Random(1);
+		TextFile out = new TextFile(file, TextFile.W);
+		out.writeln("probe\tsample1\tsample2\tsample3");
+		for (int i = 0; i < nrLines; i++) {
+			out.writeln("probe" + i + "\t" + random.nextGaussian() + "\t" + (float) random.nextDouble() * 1000 + "\t" + random.nextInt());
+		}
+		out.close();
+		return file;
+	}
+
+	@Test
+	public void testSameAsPatternSplit() throws IOException {
+		File file = writeTestFile(".txt.gz", 1000);
+
+		TextFile text = new TextFile(file, TextFile.R);
+		TextFileTokenizer tokenizer = new TextFileTokenizer(new TextFile(file, TextFile.R), TextFileTokenizer.TAB);
+
+		assertTrue(tokenizer.nextLine());
+		assertEquals(tokenizer.getStrings(), text.readLineElems(TextFile.tab));
+
+		String[] elems;
+		while ((elems = text.readLineElems(TextFile.tab)) != null) {
+			assertTrue(tokenizer.nextLine());
+			assertEquals(tokenizer.getNrFields(), elems.length);
+			assertTrue(tokenizer.fieldEquals(0, elems[0]));
+			assertEquals(tokenizer.parseDouble(1), Double.parseDouble(elems[1]));
+			assertEquals(tokenizer.parseFloat(2), Float.parseFloat(elems[2]));
+			assertEquals(tokenizer.parseInt(3), Integer.parseInt(elems[3]));
+		}
+		assertFalse(tokenizer.nextLine());
+
+		text.close();
+		tokenizer.close();
+	}
+
+	@Test
+	public void testParseNumbers() throws IOException {
+		String[] values = {"0", "-0", "1", "+1", "1.", ".5", "-2.5e-3", "1E10", "123456789012345678901234", "1e-400", "NaN", "-Infinity", "0.1", "3.4028235e38", "1.17549435E-38", "2147483647", "-2147483648"};
+		File file = File.createTempFile("tokenizerTest", ".txt");
+		file.deleteOnExit();
+		TextFile out = new TextFile(file, TextFile.W);
+		for (String value : values) {
+			out.writeln(value);
+		}
+		out.close();
+
+		TextFileTokenizer tokenizer = new TextFileTokenizer(file.getAbsolutePath(), TextFileTokenizer.TAB);
+		for (String value : values) {
+			assertTrue(tokenizer.nextLine());
+			assertEquals(Double.doubleToLongBits(tokenizer.parseDouble(0)), Double.doubleToLongBits(Double.parseDouble(value)), value);
+			assertEquals(Float.floatToIntBits(tokenizer.parseFloat(0)), Float.floatToIntBits(Float.parseFloat(value)), value);
+		}
+		tokenizer.close();
+	}
+
+	@Test(expectedExceptions = NumberFormatException.class)
+	public void testParseNA() throws IOException {
+		File file = File.createTempFile("tokenizerTest", ".txt");
+		file.deleteOnExit();
+		TextFile out = new TextFile(file, TextFile.W);
+		out.writeln("NA\t1");
+		out.close();
+
+		TextFileTokenizer tokenizer = new TextFileTokenizer(file.getAbsolutePath(), TextFileTokenizer.TAB);
+		tokenizer.nextLine();
+		tokenizer.parseDouble(0);
+	}
+
+	@Test
+	public void testSameCharsetAsTextFile() throws IOException {
+		for (String extension : new String[]{".txt", ".txt.gz"}) {
+			File file = File.createTempFile("tokenizerTest", extension);
+			file.deleteOnExit();
+			// bytes above 127, as written by other tools
+			OutputStream out = extension.endsWith(".gz") ? new GZIPOutputStream(new FileOutputStream(file)) : new FileOutputStream(file);
+			out.write(new byte[]{'p', 'r', 'o', 'b', 'e', '\t', 'g', 'e', 'n', 'e', '\n', 'p', (byte) 0xe9, '\t', (byte) 0xc3, (byte) 0xa9, '\n'});
+			out.close();
+
+			TextFile text = new TextFile(file, TextFile.R);
+			TextFileTokenizer tokenizer = new TextFileTokenizer(new TextFile(file, TextFile.R), TextFileTokenizer.TAB);
+			String[] elems;
+			while ((elems = text.readLineElems(TextFile.tab)) != null) {
+				assertTrue(tokenizer.nextLine());
+				assertEquals(tokenizer.getStrings(), elems, extension);
+				assertTrue(tokenizer.fieldEquals(0, elems[0]), extension);
+				assertTrue(tokenizer.fieldEquals(1, elems[1]), extension);
+			}
+			assertFalse(tokenizer.nextLine());
+			text.close();
+			tokenizer.close();
+		}
+	}
+
+	@Test
+	public void testByteRanges() throws IOException {
+		File file = writeTestFile(".txt", 5000);
+		final List<String> lines = Collections.synchronizedList(new ArrayList<String>());
+
+		TextFileTokenizer.processInParallel(file.getAbsolutePath(), TextFileTokenizer.TAB, 7, new TextFileTokenizer.RangeProcessor() {
+			@Override
+			public void process(int range, TextFileTokenizer tokenizer) throws IOException {
+				while (tokenizer.nextLine()) {
+					lines.add(tokenizer.getLine());
+				}
+			}
+		});
+
+		List<String> expected = new TextFile(file, TextFile.R).readAsArrayList();
+		assertEquals(lines.size(), expected.size());
+		Collections.sort(lines);
+		Collections.sort(expected);
+		assertEquals(lines, expected);
+	}
+}
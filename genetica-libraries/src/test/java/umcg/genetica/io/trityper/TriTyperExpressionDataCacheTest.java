@@ -0,0 +1,102 @@
+package umcg.genetica.io.trityper;
+
+import gnu.trove.set.hash.THashSet;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import static org.testng.Assert.*;
+import org.testng.annotations.Test;
+import umcg.genetica.io.text.TextFile;
+
+public class TriTyperExpressionDataCacheTest {
+
+	private static final int NR_PROBES = 25;
+	private static final int NR_SAMPLES = 12;
+
+	private File writeExpressionFile(long seed) throws IOException {
+		File file = File.createTempFile("expressionCacheTest", ".txt");
+		file.deleteOnExit();
+		new File(file.getAbsolutePath() + TriTyperExpressionDataCache.EXTENSION).deleteOnExit();
+		writeExpressionFile(file, seed);
+		return file;
+	}
+
+	private void writeExpressionFile(File file, long seed) throws IOException {
+		Random random = new Random(seed);
+		TextFile out = new TextFile(file, TextFile.W);
+		StringBuilder header = new StringBuilder("Probe\tMultipleHits\tSequenceIdentity\tChr\tChrStart\tChrEnd\tEnsembl\tHUGO\tDIP");
+		for (int s = 0; s < NR_SAMPLES; s++) {
+			header.append("\tsample").append(s);
+		}
+		out.writeln(header.toString());
+		for (int p = 0; p < NR_PROBES; p++) {
+			int start = random.nextInt(1000000);
+			StringBuilder line = new StringBuilder("probe" + p + "\t1\t100\t" + (1 + random.nextInt(22)) + "\t" + start + "\t" + (start + 50) + "\tENSG" + p + "\tgene" + (p / 2) + "\t-");
+			for (int s = 0; s < NR_SAMPLES; s++) {
+				line.append('\t').append((float) random.nextGaussian());
+			}
+			out.writeln(line.toString());
+		}
+		out.close();
+	}
+
+	private TriTyperExpressionData load(File file, boolean useBinaryCache, THashSet<String> individuals) throws IOException {
+		TriTyperExpressionData data = new TriTyperExpressionData();
+		data.setUseBinaryCache(useBinaryCache);
+		if (individuals != null) {
+			data.setIncludeIndividuals(individuals);
+		}
+		data.load(file.getAbsolutePath(), null, null, false);
+		return data;
+	}
+
+	private void assertSameData(TriTyperExpressionData actual, TriTyperExpressionData expected) {
+		assertEquals(actual.getProbes(), expected.getProbes());
+		assertEquals(actual.getIndividuals(), expected.getIndividuals());
+		assertTrue(Arrays.equals(actual.getChr(), expected.getChr()));
+		assertTrue(Arrays.equals(actual.getChrStart(), expected.getChrStart()));
+		assertTrue(Arrays.equals(actual.getChrStop(), expected.getChrStop()));
+		assertEquals(actual.getAnnotation(), expected.getAnnotation());
+		assertEquals(actual.getMatrix().length, expected.getMatrix().length);
+		for (int p = 0; p < expected.getMatrix().length; p++) {
+			assertTrue(Arrays.equals(actual.getMatrix()[p], expected.getMatrix()[p]), expected.getProbes()[p]);
+		}
+	}
+
+	@Test
+	public void testRoundTrip() throws IOException {
+		File file = writeExpressionFile(1);
+		File cacheFile = new File(file.getAbsolutePath() + TriTyperExpressionDataCache.EXTENSION);
+		TriTyperExpressionData fresh = load(file, false, null);
+		assertFalse(cacheFile.exists());
+
+		// the first load writes the cache, the second load reads it
+		assertSameData(load(file, true, null), fresh);
+		assertTrue(cacheFile.exists());
+		TriTyperExpressionDataCache cache = TriTyperExpressionDataCache.open(file.getAbsolutePath());
+		assertNotNull(cache);
+		assertEquals(cache.getNrRows(), NR_PROBES);
+		cache.close();
+		assertSameData(load(file, true, null), fresh);
+
+		// sample selection is done when reading the cache
+		THashSet<String> individuals = new THashSet<String>();
+		individuals.add("sample1");
+		individuals.add("sample4");
+		individuals.add("sample11");
+		assertSameData(load(file, true, individuals), load(file, false, individuals));
+	}
+
+	@Test
+	public void testOutdatedCache() throws IOException {
+		File file = writeExpressionFile(2);
+		load(file, true, null);
+		assertNotNull(TriTyperExpressionDataCache.open(file.getAbsolutePath()));
+
+		writeExpressionFile(file, 3);
+		assertTrue(file.setLastModified(file.lastModified() + 2000));
+		assertNull(TriTyperExpressionDataCache.open(file.getAbsolutePath()));
+		assertSameData(load(file, true, null), load(file, false, null));
+	}
+}
@@ -9,6 +9,10 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.regex.Pattern;
 import umcg.genetica.io.Gpio;
 import umcg.genetica.io.text.TextFile;
@@ -22,6 +26,19 @@ import umcg.genetica.io.trityper.TriTyperGenotypeData;
  */
 public class TriTyperDatasetCorrelator {
 
+    private static final int SNP_BATCH_SIZE = 1000;
+    private static final int[] ALLELE_INDEX = new int[256];
+
+    static {
+        for (int a = 0; a < 256; a++) {
+            ALLELE_INDEX[a] = 4;
+        }
+        ALLELE_INDEX[65] = 0;
+        ALLELE_INDEX[67] = 1;
+        ALLELE_INDEX[71] = 2;
+        ALLELE_INDEX[84] = 3;
+    }
+
     int nrThreads = 1;
     private TriTyperGenotypeData ggDataset1;
     private TriTyperGenotypeData ggDataset2;
@@ -31,7 +48,7 @@ public class TriTyperDatasetCorrelator {
     private int[] beaglecorrelationfreqdistribution;
 
     public TriTyperDatasetCorrelator(String dataset1, String dataset1Name, String dataset2, String dataset2Name) throws IOException {
-        nrThreads = 2;
+        nrThreads = Runtime.getRuntime().availableProcessors();
         System.out.println("Running with " + nrThreads + " threads.");
 
         ggDataset1 = new TriTyperGenotypeData();
@@ -43,7 +60,7 @@ public class TriTyperDatasetCorrelator {
     }
 
     public TriTyperDatasetCorrelator(String dataset1, String dataset1Name, String dataset2, String dataset2Name, String beagleInput, String template, Integer numBatches) throws IOException {
-        nrThreads = 2;
+        nrThreads = Runtime.getRuntime().availableProcessors();
         System.out.println("Running with " + nrThreads + " threads.");
 
         loadBeagleR2(beagleInput, template, numBatches);
@@ -58,6 +75,18 @@ public class TriTyperDatasetCorrelator {
 
     public double[] getGenotypes(SNP snp, TriTyperGenotypeData gg, int[] inds) {
         double[] tmpGenotypes = new double[inds.length];
+        fillGenotypes(snp, inds, tmpGenotypes);
+        return tmpGenotypes;
+    }
+
+    /**
+     * Genotypes or dosages of the individuals in inds
+     *
+     * @param snp loaded SNP
+     * @param inds
+     * @param tmpGenotypes buffer of inds.length
+     */
+    private static void fillGenotypes(SNP snp, int[] inds, double[] tmpGenotypes) {
 
         double[] dosage = snp.getDosageValues();
         byte[] genotypes = snp.getGenotypes();
@@ -87,29 +116,10 @@ public class TriTyperDatasetCorrelator {
 //	    System.out.print(tmpGenotypes[g]+" ");
 //	}
         // System.out.println("");
-
-        return tmpGenotypes;
     }
 
     public void run(String outputLocation) throws IOException {
 
-        //Complement allele information:
-        byte[] complementAllele = new byte[256];
-        complementAllele[0] = 0; // Nothing
-        complementAllele[84] = 65; //T > A
-        complementAllele[65] = 84; //A > T
-        complementAllele[48] = 48; //- > -
-        complementAllele[67] = 71; //C > G
-        complementAllele[71] = 67; //G > C
-        int[] alleleIndex = new int[256];
-        for (int a = 0; a < 256; a++) {
-            alleleIndex[a] = 4;
-        }
-        alleleIndex[65] = 0;
-        alleleIndex[67] = 1;
-        alleleIndex[71] = 2;
-        alleleIndex[84] = 3;
-
         log = new TextFile(outputLocation + "/correlationOutput.txt", TextFile.W);
 
         determineUniqueSNPS();
@@ -177,285 +187,112 @@ public class TriTyperDatasetCorrelator {
 
         int[] correlationfreqdistribution = new int[11];
 
-        int[] correlationdifferencedistribution = new int[11];
-
         int prevInt = 0;
-        int corNo = 0;
         ScatterPlot s = null;
         if (beagleR2 != null) {
 
             // create image
             s = new ScatterPlot(1000);
 
-
-
         }
 
         System.out.println("Mapping SNPs");
         SNPLoader loader1 = ggDataset1.createSNPLoader();
         SNPLoader loader2 = ggDataset2.createSNPLoader();
 
-        for (int snp1 = 0; snp1 < snps.length; snp1++) {
-            Integer snp2 = ggDataset2.getSnpToSNPId().get(snps[snp1]);
-            if (snp2 != -9) {
-                boolean takeComplement = false;
-                String excludeReason = "";
-                boolean exclude = false;
-
-                SNP snp1Object = ggDataset1.getSNPObject(snp1);
-                SNP snp2Object = ggDataset2.getSNPObject(snp2);
-
-                loader1.loadGenotypes(snp1Object);
-                loader2.loadGenotypes(snp2Object);
-
-                double[] genotypes1 = getGenotypes(snp1Object, ggDataset1, inds1Final);
-                double[] genotypes2 = getGenotypes(snp2Object, ggDataset2, inds2Final);
-
-                // search for missing genotypes
-                int missingGenotypes = 0;
-                for (int g = 0; g < genotypes1.length; g++) {
-                    // System.out.print(genotypes1[g]+"\t"+genotypes2[g]+"\n");
-                    if (genotypes1[g] == -1 || genotypes2[g] == -1) {
-                        genotypes1[g] = -1;
-                        genotypes2[g] = -1;
-                        missingGenotypes++;
-                    }
-                }
-                // System.out.println("");
-
-                if ((double) missingGenotypes / genotypes1.length > 0.1) {
-                    exclude = true;
-                    excludeReason = "SNP has low callrate (> 10%): Missing: " + missingGenotypes + " / " + genotypes1.length;
-                }
-
-                double maf1 = snp1Object.getMAF();
-                double maf2 = snp2Object.getMAF();
-
-                if (maf1 < 0.05 || maf2 < 0.05) {
-                    exclude = true;
-                    excludeReason += "\tMAF < 0.05: " + maf1 + "\t" + maf2;
-                }
-
-                //Check whether the physical mapping of the two SNPs is identical:
-                if (ggDataset1.getChr(snp1) != null) {
-                    int chr1 = ggDataset1.getChr(snp1);
-                    int pos1 = ggDataset1.getChrPos(snp1);
-
-                    int chr2 = ggDataset2.getChr(snp2);
-                    int pos2 = ggDataset2.getChrPos(snp2);
-                    if (chr1 != chr2 || pos1 != pos2) {
-                        // do stuff
-                        exclude = true;
-                        excludeReason += "\tSNPs map to different positions";
-                    }
-                }
-
-                //SNP has been typed both in dataset and dataset2, do we need to take complementary alleles?
-                byte[] allelesbytes = snp1Object.getAlleles();
-                String alleles2 = new String(snp2Object.getAlleles());
-                String alleles1 = null;
-                try {
-                    alleles1 = new String(snp1Object.getAlleles(), "UTF-8");
-                } catch (Exception e) {
-                }
-
-                boolean allelesOk = true;
-
-                if (allelesbytes[0] == 00 || allelesbytes[1] == 00) {
-                    exclude = true;
-                }
-
-
-                if (alleles1 == null) {
-                    exclude = true;
-                    excludeReason += " SNPs has null alleles";
-                }
-
-
-                // hashSNPAllelesHapMap.put(rsName, allelesHapMap);
-
-                boolean strandForward = true;
-                int[] alleleIndex1 = new int[5];
-
-                for (int ind = 0; ind < ggDataset2.getIndividuals().length; ind++) {
-                    if (ggDataset2.getIsIncluded()[ind]) {
-                        byte[] snpallele1 = snp2Object.getAllele1();
-                        byte[] snpallele2 = snp2Object.getAllele2();
-                        byte allele1Byte = snpallele1[ind];
-                        alleleIndex1[alleleIndex[allele1Byte]]++;
-                        byte allele2Byte = snpallele2[ind];
-                        alleleIndex1[alleleIndex[allele2Byte]]++;
-                    }
-                }
-                int[] alleleIndex2 = new int[5];
-                for (int ind = 0; ind < ggDataset1.getIndividuals().length; ind++) {
-                    if (ggDataset1.getIsIncluded()[ind]) {
-                        byte[] snpallele1 = snp1Object.getAllele1();
-                        byte[] snpallele2 = snp1Object.getAllele2();
-
-                        byte allele1Byte = snpallele1[ind];
-                        alleleIndex2[alleleIndex[allele1Byte]]++;
-                        byte allele2Byte = snpallele2[ind];
-                        alleleIndex2[alleleIndex[allele2Byte]]++;
-                    }
-                }
-
-                double[] alleleIndexFreq1 = new double[4];
-                double[] alleleIndexFreq2 = new double[4];
-                int itr = 0;
-
-                boolean issueResolved = false;
-
-                while (!issueResolved) {
-                    //Take complement alleles when necessary:
-                    if (!strandForward) {
-                        int[] alleleIndex1Copy = new int[4];
-                        System.arraycopy(alleleIndex1, 0, alleleIndex1Copy, 0, 4);
-                        alleleIndex1[0] = alleleIndex1Copy[3];
-                        alleleIndex1[1] = alleleIndex1Copy[2];
-                        alleleIndex1[2] = alleleIndex1Copy[1];
-                        alleleIndex1[3] = alleleIndex1Copy[0];
-                    }
-                    //Determine total number of called alleles:
-                    int totalCalled1 = 0;
-                    int totalCalled2 = 0;
-                    for (int a = 0; a < 4; a++) {
-                        totalCalled1 += alleleIndex1[a];
-                        totalCalled2 += alleleIndex2[a];
-                    }
-                    //Calculate allele freq:
-                    for (int a = 0; a < 4; a++) {
-                        alleleIndexFreq1[a] = (double) alleleIndex1[a] / (double) totalCalled1;
-                        alleleIndexFreq2[a] = (double) alleleIndex2[a] / (double) totalCalled2;
-                    }
-                    //Check whether alleles are identical:
-                    int nrDifferentAllelesPresent = 0;
-                    for (int a = 0; a < 4; a++) {
-                        if (alleleIndexFreq1[a] > 0 || alleleIndexFreq2[a] > 0) {
-                            nrDifferentAllelesPresent++;
-                        }
-                    }
-                    if (nrDifferentAllelesPresent > 2) {
-                        strandForward = !strandForward;
-                    } else {
-                        //break;
-                        issueResolved = true;
-                    }
-                    itr++;
-
-                    if (itr >= 2) {
-                        if (!issueResolved) {
-                            //Taking complementary alleles does not resolve anything:
-                            exclude = true;
-                            issueResolved = true;
-                            excludeReason += "\tIncompatibleAlleles:Dataset=" + alleles2 + ",HapMap=" + alleles1;
-                        }
-                    }
+        // SNPs are loaded in batches on this thread, compared on the pool and
+        // merged in SNP order, so all counts and output are as when run serially
+        ExecutorService threadPool = Executors.newFixedThreadPool(nrThreads);
+        ThreadLocal<double[][]> genotypeBuffers = ThreadLocal.withInitial(() -> new double[2][inds1Final.length]);
+        ArrayList<SNP[]> batch = new ArrayList<SNP[]>(SNP_BATCH_SIZE);
+        ArrayList<int[]> batchIds = new ArrayList<int[]>(SNP_BATCH_SIZE);
+        ArrayList<Future<SnpComparison>> comparisons = new ArrayList<Future<SnpComparison>>(SNP_BATCH_SIZE);
+
+        try {
+            for (int snp1 = 0; snp1 < snps.length; snp1++) {
+                Integer snp2 = ggDataset2.getSnpToSNPId().get(snps[snp1]);
+                if (snp2 != -9) {
+                    SNP snp1Object = ggDataset1.getSNPObject(snp1);
+                    SNP snp2Object = ggDataset2.getSNPObject(snp2);
+
+                    loader1.loadGenotypes(snp1Object);
+                    loader2.loadGenotypes(snp2Object);
+
+                    batch.add(new SNP[]{snp1Object, snp2Object});
+                    batchIds.add(new int[]{snp1, snp2});
                 }
 
-                takeComplement = !strandForward;
+                if (batch.size() == SNP_BATCH_SIZE || (snp1 == snps.length - 1 && !batch.isEmpty())) {
 
-                //Check whether allele freq is comparable:
-                boolean concordant = true;
-                for (int a = 0; a < 4; a++) {
-                    if (alleleIndexFreq1[a] > 0 && alleleIndexFreq2[a] > 0) {
-                        if (alleleIndexFreq1[a] > 0.5 && alleleIndexFreq2[a] < 0.5) {
-                            concordant = false;
-                        }
-                        if (alleleIndexFreq1[a] < 0.5 && alleleIndexFreq2[a] > 0.5) {
-                            concordant = false;
-                        }
+                    for (int b = 0; b < batch.size(); b++) {
+                        final SNP snp1Object = batch.get(b)[0];
+                        final SNP snp2Object = batch.get(b)[1];
+                        final int[] ids = batchIds.get(b);
+                        comparisons.add(threadPool.submit(() -> {
+                            double[][] buffers = genotypeBuffers.get();
+                            return compareSnps(snp1Object, ids[0], snp2Object, ids[1], inds1Final, inds2Final, buffers[0], buffers[1]);
+                        }));
                     }
-                }
-
-                //If SNP is AT or CG SNP, it can be we had to take complementary allele:
-                byte[] snpAlleles = snp2Object.getAlleles();
-                if (snpAlleles[0] + snpAlleles[1] == 65 + 84 || snpAlleles[0] + snpAlleles[1] == 67 + 71) {
-                    if (!concordant) {
-                        takeComplement = !takeComplement;
-                        concordant = true;
-                    }
-                }
 
+                    for (int b = 0; b < batch.size(); b++) {
+                        SnpComparison comparison = comparisons.get(b).get();
+                        SNP snp1Object = batch.get(b)[0];
 
+                        if (comparison.exclude && comparison.takeComplement) {
+                            System.out.println(snp1Object.getName() + "\t" + comparison.excludeReason);
+                        } else if (!comparison.exclude) {
 
-                if (exclude && takeComplement) {
-                    System.out.println(snp1Object.getName() + "\t" + excludeReason);
-                } else if (!exclude) {
-                    double[] finalGenotypes1 = null;
-                    double[] finalGenotypes2 = null;
-                    if (missingGenotypes > 0) {
+                            double correlation = comparison.correlation;
+                            double absCor = Math.abs(correlation);
+                            double absCorSquared = absCor * absCor;
 
-                        finalGenotypes1 = new double[genotypes1.length - missingGenotypes];
-                        finalGenotypes2 = new double[genotypes1.length - missingGenotypes];
-                        int ctr = 0;
-                        for (int i = 0; i < genotypes1.length; i++) {
-                            if (genotypes1[i] != -1) {
-                                finalGenotypes1[ctr] = genotypes1[i];
-
-                                finalGenotypes2[ctr] = genotypes2[i];
+                            if (beagleR2 != null) {
+                                ArrayList<Double> r2s = beagleR2.get(snp1Object.getName());
+                                double m = 0;
+                                for (int i = 0; i < r2s.size(); i++) {
+                                    m += r2s.get(i);
+                                }
+                                m /= r2s.size();
+                                s.plot(absCorSquared, m);
 
-                                ctr++;
                             }
-                        }
-                    } else {
-                        finalGenotypes1 = genotypes1;
-                        finalGenotypes2 = genotypes2;
-                    }
-
-
-                    // System.out.println(snps[snp1]);
-                    double correlation = JSci.maths.ArrayMath.correlation(finalGenotypes1, finalGenotypes2);
 
+                            int binNumber = (int) (absCorSquared * 10d);
+                            correlationfreqdistribution[binNumber]++;
+                            if (absCor <= 0.80) {
+                                below80++;
+                            }
 
+                            if (absCorSquared <= 0.80) {
+                                belowSquared80++;
+                            }
 
-                    // System.out.println(correlation);
+                            if (correlation < 0) {
+                                flipped++;
+                            }
 
-                    // System.exit(0);
-                    double absCor = Math.abs(correlation);
-                    double absCorSquared = absCor * absCor;
+                            counter++;
 
-                    if (beagleR2 != null) {
-                        ArrayList<Double> r2s = beagleR2.get(snp1Object.getName());
-                        double m = 0;
-                        for (int i = 0; i < r2s.size(); i++) {
-                            m += r2s.get(i);
+                            if (counter % 10000 == 0 && counter > prevInt) {
+                                System.out.println(counter + " SNPS processed\t" + below80 + "\t" + (100 * (double) below80 / counter) + "% R <= 0.80.\ts" + (100 * (double) belowSquared80 / counter) + "% R2 <= 0.80.\t" + flipped + " - " + (100 * (double) flipped / counter) + " flipped");
+                                prevInt = counter;
+                            }
                         }
-                        m /= r2s.size();
-                        s.plot(absCorSquared, m);
-
+                        snp1Object.clearGenotypes();
+                        batch.get(b)[1].clearGenotypes();
                     }
 
-                    int binNumber = (int) (absCorSquared * 10d);
-                    correlationfreqdistribution[binNumber]++;
-                    if (absCor <= 0.80) {
-                        below80++;
-                    }
-
-                    if (absCorSquared <= 0.80) {
-                        belowSquared80++;
-                    }
-
-                    if (correlation < 0) {
-                        flipped++;
-                    }
-
-                    snp1Object = null;
-                    snp2Object = null;
-
-                    counter++;
-
-                    //corrs[corNo] = correlation * correlation;
-                    corNo++;
-
-                    if (counter % 10000 == 0 && counter > prevInt) {
-                        System.out.println(counter + " SNPS processed\t" + below80 + "\t" + (100 * (double) below80 / counter) + "% R <= 0.80.\ts" + (100 * (double) belowSquared80 / counter) + "% R2 <= 0.80.\t" + flipped + " - " + (100 * (double) flipped / counter) + " flipped");
-                        prevInt = counter;
-                    }
+                    batch.clear();
+                    batchIds.clear();
+                    comparisons.clear();
                 }
-                snp1Object.clearGenotypes();
-                snp2Object.clearGenotypes();
             }
+        } catch (InterruptedException e) {
+            throw new IOException("Interrupted while comparing SNPs", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Error comparing SNPs", e.getCause());
+        } finally {
+            threadPool.shutdown();
         }
 
         if (beagleR2 != null) {
@@ -499,6 +336,213 @@ public class TriTyperDatasetCorrelator {
         log.close();
     }
 
+    /**
+     * Result of the comparison of a SNP in both datasets
+     */
+    private static class SnpComparison {
+
+        private boolean exclude = false;
+        private boolean takeComplement = false;
+        private String excludeReason = "";
+        private double correlation;
+    }
+
+    /**
+     * Compares the genotypes of a SNP in both datasets. Only reads the
+     * datasets so it can run on multiple threads.
+     *
+     * @param snp1Object loaded SNP of dataset 1
+     * @param snp1 id of the SNP in dataset 1
+     * @param snp2Object loaded SNP of dataset 2
+     * @param snp2 id of the SNP in dataset 2
+     * @param inds1Final shared individuals in dataset 1
+     * @param inds2Final the same individuals in dataset 2
+     * @param genotypes1 buffer of inds1Final.length
+     * @param genotypes2 buffer of inds1Final.length
+     * @return
+     */
+    private SnpComparison compareSnps(SNP snp1Object, int snp1, SNP snp2Object, int snp2, int[] inds1Final, int[] inds2Final, double[] genotypes1, double[] genotypes2) {
+
+        SnpComparison comparison = new SnpComparison();
+
+        fillGenotypes(snp1Object, inds1Final, genotypes1);
+        fillGenotypes(snp2Object, inds2Final, genotypes2);
+
+        // search for missing genotypes
+        int missingGenotypes = 0;
+        for (int g = 0; g < genotypes1.length; g++) {
+            if (genotypes1[g] == -1 || genotypes2[g] == -1) {
+                genotypes1[g] = -1;
+                genotypes2[g] = -1;
+                missingGenotypes++;
+            }
+        }
+
+        if ((double) missingGenotypes / genotypes1.length > 0.1) {
+            comparison.exclude = true;
+            comparison.excludeReason = "SNP has low callrate (> 10%): Missing: " + missingGenotypes + " / " + genotypes1.length;
+        }
+
+        double maf1 = snp1Object.getMAF();
+        double maf2 = snp2Object.getMAF();
+
+        if (maf1 < 0.05 || maf2 < 0.05) {
+            comparison.exclude = true;
+            comparison.excludeReason += "\tMAF < 0.05: " + maf1 + "\t" + maf2;
+        }
+
+        //Check whether the physical mapping of the two SNPs is identical:
+        if (ggDataset1.getChr(snp1) != null) {
+            int chr1 = ggDataset1.getChr(snp1);
+            int pos1 = ggDataset1.getChrPos(snp1);
+
+            int chr2 = ggDataset2.getChr(snp2);
+            int pos2 = ggDataset2.getChrPos(snp2);
+            if (chr1 != chr2 || pos1 != pos2) {
+                comparison.exclude = true;
+                comparison.excludeReason += "\tSNPs map to different positions";
+            }
+        }
+
+        //SNP has been typed both in dataset and dataset2, do we need to take complementary alleles?
+        byte[] allelesbytes = snp1Object.getAlleles();
+        String alleles2 = new String(snp2Object.getAlleles());
+        String alleles1 = null;
+        try {
+            alleles1 = new String(snp1Object.getAlleles(), "UTF-8");
+        } catch (Exception e) {
+        }
+
+        if (allelesbytes[0] == 00 || allelesbytes[1] == 00) {
+            comparison.exclude = true;
+        }
+
+        if (alleles1 == null) {
+            comparison.exclude = true;
+            comparison.excludeReason += " SNPs has null alleles";
+        }
+
+        boolean strandForward = true;
+        int[] alleleIndex1 = countAlleles(snp2Object, ggDataset2.getIsIncluded());
+        int[] alleleIndex2 = countAlleles(snp1Object, ggDataset1.getIsIncluded());
+
+        double[] alleleIndexFreq1 = new double[4];
+        double[] alleleIndexFreq2 = new double[4];
+        int itr = 0;
+
+        boolean issueResolved = false;
+
+        while (!issueResolved) {
+            //Take complement alleles when necessary:
+            if (!strandForward) {
+                int[] alleleIndex1Copy = new int[4];
+                System.arraycopy(alleleIndex1, 0, alleleIndex1Copy, 0, 4);
+                alleleIndex1[0] = alleleIndex1Copy[3];
+                alleleIndex1[1] = alleleIndex1Copy[2];
+                alleleIndex1[2] = alleleIndex1Copy[1];
+                alleleIndex1[3] = alleleIndex1Copy[0];
+            }
+            //Determine total number of called alleles:
+            int totalCalled1 = 0;
+            int totalCalled2 = 0;
+            for (int a = 0; a < 4; a++) {
+                totalCalled1 += alleleIndex1[a];
+                totalCalled2 += alleleIndex2[a];
+            }
+            //Calculate allele freq:
+            for (int a = 0; a < 4; a++) {
+                alleleIndexFreq1[a] = (double) alleleIndex1[a] / (double) totalCalled1;
+                alleleIndexFreq2[a] = (double) alleleIndex2[a] / (double) totalCalled2;
+            }
+            //Check whether alleles are identical:
+            int nrDifferentAllelesPresent = 0;
+            for (int a = 0; a < 4; a++) {
+                if (alleleIndexFreq1[a] > 0 || alleleIndexFreq2[a] > 0) {
+                    nrDifferentAllelesPresent++;
+                }
+            }
+            if (nrDifferentAllelesPresent > 2) {
+                strandForward = !strandForward;
+            } else {
+                issueResolved = true;
+            }
+            itr++;
+
+            if (itr >= 2) {
+                if (!issueResolved) {
+                    //Taking complementary alleles does not resolve anything:
+                    comparison.exclude = true;
+                    issueResolved = true;
+                    comparison.excludeReason += "\tIncompatibleAlleles:Dataset=" + alleles2 + ",HapMap=" + alleles1;
+                }
+            }
+        }
+
+        comparison.takeComplement = !strandForward;
+
+        //Check whether allele freq is comparable:
+        boolean concordant = true;
+        for (int a = 0; a < 4; a++) {
+            if (alleleIndexFreq1[a] > 0 && alleleIndexFreq2[a] > 0) {
+                if (alleleIndexFreq1[a] > 0.5 && alleleIndexFreq2[a] < 0.5) {
+                    concordant = false;
+                }
+                if (alleleIndexFreq1[a] < 0.5 && alleleIndexFreq2[a] > 0.5) {
+                    concordant = false;
+                }
+            }
+        }
+
+        //If SNP is AT or CG SNP, it can be we had to take complementary allele:
+        byte[] snpAlleles = snp2Object.getAlleles();
+        if (snpAlleles[0] + snpAlleles[1] == 65 + 84 || snpAlleles[0] + snpAlleles[1] == 67 + 71) {
+            if (!concordant) {
+                comparison.takeComplement = !comparison.takeComplement;
+            }
+        }
+
+        if (!comparison.exclude) {
+            double[] finalGenotypes1;
+            double[] finalGenotypes2;
+            if (missingGenotypes > 0) {
+
+                finalGenotypes1 = new double[genotypes1.length - missingGenotypes];
+                finalGenotypes2 = new double[genotypes1.length - missingGenotypes];
+                int ctr = 0;
+                for (int i = 0; i < genotypes1.length; i++) {
+                    if (genotypes1[i] != -1) {
+                        finalGenotypes1[ctr] = genotypes1[i];
+                        finalGenotypes2[ctr] = genotypes2[i];
+                        ctr++;
+                    }
+                }
+            } else {
+                finalGenotypes1 = genotypes1;
+                finalGenotypes2 = genotypes2;
+            }
+
+            comparison.correlation = JSci.maths.ArrayMath.correlation(finalGenotypes1, finalGenotypes2);
+        }
+
+        return comparison;
+    }
+
+    /**
+     * Allele counts of the included individuals, indexed as ALLELE_INDEX
+     */
+    private static int[] countAlleles(SNP snpObject, boolean[] isIncluded) {
+        int[] alleleCounts = new int[5];
+        byte[] snpallele1 = snpObject.getAllele1();
+        byte[] snpallele2 = snpObject.getAllele2();
+        for (int ind = 0; ind < isIncluded.length; ind++) {
+            if (isIncluded[ind]) {
+                alleleCounts[ALLELE_INDEX[snpallele1[ind] & 0xff]]++;
+                alleleCounts[ALLELE_INDEX[snpallele2[ind] & 0xff]]++;
+            }
+        }
+        return alleleCounts;
+    }
+
     private void loadBeagleR2(String inputDir, String template, Integer numBatches) throws IOException {
 
         String[] batchNames = getBatches(numBatches);
@@ -0,0 +1,145 @@
+package nl.umcg.bondermj.pcoa;
+
+import cern.colt.matrix.tdouble.DoubleMatrix2D;
+import cern.colt.matrix.tdouble.impl.DenseDoubleMatrix2D;
+import cern.colt.matrix.tdouble.impl.DenseLargeDoubleMatrix2D;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import umcg.genetica.console.ProgressBar;
+import umcg.genetica.math.stats.Descriptives;
+
+/**
+ * Pairwise sample x sample matrices calculated in square tiles of samples.
+ * Only the tiles on and above the diagonal are calculated, each tile is a
+ * task for the thread pool. The rows of a tile stay in cache while they are
+ * compared to all rows of the other tile. The lower triangle is filled by
+ * mirroring the upper triangle.
+ *
+ * Every pair is summed in the same order as in ConcurrentCovariation,
+ * ConcurrentCityBlock and ConcurrentBrayCurtis so the matrices are identical.
+ */
+public class BlockedDistanceMatrix {
+
+    private static final int TILE_SIZE = 64;
+
+    public enum Distance {
+
+        COVARIATION, CITYBLOCK, BRAYCURTIS
+    }
+
+    private BlockedDistanceMatrix() {
+    }
+
+    /**
+     *
+     * @param in rows are the samples
+     * @param distance
+     * @param nrThreads
+     * @return symmetric matrix of samples x samples
+     */
+    public static DoubleMatrix2D pairwiseDoubleMatrix(double[][] in, final Distance distance, int nrThreads) {
+
+        final int n = in.length;
+
+        final DoubleMatrix2D matrix;
+        if ((n * (long) n) > (Integer.MAX_VALUE - 2)) {
+            matrix = new DenseLargeDoubleMatrix2D(n, n);
+        } else {
+            matrix = new DenseDoubleMatrix2D(n, n);
+        }
+
+        final double[][] rows;
+        if (distance == Distance.COVARIATION) {
+            //x[a] - meanX is the same value in every pair, so subtract once
+            rows = new double[n][];
+            for (int i = 0; i < n; ++i) {
+                double mean = Descriptives.mean(in[i]);
+                double[] centered = new double[in[i].length];
+                for (int a = 0; a < centered.length; ++a) {
+                    centered[a] = in[i][a] - mean;
+                }
+                rows[i] = centered;
+            }
+        } else {
+            rows = in;
+        }
+
+        final int nrTiles = (n + TILE_SIZE - 1) / TILE_SIZE;
+        final ExecutorService threadPool = Executors.newFixedThreadPool(nrThreads);
+        final ProgressBar pb = new ProgressBar((long) nrTiles * (nrTiles + 1) / 2, "Calculation of " + distance.name().toLowerCase() + " matrix: " + n + " x " + n);
+
+        try {
+            List<Future<?>> tiles = new ArrayList<Future<?>>();
+            for (int tileRow = 0; tileRow < nrTiles; ++tileRow) {
+                for (int tileCol = tileRow; tileCol < nrTiles; ++tileCol) {
+                    final int rowStart = tileRow * TILE_SIZE;
+                    final int rowEnd = Math.min(n, rowStart + TILE_SIZE);
+                    final int colStart = tileCol * TILE_SIZE;
+                    final int colEnd = Math.min(n, colStart + TILE_SIZE);
+                    tiles.add(threadPool.submit(new Callable<Void>() {
+                        @Override
+                        public Void call() {
+                            calculateTile(rows, matrix, distance, rowStart, rowEnd, colStart, colEnd);
+                            pb.iterateSynched();
+                            return null;
+                        }
+                    }));
+                }
+            }
+            for (Future<?> tile : tiles) {
+                tile.get();
+            }
+        } catch (InterruptedException ex) {
+            throw new RuntimeException(ex);
+        } catch (ExecutionException ex) {
+            throw new RuntimeException(ex.getCause());
+        } finally {
+            threadPool.shutdown();
+            pb.close();
+        }
+
+        for (int r = 1; r < n; r++) {
+            for (int c = 0; c < r; c++) {
+                matrix.setQuick(r, c, matrix.getQuick(c, r));
+            }
+        }
+
+        return matrix;
+
+    }
+
+    private static void calculateTile(double[][] rows, DoubleMatrix2D matrix, Distance distance, int rowStart, int rowEnd, int colStart, int colEnd) {
+
+        for (int i = rowStart; i < rowEnd; ++i) {
+            final double[] x = rows[i];
+            for (int j = Math.max(i, colStart); j < colEnd; ++j) {
+                final double[] y = rows[j];
+                final double value;
+                switch (distance) {
+                    case COVARIATION: {
+                        double covarianceInterim = 0;
+                        for (int a = 0; a < x.length; a++) {
+                            covarianceInterim += x[a] * y[a];
+                        }
+                        value = covarianceInterim / (x.length - 1);
+                        break;
+                    }
+                    case CITYBLOCK:
+                        value = i == j ? 0 : Descriptives.cityBlockDistance(x, y);
+                        break;
+                    default:
+                        value = i == j ? 0 : Descriptives.BrayCurtisDistance(x, y);
+                        break;
+                }
+                matrix.setQuick(i, j, value);
+            }
+        }
+
+    }
+
+}
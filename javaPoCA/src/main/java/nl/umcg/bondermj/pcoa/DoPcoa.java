@@ -59,6 +59,7 @@ public class DoPcoa {
             + "  \\---------------------------------------/";
     private static final DateFormat DATE_TIME_FORMAT = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
     public static final NumberFormat DEFAULT_NUMBER_FORMATTER = NumberFormat.getInstance();
+    private static final int MIN_SIZE_TRUNCATED_EIGEN_DECOMPOSITION = 500;
 
     /**
      * @param args the command line arguments
@@ -181,8 +182,7 @@ public class DoPcoa {
                             }
                         }
                     }
-                    ConcurrentCovariation c = new ConcurrentCovariation(usable);
-                    matrix = c.pairwiseCovariationDoubleMatrix(inputData.getMatrix().viewDice().toArray());
+                    matrix = BlockedDistanceMatrix.pairwiseDoubleMatrix(inputData.getMatrix().viewDice().toArray(), BlockedDistanceMatrix.Distance.COVARIATION, usable);
                     t = new DoubleMatrixDataset<>(matrix, inputData.getHashCols(), inputData.getHashCols());
                     t.save(prefix + ".CovariationMatrix.txt.gz");
 
@@ -208,8 +208,7 @@ public class DoPcoa {
                             }
                         }
                     }
-                    ConcurrentCityBlock c = new ConcurrentCityBlock(usable);
-                    matrix = c.pairwiseCityBlockDoubleMatrix(inputData.getMatrix().viewDice().toArray());
+                    matrix = BlockedDistanceMatrix.pairwiseDoubleMatrix(inputData.getMatrix().viewDice().toArray(), BlockedDistanceMatrix.Distance.CITYBLOCK, usable);
                     t = new DoubleMatrixDataset<>(matrix, inputData.getHashCols(), inputData.getHashCols());
                     t.save(prefix + ".CityBlockMatrix.txt.gz");
                     break;
@@ -234,8 +233,7 @@ public class DoPcoa {
                             }
                         }
                     }
-                    ConcurrentBrayCurtis c = new ConcurrentBrayCurtis(usable);
-                    matrix = c.pairwiseBrayCurtisDoubleMatrix(inputData.getMatrix().viewDice().toArray());
+                    matrix = BlockedDistanceMatrix.pairwiseDoubleMatrix(inputData.getMatrix().viewDice().toArray(), BlockedDistanceMatrix.Distance.BRAYCURTIS, usable);
                     t = new DoubleMatrixDataset<>(matrix, inputData.getHashCols(), inputData.getHashCols());
                     t.save(prefix + ".BrayCurtisMatrix.txt.gz");
                     break;
@@ -356,6 +354,11 @@ public class DoPcoa {
         String expressionFile = fileNamePrefix;
         System.out.println("- Performing PCA over matrix of size: " + CorMatrix.columns() + "x" + CorMatrix.rows());
 
+        if (useTruncatedEigenDecomposition(CorMatrix, nrOfPCsToCalculate)) {
+            calculateTruncatedPCA(dataset, CorMatrix, expressionFile, nrOfPCsToCalculate, ".PCAOverSamplesEigenvalues_pc.txt.gz", ".PCAOverSamplesEigenvectors_pc.txt.gz");
+            return;
+        }
+
         DenseDoubleEigenvalueDecomposition eig = new DenseDoubleEigenvalueDecomposition(CorMatrix);
 
         //System.out.println(dataset.columns());
@@ -416,6 +419,11 @@ public class DoPcoa {
         String expressionFile = fileNamePrefix;
         System.out.println("- Performing PCA over matrix of size: " + CorMatrix.columns() + "x" + CorMatrix.rows());
 
+        if (useTruncatedEigenDecomposition(CorMatrix, nrOfPCsToCalculate)) {
+            calculateTruncatedPCA(dataset, CorMatrix, expressionFile, nrOfPCsToCalculate, ".PCAOverSamplesEigenvalues.txt.gz", ".PCAOverSamplesEigenvectors.txt.gz");
+            return;
+        }
+
         EVD evd = new EVD(CorMatrix.columns(), false, true);
         try {
             evd.factor(new DenseMatrix(CorMatrix.toArray()));
@@ -484,6 +492,75 @@ public class DoPcoa {
         datasetPCAOverSamplesPCAs.save(expressionFile + ".PCAOverSamplesPrincipalComponents.txt.gz");
     }
 
+    /**
+     * The full decompositions are O(n^3) for all components, Lanczos only
+     * needs matrix vector products when a few components are requested.
+     *
+     * @param CorMatrix
+     * @param nrOfPCsToCalculate
+     * @return
+     */
+    private static boolean useTruncatedEigenDecomposition(DoubleMatrix2D CorMatrix, int nrOfPCsToCalculate) {
+        return CorMatrix.rows() >= MIN_SIZE_TRUNCATED_EIGEN_DECOMPOSITION && nrOfPCsToCalculate * 4 <= CorMatrix.rows();
+    }
+
+    /**
+     * Calculate PCA scores for the first components only, using the Lanczos
+     * algorithm. Output is identical in format to the full decompositions.
+     *
+     * @param dataset
+     * @param CorMatrix
+     * @param fileNamePrefix
+     * @param nrOfPCsToCalculate
+     * @param eigenvaluesSuffix
+     * @param eigenvectorsSuffix
+     * @throws IOException
+     */
+    private static void calculateTruncatedPCA(DoubleMatrixDataset<String, String> dataset, DoubleMatrix2D CorMatrix, String fileNamePrefix, Integer nrOfPCsToCalculate, String eigenvaluesSuffix, String eigenvectorsSuffix) throws IOException {
+        String expressionFile = fileNamePrefix;
+
+        LanczosEigenDecomposition eig = new LanczosEigenDecomposition(CorMatrix, nrOfPCsToCalculate);
+        System.out.println("- Lanczos steps needed for the first " + nrOfPCsToCalculate + " components: " + eig.getSteps());
+
+        System.out.println("- Number of components to be written: " + nrOfPCsToCalculate);
+
+        double[] eigenValues = eig.getEigenvalues();
+
+        TextFile out = new TextFile(expressionFile + eigenvaluesSuffix, TextFile.W);
+        out.writeln("PCA\tEigenValue\tExplained variance\tTotal variance");
+
+        double cumExpVarPCA = 0;
+
+        //Sum of all eigenvalues is the trace
+        double eigenValueSum = 0;
+        for (int i = 0; i < CorMatrix.rows(); ++i) {
+            eigenValueSum += CorMatrix.getQuick(i, i);
+        }
+
+        LinkedHashMap<String, Integer> tmpNameBuffer = new LinkedHashMap<>();
+        for (int pca = 0; pca < nrOfPCsToCalculate; pca++) {
+            double expVarPCA = eigenValues[pca] / eigenValueSum;
+            int pcaNr = pca + 1;
+            cumExpVarPCA += expVarPCA;
+            out.write(pcaNr + "\t" + eigenValues[pca] + "\t" + expVarPCA + "\t" + cumExpVarPCA + "\n");
+            tmpNameBuffer.put("Comp" + String.valueOf(pcaNr), pca);
+        }
+        out.close();
+
+        DoubleMatrixDataset<String, String> datasetEV = new DoubleMatrixDataset<>(eig.getEigenvectors(), dataset.getHashCols(), tmpNameBuffer);
+        eig = null;
+
+        datasetEV.save(expressionFile + eigenvectorsSuffix);
+
+        System.out.println("Calculating PCs");
+        System.out.println("Initializing PCA matrix");
+
+        DoubleMatrixDataset<String, String> datasetPCAOverSamplesPCAs = new DoubleMatrixDataset<String, String>(dataset.getMatrix().zMult(datasetEV.getMatrix(), null), dataset.getHashRows(), tmpNameBuffer);
+
+        System.out.println("Saving PCA scores: " + expressionFile + ".PCAOverSamplesPrincipalComponents.txt.gz");
+        datasetPCAOverSamplesPCAs.save(expressionFile + ".PCAOverSamplesPrincipalComponents.txt.gz");
+    }
+
     public static void regressOutPCs(DoubleMatrixDataset<String, String> dataset, String fileNamePrefix, String PcaFile, String eigenVectorFile, int nrPCAsOverSamplesToRemove, int nrIntermediatePCAsOverSamplesToRemoveToOutput) throws IOException, Exception {
         DenseDoubleAlgebra Alg = new DenseDoubleAlgebra();
 
@@ -0,0 +1,216 @@
+package nl.umcg.bondermj.pcoa;
+
+import cern.colt.matrix.tdouble.DoubleMatrix1D;
+import cern.colt.matrix.tdouble.DoubleMatrix2D;
+import cern.colt.matrix.tdouble.algo.decomposition.DenseDoubleEigenvalueDecomposition;
+import cern.colt.matrix.tdouble.impl.DenseDoubleMatrix1D;
+import cern.colt.matrix.tdouble.impl.DenseDoubleMatrix2D;
+import java.util.Random;
+
+/**
+ * Largest eigenvalues and their eigenvectors of a symmetric matrix using the
+ * Lanczos algorithm with full reorthogonalization. Only matrix vector
+ * products are done on the full matrix, the eigen decomposition is done on
+ * the small tridiagonal matrix. Lanczos steps are added until the residuals
+ * of all requested eigenpairs are below the tolerance, at the dimension of the
+ * matrix the result is exact.
+ *
+ * Like the full decompositions, eigenvectors are only defined up to their sign.
+ */
+public class LanczosEigenDecomposition {
+
+    private static final double TOLERANCE = 1e-10;
+    private static final long SEED = 1;
+
+    private final double[] eigenvalues;
+    private final DenseDoubleMatrix2D eigenvectors;
+    private final int steps;
+
+    /**
+     *
+     * @param matrix symmetric matrix
+     * @param k number of eigenpairs with the largest eigenvalues
+     */
+    public LanczosEigenDecomposition(DoubleMatrix2D matrix, int k) {
+
+        final int n = matrix.rows();
+        if (matrix.columns() != n) {
+            throw new IllegalArgumentException("Matrix must be square");
+        }
+        if (k < 1 || k > n) {
+            throw new IllegalArgumentException("Number of eigenvalues must be between 1 and " + n);
+        }
+
+        final double[][] q = new double[n][];
+        final double[] alpha = new double[n];
+        final double[] beta = new double[n];
+        final Random random = new Random(SEED);
+
+        q[0] = randomUnitVector(n, random, q, 0);
+        final DenseDoubleMatrix1D w = new DenseDoubleMatrix1D(n);
+        final double[] wElements = w.elements();
+
+        int m = 0;
+        int checkpoint = Math.min(n, 2 * k + 20);
+        DenseDoubleEigenvalueDecomposition ritz;
+
+        while (true) {
+
+            //Lanczos steps until the next checkpoint
+            for (; m < checkpoint; ++m) {
+
+                matrix.zMult(new DenseDoubleMatrix1D(q[m]), w);
+
+                alpha[m] = dot(wElements, q[m]);
+                for (int i = 0; i < n; ++i) {
+                    wElements[i] -= alpha[m] * q[m][i] + (m > 0 ? beta[m - 1] * q[m - 1][i] : 0);
+                }
+
+                //Twice is enough to keep the vectors orthogonal
+                orthogonalize(wElements, q, m + 1);
+                orthogonalize(wElements, q, m + 1);
+
+                if (m + 1 == n) {
+                    beta[m] = 0;
+                    break;
+                }
+
+                double norm = Math.sqrt(dot(wElements, wElements));
+                if (norm <= TOLERANCE * Math.max(1, Math.abs(alpha[m]))) {
+                    //Invariant subspace found, continue with a new orthogonal start vector
+                    beta[m] = 0;
+                    q[m + 1] = randomUnitVector(n, random, q, m + 1);
+                } else {
+                    beta[m] = norm;
+                    double[] next = new double[n];
+                    for (int i = 0; i < n; ++i) {
+                        next[i] = wElements[i] / norm;
+                    }
+                    q[m + 1] = next;
+                }
+
+            }
+            if (m < checkpoint) {
+                //Stopped at the dimension of the matrix
+                m = n;
+            }
+
+            DenseDoubleMatrix2D tridiagonal = new DenseDoubleMatrix2D(m, m);
+            for (int i = 0; i < m; ++i) {
+                tridiagonal.setQuick(i, i, alpha[i]);
+                if (i + 1 < m) {
+                    tridiagonal.setQuick(i, i + 1, beta[i]);
+                    tridiagonal.setQuick(i + 1, i, beta[i]);
+                }
+            }
+            ritz = new DenseDoubleEigenvalueDecomposition(tridiagonal);
+
+            if (m == n || converged(ritz, beta[m - 1], k, m)) {
+                break;
+            }
+
+            checkpoint = Math.min(n, m + k + 20);
+
+        }
+
+        this.steps = m;
+
+        //Ritz values are sorted ascending, return largest first
+        final DoubleMatrix1D ritzValues = ritz.getRealEigenvalues();
+        final DoubleMatrix2D ritzVectors = ritz.getV();
+        this.eigenvalues = new double[k];
+        this.eigenvectors = new DenseDoubleMatrix2D(n, k);
+        for (int c = 0; c < k; ++c) {
+            int ritzIndex = m - 1 - c;
+            eigenvalues[c] = ritzValues.getQuick(ritzIndex);
+            double[] eigenvector = new double[n];
+            for (int j = 0; j < m; ++j) {
+                double s = ritzVectors.getQuick(j, ritzIndex);
+                double[] qj = q[j];
+                for (int i = 0; i < n; ++i) {
+                    eigenvector[i] += s * qj[i];
+                }
+            }
+            for (int i = 0; i < n; ++i) {
+                eigenvectors.setQuick(i, c, eigenvector[i]);
+            }
+        }
+
+    }
+
+    /**
+     * Residual of a Ritz pair is |beta_m * last element of the Ritz vector|
+     */
+    private static boolean converged(DenseDoubleEigenvalueDecomposition ritz, double lastBeta, int k, int m) {
+
+        final DoubleMatrix1D ritzValues = ritz.getRealEigenvalues();
+        final DoubleMatrix2D ritzVectors = ritz.getV();
+
+        double scale = Math.max(Math.abs(ritzValues.getQuick(0)), Math.abs(ritzValues.getQuick(m - 1)));
+        for (int c = 0; c < k; ++c) {
+            int ritzIndex = m - 1 - c;
+            if (Math.abs(lastBeta * ritzVectors.getQuick(m - 1, ritzIndex)) > TOLERANCE * Math.max(scale, Double.MIN_NORMAL)) {
+                return false;
+            }
+        }
+        return true;
+
+    }
+
+    private static double[] randomUnitVector(int n, Random random, double[][] q, int nrVectors) {
+
+        final double[] v = new double[n];
+        for (int i = 0; i < n; ++i) {
+            v[i] = random.nextDouble() - 0.5;
+        }
+        orthogonalize(v, q, nrVectors);
+        orthogonalize(v, q, nrVectors);
+
+        double norm = Math.sqrt(dot(v, v));
+        for (int i = 0; i < n; ++i) {
+            v[i] /= norm;
+        }
+        return v;
+
+    }
+
+    private static void orthogonalize(double[] v, double[][] q, int nrVectors) {
+        for (int j = 0; j < nrVectors; ++j) {
+            double projection = dot(v, q[j]);
+            double[] qj = q[j];
+            for (int i = 0; i < v.length; ++i) {
+                v[i] -= projection * qj[i];
+            }
+        }
+    }
+
+    private static double dot(double[] x, double[] y) {
+        double sum = 0;
+        for (int i = 0; i < x.length; ++i) {
+            sum += x[i] * y[i];
+        }
+        return sum;
+    }
+
+    /**
+     * @return the k largest eigenvalues, largest first
+     */
+    public double[] getEigenvalues() {
+        return eigenvalues;
+    }
+
+    /**
+     * @return eigenvectors in the columns, in the order of the eigenvalues
+     */
+    public DenseDoubleMatrix2D getEigenvectors() {
+        return eigenvectors;
+    }
+
+    /**
+     * @return number of Lanczos steps that were needed
+     */
+    public int getSteps() {
+        return steps;
+    }
+
+}